@@ -32,6 +32,7 @@ from copilot.core.schemas import (
     QuestionSchema,
     SplitterConfig,
     VectorDBInputSchema,
+    VectorDBRemoveSchema,
 )
 from copilot.core.threadcontext import ThreadContext
 from copilot.core.tool_loader import ToolLoader
@@ -41,9 +42,11 @@ from copilot.core.vectordb_utils import (
     LANGCHAIN_DEFAULT_COLLECTION_NAME,
     get_chroma_settings,
     get_embedding,
+    get_kb_files_manifest,
     get_vector_db_path,
     handle_zip_file,
     index_file,
+    remove_kb_files,
 )
 from fastapi import APIRouter, File, Form, Header, HTTPException, UploadFile
 from langchain_community.vectorstores import Chroma
@@ -420,12 +423,18 @@ def process_text_to_vector_db(
     max_chunk_size: int = Form(None),
     chunk_overlap: int = Form(None),
     ad_client_id: str = Form("0"),
+    kb_file_id: str = Form(None),
+    kb_hash: str = Form(None),
 ):
     from copilot.core.vectordb_utils import (
         IMAGE_EXTENSIONS,
         index_image_file,
     )
 
+    # Documents of a knowledge base file are tagged with its id and content hash, so the file can be
+    # replaced or removed without resetting the whole database.
+    extra_metadata = {"kb_file_id": kb_file_id, "kb_hash": kb_hash or ""} if kb_file_id else None
+
     db_path = get_vector_db_path(kb_vectordb_id)
     splitter_config = SplitterConfig(
         skip_splitting=skip_splitting, max_chunk_size=max_chunk_size, chunk_overlap=chunk_overlap
@@ -442,6 +451,9 @@ def process_text_to_vector_db(
             with file_path.open("wb") as buffer:
                 shutil.copyfileobj(file.file, buffer)
             chroma_client = chromadb.Client(settings=get_chroma_settings(db_path))
+            if kb_file_id:
+                # Replace the previous version of the file
+                remove_kb_files(chroma_client, ad_client_id, [kb_file_id])
             # Check if this is an image by extension
             if extension.lower() in IMAGE_EXTENSIONS:
                 copilot_debug(f"Processing image reference: {file.filename}")
@@ -454,6 +466,7 @@ def process_text_to_vector_db(
                     IMAGES_COLLECTION_NAME,
                     kb_vectordb_id,
                     ad_client_id=ad_client_id,
+                    extra_metadata=extra_metadata,
                 )
 
                 if result.get("status") == "error":
@@ -471,10 +484,21 @@ def process_text_to_vector_db(
             # Process text/document files
             if extension == "zip":
                 # Process the ZIP file
-                texts = handle_zip_file(file_path, chroma_client, splitter_config, ad_client_id=ad_client_id)
+                texts = handle_zip_file(
+                    file_path,
+                    chroma_client,
+                    splitter_config,
+                    ad_client_id=ad_client_id,
+                    extra_metadata=extra_metadata,
+                )
             else:
                 texts = index_file(
-                    extension, file_path, chroma_client, splitter_config, ad_client_id=ad_client_id
+                    extension,
+                    file_path,
+                    chroma_client,
+                    splitter_config,
+                    ad_client_id=ad_client_id,
+                    extra_metadata=extra_metadata,
                 )
                 # Remove the temporary file after use
 
@@ -556,6 +580,37 @@ def purge_vectordb(body: VectorDBInputSchema):
     return {"answer": f"Documents marked for purge have been removed. Total purged: {total_purged}"}
 
 
+@core_router.post("/getVectorDBManifest")
+def get_vectordb_manifest(body: VectorDBInputSchema):
+    """
+    Returns the knowledge base files indexed in a VectorDB with the content hash they were indexed
+    with, and the number of documents indexed without file information, which can only be removed
+    by a reset and purge.
+    """
+    try:
+        db_path = get_vector_db_path(body.kb_vectordb_id)
+        db_client = chromadb.Client(settings=get_chroma_settings(db_path))
+        files, untracked = get_kb_files_manifest(db_client, body.ad_client_id)
+    except Exception as e:
+        copilot_debug(f"Error reading VectorDB manifest: {e}")
+        raise e
+    return {"files": files, "untracked": untracked}
+
+
+@core_router.post("/removeFromVectorDB")
+def remove_from_vectordb(body: VectorDBRemoveSchema):
+    """Removes the documents of the given knowledge base files from a VectorDB."""
+    try:
+        db_path = get_vector_db_path(body.kb_vectordb_id)
+        db_client = chromadb.Client(settings=get_chroma_settings(db_path))
+        total_removed = remove_kb_files(db_client, body.ad_client_id, body.kb_file_ids)
+        db_client.clear_system_cache()
+    except Exception as e:
+        copilot_debug(f"Error removing files from VectorDB: {e}")
+        raise e
+    return {"answer": f"Documents of removed files have been deleted. Total removed: {total_removed}"}
+
+
 @core_router.get("/runningCheck")
 def running_check():
     return {"answer": "docker" if is_docker() else "pycharm"}
@@ -92,6 +92,10 @@ class VectorDBInputSchema(BaseModel):
     ad_client_id: Optional[str] = "0"
 
 
+class VectorDBRemoveSchema(VectorDBInputSchema):
+    kb_file_ids: list[str] = []
+
+
 class TextToVectorDBSchema(VectorDBInputSchema):
     text: Union[str, bytes]
     overwrite: bool = False
@@ -117,7 +117,13 @@ def get_chroma_settings(db_path=None):
     return settings
 
 
-def handle_zip_file(zip_file_path, chroma_client, splitter_config: SplitterConfig, ad_client_id: str = "0"):
+def handle_zip_file(
+    zip_file_path,
+    chroma_client,
+    splitter_config: SplitterConfig,
+    ad_client_id: str = "0",
+    extra_metadata: dict | None = None,
+):
     """
     Extracts and indexes all supported files from a ZIP archive into ChromaDB.
 
@@ -126,6 +132,7 @@ def handle_zip_file(zip_file_path, chroma_client, splitter_config: SplitterConfi
         chroma_client: ChromaDB client instance for storing indexed documents.
         splitter_config (SplitterConfig): Configuration for text splitting during indexing.
         ad_client_id (str): The Etendo Client ID. Defaults to "0".
+        extra_metadata (dict, optional): Metadata added to every indexed document, see index_file.
 
     Returns:
         list[Document]: List of all Document objects created from files in the ZIP archive.
@@ -150,7 +157,14 @@ def handle_zip_file(zip_file_path, chroma_client, splitter_config: SplitterConfi
                 try:
                     copilot_debug(f"Processing file {file_path}")
                     acum_texts.extend(
-                        index_file(ext, file_path, chroma_client, splitter_config, ad_client_id=ad_client_id)
+                        index_file(
+                            ext,
+                            file_path,
+                            chroma_client,
+                            splitter_config,
+                            ad_client_id=ad_client_id,
+                            extra_metadata=extra_metadata,
+                        )
                     )
                 except Exception as e:
                     copilot_debug(f"Error processing file {file_path}: {e}")
@@ -159,6 +173,65 @@ def handle_zip_file(zip_file_path, chroma_client, splitter_config: SplitterConfi
     return acum_texts
 
 
+def _client_filter(ad_client_id: str | None) -> dict:
+    """Filter of the documents visible for a client: its own ones and the ones of client '0'."""
+    if ad_client_id and ad_client_id != "0":
+        return {"ad_client_id": {"$in": ["0", ad_client_id]}}
+    return {"ad_client_id": "0"}
+
+
+def get_kb_files_manifest(chroma_client, ad_client_id: str | None) -> tuple[dict[str, str], int]:
+    """
+    Lists the knowledge base files indexed in a database.
+
+    Args:
+        chroma_client: ChromaDB client instance of the database.
+        ad_client_id (str): The Etendo Client ID whose documents are listed, along with client "0".
+
+    Returns:
+        tuple: A dict with the 'kb_hash' of every 'kb_file_id', and the number of documents
+            without 'kb_file_id', indexed before files were tracked.
+    """
+    files = {}
+    untracked = 0
+    for collection_name in [LANGCHAIN_DEFAULT_COLLECTION_NAME, IMAGES_COLLECTION_NAME]:
+        collection = chroma_client.get_or_create_collection(collection_name)
+        result = collection.get(where=_client_filter(ad_client_id), include=["metadatas"])
+        for metadata in result["metadatas"] or []:
+            kb_file_id = (metadata or {}).get("kb_file_id")
+            if kb_file_id:
+                files[kb_file_id] = metadata.get("kb_hash", "")
+            else:
+                untracked += 1
+    return files, untracked
+
+
+def remove_kb_files(chroma_client, ad_client_id: str | None, kb_file_ids: list[str]) -> int:
+    """
+    Deletes the documents of the given knowledge base files.
+
+    Args:
+        chroma_client: ChromaDB client instance of the database.
+        ad_client_id (str): The Etendo Client ID whose documents are deleted, along with client "0".
+        kb_file_ids (list[str]): Identifiers of the knowledge base files.
+
+    Returns:
+        int: The number of deleted documents.
+    """
+    if not kb_file_ids:
+        return 0
+    where_filter = {"$and": [{"kb_file_id": {"$in": list(kb_file_ids)}}, _client_filter(ad_client_id)]}
+    total_removed = 0
+    for collection_name in [LANGCHAIN_DEFAULT_COLLECTION_NAME, IMAGES_COLLECTION_NAME]:
+        collection = chroma_client.get_or_create_collection(collection_name)
+        num_docs = len(collection.get(where=where_filter, include=[])["ids"])
+        if num_docs > 0:
+            collection.delete(where=where_filter)
+            total_removed += num_docs
+            copilot_debug(f"Removed {num_docs} documents of {len(kb_file_ids)} files from {collection_name}")
+    return total_removed
+
+
 def load_chroma_collection_from_path(db_path):
     """
     Loads a Chroma collection from the specified database path.
@@ -200,7 +273,14 @@ def hash_splitter_config(config: SplitterConfig) -> str:
     return hashlib.sha256(json_repr.encode("utf-8")).hexdigest()
 
 
-def index_file(ext, item_path, chroma_client, splitter_config: SplitterConfig, ad_client_id: str = "0"):
+def index_file(
+    ext,
+    item_path,
+    chroma_client,
+    splitter_config: SplitterConfig,
+    ad_client_id: str = "0",
+    extra_metadata: dict | None = None,
+):
     """
     Indexes a file into ChromaDB collection, handling duplicates and text splitting.
 
@@ -210,6 +290,8 @@ def index_file(ext, item_path, chroma_client, splitter_config: SplitterConfig, a
         chroma_client: ChromaDB client instance for database operations.
         splitter_config (SplitterConfig): Configuration for text splitting behavior.
         ad_client_id (str): The Etendo Client ID. Defaults to "0".
+        extra_metadata (dict, optional): Metadata added to the indexed documents, such as the
+            'kb_file_id' and 'kb_hash' of the knowledge base file they come from.
 
     Returns:
         list[Document]: List of Document objects ready to be added to the vector store.
@@ -220,7 +302,10 @@ def index_file(ext, item_path, chroma_client, splitter_config: SplitterConfig, a
         - If file already exists (same MD5), unmarks it from purge and returns empty list.
         - If file is new, processes it and optionally splits into chunks based on config.
         - All indexed documents are marked with 'purge': False to prevent deletion.
+        - When a 'kb_file_id' is given it is part of the MD5, so documents are only shared
+          between uploads of the same knowledge base file.
     """
+    extra_metadata = extra_metadata or {}
     # Process the file and get its content and MD5
     file_content, md5 = process_file(item_path, ext)
     # If there is a splitter config, we need to add the config to the md5, so
@@ -229,7 +314,7 @@ def index_file(ext, item_path, chroma_client, splitter_config: SplitterConfig, a
         md5 = md5 + hash_splitter_config(splitter_config)
 
     # Add ad_client_id to md5 to ensure client isolation in the same database
-    md5 = md5 + ad_client_id
+    md5 = md5 + ad_client_id + extra_metadata.get("kb_file_id", "")
 
     collection = chroma_client.get_or_create_collection(LANGCHAIN_DEFAULT_COLLECTION_NAME)
     copilot_debug(f"Collection id {collection.id}")
@@ -241,13 +326,16 @@ def index_file(ext, item_path, chroma_client, splitter_config: SplitterConfig, a
         copilot_debug(f"The file with md5 {md5} is already indexed. Marking 'purge' as False.")
         collection.update(
             ids=result["ids"],
-            metadatas=[{"purge": False, "ad_client_id": ad_client_id} for _ in result["metadatas"]],
+            metadatas=[
+                {"purge": False, "ad_client_id": ad_client_id, **extra_metadata} for _ in result["metadatas"]
+            ],
         )
         return []
     else:
         # If the document with this MD5 doesn't exist, add it as a new document
         document = Document(
-            page_content=file_content, metadata={"md5": md5, "purge": False, "ad_client_id": ad_client_id}
+            page_content=file_content,
+            metadata={"md5": md5, "purge": False, "ad_client_id": ad_client_id, **extra_metadata},
         )
         text_splitter = get_text_splitter(ext, splitter_config)
 
@@ -448,7 +536,14 @@ def calculate_file_md5(file_path, chunk_size=4096):
     return md5_hash.hexdigest()
 
 
-def index_image_file(image_path, chroma_client, collection_name, agent_id=None, ad_client_id: str = "0"):
+def index_image_file(
+    image_path,
+    chroma_client,
+    collection_name,
+    agent_id=None,
+    ad_client_id: str = "0",
+    extra_metadata: dict | None = None,
+):
     """
     Indexes an image file into ChromaDB using CLIP embeddings.
 
@@ -458,17 +553,19 @@ def index_image_file(image_path, chroma_client, collection_name, agent_id=None,
         collection_name (str): Name of the collection to store the image.
         agent_id (str, optional): Agent ID for metadata tracking.
         ad_client_id (str): The Etendo Client ID. Defaults to "0".
+        extra_metadata (dict, optional): Metadata added to the indexed image, see index_file.
 
     Returns:
         dict: Result with status information.
     """
+    extra_metadata = extra_metadata or {}
     try:
         from fastembed import ImageEmbedding
 
         # Calculate MD5 of the file
         file_md5 = calculate_file_md5(image_path)
         # Add ad_client_id to md5 to ensure client isolation
-        file_md5 = file_md5 + ad_client_id
+        file_md5 = file_md5 + ad_client_id + extra_metadata.get("kb_file_id", "")
         filename = os.path.basename(image_path)
 
         # Get or create collection
@@ -485,7 +582,8 @@ def index_image_file(image_path, chroma_client, collection_name, agent_id=None,
             collection.update(
                 ids=result["ids"],
                 metadatas=[
-                    {"purge": False, "md5": file_md5, "ad_client_id": ad_client_id} for _ in result["ids"]
+                    {"purge": False, "md5": file_md5, "ad_client_id": ad_client_id, **extra_metadata}
+                    for _ in result["ids"]
                 ],
             )
             return {"status": "exists", "md5": file_md5, "filename": filename}
@@ -513,6 +611,7 @@ def index_image_file(image_path, chroma_client, collection_name, agent_id=None,
             "filename": filename,
             "purge": False,
             "ad_client_id": ad_client_id,
+            **extra_metadata,
         }
         if agent_id:
             metadata["agent_id"] = agent_id
@@ -0,0 +1,146 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.background;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.query.Query;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.dal.core.SessionHandler;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.process.AddBulkTasks;
+import com.etendoerp.task.data.Status;
+
+/**
+ * Unit tests for the rate limit, the release of unstarted tasks and the counters of
+ * {@link BulkTaskEngine}.
+ */
+public class BulkTaskEngineTest {
+
+  private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * The questions to an agent are spaced by the configured rate, independently of other agents.
+   */
+  @Test
+  public void testRateLimiterSpacesQuestionsPerAgent() {
+    BulkTaskEngine.AgentRateLimiter limiter = new BulkTaskEngine.AgentRateLimiter(60);
+
+    assertEquals(0L, limiter.reserve("A", 0L));
+    assertEquals(ONE_SECOND, limiter.reserve("A", 0L));
+    assertEquals(2 * ONE_SECOND, limiter.reserve("A", 0L));
+    assertEquals(0L, limiter.reserve("B", 0L));
+    assertEquals(0L, limiter.reserve("A", 10 * ONE_SECOND));
+  }
+
+  /**
+   * A rate of zero does not limit the questions.
+   */
+  @Test
+  public void testZeroRateDoesNotLimit() {
+    BulkTaskEngine.AgentRateLimiter limiter = new BulkTaskEngine.AgentRateLimiter(0);
+
+    assertEquals(0L, limiter.reserve("A", 0L));
+    assertEquals(0L, limiter.reserve("A", 0L));
+  }
+
+  /**
+   * The executions share the rate limiter, so the rate of an agent is kept between them, until the
+   * configured rate changes.
+   */
+  @Test
+  public void testRateLimiterIsSharedByExecutions() {
+    BulkTaskEngine.AgentRateLimiter limiter = BulkTaskEngine.getRateLimiter(60);
+
+    assertSame(limiter, BulkTaskEngine.getRateLimiter(60));
+    assertNotSame(limiter, BulkTaskEngine.getRateLimiter(30));
+  }
+
+  /**
+   * The summary includes the processed tasks, the latencies and the failures.
+   */
+  @Test
+  public void testStatsSummary() {
+    BulkTaskEngine.Stats stats = new BulkTaskEngine.Stats(System.nanoTime(), 4);
+    stats.record(TimeUnit.MILLISECONDS.toNanos(100), false, false);
+    stats.record(TimeUnit.MILLISECONDS.toNanos(300), true, false);
+    stats.record(TimeUnit.MILLISECONDS.toNanos(200), false, true);
+
+    String summary = stats.summary();
+    assertEquals(3, stats.count());
+    assertEquals(1, stats.getReview());
+    assertEquals(1, stats.getErrors());
+    assertTrue(summary, summary.startsWith("Processed 3 tasks in "));
+    assertTrue(summary, summary.contains("with 4 threads"));
+    assertTrue(summary, summary.contains("average latency 200 ms, max latency 300 ms, 1 require review, 1 errors"));
+  }
+
+  /**
+   * The claimed tasks that were not started are moved back to pending, if they are still in
+   * progress, and the change is committed.
+   */
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void testReleasesTasksNotStarted() {
+    try (MockedStatic<OBDal> mockedOBDal = mockStatic(OBDal.class);
+         MockedStatic<SessionHandler> mockedSessionHandler = mockStatic(SessionHandler.class);
+         MockedStatic<AddBulkTasks> mockedAddBulkTasks = mockStatic(AddBulkTasks.class)) {
+      OBDal obDal = mock(OBDal.class);
+      Session session = mock(Session.class);
+      Query query = mock(Query.class);
+      SessionHandler sessionHandler = mock(SessionHandler.class);
+      Status pending = mock(Status.class);
+      Status inProgress = mock(Status.class);
+      mockedOBDal.when(OBDal::getInstance).thenReturn(obDal);
+      mockedSessionHandler.when(SessionHandler::getInstance).thenReturn(sessionHandler);
+      mockedAddBulkTasks.when(() -> AddBulkTasks.getStatus(BulkTaskExec.TASK_STATUS_PENDING)).thenReturn(pending);
+      mockedAddBulkTasks.when(() -> AddBulkTasks.getStatus(BulkTaskExec.TASK_STATUS_IN_PROGRESS))
+          .thenReturn(inProgress);
+      when(obDal.getSession()).thenReturn(session);
+      when(session.createQuery(anyString())).thenReturn(query);
+      when(query.setParameter(anyString(), any())).thenReturn(query);
+
+      BulkTaskEngine engine = new BulkTaskEngine(10, 4, 0L);
+      engine.releaseTasks(List.of());
+      verify(sessionHandler, times(0)).commitAndStart();
+
+      engine.releaseTasks(List.of("T1", "T2"));
+      verify(query).setParameter("id", "T1");
+      verify(query).setParameter("id", "T2");
+      verify(query, times(2)).setParameter("pending", pending);
+      verify(query, times(2)).setParameter("inProgress", inProgress);
+      verify(query, times(2)).executeUpdate();
+      verify(sessionHandler).commitAndStart();
+    }
+  }
+}
@@ -20,25 +20,32 @@ import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 
 import org.hibernate.Session;
+import org.hibernate.query.Query;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.MockitoAnnotations;
+import org.openbravo.base.session.OBPropertiesProvider;
 import org.openbravo.dal.core.SessionHandler;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
@@ -84,11 +91,16 @@ public class BulkTaskExecTest {
   private TaskType mockTaskType;
   @Mock
   private CopilotApp mockAgent;
+  @Mock
+  private Query<?> mockClaimQuery;
+  @Mock
+  private OBPropertiesProvider propertiesProvider;
 
   private MockedStatic<OBDal> mockedOBDal;
   private MockedStatic<SessionHandler> mockedSessionHandler;
   private MockedStatic<AddBulkTasks> mockedAddBulkTasks;
   private MockedStatic<ExecTask> mockedExecTask;
+  private MockedStatic<OBPropertiesProvider> mockedPropertiesProvider;
 
   private static final String TEST_TASK_ID_1 = "testTaskId1";
   private static final String TEST_TASK_ID_2 = "testTaskId2";
@@ -110,11 +122,21 @@ public class BulkTaskExecTest {
     mockedSessionHandler = mockStatic(SessionHandler.class);
     mockedAddBulkTasks = mockStatic(AddBulkTasks.class);
     mockedExecTask = mockStatic(ExecTask.class);
+    mockedPropertiesProvider = mockStatic(OBPropertiesProvider.class);
+
+    // Process the tasks in the test thread, where the static mocks are active
+    Properties properties = new Properties();
+    properties.setProperty(BulkTaskEngine.PROP_PARALLELISM, "1");
+    mockedPropertiesProvider.when(OBPropertiesProvider::getInstance).thenReturn(propertiesProvider);
+    when(propertiesProvider.getOpenbravoProperties()).thenReturn(properties);
 
     // Configure OBDal mock
     mockedOBDal.when(OBDal::getInstance).thenReturn(obDal);
     when(obDal.getSession()).thenReturn(mockSession);
     when(obDal.createCriteria(Task.class)).thenReturn(mockCriteria);
+    when(mockSession.createQuery(anyString())).thenReturn((Query) mockClaimQuery);
+    when(mockClaimQuery.setParameter(anyString(), any())).thenReturn((Query) mockClaimQuery);
+    when(mockClaimQuery.executeUpdate()).thenReturn(1);
 
     // Configure SessionHandler mock
     mockedSessionHandler.when(SessionHandler::getInstance).thenReturn(sessionHandler);
@@ -164,6 +186,9 @@ public class BulkTaskExecTest {
     if (mockedExecTask != null) {
       mockedExecTask.close();
     }
+    if (mockedPropertiesProvider != null) {
+      mockedPropertiesProvider.close();
+    }
   }
 
 
@@ -186,9 +211,8 @@ public class BulkTaskExecTest {
     // Then
     verify(mockLogger, times(1)).log(BULK_TASK_EXEC_STARTED);
     verify(mockLogger, times(1)).log("Found 1 tasks\n");
-    verify(mockTask1, times(1)).setStatus(mockStatus);
-    verify(obDal, times(1)).save(mockTask1);
-    verify(obDal, times(1)).flush();
+    verify(mockClaimQuery, times(1)).setParameter("id", TEST_TASK_ID_1);
+    verify(mockClaimQuery, times(1)).executeUpdate();
     verify(sessionHandler, times(1)).commitAndStart();
     verify(obDal, times(1)).refresh(mockTask1);
     mockedExecTask.verify(() -> ExecTask.processTask(eq(mockTask1), eq(mockLogger)), times(1));
@@ -216,13 +240,10 @@ public class BulkTaskExecTest {
     verify(mockLogger, times(1)).log(BULK_TASK_EXEC_STARTED);
     verify(mockLogger, times(1)).log("Found 2 tasks\n");
 
-    // Verify both tasks were updated to IN_PROGRESS status
-    verify(mockTask1, times(1)).setStatus(mockStatus);
-    verify(mockTask2, times(1)).setStatus(mockStatus);
-
-    // Verify save and flush
-    verify(obDal, times(2)).save(any(Task.class));
-    verify(obDal, times(1)).flush();
+    // Verify both tasks were claimed in one transaction
+    verify(mockClaimQuery, times(1)).setParameter("id", TEST_TASK_ID_1);
+    verify(mockClaimQuery, times(1)).setParameter("id", TEST_TASK_ID_2);
+    verify(mockClaimQuery, times(2)).executeUpdate();
     verify(sessionHandler, times(1)).commitAndStart();
 
     // Verify refresh and processing for both tasks
@@ -254,8 +275,7 @@ public class BulkTaskExecTest {
     verify(mockLogger, times(1)).log(BULK_TASK_EXEC_STARTED);
     verify(mockLogger, times(1)).log("Found 10 tasks\n");
     verify(mockCriteria, times(1)).setMaxResults(EXPECTED_BATCH_SIZE);
-    verify(obDal, times(EXPECTED_BATCH_SIZE)).save(any(Task.class));
-    verify(obDal, times(1)).flush();
+    verify(mockClaimQuery, times(EXPECTED_BATCH_SIZE)).executeUpdate();
     verify(sessionHandler, times(1)).commitAndStart();
     verify(obDal, times(EXPECTED_BATCH_SIZE)).refresh(any(Task.class));
     mockedExecTask.verify(() -> ExecTask.processTask(any(Task.class), eq(mockLogger)),
@@ -323,12 +343,53 @@ public class BulkTaskExecTest {
     // When
     bulkTaskExec.doExecute(processBundle);
 
-    // Then - Verify order: save, flush, commitAndStart, then refresh
-    verify(mockTask1, times(1)).setStatus(mockStatus);
-    verify(obDal, times(1)).save(mockTask1);
-    verify(obDal, times(1)).flush();
-    verify(sessionHandler, times(1)).commitAndStart();
-    verify(obDal, times(1)).refresh(mockTask1);
+    // Then - Verify order: claim, commitAndStart, then refresh
+    InOrder inOrder = inOrder(mockClaimQuery, sessionHandler, obDal);
+    inOrder.verify(mockClaimQuery).executeUpdate();
+    inOrder.verify(sessionHandler).commitAndStart();
+    inOrder.verify(obDal).refresh(mockTask1);
+  }
+
+  /**
+   * Test that a task claimed by another node is not processed.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testTaskClaimedByOtherNodeIsSkipped() throws Exception {
+    // Given
+    Task mockTask1 = createMockTask(TEST_TASK_ID_1);
+    List<Task> taskList = new ArrayList<>();
+    taskList.add(mockTask1);
+    when(mockCriteria.list()).thenReturn(taskList);
+    when(mockClaimQuery.executeUpdate()).thenReturn(0);
+
+    // When
+    bulkTaskExec.doExecute(processBundle);
+
+    // Then
+    verify(mockLogger, times(1)).log("Found 0 tasks\n");
+    mockedExecTask.verify(() -> ExecTask.processTask(any(Task.class), any(ProcessLogger.class)), never());
+  }
+
+  /**
+   * Test that the throughput and latency counters are written to the process log.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testDoExecuteLogsCounters() throws Exception {
+    // Given
+    Task mockTask1 = createMockTask(TEST_TASK_ID_1);
+    List<Task> taskList = new ArrayList<>();
+    taskList.add(mockTask1);
+    when(mockCriteria.list()).thenReturn(taskList);
+
+    // When
+    bulkTaskExec.doExecute(processBundle);
+
+    // Then
+    verify(mockLogger, times(1)).log(startsWith("Processed 1 tasks in "));
   }
 
   /**
@@ -354,6 +415,7 @@ public class BulkTaskExecTest {
     when(mockTask.getEtcopQuestion()).thenReturn("Test question");
     when(mockTask.getETCOPAgent()).thenReturn(mockAgent);
     when(mockAgent.getId()).thenReturn("testAgentId");
+    when(obDal.get(Task.class, taskId)).thenReturn(mockTask);
     doNothing().when(mockTask).setStatus(any(Status.class));
     return mockTask;
   }
@@ -0,0 +1,131 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.hook;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AgentMemoryCache}.
+ */
+public class AgentMemoryCacheTest {
+
+  private AgentMemoryCache cache;
+  private AtomicInteger loads;
+
+  /**
+   * Installs a cache with a five minutes TTL. The expiration is covered by the tests of
+   * {@link com.etendoerp.copilot.util.CopilotRuntime.TtlCache}.
+   */
+  @Before
+  public void setUp() {
+    cache = new AgentMemoryCache(300, () -> 0L);
+    AgentMemoryCache.setInstance(cache);
+    loads = new AtomicInteger();
+  }
+
+  /**
+   * Removes the shared cache.
+   */
+  @After
+  public void tearDown() {
+    AgentMemoryCache.setInstance(null);
+  }
+
+  private String load() {
+    return "memories " + loads.incrementAndGet();
+  }
+
+  /**
+   * The memory block is loaded once per agent, user, role and organization.
+   */
+  @Test
+  public void testMemoriesCachedPerContext() {
+    assertEquals("memories 1", cache.getMemories("A1", "U1", "R1", "O1", this::load));
+    assertEquals("memories 1", cache.getMemories("A1", "U1", "R1", "O1", this::load));
+    assertEquals("memories 2", cache.getMemories("A1", "U2", "R1", "O1", this::load));
+    assertEquals("memories 3", cache.getMemories("A1", "U1", null, "O1", this::load));
+
+    assertEquals(1, cache.getMemoryHits());
+    assertEquals(3, cache.getMemoryMisses());
+  }
+
+  /**
+   * Invalidating an agent only discards its memory blocks.
+   */
+  @Test
+  public void testInvalidateAgent() {
+    cache.getMemories("A1", "U1", "R1", "O1", this::load);
+    cache.getMemories("A10", "U1", "R1", "O1", this::load);
+
+    AgentMemoryCache.invalidateAgent("A1");
+
+    assertEquals("memories 3", cache.getMemories("A1", "U1", "R1", "O1", this::load));
+    assertEquals("memories 2", cache.getMemories("A10", "U1", "R1", "O1", this::load));
+  }
+
+  /**
+   * Invalidating the roles discards the role inheritances and the memory blocks.
+   */
+  @Test
+  public void testInvalidateRoles() {
+    AtomicInteger roleLoads = new AtomicInteger();
+    cache.getRoleIds("R1", () -> Set.of("R1", "P" + roleLoads.incrementAndGet()));
+    cache.getOrgIds("C1", "O1", () -> Set.of("O1", "0"));
+    cache.getMemories("A1", "U1", "R1", "O1", this::load);
+
+    AgentMemoryCache.invalidateRoles();
+
+    assertEquals(Set.of("R1", "P2"), cache.getRoleIds("R1", () -> Set.of("R1", "P" + roleLoads.incrementAndGet())));
+    assertEquals(Set.of("O1", "0"), cache.getOrgIds("C1", "O1", () -> Set.of("changed")));
+    assertEquals("memories 2", cache.getMemories("A1", "U1", "R1", "O1", this::load));
+  }
+
+  /**
+   * Invalidating the organizations discards the organization trees and the memory blocks.
+   */
+  @Test
+  public void testInvalidateOrganizations() {
+    cache.getRoleIds("R1", () -> Set.of("R1"));
+    cache.getOrgIds("C1", "O1", () -> Set.of("O1", "0"));
+    cache.getMemories("A1", "U1", "R1", "O1", this::load);
+
+    AgentMemoryCache.invalidateOrganizations();
+
+    assertEquals(Set.of("R1"), cache.getRoleIds("R1", () -> Set.of("changed")));
+    assertEquals(Set.of("O1"), cache.getOrgIds("C1", "O1", () -> Set.of("O1")));
+    assertEquals("memories 2", cache.getMemories("A1", "U1", "R1", "O1", this::load));
+  }
+
+  /**
+   * A TTL of zero disables the cache.
+   */
+  @Test
+  public void testDisabled() {
+    AgentMemoryCache disabled = new AgentMemoryCache(0, () -> 0L);
+
+    disabled.getMemories("A1", "U1", "R1", "O1", this::load);
+
+    assertEquals("memories 2", disabled.getMemories("A1", "U1", "R1", "O1", this::load));
+  }
+}
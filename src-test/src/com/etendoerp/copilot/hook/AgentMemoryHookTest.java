@@ -26,6 +26,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -116,6 +117,8 @@ public class AgentMemoryHookTest extends WeldBaseTest {
   public void setUp() throws Exception {
     mocks = MockitoAnnotations.openMocks(this);
     agentMemoryHook = new AgentMemoryHook();
+    // Every test uses the same context, so the cache is disabled to run the queries each time
+    AgentMemoryCache.setInstance(new AgentMemoryCache(0, System::nanoTime));
 
     // Setup static mocks
     mockedOBContext = mockStatic(OBContext.class);
@@ -168,6 +171,7 @@ public class AgentMemoryHookTest extends WeldBaseTest {
    */
   @After
   public void tearDown() throws Exception {
+    AgentMemoryCache.setInstance(null);
     if (mockedOBContext != null) {
       mockedOBContext.close();
     }
@@ -475,4 +479,30 @@ public class AgentMemoryHookTest extends WeldBaseTest {
     // Verify - Should complete successfully
     assertNotNull(result);
   }
+
+  /**
+   * Test the memory context is read once and then served from the cache until a memory of the
+   * agent changes.
+   */
+  @Test
+  public void testExec_CachedUntilAgentInvalidated() {
+    AgentMemoryCache.setInstance(new AgentMemoryCache(300, System::nanoTime));
+    AgentMemory memory = mock(AgentMemory.class);
+    when(memory.getTextField()).thenReturn(TEST_MEMORY_TEXT);
+    when(mockQuery.list()).thenReturn(Collections.singletonList(memory));
+
+    String first = agentMemoryHook.exec(mockCopilotApp);
+    String second = agentMemoryHook.exec(mockCopilotApp);
+
+    assertEquals(first, second);
+    verify(mockQuery, times(1)).list();
+    verify(mockOrgStructureProvider, times(1)).getParentList(TEST_ORG_ID, true);
+
+    AgentMemoryCache.invalidateAgent(TEST_APP_ID);
+    agentMemoryHook.exec(mockCopilotApp);
+
+    verify(mockQuery, times(2)).list();
+    // The organizations and roles are still cached
+    verify(mockOrgStructureProvider, times(1)).getParentList(TEST_ORG_ID, true);
+  }
 }
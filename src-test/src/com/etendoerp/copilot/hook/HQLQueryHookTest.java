@@ -16,6 +16,7 @@
  */
 package com.etendoerp.copilot.hook;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -39,7 +40,9 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockedStatic;
 import org.mockito.MockitoAnnotations;
 import org.openbravo.base.exception.OBException;
@@ -51,7 +54,9 @@ import org.openbravo.erpCommon.utility.OBMessageUtils;
 import org.openbravo.model.ad.system.Client;
 
 import com.etendoerp.copilot.data.CopilotFile;
+import com.etendoerp.copilot.data.KnowledgeBaseFileVariant;
 import com.etendoerp.copilot.util.CopilotVarReplacerUtil;
+import com.etendoerp.copilot.util.FileBlobStore;
 import com.etendoerp.copilot.util.FileUtils;
 
 /**
@@ -83,6 +88,9 @@ public class HQLQueryHookTest extends WeldBaseTest {
     @Mock
     private OBCriteria<Client> mockCriteria;
 
+    @Mock
+    private OBCriteria<KnowledgeBaseFileVariant> mockVariantCriteria;
+
     @Mock
     private Client mockClient1;
 
@@ -92,14 +100,13 @@ public class HQLQueryHookTest extends WeldBaseTest {
     private static final String TEST_HQL = "SELECT e FROM Entity e";
     private static final String TEST_FILENAME = "result.json";
     private static final String TEST_URL = "http://example.com";
-    private static final String TEST_HQL_RESULT = "{\"result\": \"data\"}";
     private static final String CLIENT_ID_1 = "client-1";
     private static final String CLIENT_ID_2 = "client-2";
 
     @Before
     public void setUp() throws Exception {
         mocks = MockitoAnnotations.openMocks(this);
-        hqlQueryHook = new HQLQueryHook();
+        hqlQueryHook = new HQLQueryHook(Runnable::run);
 
         // Setup static mocks
         mockedOBDal = mockStatic(OBDal.class);
@@ -112,6 +119,8 @@ public class HQLQueryHookTest extends WeldBaseTest {
         // Setup OBDal mock
         mockedOBDal.when(OBDal::getInstance).thenReturn(mockOBDalInstance);
         when(mockOBDalInstance.createCriteria(Client.class)).thenReturn(mockCriteria);
+        when(mockOBDalInstance.createCriteria(KnowledgeBaseFileVariant.class)).thenReturn(mockVariantCriteria);
+        when(mockVariantCriteria.add(any())).thenReturn(mockVariantCriteria);
 
         // Setup OBContext mock
         OBContext mockContext = mock(OBContext.class);
@@ -209,9 +218,9 @@ public class HQLQueryHookTest extends WeldBaseTest {
 
         when(mockCriteria.list()).thenReturn(clientList);
 
-        mockedProcessHQL.when(() -> ProcessHQLAppSource.getHQLResult(
-                eq(TEST_HQL), eq("e"), eq("json"), anyString()
-        )).thenReturn(TEST_HQL_RESULT);
+        mockedProcessHQL.when(() -> ProcessHQLAppSource.writeHQLResult(
+                eq(TEST_HQL), eq("e"), eq("json"), anyString(), any(Path.class)
+        )).thenReturn(1L);
 
         // When
         hqlQueryHook.exec(mockCopilotFile);
@@ -221,11 +230,11 @@ public class HQLQueryHookTest extends WeldBaseTest {
         verify(mockCopilotFile, times(1)).getFilename();
         verify(mockCopilotFile, times(1)).getHql();
         mockedVarReplacer.verify(() -> CopilotVarReplacerUtil.replaceCopilotPromptVariables(eq(TEST_URL)), times(1));
-        mockedProcessHQL.verify(() -> ProcessHQLAppSource.getHQLResult(
-                eq(TEST_HQL), eq("e"), eq("json"), eq(CLIENT_ID_1)
+        mockedProcessHQL.verify(() -> ProcessHQLAppSource.writeHQLResult(
+                eq(TEST_HQL), eq("e"), eq("json"), eq(CLIENT_ID_1), any(Path.class)
         ), times(1));
-        mockedProcessHQL.verify(() -> ProcessHQLAppSource.getHQLResult(
-                eq(TEST_HQL), eq("e"), eq("json"), eq(CLIENT_ID_2)
+        mockedProcessHQL.verify(() -> ProcessHQLAppSource.writeHQLResult(
+                eq(TEST_HQL), eq("e"), eq("json"), eq(CLIENT_ID_2), any(Path.class)
         ), times(1));
         mockedFileUtils.verify(() -> FileUtils.createSecureTempFile(anyString(), eq(".json")), times(2));
         mockedFileUtils.verify(() -> FileUtils.refreshFileForNonMultiClient(eq(mockCopilotFile), any(Map.class)), times(1));
@@ -248,16 +257,16 @@ public class HQLQueryHookTest extends WeldBaseTest {
 
         when(mockCriteria.list()).thenReturn(clientList);
 
-        mockedProcessHQL.when(() -> ProcessHQLAppSource.getHQLResult(
-                eq(TEST_HQL), eq("e"), eq("json"), eq(CLIENT_ID_1)
-        )).thenReturn(TEST_HQL_RESULT);
+        mockedProcessHQL.when(() -> ProcessHQLAppSource.writeHQLResult(
+                eq(TEST_HQL), eq("e"), eq("json"), eq(CLIENT_ID_1), any(Path.class)
+        )).thenReturn(1L);
 
         // When
         hqlQueryHook.exec(mockCopilotFile);
 
         // Then
-        mockedProcessHQL.verify(() -> ProcessHQLAppSource.getHQLResult(
-                eq(TEST_HQL), eq("e"), eq("json"), eq(CLIENT_ID_1)
+        mockedProcessHQL.verify(() -> ProcessHQLAppSource.writeHQLResult(
+                eq(TEST_HQL), eq("e"), eq("json"), eq(CLIENT_ID_1), any(Path.class)
         ), times(1));
         mockedFileUtils.verify(() -> FileUtils.createSecureTempFile(anyString(), eq(".json")), times(1));
         mockedFileUtils.verify(() -> FileUtils.refreshFileForNonMultiClient(eq(mockCopilotFile), any(Map.class)), times(1));
@@ -281,17 +290,16 @@ public class HQLQueryHookTest extends WeldBaseTest {
 
         when(mockCriteria.list()).thenReturn(clientList);
 
-        String xmlResult = "<result>data</result>";
-        mockedProcessHQL.when(() -> ProcessHQLAppSource.getHQLResult(
-                eq(TEST_HQL), eq("e"), eq("xml"), eq(CLIENT_ID_1)
-        )).thenReturn(xmlResult);
+        mockedProcessHQL.when(() -> ProcessHQLAppSource.writeHQLResult(
+                eq(TEST_HQL), eq("e"), eq("xml"), eq(CLIENT_ID_1), any(Path.class)
+        )).thenReturn(1L);
 
         // When
         hqlQueryHook.exec(mockCopilotFile);
 
         // Then
-        mockedProcessHQL.verify(() -> ProcessHQLAppSource.getHQLResult(
-                eq(TEST_HQL), eq("e"), eq("xml"), eq(CLIENT_ID_1)
+        mockedProcessHQL.verify(() -> ProcessHQLAppSource.writeHQLResult(
+                eq(TEST_HQL), eq("e"), eq("xml"), eq(CLIENT_ID_1), any(Path.class)
         ), times(1));
         mockedFileUtils.verify(() -> FileUtils.createSecureTempFile(anyString(), eq(".xml")), times(1));
     }
@@ -312,8 +320,8 @@ public class HQLQueryHookTest extends WeldBaseTest {
 
         when(mockCriteria.list()).thenReturn(clientList);
 
-        mockedProcessHQL.when(() -> ProcessHQLAppSource.getHQLResult(
-                anyString(), anyString(), anyString(), anyString()
+        mockedProcessHQL.when(() -> ProcessHQLAppSource.writeHQLResult(
+                anyString(), anyString(), anyString(), anyString(), any(Path.class)
         )).thenThrow(new RuntimeException("HQL execution failed"));
 
         expectedException.expect(RuntimeException.class);
@@ -339,9 +347,9 @@ public class HQLQueryHookTest extends WeldBaseTest {
 
         when(mockCriteria.list()).thenReturn(clientList);
 
-        mockedProcessHQL.when(() -> ProcessHQLAppSource.getHQLResult(
-                anyString(), anyString(), anyString(), anyString()
-        )).thenReturn(TEST_HQL_RESULT);
+        mockedProcessHQL.when(() -> ProcessHQLAppSource.writeHQLResult(
+                anyString(), anyString(), anyString(), anyString(), any(Path.class)
+        )).thenReturn(1L);
 
         mockedFileUtils.when(() -> FileUtils.createSecureTempFile(anyString(), anyString()))
                 .thenThrow(new IOException("Cannot create temp file"));
@@ -368,9 +376,9 @@ public class HQLQueryHookTest extends WeldBaseTest {
 
         when(mockCriteria.list()).thenReturn(clientList);
 
-        mockedProcessHQL.when(() -> ProcessHQLAppSource.getHQLResult(
-                anyString(), anyString(), anyString(), anyString()
-        )).thenReturn(TEST_HQL_RESULT);
+        mockedProcessHQL.when(() -> ProcessHQLAppSource.writeHQLResult(
+                anyString(), anyString(), anyString(), anyString(), any(Path.class)
+        )).thenReturn(1L);
 
         mockedFileUtils.when(() -> FileUtils.refreshFileForNonMultiClient(any(), any()))
                 .thenThrow(new RuntimeException("Refresh failed"));
@@ -406,10 +414,52 @@ public class HQLQueryHookTest extends WeldBaseTest {
         hqlQueryHook.exec(mockCopilotFile);
 
         // Then - no HQL queries should be executed
-        mockedProcessHQL.verify(() -> ProcessHQLAppSource.getHQLResult(
-                anyString(), anyString(), anyString(), anyString()
+        mockedProcessHQL.verify(() -> ProcessHQLAppSource.writeHQLResult(
+                anyString(), anyString(), anyString(), anyString(), any(Path.class)
         ), times(0));
         mockedFileUtils.verify(() -> FileUtils.refreshFileForNonMultiClient(eq(mockCopilotFile), any(Map.class)), times(1));
         mockedFileUtils.verify(() -> FileUtils.cleanupTempFileIfNeeded(eq(mockCopilotFile), any(Path.class)), times(0));
     }
+
+    /**
+     * Test exec stores only the clients whose result changed.
+     */
+    @Test
+    public void testExecSkipsUnchangedClients() throws Exception {
+        // Given
+        List<Client> clientList = new ArrayList<>();
+        clientList.add(mockClient1);
+        clientList.add(mockClient2);
+
+        when(mockCopilotFile.getUrl()).thenReturn(TEST_URL);
+        when(mockCopilotFile.getFilename()).thenReturn(TEST_FILENAME);
+        when(mockCopilotFile.getHql()).thenReturn(TEST_HQL);
+        when(mockCopilotFile.getName()).thenReturn("test");
+
+        when(mockCriteria.list()).thenReturn(clientList);
+
+        KnowledgeBaseFileVariant variant1 = mock(KnowledgeBaseFileVariant.class);
+        KnowledgeBaseFileVariant variant2 = mock(KnowledgeBaseFileVariant.class);
+        when(variant1.getClient()).thenReturn(mockClient1);
+        when(variant2.getClient()).thenReturn(mockClient2);
+        when(mockVariantCriteria.list()).thenReturn(List.of(variant1, variant2));
+
+        // The mocked query writes nothing, so the result of every client is an empty file
+        String emptyHash = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+        try (MockedStatic<FileBlobStore> blobStore = mockStatic(FileBlobStore.class, Mockito.CALLS_REAL_METHODS)) {
+            blobStore.when(() -> FileBlobStore.getHash(variant1)).thenReturn(emptyHash);
+            blobStore.when(() -> FileBlobStore.getHash(variant2)).thenReturn("previous-hash");
+
+            // When
+            hqlQueryHook.exec(mockCopilotFile);
+        }
+
+        // Then
+        ArgumentCaptor<Map<Client, Path>> captor = ArgumentCaptor.forClass(Map.class);
+        mockedFileUtils.verify(() -> FileUtils.refreshFileForNonMultiClient(eq(mockCopilotFile), captor.capture()),
+                times(1));
+        assertEquals(1, captor.getValue().size());
+        assertTrue(captor.getValue().containsKey(mockClient2));
+        mockedFileUtils.verify(() -> FileUtils.cleanupTempFileIfNeeded(eq(mockCopilotFile), any(Path.class)), times(2));
+    }
 }
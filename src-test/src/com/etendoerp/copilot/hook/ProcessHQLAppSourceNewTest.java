@@ -17,13 +17,16 @@
 package com.etendoerp.copilot.hook;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -256,4 +259,71 @@ public class ProcessHQLAppSourceNewTest {
     assertNotNull(instance1);
     assertEquals(instance1, instance2);
   }
+
+  // --- RowWriter tests ---
+
+  /**
+   * Test the CSV rows are written after the header line.
+   * @throws Exception if an error occurs
+   */
+  @Test
+  public void testRowWriterCsv() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ProcessHQLAppSource.RowWriter writer = new ProcessHQLAppSource.RowWriter(out, true, 0L, 0L)) {
+      writer.writeHeaders(new String[] { "col1", "col2" });
+      assertTrue(writer.write(new Object[] { VALUE1, 2 }));
+      assertTrue(writer.write(new Object[] { "value3", null }));
+      assertEquals(2, writer.getRows());
+    }
+    assertEquals("col1, col2\nvalue1, 2\nvalue3, NULL", out.toString(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Test the text rows are written as blocks of aliased values.
+   * @throws Exception if an error occurs
+   */
+  @Test
+  public void testRowWriterText() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ProcessHQLAppSource.RowWriter writer = new ProcessHQLAppSource.RowWriter(out, false, 0L, 0L)) {
+      writer.writeHeaders(new String[] { "col1", "col2" });
+      writer.write(new Object[] { VALUE1, "value2" });
+      writer.write("single");
+    }
+    assertEquals("col1: value1\ncol2: value2\n\nsingle", out.toString(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Test no rows are written after the row limit.
+   * @throws Exception if an error occurs
+   */
+  @Test
+  public void testRowWriterStopsAtRowLimit() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ProcessHQLAppSource.RowWriter writer = new ProcessHQLAppSource.RowWriter(out, true, 2L, 0L)) {
+      writer.writeHeaders(new String[] { "col1" });
+      assertTrue(writer.write(VALUE1));
+      assertTrue(writer.write("value2"));
+      assertFalse(writer.write("value3"));
+      assertEquals(2, writer.getRows());
+    }
+    assertEquals("col1\nvalue1\nvalue2", out.toString(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Test a row that does not fit in the byte limit is not written.
+   * @throws Exception if an error occurs
+   */
+  @Test
+  public void testRowWriterStopsAtByteLimit() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ProcessHQLAppSource.RowWriter writer = new ProcessHQLAppSource.RowWriter(out, true, 0L, 14L)) {
+      writer.writeHeaders(new String[] { "col1" });
+      assertTrue(writer.write(VALUE1));
+      assertFalse(writer.write("value2"));
+      assertEquals(1, writer.getRows());
+      assertEquals(11, writer.getBytes());
+    }
+    assertEquals("col1\nvalue1", out.toString(StandardCharsets.UTF_8));
+  }
 }
@@ -23,6 +23,9 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
@@ -35,11 +38,14 @@ import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.lang3.StringUtils;
 import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.MockitoAnnotations;
@@ -91,6 +97,8 @@ public class AddBulkTasksTest {
   private OBCriteria<Status> mockStatusCriteria;
   @Mock
   private OBCriteria<TaskType> mockTaskTypeCriteria;
+  @Mock
+  private Session mockSession;
 
   private MockedStatic<OBDal> mockedOBDal;
   private MockedStatic<OBContext> mockedOBContext;
@@ -117,7 +125,8 @@ public class AddBulkTasksTest {
   @BeforeEach
   public void setUp() throws Exception {
     mocks = MockitoAnnotations.openMocks(this);
-    addBulkTasks = new AddBulkTasks();
+    // Uploads run in the test thread, where the static mocks apply, in batches of two tasks
+    addBulkTasks = new AddBulkTasks(Runnable::run, 2);
 
     // Set up static mocks
     mockedOBDal = mockStatic(OBDal.class);
@@ -168,6 +177,7 @@ public class AddBulkTasksTest {
     // Mock OBDal operations
     doNothing().when(obDal).save(any());
     doNothing().when(obDal).flush();
+    when(obDal.getSession()).thenReturn(mockSession);
 
     // Mock OBMessageUtils
     mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD("Success")).thenReturn("Success");
@@ -382,6 +392,53 @@ public class AddBulkTasksTest {
     assertSuccessResult(result);
   }
 
+  /**
+   * Test doExecute inserts the tasks in batches, clearing the session after every batch, and
+   * restores the JDBC batch size of the session.
+   */
+  @Test
+  public void testDoExecuteWithCsvFileInsertsInBatches() {
+    // Given
+    String csvContent = "header1,header2\nv1,v2\nv3,v4\nv5,v6\nv7,v8\nv9,v10";
+    Map<String, Object> fileMap = createCsvFileMap(TEST_CSV_FILE, csvContent);
+    String paramValues = createParamValues(TEST_AGENT_ID, TEST_QUESTION, TEST_GROUP, ",");
+    Map<String, Object> parameters = createParameters(paramValues, fileMap);
+    when(mockSession.getJdbcBatchSize()).thenReturn(10);
+
+    // When
+    JSONObject result = addBulkTasks.doExecute(parameters, "");
+
+    // Then
+    assertSuccessResult(result);
+    verify(obDal, times(5)).save(mockTask);
+    verify(mockSession, times(3)).clear();
+    verify(mockSession).setJdbcBatchSize(2);
+    verify(mockSession).setJdbcBatchSize(10);
+  }
+
+  /**
+   * Test doExecute creates a task with the quoted value of a CSV field containing the separator.
+   */
+  @Test
+  public void testDoExecuteWithQuotedCsvField() throws Exception {
+    // Given
+    String csvContent = "name,comment\nAlice,\"Hello, \"\"world\"\"\"";
+    Map<String, Object> fileMap = createCsvFileMap(TEST_CSV_FILE, csvContent);
+    String paramValues = createParamValues(TEST_AGENT_ID, TEST_QUESTION, TEST_GROUP, ",");
+    Map<String, Object> parameters = createParameters(paramValues, fileMap);
+
+    // When
+    JSONObject result = addBulkTasks.doExecute(parameters, "");
+
+    // Then
+    assertSuccessResult(result);
+    ArgumentCaptor<String> question = ArgumentCaptor.forClass(String.class);
+    verify(mockTask).setEtcopQuestion(question.capture());
+    JSONObject row = new JSONObject(StringUtils.removeStart(question.getValue(), TEST_QUESTION + ":"));
+    assertEquals("Alice", row.getString("name"));
+    assertEquals("Hello, \"world\"", row.getString("comment"));
+  }
+
   /**
    * Test doExecute with null separator defaults to comma.
    */
@@ -449,6 +506,51 @@ public class AddBulkTasksTest {
     assertNotNull(result, RESULT_NOT_NULL_MSG);
     assertTrue(result.has("message"), SHOULD_CONTAIN_ERROR_MESSAGE);
     assertEquals("error", result.getString("severity"));
+    verify(obDal).rollbackAndClose();
+  }
+
+  /**
+   * Test doExecute rejects a separator of more than one character and rolls back.
+   *
+   * @throws Exception if the result cannot be read
+   */
+  @Test
+  public void testDoExecuteWithInvalidSeparatorRollsBack() throws Exception {
+    // Given
+    Map<String, Object> fileMap = createCsvFileMap(TEST_CSV_FILE, "header1;header2\nvalue1;value2");
+    String paramValues = createParamValues(TEST_AGENT_ID, TEST_QUESTION, TEST_GROUP, ";;");
+    Map<String, Object> parameters = createParameters(paramValues, fileMap);
+
+    // When
+    JSONObject result = addBulkTasks.doExecute(parameters, "");
+
+    // Then
+    assertEquals("error", result.getString("severity"));
+    assertTrue(result.getString("message").contains("Invalid separator"));
+    verify(obDal, never()).save(mockTask);
+    verify(obDal).rollbackAndClose();
+  }
+
+  /**
+   * Test doExecute rolls back the batches already flushed when the import fails afterwards.
+   *
+   * @throws Exception if the result cannot be read
+   */
+  @Test
+  public void testDoExecuteRollsBackFlushedBatchesOnFailure() throws Exception {
+    // Given
+    String csvContent = "header1,header2\nv1,v2\nv3,v4\n\"unclosed";
+    Map<String, Object> fileMap = createCsvFileMap(TEST_CSV_FILE, csvContent);
+    String paramValues = createParamValues(TEST_AGENT_ID, TEST_QUESTION, TEST_GROUP, ",");
+    Map<String, Object> parameters = createParameters(paramValues, fileMap);
+
+    // When
+    JSONObject result = addBulkTasks.doExecute(parameters, "");
+
+    // Then
+    assertEquals("error", result.getString("severity"));
+    verify(obDal, times(2)).save(mockTask);
+    verify(obDal).rollbackAndClose();
   }
 
   /**
@@ -204,6 +204,8 @@ public class SyncAssistantTest extends WeldBaseTest {
     // Success msg
     mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD("ETCOP_SuccessSync"))
         .thenReturn("Successful Sync");
+    mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD("ETCOP_KBSyncSummary"))
+        .thenReturn("Knowledge base files: %d uploaded, %d unchanged, %d removed.");
   }
 
   /**
@@ -28,6 +28,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.net.ConnectException;
+import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
@@ -55,6 +56,7 @@ import org.openbravo.erpCommon.utility.OBError;
 import org.openbravo.erpCommon.utility.OBMessageUtils;
 
 import com.etendoerp.copilot.data.CopilotTool;
+import com.etendoerp.copilot.util.CopilotHttpClient;
 
 /**
  * Sync tool structure test.
@@ -88,8 +90,8 @@ public class SyncToolStructureTest extends WeldBaseTest {
     private MockedStatic<OBDal> mockedOBDal;
     private MockedStatic<OBPropertiesProvider> mockedPropertiesProvider;
     private MockedStatic<OBMessageUtils> mockedOBMessageUtils;
-    private MockedStatic<HttpClient> mockedHttpClient;
-    private HttpClient.Builder mockBuilder;
+    private MockedStatic<CopilotHttpClient> mockedHttpClient;
+    private HttpClient sharedClient;
 
     private static final String RECORD_IDS = "recordIds";
     private static final String RESULT_NOT_NULL = "Result should not be null";
@@ -108,11 +110,13 @@ public class SyncToolStructureTest extends WeldBaseTest {
         // Configure static mocks
         mockedOBDal.when(OBDal::getInstance).thenReturn(mockOBDal);
         mockedPropertiesProvider.when(OBPropertiesProvider::getInstance).thenReturn(mockPropertiesProvider);
-        mockedHttpClient = mockStatic(HttpClient.class);
+        mockedHttpClient = mockStatic(CopilotHttpClient.class);
 
-        // Configure mock builder
-        mockBuilder = mock(HttpClient.Builder.class);
-        mockedHttpClient.when(HttpClient::newBuilder).thenReturn(mockBuilder);
+        // Route the shared Copilot HTTP client to the client configured by each test
+        mockedHttpClient.when(() -> CopilotHttpClient.newRequest(any(Properties.class), anyString()))
+            .thenAnswer(i -> HttpRequest.newBuilder().uri(URI.create("http://host:5005/tools")));
+        mockedHttpClient.when(() -> CopilotHttpClient.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+            .thenAnswer(i -> sharedClient.send(i.getArgument(0), i.getArgument(1)));
 
         // Mock the getConnection() method to return our mockConnection
         when(mockOBDal.getConnection()).thenReturn(mockConnection);
@@ -212,7 +216,7 @@ public class SyncToolStructureTest extends WeldBaseTest {
         when(mockResponse.body()).thenReturn(mockResponseBody);
 
         // Configure the mock chain
-        when(mockBuilder.build()).thenReturn(mockClient);
+        sharedClient = mockClient;
         when(mockClient.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
                 .thenReturn(mockResponse);
 
@@ -251,7 +255,7 @@ public class SyncToolStructureTest extends WeldBaseTest {
                 .thenThrow(new ConnectException("Connection refused"));
 
         // Configure the builder to return our mock client
-        when(mockBuilder.build()).thenReturn(mockClient);
+        sharedClient = mockClient;
 
         // Configure error messages
         mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD("ETCOP_ConnCopilotError"))
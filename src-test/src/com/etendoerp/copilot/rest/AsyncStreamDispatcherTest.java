@@ -0,0 +1,170 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.weld.test.WeldBaseTest;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.test.base.TestConstants;
+
+/**
+ * Tests for {@link AsyncStreamDispatcher}.
+ */
+public class AsyncStreamDispatcherTest extends WeldBaseTest {
+
+  private HttpServletRequest request;
+  private AsyncContext asyncContext;
+
+  /**
+   * Sets the context and a request supporting asynchronous mode.
+   *
+   * @throws Exception
+   *     if the base setup fails
+   */
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    OBContext.setOBContext(TestConstants.Users.ADMIN, TestConstants.Roles.FB_GRP_ADMIN,
+        TestConstants.Clients.FB_GRP, TestConstants.Orgs.ESP_NORTE);
+    request = mock(HttpServletRequest.class);
+    asyncContext = mock(AsyncContext.class);
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync()).thenReturn(asyncContext);
+  }
+
+  /**
+   * Without asynchronous support the task runs in the calling thread.
+   *
+   * @throws Exception
+   *     if the task fails
+   */
+  @Test
+  public void testRunsInCallingThreadWhenAsyncNotSupported() throws Exception {
+    when(request.isAsyncSupported()).thenReturn(false);
+    AsyncStreamDispatcher dispatcher = new AsyncStreamDispatcher(2, 0);
+    AtomicReference<Thread> worker = new AtomicReference<>();
+
+    assertFalse(dispatcher.execute(request, () -> worker.set(Thread.currentThread())));
+    assertSame(Thread.currentThread(), worker.get());
+    assertEquals(0, dispatcher.getInFlight());
+    verify(request, never()).startAsync();
+  }
+
+  /**
+   * The task runs in a stream worker with the caller context and the request is completed.
+   *
+   * @throws Exception
+   *     if the task fails
+   */
+  @Test
+  public void testDispatchesToWorkerAndCompletes() throws Exception {
+    AsyncStreamDispatcher dispatcher = new AsyncStreamDispatcher(2, 0);
+    AtomicReference<Thread> worker = new AtomicReference<>();
+    AtomicReference<String> userId = new AtomicReference<>();
+    CountDownLatch done = new CountDownLatch(1);
+
+    assertTrue(dispatcher.execute(request, () -> {
+      worker.set(Thread.currentThread());
+      userId.set(OBContext.getOBContext().getUser().getId());
+      done.countDown();
+    }));
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    verify(asyncContext, timeout(5000)).complete();
+    verify(asyncContext).setTimeout(0L);
+    assertNotSame(Thread.currentThread(), worker.get());
+    assertEquals(TestConstants.Users.ADMIN, userId.get());
+    assertEquals(0, dispatcher.getInFlight());
+  }
+
+  /**
+   * Once the limit of streams in flight is reached new streams are rejected.
+   *
+   * @throws Exception
+   *     if the task fails
+   */
+  @Test
+  public void testRejectsStreamsOverTheLimit() throws Exception {
+    AsyncStreamDispatcher dispatcher = new AsyncStreamDispatcher(1, 0);
+    CountDownLatch release = new CountDownLatch(1);
+
+    dispatcher.execute(request, () -> {
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    assertEquals(1, dispatcher.getInFlight());
+    assertThrows(OBException.class, () -> dispatcher.execute(request, () -> {
+    }));
+
+    release.countDown();
+    verify(asyncContext, timeout(5000)).complete();
+  }
+
+  /**
+   * The streams relayed in the calling thread do not take a slot of the asynchronous streams.
+   *
+   * @throws Exception
+   *     if the task fails
+   */
+  @Test
+  public void testCallingThreadStreamsAreNotLimited() throws Exception {
+    AsyncStreamDispatcher dispatcher = new AsyncStreamDispatcher(1, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    dispatcher.execute(request, () -> {
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    HttpServletRequest syncRequest = mock(HttpServletRequest.class);
+    when(syncRequest.isAsyncSupported()).thenReturn(false);
+    AtomicReference<Thread> worker = new AtomicReference<>();
+
+    assertFalse(dispatcher.execute(syncRequest, () -> worker.set(Thread.currentThread())));
+    assertSame(Thread.currentThread(), worker.get());
+    assertEquals(1, dispatcher.getInFlight());
+
+    release.countDown();
+    verify(asyncContext, timeout(5000)).complete();
+  }
+}
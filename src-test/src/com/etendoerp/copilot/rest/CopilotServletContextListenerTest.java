@@ -0,0 +1,130 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.rest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.FilterRegistration;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletRegistration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CopilotServletContextListener}.
+ */
+public class CopilotServletContextListenerTest {
+
+  private ServletContext context;
+  private ServletRegistration.Dynamic copilotServlet;
+  private ServletRegistration.Dynamic otherServlet;
+  private Map<String, ServletRegistration> servlets;
+  private Map<String, FilterRegistration> filters;
+
+  /**
+   * Registers the Copilot servlet and another servlet in a mocked context.
+   */
+  @Before
+  public void setUp() {
+    context = mock(ServletContext.class);
+    copilotServlet = servlet("CopilotJwtServlet", CopilotJwtServlet.class.getName(), "/sws/copilot/*");
+    otherServlet = servlet("Other", "org.example.OtherServlet", "/web/*");
+    servlets = new LinkedHashMap<>();
+    servlets.put("CopilotJwtServlet", copilotServlet);
+    servlets.put("Other", otherServlet);
+    filters = new LinkedHashMap<>();
+    doReturn(servlets).when(context).getServletRegistrations();
+    doReturn(filters).when(context).getFilterRegistrations();
+  }
+
+  /**
+   * The Copilot servlets and the filters of their chain support asynchronous mode, other servlets
+   * and filters are not changed.
+   */
+  @Test
+  public void testEnablesAsyncSupportForCopilotServletsAndTheirFilters() {
+    FilterRegistration.Dynamic global = filter("Global", List.of("/*"), Collections.emptyList());
+    FilterRegistration.Dynamic sws = filter("Sws", List.of("/sws/*"), Collections.emptyList());
+    FilterRegistration.Dynamic byName = filter("ByName", Collections.emptyList(), List.of("CopilotJwtServlet"));
+    FilterRegistration.Dynamic web = filter("Web", List.of("/web/*"), Collections.emptyList());
+
+    new CopilotServletContextListener().contextInitialized(new ServletContextEvent(context));
+
+    verify(copilotServlet).setAsyncSupported(true);
+    verify(otherServlet, never()).setAsyncSupported(true);
+    verify(global).setAsyncSupported(true);
+    verify(sws).setAsyncSupported(true);
+    verify(byName).setAsyncSupported(true);
+    verify(web, never()).setAsyncSupported(true);
+  }
+
+  /**
+   * Filters are not changed when the Copilot servlets are not registered.
+   */
+  @Test
+  public void testIgnoresFiltersWithoutCopilotServlets() {
+    servlets.remove("CopilotJwtServlet");
+    FilterRegistration.Dynamic global = filter("Global", List.of("/*"), Collections.emptyList());
+
+    CopilotServletContextListener.enableAsyncSupport(context);
+
+    verify(global, never()).setAsyncSupported(true);
+  }
+
+  /**
+   * Filter mappings are matched against the servlet mappings.
+   */
+  @Test
+  public void testMatches() {
+    assertTrue(CopilotServletContextListener.matches("/*", "/copilot/*"));
+    assertTrue(CopilotServletContextListener.matches("/sws/*", "/sws/copilot/*"));
+    assertTrue(CopilotServletContextListener.matches("/copilot/*", "/copilot/*"));
+    assertFalse(CopilotServletContextListener.matches("/sws/*", "/copilot/*"));
+    assertFalse(CopilotServletContextListener.matches("/copilot", "/copilot/*"));
+    assertFalse(CopilotServletContextListener.matches("*.html", "/copilot/*"));
+  }
+
+  private static ServletRegistration.Dynamic servlet(String name, String className, String mapping) {
+    ServletRegistration.Dynamic registration = mock(ServletRegistration.Dynamic.class);
+    when(registration.getName()).thenReturn(name);
+    when(registration.getClassName()).thenReturn(className);
+    when(registration.getMappings()).thenReturn(List.of(mapping));
+    return registration;
+  }
+
+  private FilterRegistration.Dynamic filter(String name, List<String> urlPatterns, List<String> servletNames) {
+    FilterRegistration.Dynamic registration = mock(FilterRegistration.Dynamic.class);
+    when(registration.getName()).thenReturn(name);
+    when(registration.getUrlPatternMappings()).thenReturn(urlPatterns);
+    when(registration.getServletNameMappings()).thenReturn(servletNames);
+    filters.put(name, registration);
+    return registration;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.rest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Benchmark of the request body parsing against the previous path, which concatenated the lines of
+ * the body one by one and parsed the resulting {@link String}.
+ * <p>
+ * Pretty printed bodies from 1 KB to 5 MB, half of them a pasted prompt and half a list of file
+ * identifiers, are parsed by both paths; MB per second and allocated bytes per body byte are
+ * logged. The previous path is quadratic in the number of lines, so it is only measured up to
+ * {@link #LEGACY_MAX_SIZE}. The measured numbers depend on the machine, so only the parsed bodies are
+ * asserted.
+ */
+public class RequestBodyBenchmarkTest {
+  private static final Logger log = LogManager.getLogger(RequestBodyBenchmarkTest.class);
+
+  private static final int[] SIZES = { 1024, 64 * 1024, 1024 * 1024, 5 * 1024 * 1024 };
+  private static final int LEGACY_MAX_SIZE = 256 * 1024;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+
+  private static byte[] buildBody(int size) {
+    StringBuilder sb = new StringBuilder(size + 128);
+    sb.append("{\n  \"app_id\": \"A1\",\n  \"conversation_id\": \"c0ffee\",\n  \"question\": \"");
+    int promptEnd = size / 2;
+    while (sb.length() < promptEnd) {
+      sb.append("Line of a pasted prompt with \\\"quotes\\\", accents like ñ and a tab\\t\\n");
+    }
+    sb.append("\",\n  \"file\": [\n");
+    int i = 0;
+    while (sb.length() < size) {
+      sb.append(i > 0 ? ",\n" : "").append("    \"").append(String.format("%032X", i++)).append('"');
+    }
+    sb.append("\n  ]\n}\n");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reproduces the previous path: the lines of the body are concatenated and parsed.
+   */
+  private static JSONObject legacyParse(byte[] body) throws Exception {
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+    return new JSONObject(reader.lines().reduce("", String::concat));
+  }
+
+  private static JSONObject streamParse(byte[] body) throws Exception {
+    return RequestBodyReader.readJson(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+  }
+
+  private interface Path {
+    JSONObject run(byte[] body) throws Exception;
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1L;
+  }
+
+  private static void measure(String name, Path path, byte[] body) throws Exception {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      path.run(body);
+    }
+    long allocBefore = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      path.run(body);
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = allocatedBytes() - allocBefore;
+    long bytes = (long) body.length * ROUNDS;
+    log.info("{} ({} bytes): {} MB/s, {} bytes allocated/body byte", name, body.length,
+        String.format("%.1f", bytes / (1024.0 * 1024.0) / (elapsed / 1_000_000_000.0)),
+        allocBefore < 0 ? "n/a" : String.format("%.1f", (double) allocated / bytes));
+  }
+
+  /**
+   * Both paths parse the same bodies, then their throughput and allocation are compared.
+   *
+   * @throws Exception
+   *     if a body cannot be parsed
+   */
+  @Test
+  public void benchmarkParsingAgainstLegacyPath() throws Exception {
+    for (int size : SIZES) {
+      byte[] body = buildBody(size);
+      JSONObject expected = new JSONObject(new String(body, StandardCharsets.UTF_8));
+      assertEquals(expected.toString(), streamParse(body).toString());
+
+      if (size <= LEGACY_MAX_SIZE) {
+        assertEquals(expected.toString(), legacyParse(body).toString());
+        measure("Line concatenation", RequestBodyBenchmarkTest::legacyParse, body);
+      } else {
+        log.info("Line concatenation ({} bytes): skipped, quadratic in the number of lines", body.length);
+      }
+      measure("Streaming parser", RequestBodyBenchmarkTest::streamParse, body);
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+import com.etendoerp.copilot.util.CopilotConstants;
+
+/**
+ * Unit tests for {@link RequestBodyReader} and the JSON parser it uses.
+ */
+public class RequestBodyReaderTest {
+
+  private MockedStatic<OBPropertiesProvider> mockedPropertiesProvider;
+  private MockedStatic<OBMessageUtils> mockedOBMessageUtils;
+  private Properties properties;
+  private HttpServletRequest request;
+
+  /**
+   * Mocks the properties and the messages.
+   */
+  @Before
+  public void setUp() {
+    properties = new Properties();
+    mockedPropertiesProvider = mockStatic(OBPropertiesProvider.class);
+    OBPropertiesProvider propertiesProvider = mock(OBPropertiesProvider.class);
+    when(propertiesProvider.getOpenbravoProperties()).thenReturn(properties);
+    mockedPropertiesProvider.when(OBPropertiesProvider::getInstance).thenReturn(propertiesProvider);
+    mockedOBMessageUtils = mockStatic(OBMessageUtils.class);
+    mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD("ETCOP_RequestBodyTooLarge"))
+        .thenReturn("Too large: %s");
+    request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("POST");
+  }
+
+  /**
+   * Closes the static mocks.
+   */
+  @After
+  public void tearDown() {
+    mockedOBMessageUtils.close();
+    mockedPropertiesProvider.close();
+  }
+
+  /**
+   * Wraps the bytes in a servlet input stream.
+   *
+   * @param bytes
+   *     the content of the stream
+   * @return the servlet input stream
+   */
+  static ServletInputStream toServletInputStream(byte[] bytes) {
+    ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+    return new ServletInputStream() {
+      @Override
+      public boolean isFinished() {
+        return in.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener) {
+        // not used, reads are blocking
+      }
+
+      @Override
+      public int read() {
+        return in.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        return in.read(b, off, len);
+      }
+    };
+  }
+
+  private void mockBody(String body) throws IOException {
+    when(request.getInputStream()).thenReturn(toServletInputStream(body.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Nested values are parsed with the same types as Jettison, and escapes and multibyte characters
+   * are decoded.
+   *
+   * @throws Exception
+   *     if the body cannot be parsed
+   */
+  @Test
+  public void testParsesValuesAsJettison() throws Exception {
+    String body = "{\"question\": \"Qu\\u00e9 tal? \\\"ñandú\\\"\\n\", \"app_id\": \"A1\", \"count\": 3,"
+        + " \"big\": 12345678901, \"ratio\": 1.5e2, \"ok\": true, \"none\": null,"
+        + " \"file\": [\"F1\", {\"id\": \"F2\"}, []]}";
+    mockBody(body);
+
+    JSONObject json = RequestBodyReader.readJson(request);
+
+    assertEquals(new JSONObject(body).toString(), json.toString());
+    assertEquals("Qué tal? \"ñandú\"\n", json.getString(CopilotConstants.PROP_QUESTION));
+    assertEquals(Integer.valueOf(3), json.get("count"));
+    assertEquals(Long.valueOf(12345678901L), json.get("big"));
+    assertEquals(Double.valueOf(150), json.get("ratio"));
+    assertEquals(JSONObject.NULL, json.get("none"));
+    JSONArray files = json.getJSONArray(CopilotConstants.PROP_FILE);
+    assertEquals("F2", files.getJSONObject(1).getString("id"));
+  }
+
+  /**
+   * Line breaks are ignored, also inside strings, as the previous line based reading did.
+   *
+   * @throws Exception
+   *     if the body cannot be parsed
+   */
+  @Test
+  public void testIgnoresLineBreaks() throws Exception {
+    mockBody("{\r\n  \"question\": \"first\nsecond\",\n  \"app_id\": \"A1\"\n}\n");
+
+    JSONObject json = RequestBodyReader.readJson(request);
+
+    assertEquals("firstsecond", json.getString(CopilotConstants.PROP_QUESTION));
+    assertEquals("A1", json.getString(CopilotConstants.PROP_APP_ID));
+  }
+
+  /**
+   * A body that declares a length over the limit is rejected before it is read.
+   */
+  @Test
+  public void testRejectsDeclaredLengthOverLimit() {
+    properties.setProperty(RequestBodyReader.PROP_MAX_BYTES, "100");
+    when(request.getContentLengthLong()).thenReturn(101L);
+
+    CopilotRestServiceException exception = assertThrows(CopilotRestServiceException.class,
+        () -> RequestBodyReader.readJson(request));
+
+    assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exception.getCode());
+    assertEquals("Too large: 100", exception.getMessage());
+  }
+
+  /**
+   * A body without declared length is rejected as soon as it exceeds the limit.
+   *
+   * @throws Exception
+   *     if the body cannot be mocked
+   */
+  @Test
+  public void testRejectsStreamOverLimit() throws Exception {
+    properties.setProperty(RequestBodyReader.PROP_MAX_BYTES, "1000");
+    when(request.getContentLengthLong()).thenReturn(-1L);
+    mockBody("{\"question\": \"" + "x".repeat(2000) + "\"}");
+
+    CopilotRestServiceException exception = assertThrows(CopilotRestServiceException.class,
+        () -> RequestUtils.parseJsonFromRequest(request));
+
+    assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exception.getCode());
+  }
+
+  /**
+   * A body that is not a JSON object falls back to the request parameters.
+   *
+   * @throws Exception
+   *     if the request cannot be read
+   */
+  @Test
+  public void testInvalidBodyFallsBackToParameters() throws Exception {
+    mockBody("{\"question\": ");
+    when(request.getParameter(CopilotConstants.PROP_QUESTION)).thenReturn("from params");
+
+    JSONObject json = RequestUtils.extractRequestBody(request);
+
+    assertEquals("from params", json.getString(CopilotConstants.PROP_QUESTION));
+  }
+
+  /**
+   * Malformed documents and documents nested too deeply are rejected.
+   */
+  @Test
+  public void testRejectsMalformedDocuments() {
+    assertThrows(JSONException.class, () -> RequestBodyReader.readJson(new StringReader("")));
+    assertThrows(JSONException.class, () -> RequestBodyReader.readJson(new StringReader("[1]")));
+    assertThrows(JSONException.class, () -> RequestBodyReader.readJson(new StringReader("{\"a\" 1}")));
+    assertThrows(JSONException.class, () -> RequestBodyReader.readJson(new StringReader("{\"a\": \"\\x\"}")));
+    JSONException exception = assertThrows(JSONException.class,
+        () -> RequestBodyReader.readJson(new StringReader("{\"a\": " + "[".repeat(300) + "]".repeat(300) + "}")));
+    assertTrue(exception.getMessage().contains("depth"));
+  }
+}
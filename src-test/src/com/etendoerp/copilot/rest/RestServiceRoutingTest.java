@@ -29,9 +29,8 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import java.io.BufferedReader;
 import java.io.PrintWriter;
-import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -268,7 +267,8 @@ public class RestServiceRoutingTest extends WeldBaseTest {
     when(mockRequest.getPathInfo()).thenReturn("/cacheQuestion");
     when(mockRequest.getMethod()).thenReturn("POST");
     String questionJson = String.format("{\"question\":\"%s\"}", TEST_QUESTION);
-    when(mockRequest.getReader()).thenReturn(new BufferedReader(new StringReader(questionJson)));
+    when(mockRequest.getInputStream()).thenReturn(
+        RequestBodyReaderTest.toServletInputStream(questionJson.getBytes(StandardCharsets.UTF_8)));
     doNothing().when(mockSession).setAttribute(CACHED_QUESTION, TEST_QUESTION);
 
     restService.doPost(mockRequest, mockResponse);
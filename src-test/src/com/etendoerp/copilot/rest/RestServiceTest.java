@@ -25,6 +25,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -34,6 +35,7 @@ import static org.mockito.Mockito.when;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
@@ -142,6 +144,7 @@ public class RestServiceTest extends WeldBaseTest {
     if (mockedOBMessageUtils != null) {
       mockedOBMessageUtils.close();
     }
+    AsyncStreamDispatcher.setInstance(null);
   }
 
   // ============ handleQuestion Tests ============
@@ -195,6 +198,39 @@ public class RestServiceTest extends WeldBaseTest {
     mockedRestServiceUtil.verify(() -> RestServiceUtil.handleQuestion(eq(true), eq(mockResponse), any(JSONObject.class)), times(1));
   }
 
+  /**
+   * Test handleQuestion with an asynchronous request on a servlet supporting asynchronous mode:
+   * the request is put in asynchronous mode, the answer is streamed by the dispatcher and the
+   * request is completed.
+   */
+  @Test
+  public void testHandleQuestionWithAsyncRequestUsesAsyncContext() throws IOException, JSONException {
+    // Given
+    when(mockRequest.getPathInfo()).thenReturn(ASYNC_QUESTION_PATH);
+    when(mockRequest.isAsyncSupported()).thenReturn(true);
+    AsyncContext asyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync()).thenReturn(asyncContext);
+    JSONObject json = new JSONObject();
+    json.put(CopilotConstants.PROP_QUESTION, TEST_QUESTION);
+    json.put(CopilotConstants.PROP_APP_ID, TEST_APP_ID);
+
+    mockedRequestUtils.when(() -> RequestUtils.extractRequestBody(mockRequest)).thenReturn(json);
+    when(mockSession.getAttribute(CACHED_QUESTION)).thenReturn(null);
+    mockedRestServiceUtil.when(() -> RestServiceUtil.handleQuestion(eq(true), eq(mockResponse), any(JSONObject.class)))
+        .thenReturn(new JSONObject());
+    // Streams run in the calling thread, where the static mocks are visible
+    AsyncStreamDispatcher.setInstance(new AsyncStreamDispatcher(2, 0, Runnable::run));
+
+    // When
+    restService.handleQuestion(mockRequest, mockResponse);
+
+    // Then
+    verify(mockRequest).startAsync();
+    mockedRestServiceUtil.verify(() -> RestServiceUtil.handleQuestion(eq(true), eq(mockResponse), eq(json)), times(1));
+    verify(asyncContext).complete();
+    assertEquals(0, AsyncStreamDispatcher.getInstance().getInFlight());
+  }
+
   /**
    * Test handleQuestion throws exception when question is missing.
    */
@@ -17,25 +17,31 @@
 package com.etendoerp.copilot.rest;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TransferQueue;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.fileupload.FileItem;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.openbravo.base.exception.OBException;
@@ -48,13 +54,15 @@ import org.openbravo.model.ad.access.Role;
 
 import com.etendoerp.copilot.data.CopilotApp;
 import com.etendoerp.copilot.data.CopilotFile;
-import com.etendoerp.copilot.data.CopilotRoleApp;
 import com.etendoerp.copilot.hook.CopilotQuestionHookManager;
 import com.etendoerp.copilot.util.CopilotConstants;
+import com.etendoerp.copilot.util.CopilotRuntime;
+import com.etendoerp.copilot.util.CopilotHttpClient;
 import com.etendoerp.copilot.util.CopilotUtils;
 import com.etendoerp.copilot.util.ExtractedResponse;
 import com.etendoerp.copilot.util.FileUtils;
 import com.etendoerp.copilot.util.TrackingUtil;
+import com.etendoerp.copilot.util.WebhookPermissionUtils;
 
 class RestServiceUtilTest {
   private static final org.apache.logging.log4j.Logger testLog = org.apache.logging.log4j.LogManager
@@ -83,6 +91,21 @@ class RestServiceUtilTest {
 
   // Setup and utility methods for mocks will go here
 
+  private ExecutorService streamWriters;
+
+  @BeforeEach
+  void setUpStreamRegistry() {
+    streamWriters = Executors.newCachedThreadPool(CopilotRuntime.daemonThreads("test-sse-writer"));
+    SSEStreamRegistry.setInstance(
+        new SSEStreamRegistry(16, SSEClientStream.OverflowPolicy.COALESCE, 0L, streamWriters));
+  }
+
+  @AfterEach
+  void tearDownStreamRegistry() {
+    SSEStreamRegistry.setInstance(null);
+    streamWriters.shutdownNow();
+  }
+
   @Test
   void testHandleFileWithEmptyList() throws Exception {
     List<FileItem> items = List.of();
@@ -388,16 +411,15 @@ class RestServiceUtilTest {
     String payload = "data: {\"answer\":{\"role\":\"user\",\"response\":\"partial\"}}\n";
     ByteArrayInputStream in = new ByteArrayInputStream(payload.getBytes());
 
-    StringWriter sw = new StringWriter();
-    PrintWriter pw = new PrintWriter(sw);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
     HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
-    Mockito.when(resp.getWriter()).thenReturn(pw);
+    Mockito.when(resp.getOutputStream()).thenReturn(toServletOutputStream(out));
 
     JSONObject result = RestServiceUtil.serverSideEvents(true, resp, in);
     Assertions.assertNotNull(result);
-    pw.flush();
-    String written = sw.toString();
-    Assertions.assertTrue(written.contains("data:"));
+    String written = out.toString(StandardCharsets.UTF_8);
+    Assertions.assertTrue(written.startsWith("data: {}\n\n"));
+    Assertions.assertTrue(written.endsWith(payload + "\n"));
   }
 
   @Test
@@ -407,14 +429,32 @@ class RestServiceUtilTest {
     String payload = lastLine + "\n";
     ByteArrayInputStream in = new ByteArrayInputStream(payload.getBytes());
 
-    StringWriter sw = new StringWriter();
-    PrintWriter pw = new PrintWriter(sw);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
     HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
-    Mockito.when(resp.getWriter()).thenReturn(pw);
+    Mockito.when(resp.getOutputStream()).thenReturn(toServletOutputStream(out));
 
     JSONObject answer = RestServiceUtil.serverSideEvents(false, resp, in);
     Assertions.assertNotNull(answer);
     Assertions.assertEquals("err", answer.getString(RestServiceUtil.PROP_RESPONSE));
+    Assertions.assertEquals(lastLine, out.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testServerSideEventsAsyncReturnsAnswerForErrorFrame() throws Exception {
+    String lastLine = new JSONObject().put(RestServiceUtil.PROP_ANSWER,
+        new JSONObject().put("role", RestServiceUtil.PROP_ERROR).put(RestServiceUtil.PROP_RESPONSE, "err")).toString();
+    String payload = "data: {\"answer\":{\"role\":\"node\"}}\r\n: keep-alive\n\ndata: " + lastLine + "\n\n";
+    ByteArrayInputStream in = new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(resp.getOutputStream()).thenReturn(toServletOutputStream(out));
+
+    JSONObject answer = RestServiceUtil.serverSideEvents(true, resp, in);
+    Assertions.assertEquals("err", answer.getString(RestServiceUtil.PROP_RESPONSE));
+    String written = out.toString(StandardCharsets.UTF_8);
+    Assertions.assertFalse(written.contains("keep-alive"));
+    Assertions.assertTrue(written.contains("data: {\"answer\":{\"role\":\"node\"}}\n\n"));
   }
 
   @Test
@@ -636,15 +676,14 @@ class RestServiceUtilTest {
     props.setProperty(COPILOT_HOST_PROP, "localhost");
     props.setProperty(COPILOT_PORT_PROP, "5005");
 
-    HttpClient.Builder builder = Mockito.mock(HttpClient.Builder.class);
-    HttpClient mockClient = Mockito.mock(HttpClient.class);
     HttpResponse<String> mockResponse = Mockito.mock(HttpResponse.class);
     Mockito.when(mockResponse.body()).thenReturn(new JSONObject().put(RestServiceUtil.PROP_ANSWER,
         new JSONObject().put(RestServiceUtil.PROP_RESPONSE, "imageBase64")).toString());
 
     try (org.mockito.MockedStatic<OBPropertiesProvider> mockProps = org.mockito.Mockito.mockStatic(
         OBPropertiesProvider.class);
-         org.mockito.MockedStatic<HttpClient> mockHttpClientStatic = org.mockito.Mockito.mockStatic(HttpClient.class);
+         org.mockito.MockedStatic<CopilotHttpClient> mockHttpClient = org.mockito.Mockito.mockStatic(
+             CopilotHttpClient.class);
          org.mockito.MockedStatic<CopilotUtils> mockCu = org.mockito.Mockito.mockStatic(CopilotUtils.class);
          org.mockito.MockedStatic<WeldUtils> mockWeld = org.mockito.Mockito.mockStatic(WeldUtils.class);
          org.mockito.MockedStatic<OBContext> mockOB = org.mockito.Mockito.mockStatic(OBContext.class);
@@ -653,18 +692,14 @@ class RestServiceUtilTest {
       mockProps.when(OBPropertiesProvider::getInstance).thenReturn(provider);
       Mockito.when(provider.getOpenbravoProperties()).thenReturn(props);
 
-      // HttpClient builder static
-      mockHttpClientStatic.when(() -> HttpClient.newBuilder()).thenReturn(builder);
-      Mockito.when(builder.build()).thenReturn(mockClient);
-      Mockito.when(mockClient.send(org.mockito.ArgumentMatchers.any(HttpRequest.class),
+      // Shared Copilot HTTP client
+      mockHttpClient.when(() -> CopilotHttpClient.newRequest(org.mockito.ArgumentMatchers.anyString()))
+          .thenAnswer(i -> HttpRequest.newBuilder().uri(java.net.URI.create("http://localhost:5005/graph")));
+      mockHttpClient.when(() -> CopilotHttpClient.send(org.mockito.ArgumentMatchers.any(HttpRequest.class),
               org.mockito.ArgumentMatchers.<HttpResponse.BodyHandler<String>>any()))
           .thenReturn(mockResponse);
 
       // Stub CopilotUtils and addExtraContextWithHooks internals
-      mockCu.when(() -> CopilotUtils.readPropertyWithLegacyCompatibility(org.mockito.ArgumentMatchers.any(), org.mockito.ArgumentMatchers.eq(COPILOT_HOST_PROP), org.mockito.ArgumentMatchers.anyString()))
-          .thenReturn("localhost");
-      mockCu.when(() -> CopilotUtils.readPropertyWithLegacyCompatibility(org.mockito.ArgumentMatchers.any(), org.mockito.ArgumentMatchers.eq(COPILOT_PORT_PROP), org.mockito.ArgumentMatchers.anyString()))
-          .thenReturn("5005");
       mockCu.when(() -> CopilotUtils.buildLangraphRequestForCopilot(org.mockito.ArgumentMatchers.any(),
               org.mockito.ArgumentMatchers.anyString(), org.mockito.ArgumentMatchers.any()))
           .thenAnswer(i -> null);
@@ -698,30 +733,15 @@ class RestServiceUtilTest {
 
   @Test
   void testHandleAssistantsSingleApp() throws Exception {
-    // Mock OBContext and role
-    OBContext mockCtx = Mockito.mock(OBContext.class);
-    Role mockRole = Mockito.mock(Role.class);
-    org.openbravo.model.ad.access.User mockUser = Mockito.mock(org.openbravo.model.ad.access.User.class);
-    Mockito.when(mockCtx.getRole()).thenReturn(mockRole);
-    Mockito.when(mockCtx.getUser()).thenReturn(mockUser);
-
-    // Mock CopilotRoleApp and CopilotApp
-    CopilotApp app = Mockito.mock(CopilotApp.class);
-    Mockito.when(app.getId()).thenReturn(LIT_APP1);
-    Mockito.when(app.getName()).thenReturn("App One");
-    CopilotRoleApp roleApp = Mockito.mock(CopilotRoleApp.class);
-    Mockito.when(roleApp.getCopilotApp()).thenReturn(app);
-
-    // Mock OBDal criteria to return the single CopilotRoleApp
+    OBContext mockCtx = mockAssistantsContext();
     OBDal dal = Mockito.mock(OBDal.class);
-    org.openbravo.dal.service.OBCriteria<CopilotRoleApp> crit = Mockito.mock(
-        org.openbravo.dal.service.OBCriteria.class);
-    Mockito.when(dal.createCriteria(CopilotRoleApp.class)).thenReturn(crit);
-    Mockito.when(crit.add(org.mockito.ArgumentMatchers.any())).thenReturn(crit);
-    Mockito.when(crit.list()).thenReturn(List.of(roleApp));
+    org.hibernate.query.Query<Object[]> query = mockAssistantsQuery(dal);
+    Mockito.when(query.list()).thenReturn(List.<Object[]>of(new Object[] { LIT_APP1, "App One", null, true, null }));
 
     try (org.mockito.MockedStatic<OBContext> mockOB = org.mockito.Mockito.mockStatic(OBContext.class);
-         org.mockito.MockedStatic<OBDal> mockDal = org.mockito.Mockito.mockStatic(OBDal.class)) {
+         org.mockito.MockedStatic<OBDal> mockDal = org.mockito.Mockito.mockStatic(OBDal.class);
+         org.mockito.MockedStatic<WebhookPermissionUtils> mockPermissions = org.mockito.Mockito.mockStatic(
+             WebhookPermissionUtils.class)) {
       mockOB.when(OBContext::getOBContext).thenReturn(mockCtx);
       mockDal.when(OBDal::getInstance).thenReturn(dal);
 
@@ -731,21 +751,57 @@ class RestServiceUtilTest {
       JSONObject assistant = assistants.getJSONObject(0);
       Assertions.assertEquals(LIT_APP1, assistant.getString(RestServiceUtil.APP_ID));
       Assertions.assertEquals("App One", assistant.getString("name"));
+      Assertions.assertEquals("Y", assistant.getString("featured"));
+      mockPermissions.verify(() -> WebhookPermissionUtils.scheduleMissingPermissions(mockCtx.getRole()));
+    }
+  }
+
+  /**
+   * The assistants of roles with 50 to 200 assistants are ordered by the last activity of the user,
+   * the ones without conversations last, with a single query.
+   */
+  @org.junit.jupiter.params.ParameterizedTest
+  @org.junit.jupiter.params.provider.ValueSource(ints = { 50, 100, 200 })
+  void testHandleAssistantsOrdersByLastActivityWithOneQuery(int appCount) throws Exception {
+    OBContext mockCtx = mockAssistantsContext();
+    OBDal dal = Mockito.mock(OBDal.class);
+    org.hibernate.query.Query<Object[]> query = mockAssistantsQuery(dal);
+    List<Object[]> rows = new java.util.ArrayList<>();
+    for (int i = 0; i < appCount; i++) {
+      Date lastActivity = i % 3 == 0 ? null : new Date(1_700_000_000_000L + i * 1000L);
+      rows.add(new Object[] { String.format("app-%03d", i), String.format("App %03d", i), null, false,
+          lastActivity });
+    }
+    Mockito.when(query.list()).thenReturn(rows);
+
+    try (org.mockito.MockedStatic<OBContext> mockOB = org.mockito.Mockito.mockStatic(OBContext.class);
+         org.mockito.MockedStatic<OBDal> mockDal = org.mockito.Mockito.mockStatic(OBDal.class);
+         org.mockito.MockedStatic<WebhookPermissionUtils> ignored = org.mockito.Mockito.mockStatic(
+             WebhookPermissionUtils.class)) {
+      mockOB.when(OBContext::getOBContext).thenReturn(mockCtx);
+      mockDal.when(OBDal::getInstance).thenReturn(dal);
+
+      long start = System.nanoTime();
+      JSONArray assistants = RestServiceUtil.handleAssistants();
+      testLog.info("Ordered {} assistants in {} us", appCount, (System.nanoTime() - start) / 1000);
+
+      Assertions.assertEquals(appCount, assistants.length());
+      String expectedFirst = String.format("app-%03d", appCount - 1 - ((appCount - 1) % 3 == 0 ? 1 : 0));
+      Assertions.assertEquals(expectedFirst, assistants.getJSONObject(0).getString(RestServiceUtil.APP_ID));
+      Assertions.assertEquals("app-000", assistants.getJSONObject(appCount - (appCount + 2) / 3)
+          .getString(RestServiceUtil.APP_ID));
+      Mockito.verify(dal.getSession(), Mockito.times(1)).createQuery(Mockito.anyString(),
+          Mockito.eq(Object[].class));
+      Mockito.verify(dal, Mockito.never()).createCriteria(com.etendoerp.copilot.data.Conversation.class);
     }
   }
 
   @Test
   void testHandleAssistantsThrowsOBExceptionOnError() throws Exception {
-    OBContext mockCtx = Mockito.mock(OBContext.class);
-    Role mockRole = Mockito.mock(Role.class);
-    Mockito.when(mockCtx.getRole()).thenReturn(mockRole);
-
+    OBContext mockCtx = mockAssistantsContext();
     OBDal dal = Mockito.mock(OBDal.class);
-    org.openbravo.dal.service.OBCriteria<CopilotRoleApp> crit = Mockito.mock(
-        org.openbravo.dal.service.OBCriteria.class);
-    Mockito.when(dal.createCriteria(CopilotRoleApp.class)).thenReturn(crit);
-    Mockito.when(crit.add(org.mockito.ArgumentMatchers.any())).thenReturn(crit);
-    Mockito.when(crit.list()).thenThrow(new RuntimeException("boom"));
+    org.hibernate.query.Query<Object[]> query = mockAssistantsQuery(dal);
+    Mockito.when(query.list()).thenThrow(new RuntimeException("boom"));
 
     try (org.mockito.MockedStatic<OBContext> mockOB = org.mockito.Mockito.mockStatic(OBContext.class);
          org.mockito.MockedStatic<OBDal> mockDal = org.mockito.Mockito.mockStatic(OBDal.class)) {
@@ -755,4 +811,44 @@ class RestServiceUtilTest {
       Assertions.assertThrows(org.openbravo.base.exception.OBException.class, RestServiceUtil::handleAssistants);
     }
   }
+
+  private static OBContext mockAssistantsContext() {
+    OBContext mockCtx = Mockito.mock(OBContext.class);
+    Role mockRole = Mockito.mock(Role.class);
+    Mockito.when(mockRole.getId()).thenReturn("role-1");
+    org.openbravo.model.ad.access.User mockUser = Mockito.mock(org.openbravo.model.ad.access.User.class);
+    Mockito.when(mockUser.getId()).thenReturn("user-1");
+    Mockito.when(mockCtx.getRole()).thenReturn(mockRole);
+    Mockito.when(mockCtx.getUser()).thenReturn(mockUser);
+    return mockCtx;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static org.hibernate.query.Query<Object[]> mockAssistantsQuery(OBDal dal) {
+    org.hibernate.Session session = Mockito.mock(org.hibernate.Session.class);
+    org.hibernate.query.Query<Object[]> query = Mockito.mock(org.hibernate.query.Query.class);
+    Mockito.when(dal.getSession()).thenReturn(session);
+    Mockito.when(session.createQuery(Mockito.anyString(), Mockito.eq(Object[].class))).thenReturn(query);
+    Mockito.when(query.setParameter(Mockito.anyString(), Mockito.any())).thenReturn(query);
+    return query;
+  }
+
+  private static ServletOutputStream toServletOutputStream(ByteArrayOutputStream out) {
+    return new ServletOutputStream() {
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+        // not used, writes are blocking
+      }
+
+      @Override
+      public void write(int b) {
+        out.write(b);
+      }
+    };
+  }
 }
@@ -0,0 +1,408 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SSEClientStream} and {@link SSEStreamRegistry}.
+ */
+public class SSEClientStreamTest {
+
+  private final AtomicBoolean upstreamClosed = new AtomicBoolean();
+  private final Closeable upstream = () -> upstreamClosed.set(true);
+
+  private static String event(String role, String response) {
+    return "data: {\"answer\": {\"response\": \"" + response + "\", \"role\": \"" + role + "\"}}\n\n";
+  }
+
+  private static SSEStreamRegistry registry(int maxEvents, SSEClientStream.OverflowPolicy policy,
+      long writeTimeoutMs) {
+    return new SSEStreamRegistry(maxEvents, policy, writeTimeoutMs, r -> new Thread(r).start());
+  }
+
+  private static void write(OutputStream out, String... events) throws IOException {
+    for (String event : events) {
+      out.write(event.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * The events are queued while the client is blocked and written in order once it reads again.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testSlowClientDoesNotBlockWriter() throws Exception {
+    BlockingOutputStream client = new BlockingOutputStream();
+    SSEStreamRegistry registry = registry(16, SSEClientStream.OverflowPolicy.DROP_QUEUED, 0L);
+    SSEClientStream stream = registry.open(client, upstream);
+
+    write(stream, event("tool", "a"), event("node", "b"));
+    assertTrue(client.awaitStarted());
+    // Split across writes, the event is queued once complete
+    write(stream, "data: {\"answer\": ", "{\"response\": \"c\", \"role\": null}}\n\n");
+    assertEquals(1, registry.getActiveCount());
+
+    client.release();
+    stream.close();
+
+    assertEquals(event("tool", "a") + event("node", "b") + "data: {\"answer\": {\"response\": \"c\", \"role\": null}}\n\n",
+        client.toString());
+    assertEquals(3, stream.getWrittenEvents());
+    assertFalse(stream.isAborted());
+    assertFalse(upstreamClosed.get());
+    assertEquals(0, registry.getActiveCount());
+  }
+
+  /**
+   * With the drop queued policy, the queued progress events are dropped when the buffer is full.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testDropQueuedPolicyDropsQueuedProgress() throws Exception {
+    BlockingOutputStream client = new BlockingOutputStream();
+    SSEClientStream stream = registry(2, SSEClientStream.OverflowPolicy.DROP_QUEUED, 0L).open(client, upstream);
+
+    write(stream, event("bot", "A"));
+    assertTrue(client.awaitStarted());
+    write(stream, event("tool", "p1"), event("tool", "p2"), event("node", "p3"), event("bot", "B"),
+        event("bot", "C"));
+    client.release();
+    stream.close();
+
+    assertEquals(event("bot", "A") + event("bot", "B") + event("bot", "C"), client.toString());
+    assertEquals(3, stream.getDroppedEvents());
+  }
+
+  /**
+   * With the drop policy, a new progress event is discarded when the buffer is full, and the oldest
+   * queued one when the new event is an answer.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testDropPolicyDiscardsProgress() throws Exception {
+    BlockingOutputStream client = new BlockingOutputStream();
+    SSEClientStream stream = registry(2, SSEClientStream.OverflowPolicy.DROP, 0L).open(client, upstream);
+
+    write(stream, event("bot", "A"));
+    assertTrue(client.awaitStarted());
+    write(stream, event("tool", "p1"), event("tool", "p2"), event("debug", "p3"), event("bot", "B"));
+    client.release();
+    stream.close();
+
+    assertEquals(event("bot", "A") + event("tool", "p2") + event("bot", "B"), client.toString());
+    assertEquals(2, stream.getDroppedEvents());
+  }
+
+  /**
+   * With the abort policy, a full buffer aborts the stream and closes the Copilot stream.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testAbortPolicyClosesUpstream() throws Exception {
+    BlockingOutputStream client = new BlockingOutputStream();
+    SSEStreamRegistry registry = registry(1, SSEClientStream.OverflowPolicy.ABORT, 0L);
+    SSEClientStream stream = registry.open(client, upstream);
+
+    write(stream, event("bot", "A"));
+    assertTrue(client.awaitStarted());
+    write(stream, event("tool", "p1"), event("tool", "p2"));
+
+    assertEquals(SSEClientStream.ABORT_OVERFLOW, stream.getAbortReason());
+    assertTrue(upstreamClosed.get());
+    assertThrows(IOException.class, () -> write(stream, event("bot", "B")));
+    stream.close();
+    assertEquals(Map.of(SSEClientStream.ABORT_OVERFLOW, 1L), registry.getAbortedCounts());
+  }
+
+  /**
+   * Answers are never discarded: when the buffer is full of answers the stream is aborted.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testFullBufferOfAnswersAborts() throws Exception {
+    BlockingOutputStream client = new BlockingOutputStream();
+    SSEClientStream stream = registry(2, SSEClientStream.OverflowPolicy.DROP_QUEUED, 0L).open(client, upstream);
+
+    write(stream, event("bot", "A"));
+    assertTrue(client.awaitStarted());
+    write(stream, event("bot", "B"), event("bot", "C"), event("bot", "D"));
+    stream.close();
+
+    assertEquals(SSEClientStream.ABORT_OVERFLOW, stream.getAbortReason());
+    assertTrue(upstreamClosed.get());
+  }
+
+  /**
+   * A client that disconnects aborts the stream and closes the Copilot stream.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testClientDisconnectClosesUpstream() throws Exception {
+    OutputStream client = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Broken pipe");
+      }
+    };
+    SSEStreamRegistry registry = registry(16, SSEClientStream.OverflowPolicy.DROP_QUEUED, 0L);
+    SSEClientStream stream = registry.open(client, upstream);
+
+    write(stream, event("bot", "A"));
+    stream.close();
+
+    assertEquals(SSEClientStream.ABORT_DISCONNECTED, stream.getAbortReason());
+    assertTrue(upstreamClosed.get());
+    assertThrows(IOException.class, () -> write(stream, event("bot", "B")));
+    assertEquals(0, registry.getActiveCount());
+    assertEquals(Map.of(SSEClientStream.ABORT_DISCONNECTED, 1L), registry.getAbortedCounts());
+  }
+
+  /**
+   * A write blocked for longer than the write timeout aborts the stream. The blocked writer is
+   * interrupted and the client stream is left open.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testStalledClientIsAborted() throws Exception {
+    BlockingOutputStream client = new BlockingOutputStream();
+    SSEStreamRegistry registry = registry(16, SSEClientStream.OverflowPolicy.DROP_QUEUED, 1L);
+    SSEClientStream stream = registry.open(client, upstream);
+
+    write(stream, event("bot", "A"));
+    assertTrue(client.awaitStarted());
+    Thread.sleep(20);
+    registry.abortStalled();
+    stream.close();
+
+    assertEquals(SSEClientStream.ABORT_TIMEOUT, stream.getAbortReason());
+    assertTrue(upstreamClosed.get());
+    assertTrue(client.awaitInterrupted());
+    assertFalse(client.isClosed());
+  }
+
+  /**
+   * Closing an aborted stream waits until the interrupted writer has stopped using the client
+   * stream, so the request does not release the response while it is being written.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testCloseWaitsForAbortedWriter() throws Exception {
+    AtomicBoolean writerStopped = new AtomicBoolean();
+    BlockingOutputStream client = new BlockingOutputStream() {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          super.write(b, off, len);
+        } finally {
+          sleepUninterruptibly(50);
+          writerStopped.set(true);
+        }
+      }
+    };
+    SSEStreamRegistry registry = registry(16, SSEClientStream.OverflowPolicy.DROP_QUEUED, 1L);
+    SSEClientStream stream = registry.open(client, upstream);
+
+    write(stream, event("bot", "A"));
+    assertTrue(client.awaitStarted());
+    Thread.sleep(20);
+    registry.abortStalled();
+    stream.close();
+
+    assertTrue(writerStopped.get());
+    assertEquals(0, registry.getActiveCount());
+  }
+
+  /**
+   * A writer that ignores the interrupt is waited for the abort grace period only.
+   *
+   * @throws Exception
+   *     if the stream fails
+   */
+  @Test
+  public void testCloseGivesUpOnBlockedWriterAfterGrace() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    OutputStream client = new OutputStream() {
+      @Override
+      public void write(int b) {
+        started.countDown();
+        boolean done = false;
+        while (!done) {
+          try {
+            done = release.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            // Ignored, like a write blocked in the socket
+          }
+        }
+      }
+    };
+    SSEStreamRegistry registry = new SSEStreamRegistry(16, SSEClientStream.OverflowPolicy.DROP_QUEUED, 1L, 50L,
+        r -> new Thread(r).start());
+    SSEClientStream stream = registry.open(client, upstream);
+    try {
+      write(stream, event("bot", "A"));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      Thread.sleep(20);
+      registry.abortStalled();
+
+      assertThrows(IOException.class, stream::close);
+      assertEquals(Map.of(SSEClientStream.ABORT_TIMEOUT, 1L), registry.getAbortedCounts());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private static void sleepUninterruptibly(long millis) {
+    long end = System.currentTimeMillis() + millis;
+    long left;
+    while ((left = end - System.currentTimeMillis()) > 0) {
+      try {
+        Thread.sleep(left);
+      } catch (InterruptedException e) {
+        // Keep sleeping, the interrupt has already been handled
+      }
+    }
+  }
+
+  /**
+   * When every writer is busy no stream is opened, the caller writes to the client itself.
+   */
+  @Test
+  public void testBusyWritersRejectStream() {
+    SSEStreamRegistry registry = new SSEStreamRegistry(16, SSEClientStream.OverflowPolicy.DROP_QUEUED, 0L, r -> {
+      throw new RejectedExecutionException("busy");
+    });
+
+    assertNull(registry.open(new ByteArrayOutputStream(), upstream));
+    assertEquals(1, registry.getRejectedCount());
+    assertEquals(0, registry.getActiveCount());
+    assertFalse(upstreamClosed.get());
+  }
+
+  /**
+   * Only the tool, node and debug roles of the answer are progress events, whatever the spacing of
+   * the JSON.
+   */
+  @Test
+  public void testIsProgress() {
+    assertTrue(SSEClientStream.isProgress(
+        "data: {\"answer\":{\"response\":\"x\",\"role\":\"tool\"}}\n\n".getBytes(StandardCharsets.UTF_8)));
+    assertFalse(SSEClientStream.isProgress(
+        "data: {\"answer\": {\"response\": \"\\\"role\\\": \\\"tool\\\"\", \"role\": \"bot\"}}\n\n".getBytes(
+            StandardCharsets.UTF_8)));
+    assertFalse(SSEClientStream.isProgress(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8)));
+    assertTrue(SSEClientStream.isProgress(event("tool", "x").getBytes(StandardCharsets.UTF_8)));
+    assertTrue(SSEClientStream.isProgress(event("node", "x").getBytes(StandardCharsets.UTF_8)));
+    assertTrue(SSEClientStream.isProgress(event("debug", "x").getBytes(StandardCharsets.UTF_8)));
+    assertFalse(SSEClientStream.isProgress(event("bot", "x").getBytes(StandardCharsets.UTF_8)));
+    assertFalse(SSEClientStream.isProgress(event("error", "tool").getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Client stream whose writes block until released, closed or interrupted.
+   */
+  private static class BlockingOutputStream extends OutputStream {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      started.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      synchronized (written) {
+        written.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void close() {
+      closed.set(true);
+      release();
+    }
+
+    boolean awaitStarted() throws InterruptedException {
+      return started.await(5, TimeUnit.SECONDS);
+    }
+
+    boolean awaitInterrupted() throws InterruptedException {
+      return interrupted.await(5, TimeUnit.SECONDS);
+    }
+
+    boolean isClosed() {
+      return closed.get();
+    }
+
+    void release() {
+      released.countDown();
+    }
+
+    @Override
+    public String toString() {
+      synchronized (written) {
+        return written.toString(StandardCharsets.UTF_8);
+      }
+    }
+  }
+}
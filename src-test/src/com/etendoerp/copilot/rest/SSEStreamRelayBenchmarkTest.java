@@ -0,0 +1,141 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.rest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Benchmark of the SSE relay against the previous line based path, which decoded every line into
+ * a {@link String} and flushed a {@link PrintWriter} after each event.
+ * <p>
+ * A synthetic stream of token events followed by a final answer frame is relayed by both paths;
+ * tokens per second and allocated bytes per token are logged. The measured numbers depend on the
+ * machine, so only the relayed events are asserted.
+ */
+public class SSEStreamRelayBenchmarkTest {
+  private static final Logger log = LogManager.getLogger(SSEStreamRelayBenchmarkTest.class);
+
+  private static final int TOKENS = 20_000;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+
+  private static byte[] buildStream() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < TOKENS; i++) {
+      sb.append("data: {\"answer\": {\"response\": \"token ").append(i)
+          .append(" \", \"conversation_id\": \"c0ffee\", \"role\": \"node\"}}\n");
+    }
+    sb.append("data: {\"answer\": {\"response\": \"done\", \"conversation_id\": \"c0ffee\", \"role\": \"assistant\"}}\n");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reproduces the previous relay: line decoding, a {@link PrintWriter} flushed on every event and
+   * a JSON parse of the last line.
+   */
+  private static void legacyRelay(byte[] input, ByteArrayOutputStream out) throws Exception {
+    String lastLine = "";
+    try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input)))) {
+      writer.println("data: {}\n\n");
+      writer.flush();
+      String currentLine;
+      while ((currentLine = reader.readLine()) != null) {
+        if (currentLine.startsWith("data:")) {
+          writer.println(currentLine + "\n\n");
+          writer.flush();
+        }
+        lastLine = currentLine;
+      }
+      new JSONObject(lastLine.substring(5));
+    }
+  }
+
+  private static void streamRelay(byte[] input, ByteArrayOutputStream out) throws Exception {
+    SSEStreamRelay relay = new SSEStreamRelay(SSEStreamRelay.DEFAULT_FLUSH_MAX_LATENCY_MS);
+    relay.relay(new SSEStreamRelayTest.TrickleInputStream(input, 4096), out, true);
+    new JSONObject(relay.getLastLine(true));
+  }
+
+  private interface Path {
+    void run(byte[] input, ByteArrayOutputStream out) throws Exception;
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1L;
+  }
+
+  private static void measure(String name, Path path, byte[] input) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 2);
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      out.reset();
+      path.run(input, out);
+    }
+    long allocBefore = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      out.reset();
+      path.run(input, out);
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = allocatedBytes() - allocBefore;
+    long tokens = (long) TOKENS * ROUNDS;
+    log.info("{}: {} tokens/s, {} bytes allocated/token", name,
+        String.format("%.0f", tokens / (elapsed / 1_000_000_000.0)),
+        allocBefore < 0 ? "n/a" : String.valueOf(allocated / tokens));
+  }
+
+  /**
+   * Both paths relay the same events, then their throughput and allocation are compared.
+   *
+   * @throws Exception
+   *     if a relay fails
+   */
+  @Test
+  public void benchmarkRelayAgainstLegacyPath() throws Exception {
+    byte[] input = buildStream();
+
+    ByteArrayOutputStream legacyOut = new ByteArrayOutputStream();
+    legacyRelay(input, legacyOut);
+    ByteArrayOutputStream relayOut = new ByteArrayOutputStream();
+    streamRelay(input, relayOut);
+    // The legacy path adds a line separator after every event, which clients ignore.
+    String legacyEvents = legacyOut.toString(StandardCharsets.UTF_8).replace("\n\n" + System.lineSeparator(), "\n\n");
+    assertEquals(legacyEvents, relayOut.toString(StandardCharsets.UTF_8));
+
+    measure("Line based relay", SSEStreamRelayBenchmarkTest::legacyRelay, input);
+    measure("Byte level relay", SSEStreamRelayBenchmarkTest::streamRelay, input);
+  }
+}
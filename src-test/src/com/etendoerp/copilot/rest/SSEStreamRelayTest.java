@@ -0,0 +1,132 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SSEStreamRelay}.
+ */
+public class SSEStreamRelayTest {
+
+  private static InputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Only data lines are forwarded, each one closed as an event, after the initial empty event.
+   *
+   * @throws IOException
+   *     if the relay fails
+   */
+  @Test
+  public void testRelayForwardsDataLines() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SSEStreamRelay relay = new SSEStreamRelay(25);
+    relay.relay(stream("data: {\"a\":1}\r\n: comment\n\ndata: {\"b\":\"\u00f1\"}"), out, true);
+
+    assertEquals("data: {}\n\ndata: {\"a\":1}\n\ndata: {\"b\":\"\u00f1\"}\n\n", out.toString(StandardCharsets.UTF_8));
+    assertEquals(2, relay.getEventCount());
+    assertEquals(" {\"b\":\"\u00f1\"}", relay.getLastLine(true));
+  }
+
+  /**
+   * Lines split across several reads and longer than the initial buffers are rebuilt.
+   *
+   * @throws IOException
+   *     if the relay fails
+   */
+  @Test
+  public void testRelayHandlesLongLinesAcrossReads() throws IOException {
+    String longValue = "x".repeat(50_000);
+    String content = "data: {\"v\":\"" + longValue + "\"}\n";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SSEStreamRelay relay = new SSEStreamRelay(0);
+    relay.relay(new TrickleInputStream(content.getBytes(StandardCharsets.UTF_8), 7), out, true);
+
+    assertEquals("data: {}\n\n" + content + "\n", out.toString(StandardCharsets.UTF_8));
+    assertEquals(" {\"v\":\"" + longValue + "\"}", relay.getLastLine(true));
+  }
+
+  /**
+   * When events are not forwarded nothing is written and the last line is kept as is.
+   *
+   * @throws IOException
+   *     if the relay fails
+   */
+  @Test
+  public void testRelayWithoutForwarding() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SSEStreamRelay relay = new SSEStreamRelay(25);
+    relay.relay(stream("{\"first\":1}\n{\"last\":2}\n\n"), out, false);
+
+    assertEquals(0, out.size());
+    assertEquals("{\"last\":2}", relay.getLastLine(true));
+    relay.writeLastLine(out);
+    assertEquals("{\"last\":2}", out.toString(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Events available in the same read are flushed together instead of one by one.
+   *
+   * @throws IOException
+   *     if the relay fails
+   */
+  @Test
+  public void testFlushesAreCoalesced() throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      content.append("data: {\"token\":").append(i).append("}\n");
+    }
+    SSEStreamRelay relay = new SSEStreamRelay(10_000);
+    relay.relay(stream(content.toString()), new ByteArrayOutputStream(), true);
+
+    assertEquals(100, relay.getEventCount());
+    assertTrue(relay.getFlushCount() < relay.getEventCount());
+  }
+
+  /**
+   * Input stream returning at most a fixed number of bytes per read, as a slow network would.
+   */
+  static class TrickleInputStream extends ByteArrayInputStream {
+    private final int chunk;
+
+    TrickleInputStream(byte[] buf, int chunk) {
+      super(buf);
+      this.chunk = chunk;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(len, chunk));
+    }
+
+    @Override
+    public synchronized int available() {
+      return 0;
+    }
+  }
+}
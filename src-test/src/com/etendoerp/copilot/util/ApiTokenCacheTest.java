@@ -0,0 +1,67 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ApiTokenCache}.
+ */
+public class ApiTokenCacheTest {
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private Map<String, String> load() {
+    loads.incrementAndGet();
+    return Map.of("API_KEY", "secret-" + loads.get());
+  }
+
+  /**
+   * The tokens of a client, user and role are loaded once and reused until the cache is discarded.
+   */
+  @Test
+  public void testReusesTokensUntilInvalidation() {
+    ApiTokenCache cache = new ApiTokenCache(60, () -> 0L);
+
+    assertEquals("secret-1", cache.getTokens("C1", "U1", "R1", this::load).get("API_KEY"));
+    assertEquals("secret-1", cache.getTokens("C1", "U1", "R1", this::load).get("API_KEY"));
+    cache.getTokens("C1", "U1", null, this::load);
+    assertEquals(2, loads.get());
+    assertEquals(1, cache.getHits());
+
+    cache.clear();
+    assertEquals("secret-3", cache.getTokens("C1", "U1", "R1", this::load).get("API_KEY"));
+    assertEquals(3, loads.get());
+  }
+
+  /**
+   * With no time to live the tokens are loaded every time.
+   */
+  @Test
+  public void testDisabledCache() {
+    ApiTokenCache cache = new ApiTokenCache(0, () -> 0L);
+    cache.getTokens("C1", "U1", "R1", this::load);
+    cache.getTokens("C1", "U1", "R1", this::load);
+
+    assertEquals(2, loads.get());
+  }
+}
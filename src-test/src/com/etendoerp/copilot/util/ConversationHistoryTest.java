@@ -0,0 +1,305 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.Session;
+import org.hibernate.query.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.dal.service.OBQuery;
+import org.openbravo.model.ad.access.User;
+import org.openbravo.model.ad.system.Client;
+
+import com.etendoerp.copilot.data.Conversation;
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.CopilotModel;
+import com.etendoerp.copilot.data.Message;
+import com.etendoerp.copilot.rest.RestServiceUtil;
+
+/**
+ * Unit tests for {@link ConversationHistory}. The summaries are generated in the test thread, where
+ * the static mocks are active, and the Copilot service is mocked.
+ */
+public class ConversationHistoryTest {
+
+  private static final String CONVERSATION_ID = "conv-1";
+
+  private MockedStatic<OBDal> mockedOBDal;
+  private MockedStatic<OBContext> mockedOBContext;
+  private MockedStatic<CopilotModelUtils> mockedModelUtils;
+  private MockedStatic<RestServiceUtil> mockedRestServiceUtil;
+  private MockedStatic<CopilotHttpClient> mockedHttpClient;
+  private OBDal obDal;
+  private OBQuery<Message> windowQuery;
+  private OBQuery<Message> droppedQuery;
+  private Conversation conversation;
+  private Query writeQuery;
+
+  /**
+   * Mocks the DAL, the queries of the messages and the update of the summary of the conversation.
+   *
+   * @throws Exception
+   *     if the mocks cannot be created
+   */
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    mockedOBDal = mockStatic(OBDal.class);
+    obDal = mock(OBDal.class);
+    mockedOBDal.when(OBDal::getInstance).thenReturn(obDal);
+    mockedOBContext = mockStatic(OBContext.class);
+    mockedOBContext.when(OBContext::getOBContext).thenReturn(mock(OBContext.class));
+    mockedModelUtils = mockStatic(CopilotModelUtils.class);
+    mockedRestServiceUtil = mockStatic(RestServiceUtil.class);
+    mockedHttpClient = mockStatic(CopilotHttpClient.class);
+
+    windowQuery = mockQuery();
+    droppedQuery = mockQuery();
+    when(obDal.createQuery(eq(Message.class), contains("desc"))).thenReturn(windowQuery);
+    when(obDal.createQuery(eq(Message.class), contains("m.lineno >"))).thenReturn(droppedQuery);
+
+    conversation = mock(Conversation.class);
+    Session session = mock(Session.class);
+    writeQuery = mock(Query.class);
+    when(obDal.getSession()).thenReturn(session);
+    when(session.createQuery(contains(Conversation.PROPERTY_SUMMARYLINENO))).thenReturn(writeQuery);
+    when(writeQuery.setParameter(anyString(), any())).thenReturn(writeQuery);
+  }
+
+  /**
+   * Closes the static mocks.
+   */
+  @After
+  public void tearDown() {
+    mockedHttpClient.close();
+    mockedRestServiceUtil.close();
+    mockedModelUtils.close();
+    mockedOBContext.close();
+    mockedOBDal.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static OBQuery<Message> mockQuery() {
+    OBQuery<Message> query = mock(OBQuery.class);
+    when(query.setNamedParameter(anyString(), any())).thenReturn(query);
+    when(query.setMaxResult(anyInt())).thenReturn(query);
+    return query;
+  }
+
+  /**
+   * Mocks the messages of the conversation, from the newest to the oldest.
+   *
+   * @param count
+   *     number of messages, the newest one has the highest line number
+   * @param tokens
+   *     estimated tokens of each message
+   * @return the messages, from the newest to the oldest
+   */
+  private List<Message> mockMessages(int count, int tokens) {
+    List<Message> messages = new ArrayList<>();
+    for (int i = count; i >= 1; i--) {
+      Message message = mock(Message.class);
+      when(message.getRole()).thenReturn(i % 2 == 0 ? CopilotConstants.MESSAGE_ASSISTANT : CopilotConstants.MESSAGE_USER);
+      when(message.getMessage()).thenReturn("m" + i + StringUtils.repeat('x',
+          tokens * ConversationHistory.CHARS_PER_TOKEN - 1 - String.valueOf(i).length()));
+      when(message.getLineno()).thenReturn(i * 10L);
+      when(message.getConversation()).thenReturn(conversation);
+      messages.add(message);
+    }
+    when(windowQuery.list()).thenReturn(messages);
+    return messages;
+  }
+
+  private static String prefix(JSONArray history, int index) throws Exception {
+    return history.getJSONObject(index).getString("content").substring(0, 3);
+  }
+
+  /**
+   * Only the newest messages that fit in the budget are returned, from the oldest to the newest.
+   *
+   * @throws Exception
+   *     if the history cannot be read
+   */
+  @Test
+  public void testKeepsNewestMessagesWithinBudget() throws Exception {
+    mockMessages(5, 10);
+    ConversationHistory history = new ConversationHistory(100, 50, 30, null, Runnable::run);
+
+    JSONArray window = history.getWindow(CONVERSATION_ID, null);
+
+    assertEquals(3, window.length());
+    assertEquals("m3x", prefix(window, 0));
+    assertEquals("m5x", prefix(window, 2));
+    verify(windowQuery).setMaxResult(101);
+  }
+
+  /**
+   * The number of messages is capped even when they fit in the budget.
+   *
+   * @throws Exception
+   *     if the history cannot be read
+   */
+  @Test
+  public void testCapsNumberOfMessages() throws Exception {
+    mockMessages(5, 1);
+    ConversationHistory history = new ConversationHistory(4, 50, 1000, null, Runnable::run);
+
+    JSONArray window = history.getWindow(CONVERSATION_ID, null);
+
+    assertEquals(4, window.length());
+    assertEquals("m2x", prefix(window, 0));
+  }
+
+  /**
+   * The budget is a percentage of the max tokens of the model of the agent, or of the default
+   * model, and the default budget when there is no max tokens.
+   */
+  @Test
+  public void testBudgetFromModel() {
+    ConversationHistory history = new ConversationHistory(100, 25, 16000, null, Runnable::run);
+    CopilotModel model = mock(CopilotModel.class);
+    when(model.getMaxTokens()).thenReturn(8000L);
+    CopilotApp app = mock(CopilotApp.class);
+    when(app.getModel()).thenReturn(model);
+    CopilotApp withoutModel = mock(CopilotApp.class);
+    CopilotModel defaultModel = mock(CopilotModel.class);
+    mockedModelUtils.when(() -> CopilotModelUtils.getDefaultModel(null)).thenReturn(defaultModel);
+
+    assertEquals(2000L, history.getTokenBudget(app));
+    assertEquals(16000L, history.getTokenBudget(withoutModel));
+    when(defaultModel.getMaxTokens()).thenReturn(400L);
+    assertEquals(100L, history.getTokenBudget(withoutModel));
+    assertEquals(16000L, history.getTokenBudget(null));
+  }
+
+  /**
+   * The stored summary is sent before the window when older messages are left out, in place of the
+   * oldest messages of the window, and it is not read when the whole conversation fits.
+   *
+   * @throws Exception
+   *     if the history cannot be read
+   */
+  @Test
+  public void testPrependsSummaryWhenTruncated() throws Exception {
+    when(conversation.getSummary()).thenReturn("Earlier questions");
+    when(conversation.getSummaryLineno()).thenReturn(10L);
+    mockMessages(2, 10);
+    ConversationHistory history = new ConversationHistory(100, 50, 1000, null, Runnable::run);
+
+    assertEquals(2, history.getWindow(CONVERSATION_ID, null).length());
+    verify(conversation, never()).getSummary();
+
+    mockMessages(5, 10);
+    JSONArray window = new ConversationHistory(100, 50, 40, null, Runnable::run).getWindow(CONVERSATION_ID, null);
+
+    assertEquals(3, window.length());
+    assertEquals(CopilotConstants.MESSAGE_ASSISTANT, window.getJSONObject(0).getString("role"));
+    assertEquals(ConversationHistory.SUMMARY_PREFIX + "Earlier questions",
+        window.getJSONObject(0).getString("content"));
+    assertEquals("m4x", prefix(window, 1));
+  }
+
+  /**
+   * With a summary agent, the messages left out of the window are summarized and the summary is
+   * stored with the line number of the last message it covers. The messages that do not fit in the
+   * input of the agent are left for the next summary.
+   *
+   * @throws Exception
+   *     if the history cannot be read
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSummarizesDroppedMessages() throws Exception {
+    List<Message> messages = mockMessages(15, 10);
+    List<Message> dropped = new ArrayList<>(messages.subList(3, 15));
+    Collections.reverse(dropped);
+    when(droppedQuery.list()).thenReturn(dropped);
+    when(obDal.get(CopilotApp.class, "AGENT")).thenReturn(mock(CopilotApp.class));
+    OBContext context = mock(OBContext.class);
+    User user = mock(User.class);
+    when(user.getId()).thenReturn("USER");
+    when(context.getUser()).thenReturn(user);
+    when(context.getCurrentClient()).thenReturn(mock(Client.class));
+    mockedOBContext.when(OBContext::getOBContext).thenReturn(context);
+    HttpResponse<String> response = mock(HttpResponse.class);
+    when(response.body()).thenReturn(new JSONObject().put(RestServiceUtil.PROP_ANSWER,
+        new JSONObject().put(RestServiceUtil.PROP_RESPONSE, "New summary")).toString());
+    mockedHttpClient.when(() -> CopilotHttpClient.newRequest(any()))
+        .thenReturn(HttpRequest.newBuilder(URI.create("http://localhost:5005/question")));
+    mockedHttpClient.when(() -> CopilotHttpClient.send(any(), any())).thenReturn(response);
+    ConversationHistory history = new ConversationHistory(100, 50, 30, "AGENT", Runnable::run);
+
+    history.getWindow(CONVERSATION_ID, null);
+
+    verify(droppedQuery).setNamedParameter("from", 0L);
+    verify(droppedQuery).setNamedParameter("to", 130L);
+    verify(writeQuery).setParameter("summary", "New summary");
+    verify(writeQuery).setParameter("lineno", 20L);
+    verify(writeQuery).setParameter("conversationId", CONVERSATION_ID);
+    verify(writeQuery).executeUpdate();
+    verify(obDal).commitAndClose();
+    mockedRestServiceUtil.verify(() -> RestServiceUtil.handleQuestion(anyBoolean(), any(), any(JSONObject.class)),
+        never());
+    mockedOBContext.verify(() -> OBContext.setOBContext("USER", null, null, null));
+    mockedOBContext.verify(() -> OBContext.setAdminMode(true));
+    mockedOBContext.verify(OBContext::restorePreviousMode);
+  }
+
+  /**
+   * Without a summary agent, or with few messages left out, nothing is summarized.
+   *
+   * @throws Exception
+   *     if the history cannot be read
+   */
+  @Test
+  public void testSkipsSummaryOfFewMessages() throws Exception {
+    mockMessages(8, 10);
+    new ConversationHistory(100, 50, 30, "AGENT", Runnable::run).getWindow(CONVERSATION_ID, null);
+    mockMessages(15, 10);
+    new ConversationHistory(100, 50, 30, null, Runnable::run).getWindow(CONVERSATION_ID, null);
+
+    verify(droppedQuery, never()).list();
+    verify(writeQuery, never()).executeUpdate();
+  }
+}
@@ -17,15 +17,20 @@
 package com.etendoerp.copilot.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -33,7 +38,7 @@ import static org.mockito.Mockito.when;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
+import java.sql.Timestamp;
 import java.util.Date;
 import java.util.List;
 
@@ -43,13 +48,16 @@ import javax.servlet.http.HttpServletResponse;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.Session;
 import org.hibernate.criterion.Order;
+import org.hibernate.query.Query;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.MockitoAnnotations;
+import org.openbravo.base.exception.OBException;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
@@ -89,6 +97,10 @@ public class ConversationUtilsTest {
   private OBCriteria<Conversation> mockConversationCriteria;
   @Mock
   private PrintWriter mockWriter;
+  @Mock
+  private Session mockSession;
+  @Mock
+  private Query<Object[]> mockRowsQuery;
 
   private MockedStatic<OBDal> mockedOBDal;
   private MockedStatic<OBContext> mockedOBContext;
@@ -137,6 +149,10 @@ public class ConversationUtilsTest {
     doNothing().when(obDal).save(any(Conversation.class));
     doNothing().when(obDal).flush();
     doNothing().when(obDal).remove(any());
+    when(obDal.getSession()).thenReturn(mockSession);
+    when(mockSession.createQuery(anyString(), eq(Object[].class))).thenReturn(mockRowsQuery);
+    when(mockRowsQuery.setParameter(anyString(), any())).thenReturn(mockRowsQuery);
+    when(mockRowsQuery.setMaxResults(anyInt())).thenReturn(mockRowsQuery);
 
     // Configure OBContext mock
     mockedOBContext.when(OBContext::getOBContext).thenReturn(obContext);
@@ -150,6 +166,8 @@ public class ConversationUtilsTest {
     when(mockConversationCriteria.addOrder(any(Order.class))).thenReturn(mockConversationCriteria);
     when(mockConversationCriteria.setMaxResults(1)).thenReturn(mockConversationCriteria);
 
+    when(mockAssistant.getId()).thenReturn(TEST_APP_ID);
+
     // Configure Conversation mock
     when(mockConversation.getId()).thenReturn(TEST_CONVERSATION_ID);
     when(mockConversation.getExternalID()).thenReturn(TEST_EXTERNAL_ID);
@@ -289,9 +307,7 @@ public class ConversationUtilsTest {
     mockedCopilotUtils.when(() -> CopilotUtils.getAssistantByIDOrName(TEST_APP_ID))
         .thenReturn(mockAssistant);
 
-    List<Conversation> conversations = new ArrayList<>();
-    conversations.add(mockConversation);
-    when(mockConversationCriteria.list()).thenReturn(conversations);
+    when(mockRowsQuery.list()).thenReturn(List.of(conversationRow(TEST_TITLE)));
 
     StringWriter stringWriter = new StringWriter();
     PrintWriter writer = new PrintWriter(stringWriter);
@@ -336,9 +352,7 @@ public class ConversationUtilsTest {
     mockedCopilotUtils.when(() -> CopilotUtils.getAssistantByIDOrName(TEST_APP_ID))
         .thenReturn(mockAssistant);
 
-    List<Conversation> conversations = new ArrayList<>();
-    conversations.add(mockConversation);
-    when(mockConversationCriteria.list()).thenReturn(conversations);
+    when(mockRowsQuery.list()).thenReturn(List.of(conversationRow(TEST_TITLE)));
 
     StringWriter stringWriter = new StringWriter();
     PrintWriter writer = new PrintWriter(stringWriter);
@@ -474,9 +488,7 @@ public class ConversationUtilsTest {
     requestBody.put(CopilotConstants.PROP_CONVERSATION_ID, TEST_CONVERSATION_ID);
     mockedRequestUtils.when(() -> RequestUtils.extractRequestBody(mockRequest))
         .thenReturn(requestBody);
-    List<Message> messages = new ArrayList<>();
-    messages.add(mockMessage);
-    when(mockConversation.getETCOPMessageList()).thenReturn(messages);
+    when(mockRowsQuery.list()).thenReturn(List.of(messageRow("msgId1", 1L)));
 
     StringWriter stringWriter = new StringWriter();
     PrintWriter writer = new PrintWriter(stringWriter);
@@ -504,9 +516,7 @@ public class ConversationUtilsTest {
     // Given
     when(mockRequest.getParameter("conversation_id")).thenReturn(TEST_CONVERSATION_ID);
 
-    List<Message> messages = new ArrayList<>();
-    messages.add(mockMessage);
-    when(mockConversation.getETCOPMessageList()).thenReturn(messages);
+    when(mockRowsQuery.list()).thenReturn(List.of(messageRow("msgId1", 1L)));
 
     StringWriter stringWriter = new StringWriter();
     PrintWriter writer = new PrintWriter(stringWriter);
@@ -547,9 +557,7 @@ public class ConversationUtilsTest {
   @Test
   public void testGetConversationsWithValidAssistant() throws Exception {
     // Given
-    List<Conversation> conversations = new ArrayList<>();
-    conversations.add(mockConversation);
-    when(mockConversationCriteria.list()).thenReturn(conversations);
+    when(mockRowsQuery.list()).thenReturn(List.of(conversationRow(TEST_TITLE)));
 
     // When
     JSONArray result = ConversationUtils.getConversations(mockAssistant);
@@ -570,10 +578,8 @@ public class ConversationUtilsTest {
   @Test
   public void testGetConversationsWithEmptyExternalId() throws Exception {
     // Given
-    when(mockConversation.getExternalID()).thenReturn("");
-    List<Conversation> conversations = new ArrayList<>();
-    conversations.add(mockConversation);
-    when(mockConversationCriteria.list()).thenReturn(conversations);
+    when(mockRowsQuery.list()).thenReturn(
+        List.of(new Object[] { TEST_CONVERSATION_ID, "", TEST_TITLE, new Date() }));
 
     // When
     JSONArray result = ConversationUtils.getConversations(mockAssistant);
@@ -591,9 +597,7 @@ public class ConversationUtilsTest {
   @Test
   public void testGetArchivedConversationsWithValidAssistant() throws Exception {
     // Given
-    List<Conversation> conversations = new ArrayList<>();
-    conversations.add(mockConversation);
-    when(mockConversationCriteria.list()).thenReturn(conversations);
+    when(mockRowsQuery.list()).thenReturn(List.of(conversationRow(TEST_TITLE)));
 
     // When
     JSONArray result = ConversationUtils.getArchivedConversations(mockAssistant);
@@ -633,9 +637,7 @@ public class ConversationUtilsTest {
   public void testGetTitleConversationGenerateNewTitle() throws Exception {
     // Given
     when(mockConversation.getTitle()).thenReturn(null);
-    List<Message> messages = new ArrayList<>();
-    messages.add(mockMessage);
-    when(mockConversation.getETCOPMessageList()).thenReturn(messages);
+    when(mockRowsQuery.list()).thenReturn(List.of(messageRow("msgId1", 1L)));
 
     JSONObject responseObject = new JSONObject();
     responseObject.put("response", GENERATED_TITLE);
@@ -654,6 +656,39 @@ public class ConversationUtilsTest {
     verify(obDal, times(1)).flush();
   }
 
+  /**
+   * Test getTitleConversation sends the messages in the order of their line number, not of their
+   * creation date.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testGetTitleConversationSortsMessagesByLineNo() throws Exception {
+    // Given
+    when(mockConversation.getTitle()).thenReturn(null);
+    Message answer = mock(Message.class);
+    when(answer.getRole()).thenReturn("assistant");
+    when(answer.getMessage()).thenReturn("Answer");
+    when(answer.getLineno()).thenReturn(20L);
+    when(answer.getCreationDate()).thenReturn(new Date(1000L));
+    when(mockMessage.getLineno()).thenReturn(10L);
+    when(mockMessage.getCreationDate()).thenReturn(new Date(2000L));
+    when(mockConversation.getETCOPMessageList()).thenReturn(List.of(answer, mockMessage));
+
+    JSONObject responseObject = new JSONObject();
+    responseObject.put("response", GENERATED_TITLE);
+    mockedRestServiceUtil.when(() -> RestServiceUtil.handleQuestion(
+        anyBoolean(), any(), any(JSONObject.class))).thenReturn(responseObject);
+
+    // When
+    ConversationUtils.getTitleConversation(TEST_CONVERSATION_ID);
+
+    // Then
+    mockedRestServiceUtil.verify(() -> RestServiceUtil.handleQuestion(anyBoolean(), any(),
+        argThat((JSONObject body) -> body.optString("question")
+            .matches("(?s)user: Test message.*assistant: Answer.*"))));
+  }
+
   /**
    * Test getTitleConversation with null conversation.
    *
@@ -698,9 +733,7 @@ public class ConversationUtilsTest {
   @Test
   public void testGetConversationMessagesWithValidConversation() throws Exception {
     // Given
-    List<Message> messages = new ArrayList<>();
-    messages.add(mockMessage);
-    when(mockConversation.getETCOPMessageList()).thenReturn(messages);
+    when(mockRowsQuery.list()).thenReturn(List.of(messageRow("msgId1", 1L)));
 
     // When
     JSONArray result = ConversationUtils.getConversationMessages(TEST_CONVERSATION_ID);
@@ -733,31 +766,14 @@ public class ConversationUtilsTest {
   }
 
   /**
-   * Test getConversationMessages with multiple messages sorted by line number.
+   * Test getConversationMessages sorts the messages by line number in the query.
    *
    * @throws Exception if test fails
    */
   @Test
   public void testGetConversationMessagesWithMultipleMessagesSorted() throws Exception {
     // Given
-    Message msg1 = mock(Message.class);
-    when(msg1.getId()).thenReturn("msg1");
-    when(msg1.getRole()).thenReturn("user");
-    when(msg1.getMessage()).thenReturn("First message");
-    when(msg1.getCreationDate()).thenReturn(new Date());
-    when(msg1.getLineno()).thenReturn(2L);
-
-    Message msg2 = mock(Message.class);
-    when(msg2.getId()).thenReturn("msg2");
-    when(msg2.getRole()).thenReturn("assistant");
-    when(msg2.getMessage()).thenReturn("Second message");
-    when(msg2.getCreationDate()).thenReturn(new Date());
-    when(msg2.getLineno()).thenReturn(1L);
-
-    List<Message> messages = new ArrayList<>();
-    messages.add(msg1);
-    messages.add(msg2);
-    when(mockConversation.getETCOPMessageList()).thenReturn(messages);
+    when(mockRowsQuery.list()).thenReturn(List.of(messageRow("msg2", 1L), messageRow("msg1", 2L)));
 
     // When
     JSONArray result = ConversationUtils.getConversationMessages(TEST_CONVERSATION_ID);
@@ -765,9 +781,188 @@ public class ConversationUtilsTest {
     // Then
     assertNotNull(RESULT_NOT_NULL_MESSAGE, result);
     assertEquals("Should have two messages", 2, result.length());
-    // Messages should be sorted by line number
     assertEquals("First message should be msg2", "msg2", result.getJSONObject(0).getString("id"));
     assertEquals("Second message should be msg1", "msg1", result.getJSONObject(1).getString("id"));
+    verify(mockSession).createQuery(contains("order by m.lineno asc"), eq(Object[].class));
+    verify(mockRowsQuery, never()).setMaxResults(anyInt());
+  }
+
+  /**
+   * Test a page of conversations returns the cursor of the next page, which continues after the
+   * last conversation of the page.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testGetConversationsPageWithCursor() throws Exception {
+    // Given
+    Date lastMsg = new Date(1700000000000L);
+    when(mockRowsQuery.list()).thenReturn(List.of(
+        new Object[] { "C1", "ext1", null, lastMsg },
+        new Object[] { "C2", "ext2", null, lastMsg },
+        new Object[] { "C3", "ext3", null, lastMsg }));
+
+    // When
+    JSONObject page = ConversationUtils.getConversations(mockAssistant, null, 2);
+
+    // Then
+    verify(mockRowsQuery).setMaxResults(3);
+    assertEquals("Should have two conversations", 2, page.getJSONArray("items").length());
+    assertEquals("ext2", page.getJSONArray("items").getJSONObject(1).getString("id"));
+    String cursor = page.getString("next_cursor");
+
+    // When
+    when(mockRowsQuery.list()).thenReturn(List.of(new Object[] { "C3", "ext3", null, lastMsg }));
+    JSONObject nextPage = ConversationUtils.getConversations(mockAssistant, cursor, 2);
+
+    // Then
+    verify(mockSession).createQuery(contains("c.lastMsg < :lastMsg or (c.lastMsg = :lastMsg and c.id < :id)"),
+        eq(Object[].class));
+    verify(mockRowsQuery).setParameter("id", "C2");
+    verify(mockRowsQuery).setParameter("lastMsg", new Timestamp(lastMsg.getTime()));
+    assertEquals(1, nextPage.getJSONArray("items").length());
+    assertFalse("The last page should not have a cursor", nextPage.has("next_cursor"));
+  }
+
+  /**
+   * Test the cursor of a conversation without messages continues with the conversations that have
+   * messages.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testGetConversationsPageAfterConversationWithoutMessages() throws Exception {
+    // Given
+    when(mockRowsQuery.list()).thenReturn(List.of(
+        new Object[] { "C1", "ext1", null, null },
+        new Object[] { "C2", "ext2", null, new Date() }));
+    String cursor = ConversationUtils.getArchivedConversations(mockAssistant, null, 1).getString("next_cursor");
+
+    // When
+    ConversationUtils.getArchivedConversations(mockAssistant, cursor, 1);
+
+    // Then
+    verify(mockSession).createQuery(contains("(c.lastMsg is null and c.id < :id) or c.lastMsg is not null"),
+        eq(Object[].class));
+    verify(mockRowsQuery).setParameter("id", "C1");
+    verify(mockRowsQuery, times(2)).setParameter("active", false);
+  }
+
+  /**
+   * Test an invalid cursor is rejected.
+   */
+  @Test(expected = OBException.class)
+  public void testGetConversationsPageWithInvalidCursor() throws Exception {
+    ConversationUtils.getConversations(mockAssistant, "not a cursor", 10);
+  }
+
+  /**
+   * Test a page of messages returns the most recent messages in ascending order and the cursor of
+   * the previous ones.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testGetConversationMessagesPage() throws Exception {
+    // Given
+    when(mockRowsQuery.list()).thenReturn(
+        List.of(messageRow("msg3", 30L), messageRow("msg2", 20L), messageRow("msg1", 10L)));
+
+    // When
+    JSONObject page = ConversationUtils.getConversationMessages(TEST_CONVERSATION_ID, "40", 2);
+
+    // Then
+    verify(mockSession).createQuery(contains("m.lineno is not null and m.lineno < :before order by m.lineno desc"),
+        eq(Object[].class));
+    verify(mockRowsQuery).setParameter("before", 40L);
+    verify(mockRowsQuery).setMaxResults(3);
+    JSONArray items = page.getJSONArray("items");
+    assertEquals(2, items.length());
+    assertEquals("msg2", items.getJSONObject(0).getString("id"));
+    assertEquals("msg3", items.getJSONObject(1).getString("id"));
+    assertEquals("20", page.getString("next_cursor"));
+  }
+
+  /**
+   * Test a page of messages of an unknown conversation is empty, as the list of all its messages.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testGetConversationMessagesPageWithUnknownConversation() throws Exception {
+    // Given
+    when(obDal.get(Conversation.class, TEST_CONVERSATION_ID)).thenReturn(null);
+
+    // When
+    JSONObject page = ConversationUtils.getConversationMessages(TEST_CONVERSATION_ID, null, 10);
+
+    // Then
+    assertEquals(0, page.getJSONArray("items").length());
+    assertFalse(page.has("next_cursor"));
+    verify(mockSession, never()).createQuery(anyString(), eq(Object[].class));
+  }
+
+  /**
+   * Test handleConversationMessages with a limit returns a page.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testHandleConversationMessagesWithLimit() throws Exception {
+    // Given
+    when(mockRequest.getParameter("conversation_id")).thenReturn(TEST_CONVERSATION_ID);
+    when(mockRequest.getParameter("limit")).thenReturn("50");
+    when(mockRowsQuery.list()).thenReturn(List.of(messageRow("msgId1", 1L)));
+    StringWriter stringWriter = new StringWriter();
+    PrintWriter writer = new PrintWriter(stringWriter);
+    when(mockResponse.getWriter()).thenReturn(writer);
+
+    // When
+    ConversationUtils.handleConversationMessages(mockRequest, mockResponse);
+
+    // Then
+    writer.flush();
+    JSONObject page = new JSONObject(stringWriter.toString());
+    assertEquals(1, page.getJSONArray("items").length());
+    assertFalse(page.has("next_cursor"));
+    verify(mockRowsQuery).setMaxResults(51);
+  }
+
+  /**
+   * Test handleConversations with an invalid limit.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testHandleConversationsWithInvalidLimit() throws Exception {
+    // Given
+    when(mockRequest.getParameter(CopilotConstants.PROP_APP_ID)).thenReturn(TEST_APP_ID);
+    when(mockRequest.getParameter("limit")).thenReturn("many");
+
+    // When
+    ConversationUtils.handleConversations(mockRequest, mockResponse);
+
+    // Then
+    verify(mockResponse, times(1)).sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit: many");
+  }
+
+  /**
+   * Test handleConversationMessages with an invalid limit.
+   *
+   * @throws Exception if test fails
+   */
+  @Test
+  public void testHandleConversationMessagesWithInvalidLimit() throws Exception {
+    // Given
+    when(mockRequest.getParameter("conversation_id")).thenReturn(TEST_CONVERSATION_ID);
+    when(mockRequest.getParameter("limit")).thenReturn("ten");
+
+    // When
+    ConversationUtils.handleConversationMessages(mockRequest, mockResponse);
+
+    // Then
+    verify(mockResponse, times(1)).sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit: ten");
+    verify(mockSession, never()).createQuery(anyString(), eq(Object[].class));
   }
 
   /**
@@ -778,10 +973,7 @@ public class ConversationUtilsTest {
   @Test
   public void testGetConversationsWithNoTitle() throws Exception {
     // Given
-    when(mockConversation.getTitle()).thenReturn(null);
-    List<Conversation> conversations = new ArrayList<>();
-    conversations.add(mockConversation);
-    when(mockConversationCriteria.list()).thenReturn(conversations);
+    when(mockRowsQuery.list()).thenReturn(List.of(conversationRow(null)));
 
     // When
     JSONArray result = ConversationUtils.getConversations(mockAssistant);
@@ -815,4 +1007,12 @@ public class ConversationUtilsTest {
     // Then
     verify(mockResponse, times(1)).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
   }
+
+  private static Object[] conversationRow(String title) {
+    return new Object[] { TEST_CONVERSATION_ID, TEST_EXTERNAL_ID, title, new Date() };
+  }
+
+  private static Object[] messageRow(String id, long lineno) {
+    return new Object[] { id, "user", "Test message", new Date(), lineno };
+  }
 }
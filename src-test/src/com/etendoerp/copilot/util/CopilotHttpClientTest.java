@@ -0,0 +1,176 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for {@link CopilotHttpClient}, using a local HTTP server as Copilot service.
+ */
+public class CopilotHttpClientTest {
+  private static final String OK_BODY = "{\"answer\": \"ok\"}";
+
+  private HttpServer server;
+  private MockedStatic<OBPropertiesProvider> mockedProperties;
+  private Properties properties;
+
+  /**
+   * Starts a local server and points the Copilot host and port properties to it.
+   *
+   * @throws IOException if the server cannot be started
+   */
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/ok", exchange -> {
+      byte[] body = OK_BODY.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    });
+    server.createContext("/fail", exchange -> {
+      exchange.sendResponseHeaders(500, -1);
+      exchange.close();
+    });
+    server.start();
+
+    properties = new Properties();
+    properties.setProperty(CopilotUtils.COPILOT_HOST, "localhost");
+    properties.setProperty(CopilotUtils.COPILOT_PORT, String.valueOf(server.getAddress().getPort()));
+    OBPropertiesProvider provider = mock(OBPropertiesProvider.class);
+    when(provider.getOpenbravoProperties()).thenReturn(properties);
+    mockedProperties = mockStatic(OBPropertiesProvider.class);
+    mockedProperties.when(OBPropertiesProvider::getInstance).thenReturn(provider);
+  }
+
+  /**
+   * Stops the local server and releases the static mocks.
+   */
+  @After
+  public void tearDown() {
+    mockedProperties.close();
+    server.stop(0);
+  }
+
+  /**
+   * The endpoint is appended to the configured host and port, with or without leading slash.
+   */
+  @Test
+  public void testGetCopilotUri() {
+    int port = server.getAddress().getPort();
+    assertEquals(URI.create("http://localhost:" + port + "/question"), CopilotHttpClient.getCopilotUri("question"));
+    assertEquals(URI.create("http://localhost:" + port + "/question"), CopilotHttpClient.getCopilotUri("/question"));
+  }
+
+  /**
+   * The same client instance is returned on every call.
+   */
+  @Test
+  public void testClientIsShared() {
+    assertSame(CopilotHttpClient.getClient(), CopilotHttpClient.getClient());
+  }
+
+  /**
+   * The configured connect timeout and protocol version are applied to new clients.
+   */
+  @Test
+  public void testCreateClientReadsProperties() {
+    Properties props = new Properties();
+    props.setProperty(CopilotHttpClient.PROP_CONNECT_TIMEOUT, "1234");
+    props.setProperty(CopilotHttpClient.PROP_HTTP_VERSION, "http_2");
+    props.setProperty(CopilotHttpClient.PROP_THREADS, "not a number");
+    HttpClient client = CopilotHttpClient.createClient(props);
+    assertEquals(Duration.ofMillis(1234), client.connectTimeout().orElse(null));
+    assertEquals(HttpClient.Version.HTTP_2, client.version());
+    assertTrue(client.executor().isPresent());
+  }
+
+  /**
+   * A successful request is counted and releases its connection.
+   *
+   * @throws Exception if the request fails
+   */
+  @Test
+  public void testSendRecordsStats() throws Exception {
+    long before = CopilotHttpClient.getStats().getTotalRequests();
+    HttpRequest request = CopilotHttpClient.newRequest("ok").GET().build();
+    HttpResponse<String> response = CopilotHttpClient.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(200, response.statusCode());
+    assertEquals(OK_BODY, response.body());
+    CopilotHttpClient.PoolStats stats = CopilotHttpClient.getStats();
+    assertTrue(stats.getTotalRequests() > before);
+    assertEquals(0, stats.getActiveConnections());
+    assertNotNull(stats.toString());
+  }
+
+  /**
+   * A streamed response keeps the connection active until the stream is closed.
+   *
+   * @throws Exception if the request fails
+   */
+  @Test
+  public void testSendForStreamTracksActiveConnection() throws Exception {
+    HttpRequest request = CopilotHttpClient.newRequest("ok").GET().build();
+    InputStream stream = CopilotHttpClient.sendForStream(request);
+    assertEquals(1, CopilotHttpClient.getStats().getActiveConnections());
+    assertEquals(OK_BODY, new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+    stream.close();
+    stream.close();
+    assertEquals(0, CopilotHttpClient.getStats().getActiveConnections());
+  }
+
+  /**
+   * An error status from the Copilot service is reported as an I/O error when streaming.
+   */
+  @Test
+  public void testSendForStreamFailsOnErrorStatus() {
+    long failedBefore = CopilotHttpClient.getStats().getFailedRequests();
+    HttpRequest request = CopilotHttpClient.newRequest("fail").GET().build();
+    assertThrows(IOException.class, () -> CopilotHttpClient.sendForStream(request));
+    assertEquals(failedBefore + 1, CopilotHttpClient.getStats().getFailedRequests());
+    assertEquals(0, CopilotHttpClient.getStats().getActiveConnections());
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.data.CopilotModel;
+
+/**
+ * Unit tests for {@link CopilotModelRegistry}.
+ */
+public class CopilotModelRegistryTest {
+
+  private static final String MODEL_ID = "MODEL-1";
+
+  private MockedStatic<OBDal> mockedOBDal;
+  private CopilotModel model;
+  private final AtomicInteger loads = new AtomicInteger();
+  private final AtomicReference<String> stamp = new AtomicReference<>("1/t1/0/null");
+  private final AtomicLong now = new AtomicLong();
+  private CopilotModelRegistry registry;
+
+  /**
+   * Mocks the DAL that returns the cached model and creates a registry with a check interval of 10
+   * seconds and a fake clock.
+   */
+  @Before
+  public void setUp() {
+    mockedOBDal = mockStatic(OBDal.class);
+    OBDal obDal = mock(OBDal.class);
+    mockedOBDal.when(OBDal::getInstance).thenReturn(obDal);
+    model = mock(CopilotModel.class);
+    when(model.getId()).thenReturn(MODEL_ID);
+    when(obDal.get(CopilotModel.class, MODEL_ID)).thenReturn(model);
+    registry = new CopilotModelRegistry(10, stamp::get, now::get);
+  }
+
+  /**
+   * Closes the static mocks and the shared registry.
+   */
+  @After
+  public void tearDown() {
+    CopilotModelRegistry.setInstance(null);
+    mockedOBDal.close();
+  }
+
+  private CopilotModel load() {
+    loads.incrementAndGet();
+    return model;
+  }
+
+  /**
+   * The model is loaded once and then read by id from the DAL session.
+   */
+  @Test
+  public void testCachesResolvedModel() {
+    assertSame(model, registry.getModel("default:openai", this::load));
+    assertSame(model, registry.getModel("default:openai", this::load));
+    assertNull(registry.getModel("default:none", () -> {
+      loads.incrementAndGet();
+      return null;
+    }));
+    assertNull(registry.getModel("default:none", this::load));
+
+    assertEquals(2, loads.get());
+    assertEquals(2, registry.size());
+  }
+
+  /**
+   * A change of the version stamp made by another node discards the models once the check interval
+   * has passed.
+   */
+  @Test
+  public void testDiscardsWhenStampChanges() {
+    registry.getModel("default:openai", this::load);
+    stamp.set("2/t2/0/null");
+    now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+    registry.getModel("default:openai", this::load);
+    assertEquals(1, loads.get());
+
+    now.addAndGet(TimeUnit.SECONDS.toNanos(6));
+    registry.getModel("default:openai", this::load);
+    assertEquals(2, loads.get());
+  }
+
+  /**
+   * A local change discards the models of the shared registry.
+   */
+  @Test
+  public void testInvalidateAll() {
+    CopilotModelRegistry.setInstance(registry);
+    registry.getModel("default:openai", this::load);
+    registry.getModelsConfig(() -> "{}");
+
+    CopilotModelRegistry.invalidateAll();
+
+    assertEquals(0, registry.size());
+    registry.getModel("default:openai", this::load);
+    assertEquals(2, loads.get());
+  }
+
+  /**
+   * The configuration of the models is built once.
+   */
+  @Test
+  public void testCachesModelsConfig() {
+    AtomicInteger builds = new AtomicInteger();
+    registry.getModelsConfig(() -> "{\"n\":" + builds.incrementAndGet() + "}");
+
+    assertEquals("{\"n\":1}", registry.getModelsConfig(() -> "{\"n\":" + builds.incrementAndGet() + "}"));
+    assertEquals(1, builds.get());
+  }
+
+  /**
+   * A disabled registry, or one that cannot read the version stamp, loads the models every time.
+   */
+  @Test
+  public void testLoadsEveryTimeWhenDisabledOrStampFails() {
+    CopilotModelRegistry disabled = new CopilotModelRegistry(-1, stamp::get, now::get);
+    disabled.getModel("default:openai", this::load);
+    disabled.getModel("default:openai", this::load);
+    assertEquals(2, loads.get());
+    assertEquals(0, disabled.size());
+
+    CopilotModelRegistry failing = new CopilotModelRegistry(10, () -> {
+      throw new SQLException("no connection");
+    }, now::get);
+    failing.getModel("default:openai", this::load);
+    failing.getModel("default:openai", this::load);
+    assertEquals(4, loads.get());
+  }
+}
@@ -82,6 +82,7 @@ public class CopilotModelUtilsTest {
    */
   @Before
   public void setUp() {
+    CopilotModelRegistry.setInstance(new CopilotModelRegistry(-1, () -> null, System::nanoTime));
     mocks = MockitoAnnotations.openMocks(this);
     mockedOBDal = mockStatic(OBDal.class);
     mockedOBContext = mockStatic(OBContext.class);
@@ -107,6 +108,7 @@ public class CopilotModelUtilsTest {
    */
   @After
   public void tearDown() throws Exception {
+    CopilotModelRegistry.setInstance(null);
     if (mockedOBDal != null) mockedOBDal.close();
     if (mockedOBContext != null) mockedOBContext.close();
     if (mockedPreferences != null) mockedPreferences.close();
@@ -319,6 +321,33 @@ public class CopilotModelUtilsTest {
     assertEquals(dbDefault, result);
   }
 
+  /**
+   * Tests {@link CopilotModelUtils#getDefaultModel(String)} keeps the default model per client, so
+   * a client does not get the default model read for another one.
+   */
+  @Test
+  public void testGetDefaultModelIsKeptPerClient() {
+    CopilotModelRegistry.setInstance(new CopilotModelRegistry(10, () -> "stamp", System::nanoTime));
+    mockedPreferences.when(() -> Preferences.getPreferenceValue(anyString(), anyBoolean(), any(Client.class), any(), any(), any(), any()))
+        .thenReturn(null);
+    CopilotModel firstDefault = mock(CopilotModel.class);
+    when(firstDefault.isDefault()).thenReturn(true);
+    when(firstDefault.getId()).thenReturn("M1");
+    CopilotModel secondDefault = mock(CopilotModel.class);
+    when(secondDefault.isDefault()).thenReturn(true);
+    when(secondDefault.getId()).thenReturn("M2");
+    when(obDal.get(CopilotModel.class, "M1")).thenReturn(firstDefault);
+    when(modelCriteria.add(any())).thenReturn(modelCriteria);
+    when(modelCriteria.list()).thenReturn(List.of(firstDefault), List.of(secondDefault));
+    when(client.getId()).thenReturn("C1");
+
+    assertEquals(firstDefault, CopilotModelUtils.getDefaultModel("openai"));
+    assertEquals(firstDefault, CopilotModelUtils.getDefaultModel("openai"));
+
+    when(client.getId()).thenReturn("C2");
+    assertEquals(secondDefault, CopilotModelUtils.getDefaultModel("openai"));
+  }
+
   // --- Tests for getModelProviderResult(CopilotApp) ---
 
   /**
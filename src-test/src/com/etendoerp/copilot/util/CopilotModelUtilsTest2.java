@@ -120,6 +120,7 @@ public class CopilotModelUtilsTest2 extends WeldBaseTest {
 
     @Before
     public void setUp() throws Exception {
+        CopilotModelRegistry.setInstance(new CopilotModelRegistry(-1, () -> null, System::nanoTime));
         mocks = MockitoAnnotations.openMocks(this);
 
         // Setup static mocks
@@ -184,6 +185,7 @@ public class CopilotModelUtilsTest2 extends WeldBaseTest {
      */
     @After
     public void tearDown() throws Exception {
+        CopilotModelRegistry.setInstance(null);
         if (mockedOBDal != null) {
             mockedOBDal.close();
         }
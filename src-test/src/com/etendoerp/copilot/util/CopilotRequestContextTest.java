@@ -0,0 +1,141 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CopilotRequestContext}.
+ */
+public class CopilotRequestContextTest {
+
+  private final AtomicInteger computed = new AtomicInteger();
+
+  /**
+   * Leaves the test thread without request.
+   */
+  @After
+  public void tearDown() {
+    CopilotRequestContext.detach(null);
+  }
+
+  private String lookup() {
+    return "value-" + computed.incrementAndGet();
+  }
+
+  /**
+   * Inside a request each key is computed once and counted by kind.
+   */
+  @Test
+  public void testComputesEachKeyOncePerRequest() {
+    try (CopilotRequestContext context = CopilotRequestContext.open()) {
+      assertEquals("value-1", CopilotRequestContext.memoize("tools:A", this::lookup));
+      assertEquals("value-1", CopilotRequestContext.memoize("tools:A", this::lookup));
+      assertEquals("value-2", CopilotRequestContext.memoize("tools:B", this::lookup));
+      assertNull(CopilotRequestContext.memoize("auth:R", () -> {
+        computed.incrementAndGet();
+        return null;
+      }));
+      assertNull(CopilotRequestContext.memoize("auth:R", this::lookup));
+
+      assertEquals(3, computed.get());
+      assertEquals(3, context.getComputedCount());
+      assertEquals(Map.of("auth", 1, "tools", 2), context.getComputedCounts());
+      assertEquals(2, context.getReusedCount());
+    }
+    assertNull(CopilotRequestContext.current());
+  }
+
+  /**
+   * Outside of a request the lookups are computed every time.
+   */
+  @Test
+  public void testComputesEveryTimeWithoutRequest() {
+    CopilotRequestContext.memoize("tools:A", this::lookup);
+    CopilotRequestContext.memoize("tools:A", this::lookup);
+
+    assertEquals(2, computed.get());
+  }
+
+  /**
+   * A request opened inside another one shares its values and does not finish it.
+   */
+  @Test
+  public void testNestedRequestSharesValues() {
+    try (CopilotRequestContext context = CopilotRequestContext.open()) {
+      CopilotRequestContext.memoize("models_config", this::lookup);
+      try (CopilotRequestContext nested = CopilotRequestContext.open()) {
+        CopilotRequestContext.memoize("models_config", this::lookup);
+        assertEquals(1, nested.getComputedCount());
+      }
+      assertSame(context, CopilotRequestContext.current());
+      assertEquals(1, computed.get());
+    }
+  }
+
+  /**
+   * A worker thread attached to the request shares its values and is left without request when it
+   * detaches.
+   *
+   * @throws Exception
+   *     if the worker fails
+   */
+  @Test
+  public void testWorkersShareValues() throws Exception {
+    try (CopilotRequestContext context = CopilotRequestContext.open()) {
+      CopilotRequestContext.memoize("api_tokens", this::lookup);
+      String fromWorker = CompletableFuture.supplyAsync(() -> {
+        CopilotRequestContext previous = CopilotRequestContext.attach(context);
+        try {
+          return CopilotRequestContext.memoize("api_tokens", this::lookup);
+        } finally {
+          CopilotRequestContext.detach(previous);
+          assertNull(CopilotRequestContext.current());
+        }
+      }).get();
+
+      assertEquals("value-1", fromWorker);
+      assertEquals(1, context.getReusedCount());
+    }
+  }
+
+  /**
+   * The JSON values are shared by the callers of the request, not copied on every lookup.
+   *
+   * @throws Exception
+   *     if the JSON values cannot be built
+   */
+  @Test
+  public void testJsonValuesAreShared() throws Exception {
+    try (CopilotRequestContext context = CopilotRequestContext.open()) {
+      JSONArray tools = CopilotRequestContext.memoize("tools:A", () -> new JSONArray().put("tool"));
+
+      assertSame(tools, CopilotRequestContext.memoize("tools:A", JSONArray::new));
+      assertEquals(1, context.getReusedCount());
+    }
+  }
+}
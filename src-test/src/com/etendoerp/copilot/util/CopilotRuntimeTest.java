@@ -0,0 +1,207 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.model.ad.access.User;
+
+/**
+ * Unit tests for {@link CopilotRuntime}.
+ */
+public class CopilotRuntimeTest {
+
+  private static final String PROPERTY = "copilot.test.size";
+
+  /**
+   * The value of the property is used, also with its legacy name.
+   */
+  @Test
+  public void testReadLongReadsPropertyAndLegacyName() {
+    Properties properties = new Properties();
+    properties.setProperty(PROPERTY, " 12 ");
+    assertEquals(12L, CopilotRuntime.readLong(properties, PROPERTY, 5L));
+
+    Properties legacy = new Properties();
+    legacy.setProperty("COPILOT_TEST_SIZE", "7");
+    assertEquals(7L, CopilotRuntime.readLong(legacy, PROPERTY, 5L));
+  }
+
+  /**
+   * Missing, blank and invalid values fall back to the default.
+   */
+  @Test
+  public void testReadLongUsesDefault() {
+    Properties properties = new Properties();
+    assertEquals(5L, CopilotRuntime.readLong(properties, PROPERTY, 5L));
+    assertEquals(5L, CopilotRuntime.readLong(null, PROPERTY, 5L));
+    properties.setProperty(PROPERTY, " ");
+    assertEquals(5L, CopilotRuntime.readLong(properties, PROPERTY, 5L));
+    properties.setProperty(PROPERTY, "many");
+    assertEquals(5L, CopilotRuntime.readLong(properties, PROPERTY, 5L));
+  }
+
+  /**
+   * The threads are daemon and named after the pool.
+   */
+  @Test
+  public void testDaemonThreads() {
+    ThreadFactory factory = CopilotRuntime.daemonThreads("copilot-test");
+    Thread first = factory.newThread(() -> {
+    });
+    Thread second = factory.newThread(() -> {
+    });
+    assertTrue(first.isDaemon());
+    assertEquals("copilot-test-1", first.getName());
+    assertEquals("copilot-test-2", second.getName());
+  }
+
+  /**
+   * The default sizes of the pools stay within their bounds.
+   */
+  @Test
+  public void testDefaultSizesAreBounded() {
+    assertTrue(CopilotRuntime.REQUEST_PARALLELISM >= 2 && CopilotRuntime.REQUEST_PARALLELISM <= 4);
+    assertTrue(CopilotRuntime.BACKGROUND_PARALLELISM >= 1 && CopilotRuntime.BACKGROUND_PARALLELISM <= 4);
+    assertTrue(CopilotRuntime.IO_THREADS >= 4 && CopilotRuntime.IO_THREADS <= 16);
+  }
+
+  /**
+   * The shared instance is created once, can be replaced and is created again once cleared.
+   */
+  @Test
+  public void testSharedCreatesOnceAndCanBeReplaced() {
+    AtomicInteger created = new AtomicInteger();
+    CopilotRuntime.Shared<Object> shared = new CopilotRuntime.Shared<>(() -> {
+      created.incrementAndGet();
+      return new Object();
+    });
+    assertNull(shared.peek());
+    Object first = shared.get();
+    assertSame(first, shared.get());
+    assertEquals(1, created.get());
+
+    Object replacement = new Object();
+    shared.set(replacement);
+    assertSame(replacement, shared.get());
+
+    assertSame(replacement, shared.clear());
+    assertNull(shared.peek());
+    shared.get();
+    assertEquals(2, created.get());
+  }
+
+  /**
+   * The entries are kept until their time to live expires, and the values that are not valid or
+   * have no time to live are loaded every time.
+   */
+  @Test
+  public void testTtlCacheExpiresEntries() {
+    AtomicLong clock = new AtomicLong();
+    AtomicInteger loads = new AtomicInteger();
+    CopilotRuntime.TtlCache<String> cache = new CopilotRuntime.TtlCache<>("Test", 10, clock::get);
+
+    assertEquals("v1", cache.get("K", () -> "v" + loads.incrementAndGet(), 100L));
+    clock.addAndGet(99L);
+    assertEquals("v1", cache.get("K", () -> "v" + loads.incrementAndGet(), 100L));
+    clock.addAndGet(1L);
+    assertEquals("v2", cache.get("K", () -> "v" + loads.incrementAndGet(), 100L));
+    assertEquals("v3", cache.get("K", value -> false, () -> "v" + loads.incrementAndGet(), value -> 100L));
+    cache.get("L", value -> true, () -> "v" + loads.incrementAndGet(), value -> 0L);
+
+    assertEquals(1, cache.getHits());
+    assertEquals(4, cache.getMisses());
+    assertEquals(1, cache.size());
+  }
+
+  /**
+   * A value loaded while an invalidation happened is returned but not kept, and the invalidation
+   * only discards the matching entries.
+   */
+  @Test
+  public void testTtlCacheInvalidation() {
+    CopilotRuntime.TtlCache<String> cache = new CopilotRuntime.TtlCache<>("Test", 10, () -> 0L);
+    cache.get("A1", () -> "a", 100L);
+    cache.get("B1", () -> "b", 100L);
+
+    assertEquals("stale", cache.get("C1", () -> {
+      cache.invalidate((key, value) -> key.startsWith("A"));
+      return "stale";
+    }, 100L));
+
+    assertEquals(1, cache.size());
+    assertEquals("b", cache.get("B1", () -> "other", 100L));
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * A full cache discards the expired entries, and does not keep new values while it is still full.
+   */
+  @Test
+  public void testTtlCacheIsBounded() {
+    AtomicLong clock = new AtomicLong();
+    CopilotRuntime.TtlCache<String> cache = new CopilotRuntime.TtlCache<>("Test", 2, clock::get);
+    cache.get("A", () -> "a", 10L);
+    cache.get("B", () -> "b", 100L);
+
+    cache.get("C", () -> "c", 100L);
+    assertEquals(2, cache.size());
+    assertEquals("b", cache.get("B", () -> "other", 100L));
+
+    clock.addAndGet(10L);
+    cache.get("C", () -> "c", 100L);
+    assertEquals("c", cache.get("C", () -> "other", 100L));
+  }
+
+  /**
+   * The identifiers captured from equal contexts are equal, so they can group the work by context.
+   */
+  @Test
+  public void testContextIdsEquality() {
+    OBContext context = mock(OBContext.class);
+    User user = mock(User.class);
+    when(user.getId()).thenReturn("U1");
+    when(context.getUser()).thenReturn(user);
+
+    try (MockedStatic<OBContext> mockedOBContext = mockStatic(OBContext.class)) {
+      mockedOBContext.when(OBContext::getOBContext).thenReturn(context);
+      CopilotRuntime.ContextIds first = CopilotRuntime.ContextIds.capture();
+      CopilotRuntime.ContextIds second = CopilotRuntime.ContextIds.capture();
+      assertEquals(first, second);
+      assertEquals(first.hashCode(), second.hashCode());
+
+      when(user.getId()).thenReturn("U2");
+      assertNotEquals(first, CopilotRuntime.ContextIds.capture());
+    }
+  }
+}
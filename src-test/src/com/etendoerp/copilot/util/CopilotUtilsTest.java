@@ -100,12 +100,12 @@ public class CopilotUtilsTest extends WeldBaseTest {
   @Test
   public void testCreateMultipartBody() throws Exception {
     JSONObject jsonBody = new JSONObject().put(KB_VECTORDB_ID_KEY, TEST_DB).put(EXTENSION_KEY, "txt");
-    File file = mock(File.class);
-    when(file.getName()).thenReturn(TEST_TXT_FILE);
-    try (MockedStatic<Files> files = mockStatic(Files.class)) {
-      files.when(() -> Files.copy(any(), any())).thenAnswer(inv -> null);
+    File file = File.createTempFile("test", ".txt");
+    try {
       HttpRequest.BodyPublisher publisher = CopilotUtils.createMultipartBody(jsonBody, file);
       assertNotNull(publisher);
+    } finally {
+      Files.delete(file.toPath());
     }
   }
 
@@ -587,12 +587,12 @@ public class CopilotUtilsTest extends WeldBaseTest {
     JSONObject jsonBody = new JSONObject().put(KB_VECTORDB_ID_KEY, TEST_DB).put(EXTENSION_KEY, "txt").put("text",
         "test text").put("overwrite", true).put("skip_splitting", true).put("max_chunk_size", 1000L).put(
         "chunk_overlap", 100L);
-    File file = mock(File.class);
-    when(file.getName()).thenReturn(TEST_TXT_FILE);
-    try (MockedStatic<Files> files = mockStatic(Files.class)) {
-      files.when(() -> Files.copy(any(), any())).thenAnswer(inv -> null);
+    File file = File.createTempFile("test", ".txt");
+    try {
       HttpRequest.BodyPublisher publisher = CopilotUtils.createMultipartBody(jsonBody, file);
       assertNotNull(publisher);
+    } finally {
+      Files.delete(file.toPath());
     }
   }
 
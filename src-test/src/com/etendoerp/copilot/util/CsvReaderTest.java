@@ -0,0 +1,101 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+import org.openbravo.base.exception.OBException;
+
+/**
+ * Unit tests for {@link CsvReader}.
+ */
+public class CsvReaderTest {
+
+  private static CsvReader reader(String content, char separator) {
+    return new CsvReader(new StringReader(content), separator);
+  }
+
+  /**
+   * Unquoted fields are split by the separator, with both kinds of line breaks.
+   */
+  @Test
+  public void testUnquotedRecords() throws IOException {
+    CsvReader csv = reader("a,b,c\r\n1,2,3\n4,,6", ',');
+
+    assertEquals(List.of("a", "b", "c"), csv.readRecord());
+    assertEquals(List.of("1", "2", "3"), csv.readRecord());
+    assertEquals(List.of("4", "", "6"), csv.readRecord());
+    assertNull(csv.readRecord());
+  }
+
+  /**
+   * Quoted fields can contain separators, escaped quotes and line breaks.
+   */
+  @Test
+  public void testQuotedFields() throws IOException {
+    CsvReader csv = reader("\"x;y\";\"say \"\"hi\"\"\";\"line1\nline2\"\nlast;\"\";end", ';');
+
+    assertEquals(List.of("x;y", "say \"hi\"", "line1\nline2"), csv.readRecord());
+    assertEquals(3, csv.getLineNumber());
+    assertEquals(List.of("last", "", "end"), csv.readRecord());
+    assertNull(csv.readRecord());
+  }
+
+  /**
+   * A leading byte order mark and empty lines are skipped, a trailing separator is an empty field.
+   */
+  @Test
+  public void testBomEmptyLinesAndTrailingSeparator() throws IOException {
+    CsvReader csv = reader("\uFEFFname,\n\n\r\nAlice,\n", ',');
+
+    assertEquals(List.of("name", ""), csv.readRecord());
+    assertEquals(List.of("Alice", ""), csv.readRecord());
+    assertNull(csv.readRecord());
+  }
+
+  /**
+   * An unclosed quoted field is reported with the line where it starts.
+   */
+  @Test(expected = IOException.class)
+  public void testUnclosedQuote() throws IOException {
+    CsvReader csv = reader("a\n\"open,b\n", ',');
+
+    csv.readRecord();
+    csv.readRecord();
+  }
+
+  /**
+   * The separator parameter is converted to a character, defaulting to a comma.
+   */
+  @Test
+  public void testToSeparator() {
+    assertEquals(',', CsvReader.toSeparator(null));
+    assertEquals(',', CsvReader.toSeparator("null"));
+    assertEquals(';', CsvReader.toSeparator(";"));
+    assertEquals('\t', CsvReader.toSeparator("\\t"));
+    assertEquals('\t', CsvReader.toSeparator("\t"));
+    assertThrows(OBException.class, () -> CsvReader.toSeparator(";;"));
+    assertThrows(OBException.class, () -> CsvReader.toSeparator("\\n"));
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link FileBlobStore}, on a mocked JDBC connection.
+ */
+public class FileBlobStoreTest {
+
+  private static final String ABC_HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Connection connection;
+  private PreparedStatement existsPs;
+  private PreparedStatement insertPs;
+  private PreparedStatement currentPs;
+  private PreparedStatement linkPs;
+  private PreparedStatement releasePs;
+  private PreparedStatement readPs;
+
+  /**
+   * Mocks one statement for each query of the store.
+   *
+   * @throws Exception
+   *     if the mocks cannot be created
+   */
+  @Before
+  public void setUp() throws Exception {
+    connection = mock(Connection.class);
+    existsPs = mockStatement("SELECT 1 FROM etcop_file_blob");
+    insertPs = mockStatement("INSERT INTO etcop_file_blob");
+    currentPs = mockStatement("SELECT etcop_file_blob_id FROM etcop_file_variant");
+    linkPs = mockStatement("UPDATE etcop_file_variant");
+    releasePs = mockStatement("DELETE FROM etcop_file_blob");
+    readPs = mockStatement("SELECT b.filedata");
+  }
+
+  private PreparedStatement mockStatement(String prefix) throws Exception {
+    PreparedStatement ps = mock(PreparedStatement.class);
+    when(connection.prepareStatement(startsWith(prefix))).thenReturn(ps);
+    return ps;
+  }
+
+  private static ResultSet mockResult(PreparedStatement ps, boolean hasRow) throws Exception {
+    ResultSet rs = mock(ResultSet.class);
+    when(rs.next()).thenReturn(hasRow);
+    when(ps.executeQuery()).thenReturn(rs);
+    return rs;
+  }
+
+  private Path newFile(String content) throws Exception {
+    Path path = folder.newFile().toPath();
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  /**
+   * The hash is the SHA-256 of the content in hexadecimal.
+   *
+   * @throws Exception
+   *     if the file cannot be read
+   */
+  @Test
+  public void testHashIsSha256() throws Exception {
+    assertEquals(ABC_HASH, FileBlobStore.hash(newFile("abc")));
+  }
+
+  /**
+   * New content is streamed to a new blob identified by its hash, skipping it when another
+   * transaction inserted the same content meanwhile.
+   *
+   * @throws Exception
+   *     if the content cannot be stored
+   */
+  @Test
+  public void testStoreInsertsNewContent() throws Exception {
+    mockResult(existsPs, false);
+
+    assertEquals(ABC_HASH, FileBlobStore.store(connection, newFile("abc")));
+
+    verify(insertPs).setString(1, ABC_HASH);
+    verify(insertPs).setBinaryStream(eq(2), any(InputStream.class), eq(3L));
+    verify(insertPs).setLong(3, 3L);
+    verify(insertPs).executeUpdate();
+    verify(connection).prepareStatement(contains("ON CONFLICT (etcop_file_blob_id) DO NOTHING"));
+  }
+
+  /**
+   * Content that is already stored is not inserted again.
+   *
+   * @throws Exception
+   *     if the content cannot be stored
+   */
+  @Test
+  public void testStoreSkipsExistingContent() throws Exception {
+    mockResult(existsPs, true);
+
+    assertEquals(ABC_HASH, FileBlobStore.store(connection, newFile("abc")));
+
+    verify(insertPs, never()).setBinaryStream(eq(2), any(InputStream.class), anyLong());
+    verify(insertPs, never()).executeUpdate();
+  }
+
+  /**
+   * Pointing a variant to another blob releases the previous one.
+   *
+   * @throws Exception
+   *     if the variant cannot be updated
+   */
+  @Test
+  public void testLinkReleasesPreviousBlob() throws Exception {
+    ResultSet rs = mockResult(currentPs, true);
+    when(rs.getString(1)).thenReturn("OLD");
+
+    FileBlobStore.link(connection, "V1", ABC_HASH);
+
+    verify(linkPs).setString(1, ABC_HASH);
+    verify(linkPs).setString(2, "V1");
+    verify(linkPs).executeUpdate();
+    verify(releasePs).setString(1, "OLD");
+    verify(releasePs).executeUpdate();
+  }
+
+  /**
+   * A variant already pointing to the blob is not updated.
+   *
+   * @throws Exception
+   *     if the variant cannot be read
+   */
+  @Test
+  public void testLinkToSameBlobDoesNothing() throws Exception {
+    ResultSet rs = mockResult(currentPs, true);
+    when(rs.getString(1)).thenReturn(ABC_HASH);
+
+    FileBlobStore.link(connection, "V1", ABC_HASH);
+
+    verify(linkPs, never()).executeUpdate();
+    verify(releasePs, never()).executeUpdate();
+  }
+
+  /**
+   * Deleting a file unlinks its variants and releases each of their blobs.
+   *
+   * @throws Exception
+   *     if the variants cannot be updated
+   */
+  @Test
+  public void testReleaseFileReleasesBlobsOfVariants() throws Exception {
+    PreparedStatement fileBlobsPs = mockStatement("SELECT DISTINCT etcop_file_blob_id");
+    ResultSet rs = mockResult(fileBlobsPs, true);
+    when(rs.next()).thenReturn(true, true, false);
+    when(rs.getString(1)).thenReturn("B1", "B2");
+
+    FileBlobStore.releaseFile(connection, "F1");
+
+    verify(linkPs).setString(1, "F1");
+    verify(linkPs).executeUpdate();
+    verify(releasePs).setString(1, "B1");
+    verify(releasePs).setString(1, "B2");
+    verify(releasePs, times(2)).executeUpdate();
+  }
+
+  /**
+   * Deleting a file whose variants have no blob does not update anything.
+   *
+   * @throws Exception
+   *     if the variants cannot be read
+   */
+  @Test
+  public void testReleaseFileWithoutBlobsDoesNothing() throws Exception {
+    mockResult(mockStatement("SELECT DISTINCT etcop_file_blob_id"), false);
+
+    FileBlobStore.releaseFile(connection, "F1");
+
+    verify(linkPs, never()).executeUpdate();
+    verify(releasePs, never()).executeUpdate();
+  }
+
+  /**
+   * The content of the blob is written to the file, and a variant without blob is reported.
+   *
+   * @throws Exception
+   *     if the file cannot be written
+   */
+  @Test
+  public void testCopyToWritesContent() throws Exception {
+    ResultSet rs = mockResult(readPs, true);
+    when(rs.getBinaryStream(1)).thenReturn(new ByteArrayInputStream("stored".getBytes(StandardCharsets.UTF_8)));
+    Path target = folder.getRoot().toPath().resolve("out.txt");
+
+    assertTrue(FileBlobStore.copyTo(connection, "V1", target));
+    assertEquals("stored", Files.readString(target));
+
+    mockResult(readPs, false);
+    assertFalse(FileBlobStore.copyTo(connection, "V2", target));
+  }
+}
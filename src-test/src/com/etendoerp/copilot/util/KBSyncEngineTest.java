@@ -0,0 +1,266 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.MockedStatic;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+import org.openbravo.model.ad.system.Client;
+
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.CopilotAppSource;
+import com.etendoerp.copilot.data.CopilotFile;
+
+/**
+ * Unit tests for {@link KBSyncEngine}. The uploads run in the test thread, where the static mocks
+ * are active.
+ */
+public class KBSyncEngineTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private MockedStatic<CopilotUtils> mockedCopilotUtils;
+  private MockedStatic<OBMessageUtils> mockedOBMessageUtils;
+  private MockedStatic<OBPropertiesProvider> mockedPropertiesProvider;
+  private CopilotApp app;
+  private Client client;
+  private List<JSONObject> uploadedRequests;
+
+  /**
+   * Mocks the calls to the Copilot service.
+   */
+  @Before
+  public void setUp() {
+    mockedCopilotUtils = mockStatic(CopilotUtils.class, CALLS_REAL_METHODS);
+    mockedOBMessageUtils = mockStatic(OBMessageUtils.class);
+    mockedPropertiesProvider = mockStatic(OBPropertiesProvider.class);
+    OBPropertiesProvider propertiesProvider = mock(OBPropertiesProvider.class);
+    when(propertiesProvider.getOpenbravoProperties()).thenReturn(new Properties());
+    mockedPropertiesProvider.when(OBPropertiesProvider::getInstance).thenReturn(propertiesProvider);
+    mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD("ETCOP_ErrorKBSync")).thenReturn("Error in %s: %s");
+    mockedCopilotUtils.when(() -> CopilotUtils.resetVectorDB(any())).thenAnswer(invocation -> null);
+    mockedCopilotUtils.when(() -> CopilotUtils.purgeVectorDB(any())).thenAnswer(invocation -> null);
+    mockedCopilotUtils.when(() -> CopilotUtils.removeFromVectorDB(any(), anyCollection())).thenAnswer(
+        invocation -> null);
+
+    app = mock(CopilotApp.class);
+    when(app.getId()).thenReturn("APP1");
+    when(app.getName()).thenReturn("Agent");
+    client = mock(Client.class);
+    when(client.getId()).thenReturn("0");
+    uploadedRequests = new ArrayList<>();
+    mockUploadResponse(200);
+  }
+
+  /**
+   * Closes the static mocks.
+   */
+  @After
+  public void tearDown() {
+    mockedPropertiesProvider.close();
+    mockedOBMessageUtils.close();
+    mockedCopilotUtils.close();
+  }
+
+  private void mockUploadResponse(int statusCode) {
+    HttpResponse<String> response = mock(HttpResponse.class);
+    when(response.statusCode()).thenReturn(statusCode);
+    when(response.body()).thenReturn("body");
+    mockedCopilotUtils.when(
+        () -> CopilotUtils.getResponseFromCopilot(any(Properties.class), eq("addToVectorDB"), any(), any()))
+        .thenAnswer(invocation -> {
+          uploadedRequests.add(invocation.getArgument(2));
+          return response;
+        });
+  }
+
+  private CopilotAppSource mockSource(String fileId, String content) throws IOException {
+    File file = folder.newFile(fileId + ".txt");
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    CopilotFile copilotFile = mock(CopilotFile.class);
+    when(copilotFile.getId()).thenReturn(fileId);
+    when(copilotFile.getName()).thenReturn(fileId);
+    when(copilotFile.getFilename()).thenReturn(fileId + ".txt");
+    when(copilotFile.isSkipSplitting()).thenReturn(false);
+    when(copilotFile.getClient()).thenReturn(client);
+    CopilotAppSource source = mock(CopilotAppSource.class);
+    when(source.getFile()).thenReturn(copilotFile);
+    mockedCopilotUtils.when(() -> CopilotUtils.getLangchainSourceFile(source)).thenReturn(file);
+    return source;
+  }
+
+  private static String hashOf(String content) throws IOException {
+    File file = File.createTempFile("kb", ".txt");
+    try {
+      Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+      return KBSyncEngine.hash(file, "txt", false, null, null, "0");
+    } finally {
+      Files.delete(file.toPath());
+    }
+  }
+
+  private void mockManifest(String files, int untracked) throws Exception {
+    JSONObject manifest = new JSONObject();
+    manifest.put("files", new JSONObject(files));
+    manifest.put("untracked", untracked);
+    mockedCopilotUtils.when(() -> CopilotUtils.getVectorDBManifest(app)).thenReturn(manifest);
+  }
+
+  /**
+   * Unchanged files are skipped, changed and new files are uploaded with their identifier and hash,
+   * and only the files that are no longer sources are removed.
+   *
+   * @throws Exception
+   *     if the synchronization fails
+   */
+  @Test
+  public void testSyncsOnlyChangedFiles() throws Exception {
+    mockManifest("{\"F1\": \"" + hashOf("same") + "\", \"F2\": \"old\", \"F3\": \"gone\"}", 0);
+    List<CopilotAppSource> sources = List.of(mockSource("F1", "same"), mockSource("F2", "changed"),
+        mockSource("F4", "new"));
+
+    KBSyncEngine.AppSync sync;
+    try (KBSyncEngine engine = new KBSyncEngine(new DirectExecutorService())) {
+      sync = engine.submit(app, sources);
+      sync.await();
+    }
+
+    assertEquals(2, sync.getUploaded());
+    assertEquals(1, sync.getUnchanged());
+    assertEquals(1, sync.getRemoved());
+    assertEquals("F2", uploadedRequests.get(0).getString(CopilotUtils.KB_FILE_ID));
+    assertEquals(hashOf("changed"), uploadedRequests.get(0).getString(CopilotUtils.KB_HASH));
+    assertEquals("F4", uploadedRequests.get(1).getString(CopilotUtils.KB_FILE_ID));
+    mockedCopilotUtils.verify(() -> CopilotUtils.removeFromVectorDB(app, Set.of("F3")));
+    mockedCopilotUtils.verify(() -> CopilotUtils.resetVectorDB(app), never());
+    assertFalse(new File(folder.getRoot(), "F1.txt").exists());
+    assertFalse(new File(folder.getRoot(), "F2.txt").exists());
+  }
+
+  /**
+   * A database with documents indexed without file information is reset, fully uploaded and
+   * purged.
+   *
+   * @throws Exception
+   *     if the synchronization fails
+   */
+  @Test
+  public void testUntrackedDocumentsForceFullSync() throws Exception {
+    mockManifest("{\"F1\": \"" + hashOf("same") + "\"}", 3);
+
+    KBSyncEngine.AppSync sync;
+    try (KBSyncEngine engine = new KBSyncEngine(new DirectExecutorService())) {
+      sync = engine.submit(app, List.of(mockSource("F1", "same")));
+      sync.await();
+    }
+
+    assertEquals(1, sync.getUploaded());
+    assertEquals(0, sync.getUnchanged());
+    mockedCopilotUtils.verify(() -> CopilotUtils.resetVectorDB(app));
+    mockedCopilotUtils.verify(() -> CopilotUtils.purgeVectorDB(app));
+    mockedCopilotUtils.verify(() -> CopilotUtils.removeFromVectorDB(any(), anyCollection()), never());
+  }
+
+  /**
+   * A failed upload is reported and the removed files are kept.
+   *
+   * @throws Exception
+   *     if the synchronization cannot be started
+   */
+  @Test
+  public void testFailedUploadIsReported() throws Exception {
+    mockManifest("{\"F3\": \"gone\"}", 0);
+    mockUploadResponse(500);
+
+    try (KBSyncEngine engine = new KBSyncEngine(new DirectExecutorService())) {
+      KBSyncEngine.AppSync sync = engine.submit(app, List.of(mockSource("F1", "content")));
+      OBException exception = assertThrows(OBException.class, sync::await);
+      assertEquals("Error in Agent: F1: body", exception.getMessage());
+    }
+    mockedCopilotUtils.verify(() -> CopilotUtils.removeFromVectorDB(any(), anyCollection()), never());
+  }
+
+  /**
+   * Runs the tasks in the calling thread.
+   */
+  private static class DirectExecutorService extends AbstractExecutorService {
+    private boolean shutdown;
+
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      shutdown = true;
+      return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
+}
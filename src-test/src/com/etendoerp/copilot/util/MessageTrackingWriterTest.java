@@ -0,0 +1,225 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockedStatic;
+import org.mockito.MockitoAnnotations;
+import org.openbravo.base.provider.OBProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBCriteria;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.dal.service.OBQuery;
+import org.openbravo.model.ad.access.Role;
+import org.openbravo.model.ad.access.User;
+import org.openbravo.model.ad.system.Client;
+import org.openbravo.model.common.enterprise.Organization;
+
+import com.etendoerp.copilot.data.Conversation;
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.Message;
+
+/**
+ * Unit tests for {@link MessageTrackingWriter}. The queued messages are written in the test thread,
+ * where the static mocks are active.
+ */
+public class MessageTrackingWriterTest {
+
+  private static final String CONVERSATION_ID = "conv-1";
+  private static final String CONVERSATION_DB_ID = "C1";
+
+  @Mock
+  private OBDal obDal;
+  @Mock
+  private OBProvider obProvider;
+  @Mock
+  private OBContext obContext;
+  @Mock
+  private OBQuery<Conversation> conversationQuery;
+  @Mock
+  private OBCriteria<Message> messageCriteria;
+  @Mock
+  private Conversation conversation;
+  @Mock
+  private CopilotApp app;
+
+  private MockedStatic<OBDal> mockedOBDal;
+  private MockedStatic<OBContext> mockedOBContext;
+  private MockedStatic<OBProvider> mockedOBProvider;
+  private AutoCloseable mocks;
+  private List<Message> messages;
+
+  /**
+   * Sets up the mocks of the DAL and the context.
+   */
+  @Before
+  public void setUp() {
+    mocks = MockitoAnnotations.openMocks(this);
+    mockedOBDal = mockStatic(OBDal.class);
+    mockedOBContext = mockStatic(OBContext.class);
+    mockedOBProvider = mockStatic(OBProvider.class);
+
+    mockedOBDal.when(OBDal::getInstance).thenReturn(obDal);
+    mockedOBContext.when(OBContext::getOBContext).thenReturn(obContext);
+    mockedOBProvider.when(OBProvider::getInstance).thenReturn(obProvider);
+    when(obContext.getCurrentClient()).thenReturn(mock(Client.class));
+    when(obContext.getCurrentOrganization()).thenReturn(mock(Organization.class));
+    when(obContext.getUser()).thenReturn(mock(User.class));
+
+    when(obDal.createQuery(eq(Conversation.class), anyString())).thenReturn(conversationQuery);
+    when(conversationQuery.setNamedParameter(anyString(), any())).thenReturn(conversationQuery);
+    when(conversationQuery.setMaxResult(1)).thenReturn(conversationQuery);
+    when(obDal.createCriteria(Message.class)).thenReturn(messageCriteria);
+    when(conversation.getId()).thenReturn(CONVERSATION_DB_ID);
+    when(app.getId()).thenReturn("APP1");
+
+    messages = new ArrayList<>();
+    when(obProvider.get(Conversation.class)).thenReturn(conversation);
+    when(obProvider.get(Message.class)).thenAnswer(invocation -> {
+      Message message = mock(Message.class);
+      messages.add(message);
+      return message;
+    });
+  }
+
+  /**
+   * Closes the static mocks.
+   *
+   * @throws Exception
+   *     if the mocks cannot be closed
+   */
+  @After
+  public void tearDown() throws Exception {
+    mockedOBProvider.close();
+    mockedOBContext.close();
+    mockedOBDal.close();
+    mocks.close();
+  }
+
+  /**
+   * The question and the response of a new conversation are written in one transaction with
+   * consecutive line numbers, and the conversation is no longer pending.
+   */
+  @Test
+  public void testWritesNewConversationInOneBatch() {
+    MessageTrackingWriter writer = new MessageTrackingWriter(10, 10, 1, 0, 0);
+    writer.enqueue(CONVERSATION_ID, CopilotConstants.MESSAGE_USER, "question", app, null);
+    writer.enqueue(CONVERSATION_ID, CopilotConstants.MESSAGE_ASSISTANT, "answer", app, null);
+    assertFalse(writer.await(CONVERSATION_ID, 0));
+
+    writer.flushQueued();
+
+    assertEquals(2, messages.size());
+    verify(messages.get(0)).setLineno(10L);
+    verify(messages.get(1)).setLineno(20L);
+    verify(obDal, times(1)).commitAndClose();
+    verify(conversation).setExternalID(CONVERSATION_ID);
+    assertTrue(writer.await(CONVERSATION_ID, 0));
+  }
+
+  /**
+   * The line numbers of an existing conversation continue from the stored ones. The maximum line
+   * number is queried once per batch, so the messages written meanwhile by another cluster node
+   * are taken into account.
+   */
+  @Test
+  public void testContinuesSequenceOfExistingConversation() {
+    when(conversationQuery.uniqueResult()).thenReturn(conversation);
+    when(messageCriteria.uniqueResult()).thenReturn(30L, 60L);
+    MessageTrackingWriter writer = new MessageTrackingWriter(10, 10, 1, 0, 0);
+
+    writer.enqueue(CONVERSATION_ID, CopilotConstants.MESSAGE_USER, "question", app, null);
+    writer.enqueue(CONVERSATION_ID, CopilotConstants.MESSAGE_ASSISTANT, "answer", app, null);
+    writer.flushQueued();
+    writer.enqueue(CONVERSATION_ID, CopilotConstants.MESSAGE_USER, "question 2", app, null);
+    writer.flushQueued();
+
+    verify(messages.get(0)).setLineno(40L);
+    verify(messages.get(1)).setLineno(50L);
+    verify(messages.get(2)).setLineno(70L);
+    verify(obDal, times(2)).createCriteria(Message.class);
+    verify(obDal, times(2)).commitAndClose();
+  }
+
+  /**
+   * A failed batch is rolled back and written again.
+   */
+  @Test
+  public void testRetriesFailedBatch() {
+    doThrow(new HibernateException("connection lost")).doNothing().when(obDal).commitAndClose();
+    doNothing().when(obDal).rollbackAndClose();
+    MessageTrackingWriter writer = new MessageTrackingWriter(10, 10, 2, 0, 0);
+
+    writer.enqueue(CONVERSATION_ID, CopilotConstants.MESSAGE_USER, "question", app, null);
+    writer.flushQueued();
+
+    verify(obDal).rollbackAndClose();
+    verify(obDal, times(2)).commitAndClose();
+    assertEquals(2, messages.size());
+    verify(messages.get(1)).setLineno(10L);
+    assertTrue(writer.await(CONVERSATION_ID, 0));
+  }
+
+  /**
+   * The messages are written with a context created from the identifiers captured when they were
+   * queued, once per batch for the same identifiers, instead of the context of the request.
+   */
+  @Test
+  public void testRestoresContextFromIdentifiers() {
+    User user = mock(User.class);
+    Role role = mock(Role.class);
+    Client client = mock(Client.class);
+    Organization organization = mock(Organization.class);
+    when(user.getId()).thenReturn("U1");
+    when(role.getId()).thenReturn("R1");
+    when(client.getId()).thenReturn("CL1");
+    when(organization.getId()).thenReturn("O1");
+    when(obContext.getUser()).thenReturn(user);
+    when(obContext.getRole()).thenReturn(role);
+    when(obContext.getCurrentClient()).thenReturn(client);
+    when(obContext.getCurrentOrganization()).thenReturn(organization);
+    MessageTrackingWriter writer = new MessageTrackingWriter(10, 10, 1, 0, 0);
+
+    writer.enqueue(CONVERSATION_ID, CopilotConstants.MESSAGE_USER, "question", app, null);
+    writer.enqueue(CONVERSATION_ID, CopilotConstants.MESSAGE_ASSISTANT, "answer", app, null);
+    writer.flushQueued();
+
+    mockedOBContext.verify(() -> OBContext.setOBContext("U1", "R1", "CL1", "O1"), times(1));
+    assertEquals(2, messages.size());
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the multipart body of {@link CopilotUtils#createMultipartBody(JSONObject, File)}
+ * streams the file from disk instead of loading it in memory.
+ * <p>
+ * The test with a large file creates a 300 MB file and starts a separate JVM, so it only runs when
+ * the {@code copilot.test.large.files} system property is {@code true}.
+ */
+public class MultipartBodyStreamingTest {
+
+  private static final String PROP_LARGE_FILES = "copilot.test.large.files";
+  private static final long LARGE_FILE_SIZE = 300L * 1024 * 1024;
+  private static final String SMALL_HEAP = "-Xmx48m";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * The body contains the parameters, the file content and the closing boundary, and its length is
+   * known in advance.
+   *
+   * @throws Exception
+   *     if the body cannot be built or read
+   */
+  @Test
+  public void testBodyContainsFieldsAndFile() throws Exception {
+    File file = folder.newFile("doc.txt");
+    Files.write(file.toPath(), "file content".getBytes(StandardCharsets.UTF_8));
+    JSONObject jsonBody = new JSONObject().put(CopilotUtils.KB_VECTORDB_ID, "KB_1").put("extension", "txt");
+
+    HttpRequest.BodyPublisher publisher = CopilotUtils.createMultipartBody(jsonBody, file);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long read = drain(publisher, buffer -> {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      out.write(bytes, 0, bytes.length);
+    });
+
+    String body = out.toString(StandardCharsets.UTF_8);
+    assertEquals(publisher.contentLength(), read);
+    assertTrue(body.contains("name=\"kb_vectordb_id\"\r\n\r\nKB_1\r\n"));
+    assertTrue(body.contains("filename=\"doc.txt\"\r\nContent-Type: application/octet-stream\r\n\r\nfile content\r\n"));
+    assertTrue(body.endsWith("--\r\n"));
+  }
+
+  /**
+   * A file several times larger than the maximum heap is sent without running out of memory. The
+   * body is read in a separate JVM started with a small heap.
+   *
+   * @throws Exception
+   *     if the file cannot be created or the JVM cannot be started
+   */
+  @Test
+  public void testLargeFileIsStreamedWithSmallHeap() throws Exception {
+    assumeTrue("Set " + PROP_LARGE_FILES + " to run the large file test", Boolean.getBoolean(PROP_LARGE_FILES));
+    File file = folder.newFile("large.csv");
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(LARGE_FILE_SIZE);
+    }
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    Process process = new ProcessBuilder(java, SMALL_HEAP, "-cp", System.getProperty("java.class.path"),
+        MultipartBodyStreamingTest.class.getName(), file.getAbsolutePath()).redirectErrorStream(true).start();
+    String output;
+    try {
+      assertTrue("Timed out reading the body", process.waitFor(5, TimeUnit.MINUTES));
+      output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    } finally {
+      process.destroyForcibly();
+    }
+    assertEquals(output, 0, process.exitValue());
+    assertTrue(output, output.contains("read=" + LARGE_FILE_SIZE));
+  }
+
+  /**
+   * Builds the multipart body of the given file and reads it, discarding its content. It exits with
+   * a non-zero status if the body cannot be read or its length is wrong. Only run in the separate
+   * JVM started by {@link #testLargeFileIsStreamedWithSmallHeap()}.
+   *
+   * @param args
+   *     the path of the file
+   * @throws Exception
+   *     if the body cannot be built or read
+   */
+  public static void main(String[] args) throws Exception {
+    File file = new File(args[0]);
+    HttpRequest.BodyPublisher publisher = CopilotUtils.createMultipartBody(new JSONObject(), file);
+    long read = drain(publisher, buffer -> buffer.position(buffer.limit()));
+    long overhead = publisher.contentLength() - file.length();
+    if (read != publisher.contentLength()) {
+      System.out.println("length=" + publisher.contentLength() + " read=" + read);
+      System.exit(1);
+    }
+    System.out.println("read=" + (read - overhead));
+  }
+
+  /**
+   * Subscribes to the publisher requesting one buffer at a time, as the HTTP client does.
+   *
+   * @return the number of bytes published
+   */
+  private static long drain(HttpRequest.BodyPublisher publisher, Consumer<ByteBuffer> consumer) throws Exception {
+    CompletableFuture<Long> done = new CompletableFuture<>();
+    publisher.subscribe(new Flow.Subscriber<>() {
+      private Flow.Subscription subscription;
+      private long count;
+
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+      }
+
+      @Override
+      public void onNext(ByteBuffer item) {
+        count += item.remaining();
+        consumer.accept(item);
+        subscription.request(1);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        done.completeExceptionally(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        done.complete(count);
+      }
+    });
+    return done.get(5, TimeUnit.MINUTES);
+  }
+}
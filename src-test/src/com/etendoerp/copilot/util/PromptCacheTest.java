@@ -0,0 +1,164 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.dal.core.OBContext;
+
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.CopilotAppSource;
+import com.etendoerp.copilot.data.CopilotFile;
+
+/**
+ * Unit tests for {@link PromptCache}.
+ */
+public class PromptCacheTest {
+
+  private static final String APP_ID = "APP1";
+  private static final String FILE_ID = "FILE1";
+
+  private MockedStatic<OBContext> mockedOBContext;
+  private CopilotApp app;
+  private CopilotFile file;
+  private List<CopilotAppSource> sources;
+  private AtomicInteger builds;
+
+  /**
+   * Mocks the context and an agent with a system knowledge base file.
+   */
+  @Before
+  public void setUp() {
+    mockedOBContext = mockStatic(OBContext.class);
+    mockedOBContext.when(OBContext::getOBContext).thenReturn(mock(OBContext.class));
+
+    file = mock(CopilotFile.class);
+    when(file.getId()).thenReturn(FILE_ID);
+    when(file.getUpdated()).thenReturn(new Date(1000L));
+    when(file.getType()).thenReturn("F");
+    CopilotAppSource source = mock(CopilotAppSource.class);
+    when(source.getBehaviour()).thenReturn(CopilotConstants.FILE_BEHAVIOUR_SYSTEM);
+    when(source.getUpdated()).thenReturn(new Date(1000L));
+    when(source.getFile()).thenReturn(file);
+    sources = new ArrayList<>(List.of(source));
+
+    app = mock(CopilotApp.class);
+    when(app.getId()).thenReturn(APP_ID);
+    when(app.getUpdated()).thenReturn(new Date(1000L));
+    when(app.getETCOPAppSourceList()).thenReturn(sources);
+    builds = new AtomicInteger();
+  }
+
+  /**
+   * Closes the static mocks.
+   */
+  @After
+  public void tearDown() {
+    mockedOBContext.close();
+  }
+
+  private PromptCache.Template build() {
+    return new PromptCache.Template("prompt " + builds.incrementAndGet(), "");
+  }
+
+  private String head(PromptCache cache, PromptCache.PromptBuilder builder) throws Exception {
+    return cache.getTemplate(app, builder).getHead();
+  }
+
+  /**
+   * The second request for the same agent and context is served from the cache.
+   *
+   * @throws Exception
+   *     if the prompt cannot be built
+   */
+  @Test
+  public void testSecondRequestIsAHit() throws Exception {
+    PromptCache cache = new PromptCache(300, 60, 10);
+
+    assertEquals("prompt 1", head(cache, this::build));
+    assertEquals("prompt 1", head(cache, this::build));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  /**
+   * Invalidating the agent or one of its files forces the prompt to be rebuilt.
+   *
+   * @throws Exception
+   *     if the prompt cannot be built
+   */
+  @Test
+  public void testInvalidationForcesRebuild() throws Exception {
+    PromptCache cache = new PromptCache(300, 60, 10);
+    cache.getTemplate(app, this::build);
+
+    cache.removeAgent(APP_ID);
+    assertEquals("prompt 2", head(cache, this::build));
+    cache.removeFile(FILE_ID);
+    assertEquals("prompt 3", head(cache, this::build));
+    cache.removeFile("OTHER");
+    assertEquals("prompt 3", head(cache, this::build));
+  }
+
+  /**
+   * A newer update of a source file or a new source discards the cached prompt.
+   *
+   * @throws Exception
+   *     if the prompt cannot be built
+   */
+  @Test
+  public void testChangedSourcesForceRebuild() throws Exception {
+    PromptCache cache = new PromptCache(300, 60, 10);
+    cache.getTemplate(app, this::build);
+
+    when(file.getUpdated()).thenReturn(new Date(2000L));
+    assertEquals("prompt 2", head(cache, this::build));
+
+    CopilotAppSource newSource = mock(CopilotAppSource.class);
+    when(newSource.getBehaviour()).thenReturn(CopilotConstants.FILE_BEHAVIOUR_SYSTEM);
+    sources.add(newSource);
+    assertEquals("prompt 3", head(cache, this::build));
+  }
+
+  /**
+   * A time to live of zero disables the cache.
+   *
+   * @throws Exception
+   *     if the prompt cannot be built
+   */
+  @Test
+  public void testZeroTtlDisablesCache() throws Exception {
+    PromptCache cache = new PromptCache(0, 0, 10);
+
+    assertEquals("prompt 1", head(cache, this::build));
+    assertEquals("prompt 2", head(cache, this::build));
+    assertEquals(0, cache.getHits());
+  }
+
+}
@@ -0,0 +1,129 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.text.StrSubstitutor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+/**
+ * Benchmark of the prompt variable replacement against the previous path, which replaced every
+ * system placeholder and API token with a full pass of {@link StringUtils#replace}, then ran a
+ * {@link StrSubstitutor} and doubled the brackets with two more passes and two counts.
+ * <p>
+ * Prompts of 50 KB with context placeholders, API tokens, custom variables and JSON examples are
+ * rendered by both paths, with the values already resolved, so only the text processing is
+ * compared. The measured numbers depend on the machine, so only the rendered prompts are asserted.
+ */
+public class PromptTemplateBenchmarkTest {
+  private static final Logger log = LogManager.getLogger(PromptTemplateBenchmarkTest.class);
+
+  private static final int PROMPT_SIZE = 50 * 1024;
+  private static final int TOKENS = 5;
+  private static final int WARMUP_ROUNDS = 50;
+  private static final int ROUNDS = 200;
+  private static final String[] SYSTEM_PLACEHOLDERS = { "ETENDO_HOST", "etendo.host", "ETENDO_HOST_DOCKER",
+      "etendo.host.docker", "context.url", "AD_CLIENT_ID", "CLIENT_NAME", "AD_ORG_ID", "ORG_NAME", "AD_USER_ID",
+      "USERNAME", "AD_ROLE_ID", "ROLE_NAME", "M_WAREHOUSE_ID", "WAREHOUSE_NAME", "source.path", "context.name" };
+
+  private static Map<String, String> contextValues() {
+    Map<String, String> values = new HashMap<>();
+    for (String name : SYSTEM_PLACEHOLDERS) {
+      values.put(name, "value-of-" + name);
+    }
+    for (int i = 0; i < TOKENS; i++) {
+      values.put("TOKEN_" + i, "decrypted-token-" + i);
+    }
+    return values;
+  }
+
+  private static String buildPrompt() {
+    StringBuilder sb = new StringBuilder(PROMPT_SIZE + 256);
+    int i = 0;
+    while (sb.length() < PROMPT_SIZE) {
+      sb.append("You are an assistant of @CLIENT_NAME@, answering to @USERNAME@ with role @ROLE_NAME@. ")
+          .append("Call @etendo.host@/sws/com.etendoerp.etendorx.datasource/Product with the token @TOKEN_")
+          .append(i % TOKENS).append("@ and reply with JSON like {\"product\": \"${product}\", \"qty\": 1}. ")
+          .append("Write to support@example.com when the e-mail is not valid.\n");
+      i++;
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Reproduces the previous path, with the values already resolved.
+   */
+  private static String legacyRender(String prompt, Map<String, String> context, Map<String, String> custom) {
+    String parsed = prompt;
+    for (String name : SYSTEM_PLACEHOLDERS) {
+      parsed = StringUtils.replace(parsed, "@" + name + "@", context.get(name));
+    }
+    parsed = StringUtils.replace(parsed, "@context.url@", context.get("context.url"));
+    for (int i = 0; i < TOKENS; i++) {
+      parsed = StringUtils.replace(parsed, "@TOKEN_" + i + "@", context.get("TOKEN_" + i));
+    }
+    parsed = new StrSubstitutor(custom).replace(parsed);
+    parsed = parsed.replace("{", "{{").replace("}", "}}");
+    if (StringUtils.countMatches(parsed, "{{") != StringUtils.countMatches(parsed, "}}")) {
+      throw new IllegalStateException("Unbalanced brackets");
+    }
+    return parsed;
+  }
+
+  private static String templateRender(String prompt, Map<String, String> context, Map<String, String> custom) {
+    return PromptTemplate.compile(prompt).render(context::get, custom, true);
+  }
+
+  private interface Path {
+    String run(String prompt, Map<String, String> context, Map<String, String> custom);
+  }
+
+  private static void measure(String name, Path path, String prompt, Map<String, String> context,
+      Map<String, String> custom) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      path.run(prompt, context, custom);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      path.run(prompt, context, custom);
+    }
+    long elapsed = System.nanoTime() - start;
+    log.info("{} ({} chars): {} us/prompt", name, prompt.length(),
+        String.format("%.1f", elapsed / 1000.0 / ROUNDS));
+  }
+
+  /**
+   * Both paths render the same prompt, then their time per prompt is compared.
+   */
+  @Test
+  public void benchmarkRenderingAgainstLegacyPath() {
+    String prompt = buildPrompt();
+    Map<String, String> context = contextValues();
+    Map<String, String> custom = Map.of("product", "Laptop");
+
+    assertEquals(legacyRender(prompt, context, custom), templateRender(prompt, context, custom));
+    measure("Sequential replacements", PromptTemplateBenchmarkTest::legacyRender, prompt, context, custom);
+    measure("Compiled template", PromptTemplateBenchmarkTest::templateRender, prompt, context, custom);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mockStatic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+/**
+ * Unit tests for {@link PromptTemplate}.
+ */
+public class PromptTemplateTest {
+
+  private static final Map<String, String> CONTEXT = Map.of("USERNAME", "admin", "etendo.host",
+      "http://localhost:8080/etendo", "API_KEY", "secret");
+
+  private final List<String> resolved = new ArrayList<>();
+
+  private final UnaryOperator<String> contextValues = name -> {
+    resolved.add(name);
+    return CONTEXT.get(name);
+  };
+
+  private String render(String text, Map<String, String> customValues, boolean balanceBrackets) {
+    return PromptTemplate.compile(text).render(contextValues, customValues, balanceBrackets);
+  }
+
+  /**
+   * The context placeholders are replaced and only the ones in the text are resolved; unknown
+   * placeholders and e-mail addresses are kept.
+   */
+  @Test
+  public void testReplacesContextPlaceholders() {
+    String result = render("Hi @USERNAME@, call @etendo.host@/sws with @API_KEY@. Mail me@example.com or @UNKNOWN@",
+        null, false);
+
+    assertEquals("Hi admin, call http://localhost:8080/etendo/sws with secret. Mail me@example.com or @UNKNOWN@",
+        result);
+    assertEquals(List.of("USERNAME", "etendo.host", "API_KEY", "UNKNOWN"), resolved);
+  }
+
+  /**
+   * The values are not scanned for placeholders again.
+   */
+  @Test
+  public void testDoesNotReplaceInsideValues() {
+    UnaryOperator<String> values = name -> "USERNAME".equals(name) ? "@API_KEY@ ${x}" : null;
+
+    assertEquals("@API_KEY@ ${x}", PromptTemplate.compile("@USERNAME@").render(values, Map.of("x", "1"), false));
+  }
+
+  /**
+   * The custom placeholders are replaced when there are custom values, and kept otherwise.
+   */
+  @Test
+  public void testReplacesCustomPlaceholders() {
+    String text = "Custom: ${customVar}, missing: ${other}, escaped: $${customVar}";
+
+    assertEquals("Custom: value, missing: ${other}, escaped: ${customVar}",
+        render(text, Map.of("customVar", "value"), false));
+    assertEquals(text, render(text, null, false));
+  }
+
+  /**
+   * A custom placeholder without value is replaced by its default value, which may be empty, and
+   * is kept when there are no custom values.
+   */
+  @Test
+  public void testCustomPlaceholderDefaults() {
+    String text = "Lang: ${lang:-en}, tone: ${tone:-}, name: ${name:-none}";
+
+    assertEquals("Lang: en, tone: , name: Ana", render(text, Map.of("name", "Ana"), false));
+    assertEquals(text, render(text, null, false));
+  }
+
+  /**
+   * An escaped context placeholder is kept without the backslash.
+   */
+  @Test
+  public void testEscapedContextPlaceholder() {
+    assertEquals("Use @USERNAME@ for admin", render("Use \\@USERNAME@ for @USERNAME@", null, false));
+    assertEquals(List.of("USERNAME"), resolved);
+  }
+
+  /**
+   * The brackets of the text and of the values are doubled, and they must be balanced.
+   */
+  @Test
+  public void testBalancesBrackets() {
+    assertEquals("{{\"user\": \"admin\"}} {{{{x}}}}", render("{\"user\": \"@USERNAME@\"} {{x}}", null, true));
+    UnaryOperator<String> values = name -> "{";
+
+    try (MockedStatic<OBMessageUtils> messages = mockStatic(OBMessageUtils.class)) {
+      messages.when(() -> OBMessageUtils.messageBD("ETCOP_BalancedBrackets")).thenReturn("Brackets not balanced");
+      OBException ex = assertThrows(OBException.class,
+          () -> PromptTemplate.compile("Value: @X@}}").render(values, null, true));
+      assertEquals("Brackets not balanced", ex.getMessage());
+    }
+  }
+
+  /**
+   * A text without placeholders is returned as is, and a text is compiled once.
+   */
+  @Test
+  public void testTextWithoutPlaceholders() {
+    String text = "Plain prompt, with an e-mail: me@example.com";
+
+    assertSame(text, render(text, Map.of(), false));
+    assertSame(PromptTemplate.compile(text), PromptTemplate.compile(text));
+  }
+
+  /**
+   * The cache keeps the most recently used templates within its characters, and does not keep a
+   * text longer than all of them.
+   */
+  @Test
+  public void testCacheIsBoundedByCharacters() {
+    String recent = "Recent prompt @USERNAME@";
+    String old = "o".repeat(PromptTemplate.MAX_CACHED_CHARS / 2);
+    String next = "n".repeat(PromptTemplate.MAX_CACHED_CHARS / 2 + 10);
+    PromptTemplate recentTemplate = PromptTemplate.compile(recent);
+    PromptTemplate oldTemplate = PromptTemplate.compile(old);
+    PromptTemplate.compile(recent);
+    PromptTemplate.compile(next);
+
+    assertSame(recentTemplate, PromptTemplate.compile(recent));
+    assertNotSame(oldTemplate, PromptTemplate.compile(old));
+
+    String tooLong = "t".repeat(PromptTemplate.MAX_CACHED_CHARS + 1);
+    assertNotSame(PromptTemplate.compile(tooLong), PromptTemplate.compile(tooLong));
+  }
+}
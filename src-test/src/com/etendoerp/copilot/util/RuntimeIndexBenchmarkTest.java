@@ -0,0 +1,322 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Benchmark of the queries run on every request against the Copilot runtime tables, with only the
+ * primary keys and with the indexes and unique constraints of the module's database model.
+ * <p>
+ * The tables are created with the columns used by the queries in a scratch schema of a local
+ * PostgreSQL database and filled with 100k conversations, 1M messages and the related memories,
+ * file variants, role accesses and sources. Every query is run with the same random parameters
+ * before and after creating the indexes read from {@code src-db/database/model/tables}, and its
+ * median and 95th percentile latencies are logged. The numbers depend on the machine, so only the
+ * query results are asserted.
+ * <p>
+ * It only runs when the {@code copilot.benchmark.db.url} system property is set, along with
+ * {@code copilot.benchmark.db.user} and {@code copilot.benchmark.db.password}, for example:
+ * {@code -Dcopilot.benchmark.db.url=jdbc:postgresql://localhost:5432/etendo}. The schema
+ * {@value #SCHEMA} is dropped at the end.
+ */
+public class RuntimeIndexBenchmarkTest {
+  private static final Logger log = LogManager.getLogger(RuntimeIndexBenchmarkTest.class);
+
+  private static final String SCHEMA = "copilot_index_bench";
+  private static final String[] TABLES = { "ETCOP_CONVERSATION", "ETCOP_MESSAGE", "ETCOP_MEMORY",
+      "ETCOP_FILE_VARIANT", "ETCOP_ROLE_APP", "ETCOP_APP_SOURCE" };
+  private static final String[] MODEL_DIRS = { "src-db/database/model/tables",
+      "modules/com.etendoerp.copilot/src-db/database/model/tables" };
+
+  private static final int CONVERSATIONS = 100_000;
+  private static final int MESSAGES = 1_000_000;
+  private static final int MEMORIES = 50_000;
+  private static final int APPS = 200;
+  private static final int USERS = 2_000;
+  private static final int ROLES = 100;
+  private static final int FILES = 5_000;
+  private static final int CLIENTS = 10;
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int ROUNDS = 50;
+
+  private static final String[] DDL = {
+      "CREATE TABLE etcop_conversation (etcop_conversation_id VARCHAR(32) PRIMARY KEY,"
+          + " ad_client_id VARCHAR(32) NOT NULL, ad_org_id VARCHAR(32) NOT NULL, isactive CHAR(1) NOT NULL,"
+          + " created TIMESTAMP NOT NULL, etcop_app_id VARCHAR(32), ad_user_id VARCHAR(32),"
+          + " external_id VARCHAR(60), title VARCHAR(255), last_msg TIMESTAMP)",
+      "CREATE TABLE etcop_message (etcop_message_id VARCHAR(32) PRIMARY KEY, ad_client_id VARCHAR(32) NOT NULL,"
+          + " ad_org_id VARCHAR(32) NOT NULL, isactive CHAR(1) NOT NULL, created TIMESTAMP NOT NULL,"
+          + " etcop_conversation_id VARCHAR(32), lineno NUMERIC, role VARCHAR(60), message TEXT)",
+      "CREATE TABLE etcop_memory (etcop_memory_id VARCHAR(32) PRIMARY KEY, ad_client_id VARCHAR(32) NOT NULL,"
+          + " ad_org_id VARCHAR(32) NOT NULL, isactive CHAR(1) NOT NULL, created TIMESTAMP NOT NULL,"
+          + " etcop_app_id VARCHAR(32) NOT NULL, ad_user_id VARCHAR(32), ad_role_id VARCHAR(32), text_field TEXT)",
+      "CREATE TABLE etcop_file_variant (etcop_file_variant_id VARCHAR(32) PRIMARY KEY,"
+          + " ad_client_id VARCHAR(32) NOT NULL, ad_org_id VARCHAR(32) NOT NULL, isactive CHAR(1) NOT NULL,"
+          + " etcop_file_id VARCHAR(32) NOT NULL, etcop_file_blob_id VARCHAR(64))",
+      "CREATE TABLE etcop_role_app (etcop_role_app_id VARCHAR(32) PRIMARY KEY, ad_client_id VARCHAR(32) NOT NULL,"
+          + " ad_org_id VARCHAR(32) NOT NULL, isactive CHAR(1) NOT NULL, ad_role_id VARCHAR(32) NOT NULL,"
+          + " etcop_app_id VARCHAR(32) NOT NULL)",
+      "CREATE TABLE etcop_app_source (etcop_app_source_id VARCHAR(32) PRIMARY KEY,"
+          + " ad_client_id VARCHAR(32) NOT NULL, ad_org_id VARCHAR(32) NOT NULL, isactive CHAR(1) NOT NULL,"
+          + " etcop_app_id VARCHAR(32) NOT NULL, etcop_file_id VARCHAR(32))" };
+
+  private static final String[] DATA = {
+      "INSERT INTO etcop_conversation SELECT 'C' || i, 'CL' || (i % " + CLIENTS + "), '0', 'Y',"
+          + " NOW() - i * INTERVAL '1 minute', 'A' || (i % " + APPS + "), 'U' || (i % " + USERS + "),"
+          + " 'ext' || i, 'Conversation ' || i, NOW() - i * INTERVAL '1 second'"
+          + " FROM generate_series(0, " + (CONVERSATIONS - 1) + ") i",
+      "INSERT INTO etcop_message SELECT 'M' || i, 'CL0', '0', 'Y', NOW() - (" + MESSAGES + " - i) * INTERVAL '1 ms',"
+          + " 'C' || (i % " + CONVERSATIONS + "), i / " + CONVERSATIONS + ","
+          + " CASE WHEN i % 2 = 0 THEN 'USER' ELSE 'ASSISTANT' END, repeat('Message text ', 20)"
+          + " FROM generate_series(0, " + (MESSAGES - 1) + ") i",
+      "INSERT INTO etcop_memory SELECT 'ME' || i, 'CL0', '0', CASE WHEN i % 10 = 0 THEN 'N' ELSE 'Y' END,"
+          + " NOW() - i * INTERVAL '1 minute', 'A' || (i % " + APPS + "),"
+          + " CASE WHEN i % 3 = 0 THEN NULL ELSE 'U' || (i % " + USERS + ") END, NULL, 'Remember ' || i"
+          + " FROM generate_series(0, " + (MEMORIES - 1) + ") i",
+      "INSERT INTO etcop_file_variant SELECT 'V' || i, 'CL' || (i % " + CLIENTS + "), '0', 'Y',"
+          + " 'F' || (i / " + CLIENTS + "), md5(i::text) FROM generate_series(0, " + (FILES * CLIENTS - 1) + ") i",
+      "INSERT INTO etcop_role_app SELECT 'RA' || i, 'CL0', '0', 'Y', 'R' || (i / " + APPS + "), 'A' || (i % " + APPS
+          + ") FROM generate_series(0, " + (ROLES * APPS - 1) + ") i",
+      "INSERT INTO etcop_app_source SELECT 'S' || i, 'CL0', '0', 'Y', 'A' || (i % " + APPS + "), 'F' || (i % "
+          + FILES + ") FROM generate_series(0, 19999) i" };
+
+  /**
+   * SQL equivalents of the HQL queries of the code, with a generator of their parameters.
+   */
+  private static Map<String, Query> queries() {
+    Map<String, Query> queries = new LinkedHashMap<>();
+    queries.put("ConversationHistory window", new Query(
+        "SELECT m.etcop_message_id, m.role, m.message FROM etcop_message m"
+            + " JOIN etcop_conversation c ON c.etcop_conversation_id = m.etcop_conversation_id"
+            + " WHERE c.external_id = ? ORDER BY m.created DESC, m.lineno DESC LIMIT 51",
+        r -> new Object[] { "ext" + r.nextInt(CONVERSATIONS) }));
+    queries.put("MessageTrackingWriter next lineno", new Query(
+        "SELECT MAX(lineno) FROM etcop_message WHERE etcop_conversation_id = ?",
+        r -> new Object[] { "C" + r.nextInt(CONVERSATIONS) }));
+    queries.put("ConversationUtils message page", new Query(
+        "SELECT etcop_message_id, role, message, created, lineno FROM etcop_message"
+            + " WHERE etcop_conversation_id = ? ORDER BY lineno DESC LIMIT 20",
+        r -> new Object[] { "C" + r.nextInt(CONVERSATIONS) }));
+    queries.put("ConversationUtils conversation page", new Query(
+        "SELECT etcop_conversation_id, external_id, title, last_msg FROM etcop_conversation"
+            + " WHERE etcop_app_id = ? AND ad_user_id = ? AND isactive = 'Y'"
+            + " ORDER BY last_msg DESC, etcop_conversation_id DESC LIMIT 20",
+        r -> {
+          int user = r.nextInt(USERS);
+          return new Object[] { "A" + (user % APPS), "U" + user };
+        }));
+    queries.put("TrackingUtil conversation by external id", new Query(
+        "SELECT etcop_conversation_id FROM etcop_conversation WHERE external_id = ?",
+        r -> new Object[] { "ext" + r.nextInt(CONVERSATIONS) }));
+    queries.put("AgentMemoryHook memories", new Query(
+        "SELECT text_field FROM etcop_memory WHERE isactive = 'Y' AND etcop_app_id = ?"
+            + " AND (ad_user_id = ? OR ad_user_id IS NULL) ORDER BY created",
+        r -> new Object[] { "A" + r.nextInt(APPS), "U" + r.nextInt(USERS) }));
+    queries.put("FileUtils variant of a client", new Query(
+        "SELECT etcop_file_variant_id FROM etcop_file_variant WHERE ad_client_id = ? AND etcop_file_id = ?",
+        r -> new Object[] { "CL" + r.nextInt(CLIENTS), "F" + r.nextInt(FILES) }));
+    queries.put("RestServiceUtil assistant picker", new Query(
+        "SELECT ra.etcop_app_id, MAX(COALESCE(c.last_msg, c.created)) FROM etcop_role_app ra"
+            + " LEFT JOIN etcop_conversation c ON c.etcop_app_id = ra.etcop_app_id AND c.ad_user_id = ?"
+            + " AND c.isactive = 'Y' WHERE ra.ad_role_id = ? AND ra.isactive = 'Y'"
+            + " GROUP BY ra.etcop_app_id ORDER BY ra.etcop_app_id",
+        r -> new Object[] { "U" + r.nextInt(USERS), "R" + r.nextInt(ROLES) }));
+    queries.put("Agent sources", new Query(
+        "SELECT etcop_app_source_id, etcop_file_id FROM etcop_app_source WHERE etcop_app_id = ?"
+            + " ORDER BY etcop_app_source_id",
+        r -> new Object[] { "A" + r.nextInt(APPS) }));
+    return queries;
+  }
+
+  /**
+   * Every query returns the same rows with and without the indexes, then their latencies are
+   * compared.
+   *
+   * @throws Exception
+   *     if the database cannot be used or the model cannot be read
+   */
+  @Test
+  public void benchmarkRuntimeQueriesWithModelIndexes() throws Exception {
+    String url = System.getProperty("copilot.benchmark.db.url");
+    assumeTrue("Set copilot.benchmark.db.url to run the index benchmark", StringUtils.isNotBlank(url));
+    List<String> indexes = readModelIndexes();
+    assertFalse(indexes.isEmpty());
+
+    try (Connection connection = DriverManager.getConnection(url, System.getProperty("copilot.benchmark.db.user"),
+        System.getProperty("copilot.benchmark.db.password"))) {
+      try {
+        execute(connection, "DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE", "CREATE SCHEMA " + SCHEMA,
+            "SET search_path TO " + SCHEMA);
+        long start = System.currentTimeMillis();
+        execute(connection, DDL);
+        execute(connection, DATA);
+        execute(connection, "ANALYZE");
+        log.info("Loaded {} conversations and {} messages in {} ms", CONVERSATIONS, MESSAGES,
+            System.currentTimeMillis() - start);
+
+        Map<String, Query> queries = queries();
+        Map<String, List<String>> before = new LinkedHashMap<>();
+        for (Map.Entry<String, Query> entry : queries.entrySet()) {
+          before.put(entry.getKey(), measure(connection, "Primary keys only", entry.getKey(), entry.getValue()));
+        }
+
+        start = System.currentTimeMillis();
+        execute(connection, indexes.toArray(new String[0]));
+        execute(connection, "ANALYZE");
+        log.info("Created {} indexes and unique constraints in {} ms", indexes.size(),
+            System.currentTimeMillis() - start);
+
+        for (Map.Entry<String, Query> entry : queries.entrySet()) {
+          assertEquals(entry.getKey(), before.get(entry.getKey()),
+              measure(connection, "Model indexes", entry.getKey(), entry.getValue()));
+        }
+      } finally {
+        execute(connection, "DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+      }
+    }
+  }
+
+  /**
+   * Reads the indexes and unique constraints of the runtime tables from the database model.
+   */
+  private static List<String> readModelIndexes() throws Exception {
+    File dir = Arrays.stream(MODEL_DIRS).map(File::new).filter(File::isDirectory).findFirst().orElse(null);
+    assumeTrue("The database model of the module was not found", dir != null);
+    List<String> statements = new ArrayList<>();
+    for (String table : TABLES) {
+      Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(new File(dir, table + ".xml"));
+      NodeList indexes = document.getElementsByTagName("index");
+      for (int i = 0; i < indexes.getLength(); i++) {
+        Element index = (Element) indexes.item(i);
+        statements.add(String.format("CREATE %sINDEX %s ON %s (%s)",
+            "true".equals(index.getAttribute("unique")) ? "UNIQUE " : "", index.getAttribute("name"), table,
+            columns(index, "index-column")));
+      }
+      NodeList uniques = document.getElementsByTagName("unique");
+      for (int i = 0; i < uniques.getLength(); i++) {
+        Element unique = (Element) uniques.item(i);
+        statements.add(String.format("ALTER TABLE %s ADD CONSTRAINT %s UNIQUE (%s)", table,
+            unique.getAttribute("name"), columns(unique, "unique-column")));
+      }
+    }
+    return statements;
+  }
+
+  private static String columns(Element element, String tag) {
+    NodeList columns = element.getElementsByTagName(tag);
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < columns.getLength(); i++) {
+      names.add(((Element) columns.item(i)).getAttribute("name"));
+    }
+    return String.join(", ", names);
+  }
+
+  private static void execute(Connection connection, String... statements) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      for (String sql : statements) {
+        statement.execute(sql);
+      }
+    }
+  }
+
+  /**
+   * Runs a query with a fixed sequence of parameters, logs its latencies and returns the rows of
+   * the measured rounds.
+   */
+  private static List<String> measure(Connection connection, String variant, String name, Query query)
+      throws SQLException {
+    Random warmup = new Random(7);
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      run(connection, query, query.parameters.generate(warmup));
+    }
+    Random random = new Random(42);
+    List<String> rows = new ArrayList<>();
+    long[] latencies = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      Object[] parameters = query.parameters.generate(random);
+      long start = System.nanoTime();
+      rows.addAll(run(connection, query, parameters));
+      latencies[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(latencies);
+    log.info("{} - {}: median {} ms, p95 {} ms", variant, name, String.format("%.3f", latencies[ROUNDS / 2] / 1e6),
+        String.format("%.3f", latencies[ROUNDS * 95 / 100] / 1e6));
+    return rows;
+  }
+
+  private static List<String> run(Connection connection, Query query, Object[] parameters) throws SQLException {
+    List<String> rows = new ArrayList<>();
+    try (PreparedStatement ps = connection.prepareStatement(query.sql)) {
+      for (int i = 0; i < parameters.length; i++) {
+        ps.setObject(i + 1, parameters[i]);
+      }
+      try (ResultSet rs = ps.executeQuery()) {
+        int columns = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+          StringBuilder row = new StringBuilder();
+          for (int c = 1; c <= columns; c++) {
+            row.append(rs.getString(c)).append('|');
+          }
+          rows.add(row.toString());
+        }
+      }
+    }
+    return rows;
+  }
+
+  private interface Parameters {
+    Object[] generate(Random random);
+  }
+
+  private static class Query {
+    private final String sql;
+    private final Parameters parameters;
+
+    Query(String sql, Parameters parameters) {
+      this.sql = sql;
+      this.parameters = parameters;
+    }
+  }
+}
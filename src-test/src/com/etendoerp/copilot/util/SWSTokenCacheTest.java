@@ -0,0 +1,142 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SWSTokenCache}.
+ */
+public class SWSTokenCacheTest {
+
+  private final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toMillis(1));
+  private final AtomicInteger signed = new AtomicInteger();
+
+  private static String jwt(String payload) {
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return encoder.encodeToString("{\"alg\":\"ES256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+        + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".signature";
+  }
+
+  private String sign() {
+    return jwt("{\"n\":" + signed.incrementAndGet() + "}");
+  }
+
+  private String token(SWSTokenCache cache, String userId, String roleId) throws Exception {
+    return cache.getToken(userId, roleId, "ORG", null, this::sign);
+  }
+
+  /**
+   * A token is signed once per user, role, organization and warehouse and reused until its time to
+   * live expires.
+   *
+   * @throws Exception
+   *     if the token cannot be signed
+   */
+  @Test
+  public void testReusesTokenUntilTtl() throws Exception {
+    SWSTokenCache cache = new SWSTokenCache(600, 60, now::get);
+
+    String token = token(cache, "U1", "R1");
+    assertEquals(token, token(cache, "U1", "R1"));
+    token(cache, "U1", "R2");
+    cache.getToken("U1", "R1", "ORG", "WH", this::sign);
+    assertEquals(3, signed.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(3, cache.getMisses());
+
+    now.addAndGet(TimeUnit.SECONDS.toMillis(600));
+    token(cache, "U1", "R1");
+    assertEquals(4, signed.get());
+  }
+
+  /**
+   * A token is signed again before it expires, and a token that expires within the margin is not
+   * cached.
+   *
+   * @throws Exception
+   *     if the token cannot be signed
+   */
+  @Test
+  public void testRefreshesBeforeTokenExpiration() throws Exception {
+    SWSTokenCache cache = new SWSTokenCache(600, 60, now::get);
+    long exp = TimeUnit.MILLISECONDS.toSeconds(now.get()) + 120;
+    CopilotRequestContext.Lookup<String, Exception> signer = () -> {
+      signed.incrementAndGet();
+      return jwt("{\"exp\":" + exp + "}");
+    };
+    assertEquals(TimeUnit.SECONDS.toMillis(exp), SWSTokenCache.getExpiration(signer.get()));
+
+    cache.getToken("U1", "R1", "ORG", null, signer);
+    now.addAndGet(TimeUnit.SECONDS.toMillis(59));
+    cache.getToken("U1", "R1", "ORG", null, signer);
+    assertEquals(2, signed.get());
+
+    now.addAndGet(TimeUnit.SECONDS.toMillis(2));
+    cache.getToken("U1", "R1", "ORG", null, signer);
+    cache.getToken("U1", "R1", "ORG", null, signer);
+    assertEquals(4, signed.get());
+  }
+
+  /**
+   * The tokens of a changed user or role are signed again.
+   *
+   * @throws Exception
+   *     if the token cannot be signed
+   */
+  @Test
+  public void testInvalidatesUserAndRole() throws Exception {
+    SWSTokenCache cache = new SWSTokenCache(600, 60, now::get);
+    token(cache, "U1", "R1");
+    token(cache, "U2", "R2");
+
+    cache.remove("U1", null);
+    token(cache, "U1", "R1");
+    token(cache, "U2", "R2");
+    assertEquals(3, signed.get());
+
+    cache.remove(null, "R2");
+    token(cache, "U1", "R1");
+    token(cache, "U2", "R2");
+    assertEquals(4, signed.get());
+  }
+
+  /**
+   * With no time to live every token is signed, and tokens that are not JWT never expire.
+   *
+   * @throws Exception
+   *     if the token cannot be signed
+   */
+  @Test
+  public void testDisabledCacheAndOpaqueTokens() throws Exception {
+    SWSTokenCache cache = new SWSTokenCache(0, 60, now::get);
+    token(cache, "U1", "R1");
+    token(cache, "U1", "R1");
+
+    assertEquals(2, signed.get());
+    assertEquals(Long.MAX_VALUE, SWSTokenCache.getExpiration("opaque"));
+    assertEquals(Long.MAX_VALUE, SWSTokenCache.getExpiration("a.%%%.c"));
+  }
+}
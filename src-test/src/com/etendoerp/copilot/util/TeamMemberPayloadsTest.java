@@ -0,0 +1,281 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.ad.access.Role;
+import org.openbravo.model.ad.access.User;
+import org.openbravo.model.ad.system.Client;
+import org.openbravo.model.common.enterprise.Organization;
+
+import com.etendoerp.copilot.data.CopilotApp;
+
+/**
+ * Unit tests for {@link TeamMemberPayloads}. The worker tasks run in the test thread, where the
+ * static mocks are active.
+ */
+public class TeamMemberPayloadsTest {
+
+  private MockedStatic<OBContext> mockedOBContext;
+  private MockedStatic<OBDal> mockedOBDal;
+  private MockedStatic<CopilotUtils> mockedCopilotUtils;
+  private OBDal obDal;
+  private List<String> built;
+  private Map<String, String> tokens;
+
+  /**
+   * Mocks the context, the DAL and the MCP configurations.
+   */
+  @Before
+  public void setUp() {
+    mockedOBContext = mockStatic(OBContext.class);
+    mockedOBContext.when(OBContext::getOBContext).thenReturn(mock(OBContext.class));
+    mockedOBDal = mockStatic(OBDal.class);
+    obDal = mock(OBDal.class);
+    mockedOBDal.when(OBDal::getInstance).thenReturn(obDal);
+    mockedCopilotUtils = mockStatic(CopilotUtils.class);
+    mockedCopilotUtils.when(() -> CopilotUtils.addMCPConfigurations(any(), any())).thenAnswer(
+        invocation -> ((JSONObject) invocation.getArgument(1)).put(CopilotUtils.MCP_SERVERS, new JSONArray()));
+    built = new ArrayList<>();
+    tokens = new HashMap<>();
+  }
+
+  /**
+   * Closes the static mocks.
+   */
+  @After
+  public void tearDown() {
+    mockedCopilotUtils.close();
+    mockedOBDal.close();
+    mockedOBContext.close();
+  }
+
+  private CopilotApp mockMember(String id) {
+    CopilotApp member = mock(CopilotApp.class);
+    when(member.getId()).thenReturn(id);
+    when(member.getName()).thenReturn("Member " + id);
+    when(member.getUpdated()).thenReturn(new Date(1000L));
+    when(obDal.get(CopilotApp.class, id)).thenReturn(member);
+    return member;
+  }
+
+  private TeamMemberPayloads newPayloads(long ttlSeconds) {
+    return new TeamMemberPayloads(4, ttlSeconds, Runnable::run, member -> {
+      built.add(member.getId());
+      if (member.getId().startsWith("BAD")) {
+        throw new JSONException("broken");
+      }
+      if (member.getId().startsWith("UNSYNC")) {
+        throw new OBException("not synchronized");
+      }
+      return new JSONObject().put("name", member.getId())
+          .put("prompt", "Use " + tokens.getOrDefault("ERP_TOKEN", "none"))
+          .put(CopilotUtils.MCP_SERVERS, new JSONArray().put("mcp"));
+    }, () -> tokens);
+  }
+
+  /**
+   * The payloads keep the order of the members, each one is built in its own DAL session, and the
+   * second request reuses them with fresh MCP configurations.
+   *
+   * @throws Exception
+   *     if a payload cannot be read
+   */
+  @Test
+  public void testBuildsInOrderAndReusesPayloads() throws Exception {
+    TeamMemberPayloads payloads = newPayloads(60);
+    List<CopilotApp> members = List.of(mockMember("A"), mockMember("B"), mockMember("C"));
+
+    List<JSONObject> first = payloads.build(members);
+    List<JSONObject> second = payloads.build(members);
+
+    assertEquals(List.of("A", "B", "C"), built);
+    verify(obDal, times(3)).commitAndClose();
+    assertEquals("B", first.get(1).getString("name"));
+    assertEquals("mcp", first.get(1).getJSONArray(CopilotUtils.MCP_SERVERS).getString(0));
+    assertEquals("C", second.get(2).getString("name"));
+    assertEquals(0, second.get(2).getJSONArray(CopilotUtils.MCP_SERVERS).length());
+  }
+
+  /**
+   * The payloads that include an API token of the request are not reused, they are built again
+   * with the tokens of every request, and each payload is built in administrator mode.
+   *
+   * @throws Exception
+   *     if a payload cannot be read
+   */
+  @Test
+  public void testReusedPayloadsDoNotKeepApiTokens() throws Exception {
+    TeamMemberPayloads payloads = newPayloads(60);
+    List<CopilotApp> members = List.of(mockMember("A"), mockMember("B"));
+    tokens.put("ERP_TOKEN", "se/cret\"");
+
+    assertEquals("Use se/cret\"", payloads.build(members).get(0).getString("prompt"));
+    mockedOBContext.verify(() -> OBContext.setAdminMode(true), times(2));
+    mockedOBContext.verify(OBContext::restorePreviousMode, times(2));
+
+    tokens.put("ERP_TOKEN", "other");
+    assertEquals("Use other", payloads.build(members).get(1).getString("prompt"));
+    assertEquals(List.of("A", "B", "A", "B"), built);
+    assertEquals(0, payloads.size());
+  }
+
+  /**
+   * The API tokens are found in the serialized payloads, where they are escaped.
+   */
+  @Test
+  public void testDetectsTokens() {
+    Map<String, String> requestTokens = Map.of("TOKEN", "se/cret\"", "EMPTY", "");
+
+    assertTrue(TeamMemberPayloads.containsToken(new JSONObject(Map.of("p", "Use se/cret\"")).toString(),
+        requestTokens));
+    assertFalse(TeamMemberPayloads.containsToken("{\"p\":\"Use none\"}", requestTokens));
+  }
+
+  /**
+   * The workers do not share the context of the request, each one creates a context with the same
+   * user, role, client and organization.
+   */
+  @Test
+  public void testWorkersCreateTheirOwnContext() {
+    OBContext context = mock(OBContext.class);
+    User user = mock(User.class);
+    Role role = mock(Role.class);
+    Client client = mock(Client.class);
+    Organization org = mock(Organization.class);
+    when(user.getId()).thenReturn("U");
+    when(role.getId()).thenReturn("R");
+    when(client.getId()).thenReturn("C");
+    when(org.getId()).thenReturn("O");
+    when(context.getUser()).thenReturn(user);
+    when(context.getRole()).thenReturn(role);
+    when(context.getCurrentClient()).thenReturn(client);
+    when(context.getCurrentOrganization()).thenReturn(org);
+    mockedOBContext.when(OBContext::getOBContext).thenReturn(context);
+
+    newPayloads(0).build(List.of(mockMember("A"), mockMember("B")));
+
+    mockedOBContext.verify(() -> OBContext.setOBContext("U", "R", "C", "O"), times(2));
+    mockedOBContext.verify(() -> OBContext.setOBContext(context), never());
+  }
+
+  /**
+   * An updated member and an invalidated member are built again, the others are reused.
+   */
+  @Test
+  public void testRebuildsChangedMembers() {
+    TeamMemberPayloads payloads = newPayloads(60);
+    CopilotApp memberA = mockMember("A");
+    List<CopilotApp> members = List.of(memberA, mockMember("B"), mockMember("C"));
+    payloads.build(members);
+    built.clear();
+
+    when(memberA.getUpdated()).thenReturn(new Date(2000L));
+    payloads.removeAgent("C");
+    payloads.build(members);
+
+    assertEquals(List.of("A", "C"), built);
+  }
+
+  /**
+   * Without time to live the payloads are always built.
+   */
+  @Test
+  public void testReuseCanBeDisabled() {
+    TeamMemberPayloads payloads = newPayloads(0);
+    List<CopilotApp> members = List.of(mockMember("A"), mockMember("B"));
+
+    payloads.build(members);
+    payloads.build(members);
+
+    assertEquals(4, built.size());
+    assertEquals(0, payloads.size());
+  }
+
+  /**
+   * The members built in the workers share the lookups of the request, and the request thread keeps
+   * its context.
+   */
+  @Test
+  public void testWorkersShareRequestLookups() {
+    TeamMemberPayloads payloads = new TeamMemberPayloads(4, 0, Runnable::run,
+        member -> new JSONObject().put("name", member.getId())
+            .put("models", CopilotRequestContext.memoize("models_config", () -> {
+              built.add(member.getId());
+              return "config";
+            })));
+
+    try (CopilotRequestContext context = CopilotRequestContext.open()) {
+      payloads.build(List.of(mockMember("A"), mockMember("B"), mockMember("C")));
+
+      assertEquals(List.of("A"), built);
+      assertEquals(1, context.getComputedCount());
+      assertEquals(2, context.getReusedCount());
+      assertSame(context, CopilotRequestContext.current());
+    }
+  }
+
+  /**
+   * A member whose payload fails to build is left out, and a member that cannot be used fails the
+   * request.
+   *
+   * @throws Exception
+   *     if a payload cannot be read
+   */
+  @Test
+  public void testHandlesMemberErrors() throws Exception {
+    TeamMemberPayloads payloads = newPayloads(60);
+
+    List<JSONObject> result = payloads.build(List.of(mockMember("A"), mockMember("BAD")));
+    assertEquals(1, result.size());
+    assertEquals("A", result.get(0).getString("name"));
+
+    List<CopilotApp> withUnsynced = List.of(mockMember("UNSYNC"), mockMember("D"));
+    OBException exception = assertThrows(OBException.class, () -> payloads.build(withUnsynced));
+    assertEquals("not synchronized", exception.getMessage());
+    verify(obDal, times(1)).rollbackAndClose();
+    assertFalse(built.isEmpty());
+  }
+}
@@ -19,6 +19,7 @@ package com.etendoerp.copilot.util;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
@@ -32,6 +33,7 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Properties;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONObject;
@@ -43,6 +45,7 @@ import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.MockitoAnnotations;
 import org.openbravo.base.provider.OBProvider;
+import org.openbravo.base.session.OBPropertiesProvider;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
@@ -101,6 +104,7 @@ public class TrackingUtilTest {
   private MockedStatic<OBProvider> mockedOBProvider;
   private MockedStatic<CopilotModelUtils> mockedCopilotModelUtils;
   private MockedStatic<TelemetryUsageInfo> mockedTelemetryUsageInfo;
+  private MockedStatic<OBPropertiesProvider> mockedOBPropertiesProvider;
 
   private static final String TEST_CONVERSATION_ID = "testConvId123";
   private static final String TEST_APP_ID = "testAppId123";
@@ -110,6 +114,8 @@ public class TrackingUtilTest {
   private static final String TEST_MODULE_NAME = "Test Module";
   private static final String TEST_MODEL_NAME = "gpt-4";
   private static final String TEST_PROVIDER = "OpenAI";
+  private static final String TEST_SESSION_ID = "testSessionId123";
+  private static final String TEST_COMMAND = "POST /question";
   private static final String RESULT_NOT_NULL_MESSAGE = "Result should not be null";
 
   /**
@@ -127,6 +133,10 @@ public class TrackingUtilTest {
     mockedOBProvider = mockStatic(OBProvider.class);
     mockedCopilotModelUtils = mockStatic(CopilotModelUtils.class);
     mockedTelemetryUsageInfo = mockStatic(TelemetryUsageInfo.class);
+    mockedOBPropertiesProvider = mockStatic(OBPropertiesProvider.class);
+    OBPropertiesProvider propertiesProvider = mock(OBPropertiesProvider.class);
+    mockedOBPropertiesProvider.when(OBPropertiesProvider::getInstance).thenReturn(propertiesProvider);
+    when(propertiesProvider.getOpenbravoProperties()).thenReturn(new Properties());
 
     // Configure OBDal mock
     mockedOBDal.when(OBDal::getInstance).thenReturn(obDal);
@@ -141,6 +151,7 @@ public class TrackingUtilTest {
     when(mockConversationQuery.setNamedParameter(anyString(), any())).thenReturn(mockConversationQuery);
     when(mockConversationQuery.setMaxResult(1)).thenReturn(mockConversationQuery);
     when(mockMessageQuery.setNamedParameter(anyString(), any())).thenReturn(mockMessageQuery);
+    when(mockMessageQuery.setMaxResult(anyInt())).thenReturn(mockMessageQuery);
 
     // Configure OBContext mock
     mockedOBContext.when(OBContext::getOBContext).thenReturn(obContext);
@@ -204,7 +215,6 @@ public class TrackingUtilTest {
 
     // Configure TelemetryUsageInfo mock
     mockedTelemetryUsageInfo.when(TelemetryUsageInfo::getInstance).thenReturn(mockTelemetry);
-    when(mockTelemetry.getTimeMillis()).thenReturn(System.currentTimeMillis());
     doNothing().when(mockTelemetry).setModuleId(anyString());
     doNothing().when(mockTelemetry).setUserId(anyString());
     doNothing().when(mockTelemetry).setObjectId(anyString());
@@ -212,6 +222,9 @@ public class TrackingUtilTest {
     doNothing().when(mockTelemetry).setTimeMillis(any(Long.class));
     doNothing().when(mockTelemetry).setJsonObject(any(JSONObject.class));
     doNothing().when(mockTelemetry).saveUsageAudit();
+    // Usage events are saved by flushQueued in the test thread, where the static mocks apply
+    UsageTelemetry.setInstance(new UsageTelemetry(100, 10));
+    UsageTelemetry.startRequest(TEST_SESSION_ID, TEST_COMMAND);
 
     // Get TrackingUtil instance
 
@@ -224,6 +237,8 @@ public class TrackingUtilTest {
    */
   @After
   public void tearDown() throws Exception {
+    UsageTelemetry.setRequest(null);
+    UsageTelemetry.setInstance(null);
     if (mocks != null) {
       mocks.close();
     }
@@ -242,6 +257,9 @@ public class TrackingUtilTest {
     if (mockedTelemetryUsageInfo != null) {
       mockedTelemetryUsageInfo.close();
     }
+    if (mockedOBPropertiesProvider != null) {
+      mockedOBPropertiesProvider.close();
+    }
   }
 
   /**
@@ -267,8 +285,11 @@ public class TrackingUtilTest {
   public void testSendUsageData() throws Exception {
     // When
     TrackingUtil.sendUsageData(mockApp);
+    UsageTelemetry.getInstance().flushQueued();
 
     // Then
+    verify(mockTelemetry, times(1)).setSessionId(TEST_SESSION_ID);
+    verify(mockTelemetry, times(1)).setCommand(TEST_COMMAND);
     verify(mockTelemetry, times(1)).setModuleId(TrackingUtil.COPILOT_MODULE_ID);
     verify(mockTelemetry, times(1)).setUserId(TEST_USER_ID);
     verify(mockTelemetry, times(1)).setObjectId(TEST_APP_ID);
@@ -286,12 +307,28 @@ public class TrackingUtilTest {
   @Test
   public void testSendUsageDataWithException() throws Exception {
     // Given
-    when(mockTelemetry.getTimeMillis()).thenThrow(new RuntimeException("Test error"));
+    when(mockApp.getUpdated()).thenThrow(new RuntimeException("Test error"));
 
     // When - Should not throw exception
     TrackingUtil.sendUsageData(mockApp);
 
     // Then - Exception is handled silently
+    assertEquals(0, UsageTelemetry.getInstance().getQueued());
+  }
+
+  /**
+   * Test sendUsageData sends nothing when the thread does not serve a tracked request.
+   */
+  @Test
+  public void testSendUsageDataWithoutRequest() {
+    // Given
+    UsageTelemetry.setRequest(null);
+
+    // When
+    TrackingUtil.sendUsageData(mockApp);
+
+    // Then
+    assertEquals(0, UsageTelemetry.getInstance().getQueued());
   }
 
   /**
@@ -320,9 +357,10 @@ public class TrackingUtilTest {
     when(msg2.getRole()).thenReturn("assistant");
     when(msg2.getMessage()).thenReturn("Answer 1");
 
+    // The newest messages are read first
     List<Message> messages = new ArrayList<>();
-    messages.add(msg1);
     messages.add(msg2);
+    messages.add(msg1);
 
     when(mockMessageQuery.list()).thenReturn(messages);
 
@@ -435,6 +473,7 @@ public class TrackingUtilTest {
 
     // When
     TrackingUtil.sendUsageData(mockApp);
+    UsageTelemetry.getInstance().flushQueued();
 
     // Then
     verify(mockTelemetry, times(1)).setJsonObject(any(JSONObject.class));
@@ -0,0 +1,194 @@
+/*
+ *************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and limitations under the License.
+ * All portions are Copyright © 2021–2025 FUTIT SERVICES, S.L
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ *************************************************************************
+ */
+package com.etendoerp.copilot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.TeamMember;
+import com.etendoerp.telemetry.TelemetryUsageInfo;
+
+/**
+ * Unit tests for {@link UsageTelemetry}. The queued events are saved in the test thread, where the
+ * static mocks are active.
+ */
+public class UsageTelemetryTest {
+
+  private MockedStatic<OBContext> mockedOBContext;
+  private MockedStatic<OBDal> mockedOBDal;
+  private MockedStatic<TelemetryUsageInfo> mockedTelemetryUsageInfo;
+  private OBDal obDal;
+  private TelemetryUsageInfo usageInfo;
+  private UsageTelemetry telemetry;
+
+  /**
+   * Mocks the context, the DAL and the usage info, and creates an unstarted instance with room for
+   * three events, saved in batches of two.
+   */
+  @Before
+  public void setUp() {
+    mockedOBContext = mockStatic(OBContext.class);
+    mockedOBContext.when(OBContext::getOBContext).thenReturn(mock(OBContext.class));
+    obDal = mock(OBDal.class);
+    mockedOBDal = mockStatic(OBDal.class);
+    mockedOBDal.when(OBDal::getInstance).thenReturn(obDal);
+    usageInfo = mock(TelemetryUsageInfo.class);
+    mockedTelemetryUsageInfo = mockStatic(TelemetryUsageInfo.class);
+    mockedTelemetryUsageInfo.when(TelemetryUsageInfo::getInstance).thenReturn(usageInfo);
+    telemetry = new UsageTelemetry(3, 2);
+  }
+
+  /**
+   * Closes the static mocks.
+   */
+  @After
+  public void tearDown() {
+    mockedTelemetryUsageInfo.close();
+    mockedOBDal.close();
+    mockedOBContext.close();
+  }
+
+  private static UsageTelemetry.UsageEvent event(String objectId) {
+    return new UsageTelemetry.UsageEvent("session", "POST /question", "module", "user", objectId, "class", 10L,
+        "{\"a\":1}", CopilotRuntime.ContextIds.capture());
+  }
+
+  /**
+   * The queued events are saved in batches, one transaction per batch.
+   */
+  @Test
+  public void testEventsSavedInBatches() throws Exception {
+    telemetry.enqueue(event("A1"));
+    telemetry.enqueue(event("A2"));
+    telemetry.enqueue(event("A3"));
+
+    telemetry.flushQueued();
+
+    verify(usageInfo, times(3)).saveUsageAudit();
+    verify(usageInfo).setObjectId("A1");
+    verify(usageInfo).setObjectId("A3");
+    verify(usageInfo, times(3)).setSessionId("session");
+    verify(usageInfo, times(3)).setCommand("POST /question");
+    verify(usageInfo, times(3)).setTimeMillis(10L);
+    verify(obDal, times(2)).commitAndClose();
+    assertEquals(0, telemetry.getQueued());
+  }
+
+  /**
+   * The events that do not fit in the queue are discarded and counted, without waiting.
+   */
+  @Test
+  public void testEventsDroppedWhenFull() {
+    for (int i = 0; i < 3; i++) {
+      assertTrue(telemetry.enqueue(event("A" + i)));
+    }
+
+    assertFalse(telemetry.enqueue(event("A3")));
+    assertEquals(3, telemetry.getQueued());
+    assertEquals(1, telemetry.getDropped());
+  }
+
+  /**
+   * A batch that cannot be saved is rolled back and counted as discarded.
+   */
+  @Test
+  public void testFailedBatchDropped() throws Exception {
+    doThrow(new RuntimeException("Audit error")).when(usageInfo).saveUsageAudit();
+    telemetry.enqueue(event("A1"));
+
+    telemetry.flushQueued();
+
+    verify(obDal).rollbackAndClose();
+    assertEquals(1, telemetry.getDropped());
+  }
+
+  /**
+   * The usage of a request is kept for the thread serving it until it is cleared.
+   */
+  @Test
+  public void testRequestUsageKeptForThread() throws Exception {
+    UsageTelemetry.startRequest("session", "POST /question");
+    try {
+      UsageTelemetry.RequestUsage request = UsageTelemetry.getRequest();
+      assertEquals("session", request.getSessionId());
+      assertEquals("POST /question", request.getCommand());
+      assertTrue(request.getStartMillis() <= System.currentTimeMillis());
+
+      Thread other = new Thread(() -> assertNull(UsageTelemetry.getRequest()));
+      other.start();
+      other.join();
+    } finally {
+      UsageTelemetry.setRequest(null);
+    }
+    assertNull(UsageTelemetry.getRequest());
+  }
+
+  /**
+   * The JSON of an agent is built again only when the agent or a team member is updated.
+   */
+  @Test
+  public void testAgentJsonCachedUntilUpdated() throws JSONException {
+    CopilotApp agent = mock(CopilotApp.class);
+    when(agent.getId()).thenReturn("A1");
+    when(agent.getUpdated()).thenReturn(new Date(1000L));
+    TeamMember member = mock(TeamMember.class);
+    when(member.getUpdated()).thenReturn(new Date(1000L));
+    List<TeamMember> members = new ArrayList<>(List.of(member));
+    when(agent.getETCOPTeamMemberList()).thenReturn(members);
+    AtomicInteger builds = new AtomicInteger();
+
+    String first = telemetry.getAgentJson(agent, a -> json(builds.incrementAndGet()));
+    String second = telemetry.getAgentJson(agent, a -> json(builds.incrementAndGet()));
+    when(member.getUpdated()).thenReturn(new Date(2000L));
+    String third = telemetry.getAgentJson(agent, a -> json(builds.incrementAndGet()));
+
+    assertEquals(first, second);
+    assertEquals(2, new JSONObject(third).getInt("build"));
+    assertEquals(2, builds.get());
+  }
+
+  private static JSONObject json(int build) {
+    try {
+      return new JSONObject().put("build", build);
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
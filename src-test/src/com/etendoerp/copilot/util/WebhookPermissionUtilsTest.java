@@ -16,6 +16,9 @@
  */
 package com.etendoerp.copilot.util;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
@@ -39,9 +42,11 @@ import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.openbravo.base.provider.OBProvider;
+import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.model.ad.access.Role;
+import org.openbravo.model.ad.access.User;
 import org.openbravo.model.ad.system.Client;
 import org.openbravo.model.common.enterprise.Organization;
 
@@ -85,7 +90,7 @@ public class WebhookPermissionUtilsTest {
     obProviderStatic = mockStatic(OBProvider.class);
     obProviderStatic.when(OBProvider::getInstance).thenReturn(mockOBProvider);
 
-    when(mockOBDal.getSession()).thenReturn(mockSession);
+    lenient().when(mockOBDal.getSession()).thenReturn(mockSession);
     when(mockOBDal.createCriteria(RoleWebhookaccessV.class)).thenReturn(mockCriteria);
     when(mockCriteria.add(any(Criterion.class))).thenReturn(mockCriteria);
 
@@ -178,4 +183,86 @@ public class WebhookPermissionUtilsTest {
 
     verify(mockOBDal).rollbackAndClose();
   }
+
+  /** Test assign missing permissions of a role assigns each webhook once. */
+  @Test
+  public void testAssignMissingPermissionsOfRoleAssignsEachWebhookOnce() {
+    DefinedWebHook webhook = mock(DefinedWebHook.class);
+    when(webhook.getId()).thenReturn("hook-1");
+    RoleWebhookaccessV perm1 = mock(RoleWebhookaccessV.class);
+    RoleWebhookaccessV perm2 = mock(RoleWebhookaccessV.class);
+    when(perm1.getRole()).thenReturn(mockRole);
+    when(perm1.getWebHook()).thenReturn(webhook);
+    when(perm2.getWebHook()).thenReturn(webhook);
+    when(mockCriteria.list()).thenReturn(List.of(perm1, perm2));
+    when(mockOBProvider.get(DefinedwebhookRole.class)).thenReturn(mock(DefinedwebhookRole.class));
+
+    WebhookPermissionUtils.assignMissingPermissions(mockRole);
+
+    verify(mockOBDal, times(1)).save(any(DefinedwebhookRole.class));
+    verify(mockOBDal).flush();
+    verify(mockSession, never()).clear();
+  }
+
+  /** Test the permissions of a role are reconciled once per interval and committed. */
+  @Test
+  public void testScheduleMissingPermissionsRunsOncePerInterval() {
+    OBContext requestContext = mock(OBContext.class);
+    User user = mock(User.class);
+    when(user.getId()).thenReturn("user-schedule");
+    when(requestContext.getUser()).thenReturn(user);
+    when(mockOBDal.get(Role.class, "role-schedule")).thenReturn(mockRole);
+    when(mockCriteria.list()).thenReturn(Collections.emptyList());
+    List<Runnable> submitted = new ArrayList<>();
+
+    try (MockedStatic<OBContext> obContextStatic = mockStatic(OBContext.class)) {
+      obContextStatic.when(OBContext::getOBContext).thenReturn(requestContext);
+      CopilotRuntime.ContextIds context = CopilotRuntime.ContextIds.capture();
+      assertTrue(WebhookPermissionUtils.scheduleMissingPermissions("role-schedule", context, submitted::add));
+      assertFalse(WebhookPermissionUtils.scheduleMissingPermissions("role-schedule", context, submitted::add));
+      submitted.get(0).run();
+
+      obContextStatic.verify(() -> OBContext.setOBContext("user-schedule", null, null, null));
+      obContextStatic.verify(() -> OBContext.setOBContext((OBContext) null));
+      obContextStatic.verify(() -> OBContext.setOBContext(requestContext), never());
+    }
+    assertEquals(1, submitted.size());
+    verify(mockOBDal).commitAndClose();
+  }
+
+  /** Test a failed reconciliation is rolled back and can be retried. */
+  @Test
+  public void testScheduleMissingPermissionsRetriesAfterError() {
+    when(mockOBDal.get(Role.class, "role-error")).thenReturn(mockRole);
+    when(mockCriteria.list()).thenThrow(new RuntimeException("DB error"));
+    List<Runnable> submitted = new ArrayList<>();
+
+    try (MockedStatic<OBContext> ignored = mockStatic(OBContext.class)) {
+      WebhookPermissionUtils.scheduleMissingPermissions("role-error", CopilotRuntime.ContextIds.capture(),
+          submitted::add);
+      submitted.get(0).run();
+      assertTrue(WebhookPermissionUtils.scheduleMissingPermissions("role-error", CopilotRuntime.ContextIds.capture(),
+          submitted::add));
+    }
+    verify(mockOBDal).rollbackAndClose();
+  }
+
+  /** Test the questions of a role can wait until its scheduled permissions are assigned. */
+  @Test
+  public void testAwaitScheduledPermissionsWaitsForPendingAssignment() {
+    when(mockOBDal.get(Role.class, "role-await")).thenReturn(mockRole);
+    when(mockCriteria.list()).thenReturn(Collections.emptyList());
+    List<Runnable> submitted = new ArrayList<>();
+
+    try (MockedStatic<OBContext> ignored = mockStatic(OBContext.class)) {
+      assertTrue(WebhookPermissionUtils.awaitScheduledPermissions("role-await", 0));
+      WebhookPermissionUtils.scheduleMissingPermissions("role-await", CopilotRuntime.ContextIds.capture(),
+          submitted::add);
+      assertFalse(WebhookPermissionUtils.awaitScheduledPermissions("role-await", 0));
+
+      submitted.get(0).run();
+      assertTrue(WebhookPermissionUtils.awaitScheduledPermissions("role-await", 0));
+    }
+    verify(mockOBDal).commitAndClose();
+  }
 }
@@ -0,0 +1,130 @@
+/*************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF  ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and  limitations under the License.
+ * All portions are Copyright (C) 2021-2025 Futit Services S.L.
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ ************************************************************************/
+package com.etendoerp.copilot.modulescript;
+
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openbravo.database.ConnectionProvider;
+import org.openbravo.modulescript.ModuleScript;
+
+/**
+ * Module script that moves the content of the knowledge base file variants to the content
+ * addressed {@code etcop_file_blob} table during update.database.
+ * <p>
+ * Each variant still holding its own copy in {@code filedata} is hashed with SHA-256; the content
+ * is copied to a blob only if no blob with the same hash exists, and the variant is pointed to it.
+ * Copies of the same file for several clients are collapsed into one blob. Finally, the blobs that
+ * no variant points to anymore are deleted. Variants are processed one by one, so only one file is
+ * read at a time.
+ */
+public class DeduplicateFileVariantData extends ModuleScript {
+
+  private static final String PENDING_SQL = "SELECT etcop_file_variant_id FROM etcop_file_variant "
+      + "WHERE filedata IS NOT NULL AND etcop_file_blob_id IS NULL";
+  private static final String READ_SQL = "SELECT filedata FROM etcop_file_variant WHERE etcop_file_variant_id = ?";
+  private static final String INSERT_SQL = "INSERT INTO etcop_file_blob "
+      + "(etcop_file_blob_id, filedata, filesize, created) "
+      + "SELECT ?, filedata, ?, NOW() FROM etcop_file_variant "
+      + "WHERE etcop_file_variant_id = ? "
+      + "AND NOT EXISTS (SELECT 1 FROM etcop_file_blob WHERE etcop_file_blob_id = ?)";
+  private static final String LINK_SQL = "UPDATE etcop_file_variant SET etcop_file_blob_id = ?, filedata = NULL "
+      + "WHERE etcop_file_variant_id = ?";
+  static final String PURGE_SQL = "DELETE FROM etcop_file_blob b WHERE NOT EXISTS ("
+      + "SELECT 1 FROM etcop_file_variant v WHERE v.etcop_file_blob_id = b.etcop_file_blob_id)";
+
+  @Override
+  public void execute() {
+    ConnectionProvider cp = getConnectionProvider();
+    try {
+      for (String variantId : getPendingVariants(cp)) {
+        moveToBlob(cp, variantId);
+      }
+      PreparedStatement purgePs = cp.getPreparedStatement(PURGE_SQL);
+      try {
+        purgePs.executeUpdate();
+      } finally {
+        cp.releasePreparedStatement(purgePs);
+      }
+    } catch (Exception e) {
+      handleError(e);
+    }
+  }
+
+  private List<String> getPendingVariants(ConnectionProvider cp) throws Exception {
+    List<String> variantIds = new ArrayList<>();
+    PreparedStatement ps = cp.getPreparedStatement(PENDING_SQL);
+    try (ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        variantIds.add(rs.getString(1));
+      }
+    } finally {
+      cp.releasePreparedStatement(ps);
+    }
+    return variantIds;
+  }
+
+  private void moveToBlob(ConnectionProvider cp, String variantId) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    long size = 0;
+    PreparedStatement readPs = cp.getPreparedStatement(READ_SQL);
+    try {
+      readPs.setString(1, variantId);
+      try (ResultSet rs = readPs.executeQuery()) {
+        if (!rs.next()) {
+          return;
+        }
+        try (InputStream in = rs.getBinaryStream(1)) {
+          if (in == null) {
+            return;
+          }
+          byte[] buffer = new byte[8192];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            size += read;
+          }
+        }
+      }
+    } finally {
+      cp.releasePreparedStatement(readPs);
+    }
+    String hash = String.format("%064x", new BigInteger(1, digest.digest()));
+
+    PreparedStatement insertPs = cp.getPreparedStatement(INSERT_SQL);
+    try {
+      insertPs.setString(1, hash);
+      insertPs.setLong(2, size);
+      insertPs.setString(3, variantId);
+      insertPs.setString(4, hash);
+      insertPs.executeUpdate();
+    } finally {
+      cp.releasePreparedStatement(insertPs);
+    }
+    PreparedStatement linkPs = cp.getPreparedStatement(LINK_SQL);
+    try {
+      linkPs.setString(1, hash);
+      linkPs.setString(2, variantId);
+      linkPs.executeUpdate();
+    } finally {
+      cp.releasePreparedStatement(linkPs);
+    }
+  }
+}
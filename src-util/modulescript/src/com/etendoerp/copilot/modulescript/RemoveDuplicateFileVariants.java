@@ -0,0 +1,93 @@
+/*************************************************************************
+ * The contents of this file are subject to the Etendo License
+ * (the "License"), you may not use this file except in compliance with
+ * the License.
+ * You may obtain a copy of the License at
+ * https://github.com/etendosoftware/etendo_core/blob/main/legal/Etendo_license.txt
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF  ANY KIND, either express or
+ * implied. See the License for the specific language governing rights
+ * and  limitations under the License.
+ * All portions are Copyright (C) 2021-2025 Futit Services S.L.
+ * All Rights Reserved.
+ * Contributor(s): Futit Services S.L.
+ ************************************************************************/
+package com.etendoerp.copilot.modulescript;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openbravo.database.ConnectionProvider;
+import org.openbravo.modulescript.ModuleScript;
+
+/**
+ * Module script that leaves a single knowledge base file variant per file and client during
+ * update.database, so the {@code ETCOP_FILE_VAR_FILE_CLIENT_UN} unique constraint can be created.
+ * <p>
+ * Of the variants of the same file and client, the one kept is the one with content, in
+ * {@code etcop_file_blob} or in {@code filedata}, last updated; the others are deleted. The variants
+ * are only a copy of the file for the client, created again when the file is synchronized. Finally,
+ * the blobs that no variant points to anymore are deleted.
+ */
+public class RemoveDuplicateFileVariants extends ModuleScript {
+
+  private static final String DUPLICATES_SQL = "SELECT v.etcop_file_variant_id, v.etcop_file_id, v.ad_client_id "
+      + "FROM etcop_file_variant v "
+      + "WHERE EXISTS (SELECT 1 FROM etcop_file_variant o WHERE o.etcop_file_id = v.etcop_file_id "
+      + "AND o.ad_client_id = v.ad_client_id AND o.etcop_file_variant_id <> v.etcop_file_variant_id) "
+      + "ORDER BY v.etcop_file_id, v.ad_client_id, "
+      + "CASE WHEN v.etcop_file_blob_id IS NOT NULL OR v.filedata IS NOT NULL THEN 0 ELSE 1 END, "
+      + "v.updated DESC, v.etcop_file_variant_id";
+  private static final String DELETE_SQL = "DELETE FROM etcop_file_variant WHERE etcop_file_variant_id = ?";
+
+  @Override
+  public void execute() {
+    ConnectionProvider cp = getConnectionProvider();
+    try {
+      List<String> duplicates = getDuplicates(cp);
+      if (duplicates.isEmpty()) {
+        return;
+      }
+      PreparedStatement deletePs = cp.getPreparedStatement(DELETE_SQL);
+      try {
+        for (String variantId : duplicates) {
+          deletePs.setString(1, variantId);
+          deletePs.executeUpdate();
+        }
+      } finally {
+        cp.releasePreparedStatement(deletePs);
+      }
+      PreparedStatement purgePs = cp.getPreparedStatement(DeduplicateFileVariantData.PURGE_SQL);
+      try {
+        purgePs.executeUpdate();
+      } finally {
+        cp.releasePreparedStatement(purgePs);
+      }
+    } catch (Exception e) {
+      handleError(e);
+    }
+  }
+
+  /**
+   * @return the variants to delete: every variant of a file and client but the first one
+   */
+  private List<String> getDuplicates(ConnectionProvider cp) throws Exception {
+    List<String> variantIds = new ArrayList<>();
+    PreparedStatement ps = cp.getPreparedStatement(DUPLICATES_SQL);
+    try (ResultSet rs = ps.executeQuery()) {
+      String previousKey = null;
+      while (rs.next()) {
+        String key = rs.getString(2) + "|" + rs.getString(3);
+        if (key.equals(previousKey)) {
+          variantIds.add(rs.getString(1));
+        }
+        previousKey = key;
+      }
+    } finally {
+      cp.releasePreparedStatement(ps);
+    }
+    return variantIds;
+  }
+}
@@ -0,0 +1,381 @@
+package com.etendoerp.copilot.background;
+
+import static com.etendoerp.copilot.background.BulkTaskExec.TASK_STATUS_IN_PROGRESS;
+import static com.etendoerp.copilot.background.BulkTaskExec.TASK_STATUS_PENDING;
+import static com.etendoerp.copilot.background.BulkTaskExec.TASK_STATUS_REVIEW;
+import static com.etendoerp.copilot.process.AddBulkTasks.getCopilotTaskType;
+import static com.etendoerp.copilot.process.AddBulkTasks.getStatus;
+import static com.etendoerp.copilot.process.ExecTask.processTask;
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.criterion.Restrictions;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.core.SessionHandler;
+import org.openbravo.dal.service.OBCriteria;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.scheduling.ProcessLogger;
+
+import com.etendoerp.copilot.util.CopilotRuntime;
+import com.etendoerp.task.data.Status;
+import com.etendoerp.task.data.Task;
+
+/**
+ * Claims pending Copilot tasks and processes them concurrently.
+ * <p>
+ * A task is claimed by moving it from pending to in progress with a conditional update, so when
+ * several cluster nodes run the process at the same time each task is processed only once. The
+ * engine is configured with:
+ * <ul>
+ *   <li>{@code copilot.bulk.batch.size}: tasks claimed per execution (default 10);</li>
+ *   <li>{@code copilot.bulk.parallelism}: tasks processed at the same time (default
+ *   {@link CopilotRuntime#BACKGROUND_PARALLELISM}), 1 processes them in the process thread;</li>
+ *   <li>{@code copilot.bulk.agent.rpm}: maximum questions per minute sent to each agent by this
+ *   node (default 0, no limit). The rate is shared by all the executions of the process.</li>
+ * </ul>
+ * The process logger is only written by the thread running the process: the tasks processed by
+ * other threads report their outcome, which is logged when they finish.
+ */
+class BulkTaskEngine {
+
+  private static final Logger log = LogManager.getLogger(BulkTaskEngine.class);
+
+  static final String PROP_BATCH_SIZE = "copilot.bulk.batch.size";
+  static final String PROP_PARALLELISM = "copilot.bulk.parallelism";
+  static final String PROP_AGENT_RPM = "copilot.bulk.agent.rpm";
+  private static final int DEFAULT_BATCH_SIZE = 10;
+
+  private static final String CLAIM_HQL = "update " + Task.ENTITY_NAME + " set " + Task.PROPERTY_STATUS
+      + " = :inProgress, " + Task.PROPERTY_UPDATED + " = :now where id = :id and " + Task.PROPERTY_STATUS
+      + " = :pending";
+  private static final String RELEASE_HQL = "update " + Task.ENTITY_NAME + " set " + Task.PROPERTY_STATUS
+      + " = :pending, " + Task.PROPERTY_UPDATED + " = :now where id = :id and " + Task.PROPERTY_STATUS
+      + " = :inProgress";
+
+  private static AgentRateLimiter sharedRateLimiter;
+
+  private final int batchSize;
+  private final int parallelism;
+  private final AgentRateLimiter rateLimiter;
+
+  BulkTaskEngine(int batchSize, int parallelism, long agentRequestsPerMinute) {
+    this(batchSize, parallelism, getRateLimiter(agentRequestsPerMinute));
+  }
+
+  BulkTaskEngine(int batchSize, int parallelism, AgentRateLimiter rateLimiter) {
+    this.batchSize = Math.max(1, batchSize);
+    this.parallelism = Math.max(1, parallelism);
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Returns the rate limiter shared by all the executions, so the rate of each agent is kept
+   * between executions. It is created again if the configured rate changes.
+   *
+   * @param requestsPerMinute
+   *     maximum questions per minute sent to each agent, 0 for no limit
+   * @return the shared rate limiter
+   */
+  static synchronized AgentRateLimiter getRateLimiter(long requestsPerMinute) {
+    if (sharedRateLimiter == null || sharedRateLimiter.requestsPerMinute != requestsPerMinute) {
+      sharedRateLimiter = new AgentRateLimiter(requestsPerMinute);
+    }
+    return sharedRateLimiter;
+  }
+
+  /**
+   * @return an engine configured from {@code Openbravo.properties}
+   */
+  static BulkTaskEngine create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    return new BulkTaskEngine((int) readLong(properties, PROP_BATCH_SIZE, DEFAULT_BATCH_SIZE),
+        (int) readLong(properties, PROP_PARALLELISM, CopilotRuntime.BACKGROUND_PARALLELISM), readLong(properties, PROP_AGENT_RPM, 0L));
+  }
+
+  /**
+   * Claims up to the batch size of pending tasks and commits the claim, so other nodes skip them.
+   *
+   * @return the identifiers of the claimed tasks
+   */
+  List<String> claimTasks() {
+    Status pending = getStatus(TASK_STATUS_PENDING);
+    OBCriteria<Task> crit = OBDal.getInstance().createCriteria(Task.class);
+    crit.add(Restrictions.eq(Task.PROPERTY_STATUS, pending));
+    crit.add(Restrictions.eq(Task.PROPERTY_TASKTYPE, getCopilotTaskType()));
+    crit.setMaxResults(batchSize);
+
+    Status inProgress = getStatus(TASK_STATUS_IN_PROGRESS);
+    List<String> claimed = new ArrayList<>();
+    for (Task task : crit.list()) {
+      int updated = OBDal.getInstance().getSession().createQuery(CLAIM_HQL)
+          .setParameter("inProgress", inProgress)
+          .setParameter("now", new Date())
+          .setParameter("id", task.getId())
+          .setParameter("pending", pending)
+          .executeUpdate();
+      if (updated == 1) {
+        claimed.add(task.getId());
+      }
+    }
+    SessionHandler.getInstance().commitAndStart();
+    return claimed;
+  }
+
+  /**
+   * Moves claimed tasks back to pending, so they are processed by a later execution, and commits.
+   * Only the tasks still in progress are moved.
+   *
+   * @param taskIds
+   *     the identifiers of the claimed tasks that were not started
+   */
+  void releaseTasks(List<String> taskIds) {
+    if (taskIds.isEmpty()) {
+      return;
+    }
+    Status pending = getStatus(TASK_STATUS_PENDING);
+    Status inProgress = getStatus(TASK_STATUS_IN_PROGRESS);
+    for (String taskId : taskIds) {
+      OBDal.getInstance().getSession().createQuery(RELEASE_HQL)
+          .setParameter("pending", pending)
+          .setParameter("now", new Date())
+          .setParameter("id", taskId)
+          .setParameter("inProgress", inProgress)
+          .executeUpdate();
+    }
+    SessionHandler.getInstance().commitAndStart();
+    log.warn("{} claimed tasks were not started, they will be processed later", taskIds.size());
+  }
+
+  /**
+   * Processes the claimed tasks and waits until all of them are finished. If the execution is
+   * interrupted, the tasks that were not started are released.
+   *
+   * @param taskIds
+   *     the identifiers of the claimed tasks
+   * @param logger
+   *     the process logger
+   * @return the counters of the execution
+   */
+  Stats process(List<String> taskIds, ProcessLogger logger) {
+    int threads = Math.max(1, Math.min(parallelism, taskIds.size()));
+    Stats stats = new Stats(System.nanoTime(), threads);
+    if (threads <= 1) {
+      for (String taskId : taskIds) {
+        runTask(taskId, logger, stats);
+      }
+      return stats;
+    }
+
+    CopilotRuntime.ContextIds context = CopilotRuntime.ContextIds.capture();
+    // A task is started by the worker or released by this thread, whichever removes it first
+    Set<String> notStarted = ConcurrentHashMap.newKeySet();
+    notStarted.addAll(taskIds);
+    ExecutorService executor = Executors.newFixedThreadPool(threads, daemonThreads("copilot-bulk-task"));
+    try {
+      List<Future<String>> futures = new ArrayList<>();
+      for (String taskId : taskIds) {
+        futures.add(executor.submit(() -> notStarted.remove(taskId) ? runTaskInWorker(context, taskId, stats) : null));
+      }
+      // The logger is not thread safe, the outcomes are logged from this thread
+      for (Future<String> future : futures) {
+        String outcome = future.get();
+        if (logger != null && outcome != null) {
+          logger.log(outcome);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("Bulk task execution interrupted, {} tasks were not processed", taskIds.size() - stats.count());
+    } catch (ExecutionException e) {
+      log.error("Unexpected error processing bulk tasks", e.getCause());
+    } finally {
+      executor.shutdownNow();
+      List<String> released = new ArrayList<>();
+      for (String taskId : taskIds) {
+        if (notStarted.remove(taskId)) {
+          released.add(taskId);
+        }
+      }
+      releaseTasks(released);
+    }
+    return stats;
+  }
+
+  /**
+   * Processes a task in a worker thread, without the process logger.
+   *
+   * @return the outcome of the task, to be logged by the process thread
+   */
+  private String runTaskInWorker(CopilotRuntime.ContextIds context, String taskId, Stats stats) {
+    context.apply();
+    try {
+      String outcome = runTask(taskId, null, stats);
+      OBDal.getInstance().commitAndClose();
+      return outcome;
+    } catch (Exception e) {
+      log.error("Error processing task {}", taskId, e);
+      OBDal.getInstance().rollbackAndClose();
+      return "Error processing task " + taskId + ": " + e.getMessage() + "\n";
+    } finally {
+      OBContext.setOBContext((OBContext) null);
+    }
+  }
+
+  /**
+   * Processes a task.
+   *
+   * @return the outcome of the task, or null if it no longer exists
+   */
+  private String runTask(String taskId, ProcessLogger logger, Stats stats) {
+    Task task = OBDal.getInstance().get(Task.class, taskId);
+    if (task == null) {
+      return null;
+    }
+    OBDal.getInstance().refresh(task);
+    try {
+      rateLimiter.acquire(task.getETCOPAgent() != null ? task.getETCOPAgent().getId() : null);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      // Release the claim, so the task is processed by a later execution
+      task.setStatus(getStatus(TASK_STATUS_PENDING));
+      OBDal.getInstance().save(task);
+      OBDal.getInstance().flush();
+      SessionHandler.getInstance().commitAndStart();
+      return "Task " + taskId + " released, it will be processed later\n";
+    }
+    long start = System.nanoTime();
+    try {
+      processTask(task, logger);
+    } catch (RuntimeException e) {
+      stats.record(System.nanoTime() - start, false, true);
+      throw e;
+    }
+    String status = task.getStatus() != null ? task.getStatus().getSearchKey() : null;
+    stats.record(System.nanoTime() - start, StringUtils.equals(status, TASK_STATUS_REVIEW), false);
+    return "Processed task " + taskId + " with status " + status + "\n";
+  }
+
+  /**
+   * Spaces the questions sent to each agent so that they do not exceed the configured rate.
+   */
+  static class AgentRateLimiter {
+    private static final int MAX_AGENTS = 1000;
+
+    private final long requestsPerMinute;
+    private final long intervalNanos;
+    private final Map<String, Long> nextSlots = new HashMap<>();
+
+    AgentRateLimiter(long requestsPerMinute) {
+      this.requestsPerMinute = requestsPerMinute;
+      this.intervalNanos = requestsPerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / requestsPerMinute : 0L;
+    }
+
+    /**
+     * Waits until a question can be sent to the agent.
+     *
+     * @param agentId
+     *     the agent identifier
+     * @throws InterruptedException
+     *     if the thread is interrupted while waiting
+     */
+    void acquire(String agentId) throws InterruptedException {
+      long wait = reserve(agentId, System.nanoTime());
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+
+    /**
+     * Reserves the next slot of the agent.
+     *
+     * @return the nanoseconds to wait until the reserved slot
+     */
+    synchronized long reserve(String agentId, long now) {
+      if (intervalNanos == 0L || agentId == null) {
+        return 0L;
+      }
+      if (nextSlots.size() >= MAX_AGENTS) {
+        // Agents whose slot has passed are not limited, there is no need to keep them
+        nextSlots.values().removeIf(next -> next <= now);
+      }
+      long slot = Math.max(now, nextSlots.getOrDefault(agentId, now));
+      nextSlots.put(agentId, slot + intervalNanos);
+      return slot - now;
+    }
+  }
+
+  /**
+   * Throughput and latency counters of an execution.
+   */
+  static class Stats {
+    private final long start;
+    private final int threads;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger review = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    Stats(long start, int threads) {
+      this.start = start;
+      this.threads = threads;
+    }
+
+    void record(long nanos, boolean requiresReview, boolean error) {
+      processed.incrementAndGet();
+      if (requiresReview) {
+        review.incrementAndGet();
+      }
+      if (error) {
+        errors.incrementAndGet();
+      }
+      totalNanos.addAndGet(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    int count() {
+      return processed.get();
+    }
+
+    int getReview() {
+      return review.get();
+    }
+
+    int getErrors() {
+      return errors.get();
+    }
+
+    /**
+     * @return a summary of the execution, to be written to the process log
+     */
+    String summary() {
+      int count = processed.get();
+      long elapsedMs = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      long avgMs = count > 0 ? TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / count) : 0L;
+      return String.format("Processed %d tasks in %d ms with %d threads: %.1f tasks/min, average latency %d ms,"
+              + " max latency %d ms, %d require review, %d errors\n", count, elapsedMs, threads,
+          count * 60000.0 / elapsedMs, avgMs, TimeUnit.NANOSECONDS.toMillis(maxNanos.get()), review.get(),
+          errors.get());
+    }
+  }
+}
@@ -1,21 +1,16 @@
 package com.etendoerp.copilot.background;
 
-import static com.etendoerp.copilot.process.AddBulkTasks.getCopilotTaskType;
-import static com.etendoerp.copilot.process.AddBulkTasks.getStatus;
-import static com.etendoerp.copilot.process.ExecTask.processTask;
-
 import java.util.List;
 
-import org.hibernate.criterion.Restrictions;
-import org.openbravo.dal.core.SessionHandler;
-import org.openbravo.dal.service.OBCriteria;
-import org.openbravo.dal.service.OBDal;
 import org.openbravo.scheduling.ProcessBundle;
 import org.openbravo.scheduling.ProcessLogger;
 import org.openbravo.service.db.DalBaseProcess;
 
-import com.etendoerp.task.data.Task;
-
+/**
+ * Background process that executes the pending Copilot tasks. Each execution claims a batch of
+ * tasks and processes them concurrently with a {@link BulkTaskEngine}, writing its throughput and
+ * latency to the process log.
+ */
 public class BulkTaskExec extends DalBaseProcess {
 
   public static final String TASK_STATUS_IN_PROGRESS = "IP";
@@ -24,32 +19,21 @@ public class BulkTaskExec extends DalBaseProcess {
   public static final String TASK_STATUS_EVAL = "EVAL";
   public static final String TASK_STATUS_REVIEW = "REQ";
   private ProcessLogger logger;
-  private static final int BATCH_SIZE = 10;
 
   @Override
   protected void doExecute(ProcessBundle processBundle) throws Exception {
     logger = processBundle.getLogger();
     logger.log("BulkTaskExec started\n");
 
-
-    OBCriteria<Task> crit = OBDal.getInstance().createCriteria(Task.class);
-    crit.add(Restrictions.eq(Task.PROPERTY_STATUS, getStatus(TASK_STATUS_PENDING)));
-    crit.add(Restrictions.eq(Task.PROPERTY_TASKTYPE, getCopilotTaskType()));
-    crit.setMaxResults(BATCH_SIZE);
-
-    List<Task> tasks = crit.list();
-    logger.log("Found " + tasks.size() + " tasks\n");
-
-    for (Task task : tasks) {
-      task.setStatus(getStatus(TASK_STATUS_IN_PROGRESS));
-      OBDal.getInstance().save(task);
-    }
-    OBDal.getInstance().flush();
-    SessionHandler.getInstance().commitAndStart();
-    for (Task task : tasks) {
-      OBDal.getInstance().refresh(task);
-      processTask(task, logger);
+    BulkTaskEngine engine = BulkTaskEngine.create();
+    List<String> taskIds = engine.claimTasks();
+    logger.log("Found " + taskIds.size() + " tasks\n");
+    if (taskIds.isEmpty()) {
+      return;
     }
+
+    BulkTaskEngine.Stats stats = engine.process(taskIds, logger);
+    logger.log(stats.summary());
   }
 
 
@@ -0,0 +1,79 @@
+package com.etendoerp.copilot.eventhandler;
+
+import javax.enterprise.event.Observes;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.model.ad.access.RoleInheritance;
+import org.openbravo.model.common.enterprise.Organization;
+
+import com.etendoerp.copilot.hook.AgentMemoryCache;
+
+/**
+ * Discards the role inheritances and organizations cached by the {@link AgentMemoryCache} when a
+ * role inheritance or an organization is created, updated or deleted.
+ */
+public class AgentMemoryContextHandler extends EntityPersistenceEventObserver {
+
+  private static Entity[] entities = { ModelProvider.getInstance().getEntity(RoleInheritance.class),
+      ModelProvider.getInstance().getEntity(Organization.class) };
+
+  /**
+   * Returns the entities that this observer listens to.
+   *
+   * @return an array of entities observed by this handler
+   */
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  /**
+   * Handles the creation of a role inheritance or an organization.
+   *
+   * @param event
+   *     the entity new event to be observed
+   */
+  public void onSave(@Observes EntityNewEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  /**
+   * Handles the update of a role inheritance or an organization.
+   *
+   * @param event
+   *     the entity update event to be observed
+   */
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  /**
+   * Handles the deletion of a role inheritance or an organization.
+   *
+   * @param event
+   *     the entity delete event to be observed
+   */
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  private static void invalidate(EntityPersistenceEvent event) {
+    if (event.getTargetInstance() instanceof RoleInheritance) {
+      AgentMemoryCache.invalidateRoles();
+    } else {
+      AgentMemoryCache.invalidateOrganizations();
+    }
+  }
+}
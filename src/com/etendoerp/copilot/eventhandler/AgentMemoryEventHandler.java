@@ -0,0 +1,90 @@
+package com.etendoerp.copilot.eventhandler;
+
+import javax.enterprise.event.Observes;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+
+import com.etendoerp.copilot.data.AgentMemory;
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.hook.AgentMemoryCache;
+import com.etendoerp.copilot.util.PromptCache;
+
+/**
+ * Discards the cached prompts and memory blocks of an agent when one of its memories is created,
+ * updated or deleted, since the memories are included in the prompt by the
+ * {@link com.etendoerp.copilot.hook.AgentMemoryHook}. When a memory is moved to another agent, the
+ * previous agent is invalidated too.
+ */
+public class AgentMemoryEventHandler extends EntityPersistenceEventObserver {
+
+  private static Entity[] entities = { ModelProvider.getInstance().getEntity(AgentMemory.class) };
+
+  /**
+   * Returns the entities that this observer listens to.
+   *
+   * @return an array of entities observed by this handler
+   */
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  /**
+   * Handles the creation of a memory.
+   *
+   * @param event
+   *     the entity new event to be observed
+   */
+  public void onSave(@Observes EntityNewEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  /**
+   * Handles the update of a memory.
+   *
+   * @param event
+   *     the entity update event to be observed
+   */
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+      Object previousAgent = event.getPreviousState(
+          event.getTargetInstance().getEntity().getProperty(AgentMemory.PROPERTY_AGENT));
+      if (previousAgent instanceof CopilotApp) {
+        invalidate(((CopilotApp) previousAgent).getId());
+      }
+    }
+  }
+
+  /**
+   * Handles the deletion of a memory.
+   *
+   * @param event
+   *     the entity delete event to be observed
+   */
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  private static void invalidate(EntityPersistenceEvent event) {
+    AgentMemory memory = (AgentMemory) event.getTargetInstance();
+    if (memory.getAgent() != null) {
+      invalidate(memory.getAgent().getId());
+    }
+  }
+
+  private static void invalidate(String agentId) {
+    PromptCache.invalidateAgent(agentId);
+    AgentMemoryCache.invalidateAgent(agentId);
+  }
+}
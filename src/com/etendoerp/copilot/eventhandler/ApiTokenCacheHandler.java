@@ -0,0 +1,76 @@
+package com.etendoerp.copilot.eventhandler;
+
+import javax.enterprise.event.Observes;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+
+import com.etendoerp.copilot.data.CopilotApiToken;
+import com.etendoerp.copilot.util.ApiTokenCache;
+import com.etendoerp.copilot.util.PromptCache;
+
+/**
+ * Discards the decrypted tokens kept by the {@link ApiTokenCache} when an API token is created,
+ * updated or deleted, since a new token can take precedence over the cached one for its alias. The
+ * prompts and team member payloads kept by the {@link PromptCache} are discarded too, since the
+ * tokens are replaced in them.
+ */
+public class ApiTokenCacheHandler extends EntityPersistenceEventObserver {
+
+  private static Entity[] entities = { ModelProvider.getInstance().getEntity(CopilotApiToken.class) };
+
+  /**
+   * Returns the entities that this observer listens to.
+   *
+   * @return an array of entities observed by this handler
+   */
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  /**
+   * Handles the creation of an API token.
+   *
+   * @param event
+   *     the entity new event to be observed
+   */
+  public void onSave(@Observes EntityNewEvent event) {
+    if (isValidEvent(event)) {
+      invalidate();
+    }
+  }
+
+  /**
+   * Handles the update of an API token.
+   *
+   * @param event
+   *     the entity update event to be observed
+   */
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (isValidEvent(event)) {
+      invalidate();
+    }
+  }
+
+  /**
+   * Handles the deletion of an API token.
+   *
+   * @param event
+   *     the entity delete event to be observed
+   */
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (isValidEvent(event)) {
+      invalidate();
+    }
+  }
+
+  private static void invalidate() {
+    ApiTokenCache.invalidateAll();
+    PromptCache.invalidateAll();
+  }
+}
@@ -17,6 +17,7 @@ import com.etendoerp.copilot.data.CopilotApp;
 import com.etendoerp.copilot.data.CopilotAppSource;
 import com.etendoerp.copilot.util.CopilotAppInfoUtils;
 import com.etendoerp.copilot.util.CopilotUtils;
+import com.etendoerp.copilot.util.PromptCache;
 
 /**
  * This class handles the synchronization status updates for CopilotAppSource entities.
@@ -41,8 +42,8 @@ public class AssistantKBSyncStatusHandler extends EntityPersistenceEventObserver
   }
 
   /**
-   * Handles the update event for CopilotAppSource entities. If the file property of the
-   * CopilotAppSource entity has been modified, it sets the synchronization status of
+   * Handles the update event for CopilotAppSource entities. The cached prompts of the associated
+   * CopilotApp are discarded and, if the file property of the CopilotAppSource entity has been modified, it sets the synchronization status of
    * the associated CopilotApp to 'Pending Synchronization'.
    *
    * @param event
@@ -53,6 +54,7 @@ public class AssistantKBSyncStatusHandler extends EntityPersistenceEventObserver
       return;
     }
     final CopilotAppSource currentAppSource = (CopilotAppSource) event.getTargetInstance();
+    PromptCache.invalidateAgent(currentAppSource.getEtcopApp().getId());
     Object previousValue = event.getPreviousState(
         currentAppSource.getEntity().getProperty(CopilotAppSource.PROPERTY_FILE));
     Object currentValue = event.getCurrentState(
@@ -98,13 +100,15 @@ public class AssistantKBSyncStatusHandler extends EntityPersistenceEventObserver
   }
 
   /**
-   * Changes the synchronization status of the associated CopilotApp to 'Pending Synchronization'.
+   * Changes the synchronization status of the associated CopilotApp to 'Pending Synchronization'
+   * and discards its cached prompts.
    *
    * @param currentAppSource
    *     the CopilotAppSource entity whose associated CopilotApp's status needs to be updated
    */
   private static void changeAssistantStatus(CopilotAppSource currentAppSource) {
     CopilotApp currentAssistant = currentAppSource.getEtcopApp();
+    PromptCache.invalidateAgent(currentAssistant.getId());
     CopilotAppInfoUtils.markAsPendingSynchronization(currentAssistant);
   }
 
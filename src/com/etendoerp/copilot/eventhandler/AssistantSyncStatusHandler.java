@@ -17,6 +17,7 @@ import com.etendoerp.copilot.data.CopilotApp;
 import com.etendoerp.copilot.util.CopilotAppInfoUtils;
 import com.etendoerp.copilot.util.CopilotConstants;
 import com.etendoerp.copilot.util.CopilotUtils;
+import com.etendoerp.copilot.util.PromptCache;
 
 /**
  * This class handles synchronization status updates for CopilotApp entities.
@@ -41,9 +42,9 @@ public class AssistantSyncStatusHandler extends EntityPersistenceEventObserver {
   }
 
   /**
-   * Handles the update event for CopilotApp entities. If any important properties
-   * of the CopilotApp entity have been modified, it sets the synchronization status
-   * of the CopilotApp to 'Pending Synchronization'.
+   * Handles the update event for CopilotApp entities. The cached prompts of the CopilotApp
+   * are discarded and, if any important properties of the CopilotApp entity have been
+   * modified, it sets the synchronization status of the CopilotApp to 'Pending Synchronization'.
    *
    * @param event the entity update event to be observed
    */
@@ -51,6 +52,7 @@ public class AssistantSyncStatusHandler extends EntityPersistenceEventObserver {
     if (!isValidEvent(event)) {
       return;
     }
+    PromptCache.invalidateAgent(((CopilotApp) event.getTargetInstance()).getId());
     final Entity appEntity = ModelProvider.getInstance().getEntity(CopilotApp.ENTITY_NAME);
     if (checkPropertiesChanged(event, appEntity)) {
       CopilotAppInfoUtils.markAsPendingSynchronization((CopilotApp) event.getTargetInstance());
@@ -72,8 +74,7 @@ public class AssistantSyncStatusHandler extends EntityPersistenceEventObserver {
   }
 
   /**
-   * Handles the delete event for CopilotApp entities. This method currently
-   * does not perform any specific actions on delete.
+   * Handles the delete event for CopilotApp entities, discarding its cached prompts.
    *
    * @param event the entity delete event to be observed
    */
@@ -81,6 +82,7 @@ public class AssistantSyncStatusHandler extends EntityPersistenceEventObserver {
     if (!isValidEvent(event)) {
       return;
     }
+    PromptCache.invalidateAgent(((CopilotApp) event.getTargetInstance()).getId());
   }
 
   /**
@@ -0,0 +1,89 @@
+package com.etendoerp.copilot.eventhandler;
+
+import javax.enterprise.event.Observes;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.model.ad.domain.Preference;
+
+import com.etendoerp.copilot.util.CopilotModelRegistry;
+import com.etendoerp.copilot.util.CopilotUtils;
+import com.etendoerp.copilot.util.PromptCache;
+
+/**
+ * Discards the models resolved by the {@link CopilotModelRegistry} when an
+ * {@code ETCOP_DefaultModelOverride} preference is created, updated or deleted, since it selects the
+ * default model, and the prompts kept by the {@link PromptCache} when an
+ * {@code ETCOP_DefaultContextPrompt} preference is, since it is included in every prompt.
+ */
+public class CopilotPreferenceCacheHandler extends EntityPersistenceEventObserver {
+
+  private static Entity[] entities = { ModelProvider.getInstance().getEntity(Preference.class) };
+
+  /**
+   * Returns the entities that this observer listens to.
+   *
+   * @return an array of entities observed by this handler
+   */
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  /**
+   * Handles the creation of a preference.
+   *
+   * @param event
+   *     the entity new event to be observed
+   */
+  public void onSave(@Observes EntityNewEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  /**
+   * Handles the update of a preference.
+   *
+   * @param event
+   *     the entity update event to be observed
+   */
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (isValidEvent(event)) {
+      Entity entity = ModelProvider.getInstance().getEntity(Preference.class);
+      Object previous = event.getPreviousState(entity.getProperty(Preference.PROPERTY_PROPERTY));
+      invalidate((String) previous);
+      invalidate(event);
+    }
+  }
+
+  /**
+   * Handles the deletion of a preference.
+   *
+   * @param event
+   *     the entity delete event to be observed
+   */
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  private static void invalidate(EntityPersistenceEvent event) {
+    invalidate(((Preference) event.getTargetInstance()).getProperty());
+  }
+
+  private static void invalidate(String property) {
+    if (StringUtils.equals(CopilotModelRegistry.OVERRIDE_PREFERENCE, property)) {
+      CopilotModelRegistry.invalidateAll();
+    } else if (StringUtils.equals(CopilotUtils.DEFAULT_PROMPT_PREFERENCE_KEY, property)) {
+      PromptCache.invalidateAll();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.etendoerp.copilot.eventhandler;
+
+import javax.enterprise.event.Observes;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+
+import com.etendoerp.copilot.data.CopilotFile;
+import com.etendoerp.copilot.data.KnowledgeBaseFileVariant;
+import com.etendoerp.copilot.util.FileBlobStore;
+
+/**
+ * Releases the blobs of the {@link FileBlobStore} pointed by a knowledge base file variant, or by
+ * all the variants of a knowledge base file, when they are deleted, so no blob is left without
+ * variants.
+ */
+public class FileBlobReleaseHandler extends EntityPersistenceEventObserver {
+
+  private static Entity[] entities = { ModelProvider.getInstance().getEntity(CopilotFile.class),
+      ModelProvider.getInstance().getEntity(KnowledgeBaseFileVariant.class) };
+
+  /**
+   * Returns the entities that this observer listens to.
+   *
+   * @return an array of entities observed by this handler
+   */
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  /**
+   * Handles the deletion of a knowledge base file or of one of its variants.
+   *
+   * @param event
+   *     the entity delete event to be observed
+   */
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    Object target = event.getTargetInstance();
+    if (target instanceof CopilotFile) {
+      FileBlobStore.releaseFile((CopilotFile) target);
+    } else {
+      FileBlobStore.release((KnowledgeBaseFileVariant) target);
+    }
+  }
+}
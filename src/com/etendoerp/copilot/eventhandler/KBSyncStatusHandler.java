@@ -22,6 +22,7 @@ import com.etendoerp.copilot.data.CopilotTool;
 import com.etendoerp.copilot.util.CopilotConstants;
 import com.etendoerp.copilot.util.CopilotUtils;
 import com.etendoerp.copilot.util.CopilotAppInfoUtils;
+import com.etendoerp.copilot.util.PromptCache;
 
 /**
  * Handles synchronization status updates for the Knowledge Base (KB) in response to entity events.
@@ -43,8 +44,9 @@ public class KBSyncStatusHandler extends EntityPersistenceEventObserver {
   }
 
   /**
-   * Handles the entity update event. Checks if any relevant properties of the {@link CopilotFile} entity
-   * have changed, and if so, updates the synchronization status of the associated application.
+   * Handles the entity update event. Discards the cached prompts including the file and checks if any
+   * relevant properties of the {@link CopilotFile} entity have changed, and if so, updates the
+   * synchronization status of the associated application.
    *
    * @param event The {@link EntityUpdateEvent} to be handled.
    */
@@ -53,6 +55,7 @@ public class KBSyncStatusHandler extends EntityPersistenceEventObserver {
       return;
     }
     final CopilotFile currentFile = (CopilotFile) event.getTargetInstance();
+    PromptCache.invalidateFile(currentFile.getId());
 
     if (checkFilePropertiesChanged(event, currentFile.getEntity())) {
       updateAppSyncStatus(currentFile);
@@ -73,8 +76,8 @@ public class KBSyncStatusHandler extends EntityPersistenceEventObserver {
   }
 
   /**
-   * Handles the entity delete event. Updates the synchronization status of the associated application
-   * when a {@link CopilotFile} is deleted.
+   * Handles the entity delete event. Discards the cached prompts including the file and updates the
+   * synchronization status of the associated application when a {@link CopilotFile} is deleted.
    *
    * @param event The {@link EntityDeleteEvent} to be handled.
    */
@@ -83,6 +86,7 @@ public class KBSyncStatusHandler extends EntityPersistenceEventObserver {
       return;
     }
     final CopilotFile currentFile = (CopilotFile) event.getTargetInstance();
+    PromptCache.invalidateFile(currentFile.getId());
     updateAppSyncStatus(currentFile);
 
     CopilotUtils.logIfDebug("The KB was deleted");
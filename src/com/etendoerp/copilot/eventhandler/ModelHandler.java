@@ -10,16 +10,20 @@ import org.hibernate.criterion.Restrictions;
 import org.openbravo.base.exception.OBException;
 import org.openbravo.base.model.Entity;
 import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
 import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
 import org.openbravo.client.kernel.event.EntityUpdateEvent;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.erpCommon.utility.OBMessageUtils;
 
 import com.etendoerp.copilot.data.CopilotModel;
+import com.etendoerp.copilot.util.CopilotModelRegistry;
 
 /**
  * Handles synchronization status updates for the Copilot application whenever
  * certain events occur on TeamMember entities, such as creation, update, or deletion.
+ * Any change of a model also discards the models resolved by the {@link CopilotModelRegistry}.
  */
 public class ModelHandler extends EntityPersistenceEventObserver {
 
@@ -37,6 +41,30 @@ public class ModelHandler extends EntityPersistenceEventObserver {
     return entities;
   }
 
+  /**
+   * Handles the creation of a model.
+   *
+   * @param event
+   *     the entity new event to be observed
+   */
+  public void onSave(@Observes EntityNewEvent event) {
+    if (isValidEvent(event)) {
+      CopilotModelRegistry.invalidateAll();
+    }
+  }
+
+  /**
+   * Handles the deletion of a model.
+   *
+   * @param event
+   *     the entity delete event to be observed
+   */
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (isValidEvent(event)) {
+      CopilotModelRegistry.invalidateAll();
+    }
+  }
+
   /**
    * Handles the update event for TeamMember entities. If the TeamMember's associated
    * member or CopilotApp has changed, it updates the synchronization status of the
@@ -49,6 +77,7 @@ public class ModelHandler extends EntityPersistenceEventObserver {
     if (!isValidEvent(event)) {
       return;
     }
+    CopilotModelRegistry.invalidateAll();
     Entity e = ModelProvider.getInstance().getEntity(CopilotModel.class);
     var propDefault = e.getProperty(CopilotModel.PROPERTY_DEFAULT);
     var propDefaultOverride = e.getProperty(CopilotModel.PROPERTY_DEFAULTOVERRIDE);
@@ -0,0 +1,84 @@
+package com.etendoerp.copilot.eventhandler;
+
+import javax.enterprise.event.Observes;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.model.ad.access.Role;
+import org.openbravo.model.ad.access.User;
+import org.openbravo.model.ad.access.UserRoles;
+
+import com.etendoerp.copilot.util.SWSTokenCache;
+
+/**
+ * Discards the secure web service tokens kept by the {@link SWSTokenCache} when a user or a role is
+ * changed or deleted, or when a role is granted to or revoked from a user, so the agents do not keep
+ * calling the Etendo web services with outdated permissions.
+ */
+public class SWSTokenCacheHandler extends EntityPersistenceEventObserver {
+
+  private static Entity[] entities = { ModelProvider.getInstance().getEntity(Role.class),
+      ModelProvider.getInstance().getEntity(User.class), ModelProvider.getInstance().getEntity(UserRoles.class) };
+
+  /**
+   * Returns the entities that this observer listens to.
+   *
+   * @return an array of entities observed by this handler
+   */
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  /**
+   * Handles the creation of a user role.
+   *
+   * @param event
+   *     the entity new event to be observed
+   */
+  public void onSave(@Observes EntityNewEvent event) {
+    if (isValidEvent(event) && event.getTargetInstance() instanceof UserRoles) {
+      invalidate(event);
+    }
+  }
+
+  /**
+   * Handles the update of a user, a role or a user role.
+   *
+   * @param event
+   *     the entity update event to be observed
+   */
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  /**
+   * Handles the deletion of a user, a role or a user role.
+   *
+   * @param event
+   *     the entity delete event to be observed
+   */
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (isValidEvent(event)) {
+      invalidate(event);
+    }
+  }
+
+  private static void invalidate(EntityPersistenceEvent event) {
+    Object target = event.getTargetInstance();
+    if (target instanceof Role) {
+      SWSTokenCache.invalidateRole(((Role) target).getId());
+    } else if (target instanceof User) {
+      SWSTokenCache.invalidateUser(((User) target).getId());
+    } else if (target instanceof UserRoles && ((UserRoles) target).getUserContact() != null) {
+      SWSTokenCache.invalidateUser(((UserRoles) target).getUserContact().getId());
+    }
+  }
+}
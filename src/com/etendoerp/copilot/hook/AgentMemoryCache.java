@@ -0,0 +1,189 @@
+package com.etendoerp.copilot.hook;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+import com.etendoerp.copilot.util.CopilotRuntime;
+
+/**
+ * Cache of the lookups done by the {@link AgentMemoryHook} on every question:
+ * <ul>
+ *   <li>the roles a role inherits from, flattened;</li>
+ *   <li>the organization and its parents, per client;</li>
+ *   <li>the memory block added to the prompt, per agent, user, role and organization.</li>
+ * </ul>
+ * The entries are kept for {@code copilot.memory.cache.ttl} seconds (default 300, 0 disables the
+ * cache). The memory blocks of an agent are discarded when one of its memories is created, updated
+ * or deleted, the roles when a role inheritance changes and the organizations when an organization
+ * changes, as notified by the {@link com.etendoerp.copilot.eventhandler.AgentMemoryEventHandler} and
+ * the {@link com.etendoerp.copilot.eventhandler.AgentMemoryContextHandler}; the changes made in other
+ * cluster nodes, or in the organization tree, are picked up when the entries expire.
+ */
+public class AgentMemoryCache {
+
+  public static final String PROP_TTL = "copilot.memory.cache.ttl";
+  private static final long DEFAULT_TTL_S = 300L;
+  private static final int MAX_ENTRIES = 1000;
+  private static final String SEPARATOR = "|";
+
+  private static final CopilotRuntime.Shared<AgentMemoryCache> INSTANCE = new CopilotRuntime.Shared<>(
+      AgentMemoryCache::create);
+
+  private final CopilotRuntime.TtlCache<Set<String>> roles;
+  private final CopilotRuntime.TtlCache<Set<String>> organizations;
+  private final CopilotRuntime.TtlCache<String> memories;
+  private final long ttlNanos;
+
+  AgentMemoryCache(long ttlSeconds, LongSupplier clock) {
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0L, ttlSeconds));
+    this.roles = new CopilotRuntime.TtlCache<>("Agent memory roles", MAX_ENTRIES, clock);
+    this.organizations = new CopilotRuntime.TtlCache<>("Agent memory organizations", MAX_ENTRIES, clock);
+    this.memories = new CopilotRuntime.TtlCache<>("Agent memory", MAX_ENTRIES, clock);
+  }
+
+  /**
+   * Returns the shared cache, configured from {@code Openbravo.properties} on first use.
+   *
+   * @return the shared {@link AgentMemoryCache}
+   */
+  public static AgentMemoryCache getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static AgentMemoryCache create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    return new AgentMemoryCache(readLong(properties, PROP_TTL, DEFAULT_TTL_S), System::nanoTime);
+  }
+
+  /**
+   * Replaces the shared cache, for testing purposes.
+   *
+   * @param cache
+   *     the cache to use, or null to create it again on next use
+   */
+  static void setInstance(AgentMemoryCache cache) {
+    INSTANCE.set(cache);
+  }
+
+  /**
+   * Returns the identifiers of a role and of the roles it inherits from.
+   *
+   * @param roleId
+   *     the role identifier
+   * @param loader
+   *     walks the role inheritance on a cache miss
+   * @return the role identifiers
+   */
+  public Set<String> getRoleIds(String roleId, Supplier<Set<String>> loader) {
+    return get(roles, roleId, () -> Set.copyOf(loader.get()));
+  }
+
+  /**
+   * Returns the identifiers of an organization and of its parents.
+   *
+   * @param clientId
+   *     the client of the organization tree
+   * @param orgId
+   *     the organization identifier
+   * @param loader
+   *     reads the organization tree on a cache miss
+   * @return the organization identifiers
+   */
+  public Set<String> getOrgIds(String clientId, String orgId, Supplier<Set<String>> loader) {
+    return get(organizations, clientId + SEPARATOR + orgId, () -> Set.copyOf(loader.get()));
+  }
+
+  /**
+   * Returns the memory block of an agent for a user, role and organization.
+   *
+   * @param agentId
+   *     the agent identifier
+   * @param userId
+   *     the user identifier
+   * @param roleId
+   *     the role identifier, can be null
+   * @param orgId
+   *     the organization identifier
+   * @param loader
+   *     reads the memories and renders the block on a cache miss
+   * @return the memory block, empty if there are no memories
+   */
+  public String getMemories(String agentId, String userId, String roleId, String orgId, Supplier<String> loader) {
+    String key = String.join(SEPARATOR, agentId, userId, StringUtils.defaultString(roleId), orgId);
+    return get(memories, key, loader);
+  }
+
+  private <V> V get(CopilotRuntime.TtlCache<V> cache, String key, Supplier<V> loader) {
+    if (ttlNanos == 0L) {
+      return loader.get();
+    }
+    return cache.get(key, loader::get, ttlNanos);
+  }
+
+  /**
+   * Discards the memory blocks of an agent. Does nothing if the cache has not been used yet.
+   *
+   * @param agentId
+   *     the agent identifier
+   */
+  public static void invalidateAgent(String agentId) {
+    AgentMemoryCache cache = INSTANCE.peek();
+    if (cache != null && agentId != null) {
+      cache.memories.invalidate((key, memory) -> key.startsWith(agentId + SEPARATOR));
+    }
+  }
+
+  /**
+   * Discards the role inheritances and the memory blocks, which depend on them. Does nothing if the
+   * cache has not been used yet.
+   */
+  public static void invalidateRoles() {
+    AgentMemoryCache cache = INSTANCE.peek();
+    if (cache != null) {
+      cache.roles.clear();
+      cache.memories.clear();
+    }
+  }
+
+  /**
+   * Discards the organization trees and the memory blocks, which depend on them. Does nothing if the
+   * cache has not been used yet.
+   */
+  public static void invalidateOrganizations() {
+    AgentMemoryCache cache = INSTANCE.peek();
+    if (cache != null) {
+      cache.organizations.clear();
+      cache.memories.clear();
+    }
+  }
+
+  /**
+   * @return the hit and miss counters of every kind of lookup
+   */
+  public String getStats() {
+    return String.format("AgentMemoryCache[roles=%s, organizations=%s, memories=%s]", roles, organizations,
+        memories);
+  }
+
+  /**
+   * @return the number of memory blocks served from the cache
+   */
+  public long getMemoryHits() {
+    return memories.getHits();
+  }
+
+  /**
+   * @return the number of memory blocks that had to be read
+   */
+  public long getMemoryMisses() {
+    return memories.getMisses();
+  }
+}
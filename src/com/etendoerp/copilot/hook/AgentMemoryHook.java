@@ -1,5 +1,6 @@
 package com.etendoerp.copilot.hook;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -12,7 +13,6 @@ import javax.inject.Inject;
 import org.hibernate.query.Query;
 import org.openbravo.base.exception.OBException;
 import org.openbravo.dal.core.OBContext;
-import org.openbravo.dal.security.OrganizationStructureProvider;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.model.ad.access.Role;
 import org.openbravo.model.ad.access.RoleInheritance;
@@ -55,6 +55,23 @@ public class AgentMemoryHook implements OpenAIPromptHook {
   private static final org.apache.logging.log4j.Logger log = org.apache.logging.log4j.LogManager
       .getLogger();
 
+  /**
+   * Memories of an agent visible for a user, its roles and its organizations. The query string is
+   * constant so Hibernate parses it once and reuses the plan from its query plan cache.
+   * <ul>
+   *   <li>User filter: if userContact is set it must be the current user; if null, include</li>
+   *   <li>Role filter: if role is set it must be in the role list; if null, include</li>
+   *   <li>Organization filter: if org is set it must be in the parent list; if null, include</li>
+   * </ul>
+   */
+  private static final String MEMORIES_HQL = "select am from etcop_memory as am"
+      + " where am.active = true"
+      + " and am.agent.id = :agentId"
+      + " and (am.userContact.id = :userId or am.userContact is null)"
+      + " and (am.role.id in :roleIds or am.role is null)"
+      + " and (am.organization.id in :orgIds or am.organization is null)"
+      + " order by am.creationDate";
+
   /**
    * Executes the agent memory hook to retrieve relevant memory context for AI prompts.
    *
@@ -66,6 +83,9 @@ public class AgentMemoryHook implements OpenAIPromptHook {
    *   <li>Formats the retrieved memory data as contextual information for the AI prompt</li>
    * </ol>
    *
+   * <p>The organization hierarchy, the inherited roles and the formatted memory context are kept in
+   * the {@link AgentMemoryCache}, so these steps are only done on a cache miss.</p>
+   *
    * <p>The query filters memory records using the following criteria:</p>
    * <ul>
    *   <li><strong>Agent ID:</strong> Must match the provided app's agent ID exactly</li>
@@ -83,76 +103,61 @@ public class AgentMemoryHook implements OpenAIPromptHook {
   @Override
   public String exec(CopilotApp app) throws OBException {
     try {
-      // Obtain the organization structure provider
       OBContext obContext = OBContext.getOBContext();
       Organization currentOrg = obContext.getCurrentOrganization();
       if (currentOrg == null) {
         log.warn("Current organization is null in OBContext, returning empty memory context");
         return "";
       }
-
-      OrganizationStructureProvider osp = obContext
-          .getOrganizationStructureProvider();
-      List<Organization> orgList = osp.getParentList(currentOrg.getId(),
-          true).stream().map(
-          orgId -> OBDal.getInstance().get(Organization.class, orgId)).collect(Collectors.toList());
-      var orgIds = orgList.stream().map(Organization::getId).collect(Collectors.toSet());
       User user = obContext.getUser();
       if (user == null) {
         log.warn("Current user is null in OBContext, returning empty memory context");
         return "";
       }
-
       Role currentRole = obContext.getRole();
+      String roleId = currentRole != null ? currentRole.getId() : null;
 
-      Set<String> roleIds = new HashSet<>();
-      if (currentRole != null) {
-        Set<Role> roles = getRolesByInheritance(currentRole);
-        roleIds = roles.stream().map(Role::getId).collect(Collectors.toSet());
-      }
-
-      // Build the HQL query
-      StringBuilder hql = new StringBuilder();
-      hql.append("select am from etcop_memory as am where ");
-
-      hql.append("am.active = true ");
-      // Agent filter: must match exactly
-      hql.append("and am.agent.id = :agentId ");
-
-      // User filter: if userContact is set it must be the current user; if null, include
-      hql.append("and (am.userContact.id = :userId or am.userContact is null) ");
-
-      // Role filter: if role is set it must be in my list; if null, include
-      hql.append("and (am.role.id in :roleIds or am.role is null) ");
-
-      // Organization filter: if org is set it must be in the parent list; if null, include
-      hql.append("and (am.organization.id in :orgIds or am.organization is null)");
-      hql.append(" order by am.creationDate  ");
-
-      Query<AgentMemory> query = OBDal.getInstance()
-          .getSession()
-          .createQuery(hql.toString(), AgentMemory.class)
-          .setParameter("agentId", app.getId())
-          .setParameter("userId", user.getId())
-          .setParameterList("roleIds", roleIds)
-          .setParameterList("orgIds", orgIds);
-
-      List<AgentMemory> results = query.list();
-      if (results.isEmpty()) {
-        return "";
-      }
-      StringBuilder memoryContent = new StringBuilder();
-      memoryContent.append("Use the following relevant previous information to answer the user request:\n");
-      for (AgentMemory am : results) {
-        memoryContent.append(String.format("- %s%n", am.getTextField()));
-      }
-      return memoryContent.toString();
+      AgentMemoryCache cache = AgentMemoryCache.getInstance();
+      return cache.getMemories(app.getId(), user.getId(), roleId, currentOrg.getId(),
+          () -> readMemories(app, user, currentRole, currentOrg, obContext));
     } catch (Exception e) {
       log.error("Error executing AgentMemoryHook", e);
       return "";
     }
   }
 
+  private String readMemories(CopilotApp app, User user, Role currentRole, Organization currentOrg,
+      OBContext obContext) {
+    AgentMemoryCache cache = AgentMemoryCache.getInstance();
+    String clientId = obContext.getCurrentClient() != null ? obContext.getCurrentClient().getId() : "";
+    Set<String> orgIds = cache.getOrgIds(clientId, currentOrg.getId(),
+        () -> obContext.getOrganizationStructureProvider().getParentList(currentOrg.getId(), true)
+            .stream()
+            .collect(Collectors.toSet()));
+    Set<String> roleIds = currentRole == null ? Collections.emptySet()
+        : cache.getRoleIds(currentRole.getId(),
+            () -> getRolesByInheritance(currentRole).stream().map(Role::getId).collect(Collectors.toSet()));
+
+    Query<AgentMemory> query = OBDal.getInstance()
+        .getSession()
+        .createQuery(MEMORIES_HQL, AgentMemory.class)
+        .setParameter("agentId", app.getId())
+        .setParameter("userId", user.getId())
+        .setParameterList("roleIds", roleIds)
+        .setParameterList("orgIds", orgIds);
+
+    List<AgentMemory> results = query.list();
+    if (results.isEmpty()) {
+      return "";
+    }
+    StringBuilder memoryContent = new StringBuilder();
+    memoryContent.append("Use the following relevant previous information to answer the user request:\n");
+    for (AgentMemory am : results) {
+      memoryContent.append(String.format("- %s%n", am.getTextField()));
+    }
+    return memoryContent.toString();
+  }
+
   /**
    * Retrieves all roles accessible to a given role through the role inheritance hierarchy.
    *
@@ -16,7 +16,9 @@ public interface CopilotQuestionHook {
    * @param app
    *     The CopilotApp for which to execute the hook.
    * @param json
-   *     The JSON object to be processed by the hook.
+   *     The JSON object to be processed by the hook. Some of its values, like the tools or the
+   *     authentication, are shared with the rest of the request; a hook that changes one of them
+   *     must put a changed copy instead.
    * @throws OBException
    *     If there is an error executing the hook.
    */
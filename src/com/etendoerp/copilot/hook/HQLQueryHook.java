@@ -1,35 +1,75 @@
 package com.etendoerp.copilot.hook;
 
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
 import static com.etendoerp.copilot.util.FileUtils.refreshFileForNonMultiClient;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hibernate.criterion.Restrictions;
 import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.erpCommon.utility.OBMessageUtils;
 import org.openbravo.model.ad.system.Client;
 
 import com.etendoerp.copilot.data.CopilotFile;
+import com.etendoerp.copilot.data.KnowledgeBaseFileVariant;
+import com.etendoerp.copilot.util.CopilotRuntime;
 import com.etendoerp.copilot.util.CopilotVarReplacerUtil;
+import com.etendoerp.copilot.util.FileBlobStore;
 import com.etendoerp.copilot.util.FileUtils;
 
 /**
  * This class implements the CopilotFileHook interface and provides functionality
  * for handling remote files.
+ * <p>
+ * The result of the query is generated for every client concurrently, by a pool of
+ * {@code copilot.hql.parallelism} threads (by default one per processor, between 2 and 4) shared by
+ * all the HQL files. Every client is
+ * written to its own file by {@link ProcessHQLAppSource#writeHQLResult}, which reads the rows in
+ * its own session. The clients whose result has the same hash as the one stored for them are not
+ * stored again.
  */
 public class HQLQueryHook implements CopilotFileHook {
 
   // Logger for this class
   private static final Logger log = LogManager.getLogger(HQLQueryHook.class);
 
+  public static final String PROP_PARALLELISM = "copilot.hql.parallelism";
+
+  private static ExecutorService sharedExecutor;
+
+  private final Executor executor;
+
+  /**
+   * Creates the hook using the shared pool of generation threads.
+   */
+  public HQLQueryHook() {
+    this(null);
+  }
+
+  HQLQueryHook(Executor executor) {
+    this.executor = executor;
+  }
+
   /**
    * Executes the hook for a given CopilotFile.
    *
@@ -48,24 +88,35 @@ public class HQLQueryHook implements CopilotFileHook {
     String fileName = hookObject.getFilename();
     //download the file from the URL, preserving the original name, if filename is not empty, use it instead. The file must be
     //stored in a temporary folder.
-    Map<Client, Path> clientPathMap = new HashMap<>();
+    Map<Client, Path> clientPathMap = new LinkedHashMap<>();
+    Map<Client, FutureTask<String>> results = new LinkedHashMap<>();
     try {
       String hql = hookObject.getHql();
       String extension = StringUtils.substringAfterLast(fileName, ".");
 
       List<Client> clientList = OBDal.getInstance().createCriteria(Client.class).list();
+      CopilotRuntime.ContextIds context = CopilotRuntime.ContextIds.capture();
+      Executor pool = executor != null ? executor : getSharedExecutor();
       for (Client client : clientList) {
-        String hqlResult = ProcessHQLAppSource.getHQLResult(hql, "e", extension, client.getId());
         Path path = FileUtils.createSecureTempFile("hql_query_result_" + client.getId() + "_", "." + extension);
-        try (FileOutputStream fos = new FileOutputStream(path.toFile())) {
-          fos.write(hqlResult.getBytes());
-        }
         clientPathMap.put(client, path);
+        String clientId = client.getId();
+        FutureTask<String> result = new FutureTask<>(() -> generate(context, hql, extension, clientId, path));
+        results.put(client, result);
+        pool.execute(result);
+      }
+      Map<Client, String> hashes = new HashMap<>();
+      for (Map.Entry<Client, FutureTask<String>> entry : results.entrySet()) {
+        hashes.put(entry.getKey(), await(entry.getValue()));
       }
-      refreshFileForNonMultiClient(hookObject, clientPathMap);
+      refreshFileForNonMultiClient(hookObject, getChangedClients(hookObject, clientPathMap, hashes));
     } catch (IOException e) {
       throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_FileDownErr"), url), e);
     } finally {
+      // Stop generating the results of the other clients if one of them failed
+      for (FutureTask<String> result : results.values()) {
+        result.cancel(true);
+      }
       // Clean up the temporary file if it's not being used as a Knowledge Base file
       for (Path path : clientPathMap.values()) {
         FileUtils.cleanupTempFileIfNeeded(hookObject, path);
@@ -74,6 +125,101 @@ public class HQLQueryHook implements CopilotFileHook {
 
   }
 
+  /**
+   * Writes the result of the query for a client and returns its hash. Runs in a generation thread,
+   * in admin mode with a context created from the one of the caller.
+   */
+  private static String generate(CopilotRuntime.ContextIds context, String hql, String extension, String clientId,
+      Path path) throws IOException {
+    OBContext previousContext = OBContext.getOBContext();
+    context.apply();
+    OBContext.setAdminMode(true);
+    try {
+      long start = System.currentTimeMillis();
+      long rows = ProcessHQLAppSource.writeHQLResult(hql, "e", extension, clientId, path);
+      log.debug("HQL result of client {} generated in {} ms: {} rows", clientId, System.currentTimeMillis() - start,
+          rows);
+      return FileBlobStore.hash(path);
+    } finally {
+      OBContext.restorePreviousMode();
+      OBContext.setOBContext(previousContext);
+    }
+  }
+
+  private static String await(FutureTask<String> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OBException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new OBException(cause);
+    }
+  }
+
+  /**
+   * Returns the clients whose result is not the one already stored for them. The files of the
+   * unchanged clients are deleted.
+   */
+  private static Map<Client, Path> getChangedClients(CopilotFile hookObject, Map<Client, Path> clientPathMap,
+      Map<Client, String> hashes) throws IOException {
+    Map<String, KnowledgeBaseFileVariant> variants = new HashMap<>();
+    List<KnowledgeBaseFileVariant> variantList = OBDal.getInstance()
+        .createCriteria(KnowledgeBaseFileVariant.class)
+        .add(Restrictions.eq(KnowledgeBaseFileVariant.PROPERTY_KBFILE, hookObject))
+        .list();
+    for (KnowledgeBaseFileVariant variant : variantList) {
+      variants.put(variant.getClient().getId(), variant);
+    }
+    boolean useTemp = FileUtils.useFileFromTemp(hookObject);
+    Map<Client, Path> changed = new LinkedHashMap<>();
+    for (Map.Entry<Client, Path> entry : clientPathMap.entrySet()) {
+      Client client = entry.getKey();
+      KnowledgeBaseFileVariant variant = variants.get(client.getId());
+      String storedHash = variant != null ? getStoredHash(variant, useTemp) : null;
+      if (storedHash != null && StringUtils.equals(storedHash, hashes.get(client))) {
+        log.debug("HQL result of client {} for file {} is unchanged", client.getId(), hookObject.getName());
+        if (useTemp) {
+          FileUtils.cleanupTempFile(entry.getValue(), true);
+        }
+      } else {
+        changed.put(client, entry.getValue());
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Returns the hash of the result stored for a client: the blob of its variant or, when the file is
+   * only used by knowledge bases, the file the variant points to, if it still exists.
+   */
+  private static String getStoredHash(KnowledgeBaseFileVariant variant, boolean useTemp) throws IOException {
+    if (!useTemp) {
+      return FileBlobStore.getHash(variant);
+    }
+    String internalPath = variant.getInternalPath();
+    if (StringUtils.isEmpty(internalPath) || !Files.isRegularFile(Paths.get(internalPath))) {
+      return null;
+    }
+    return FileBlobStore.hash(Paths.get(internalPath));
+  }
+
+  private static synchronized Executor getSharedExecutor() {
+    if (sharedExecutor == null) {
+      Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+      int parallelism = (int) Math.max(1L,
+          readLong(properties, PROP_PARALLELISM, CopilotRuntime.REQUEST_PARALLELISM));
+      sharedExecutor = Executors.newFixedThreadPool(parallelism, daemonThreads("copilot-hql"));
+    }
+    return sharedExecutor;
+  }
 
   /**
    * Checks if the hook is applicable for the given type.
@@ -1,22 +1,35 @@
 package com.etendoerp.copilot.hook;
 
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.query.Query;
 import org.openbravo.base.exception.OBException;
 import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.base.session.SessionFactoryController;
 import org.openbravo.base.structure.BaseOBObject;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBDal;
@@ -34,6 +47,11 @@ public class ProcessHQLAppSource {
   private static final String WHERE = " WHERE ";
   public static final String CLIENT_ID = "clientId";
   public static final String ORGANIZATIONS = "organizations";
+  private static final Logger log = LogManager.getLogger(ProcessHQLAppSource.class);
+  static final String PROP_MAX_ROWS = "copilot.hql.max.rows";
+  static final String PROP_MAX_BYTES = "copilot.hql.max.bytes";
+  static final String PROP_FETCH_SIZE = "copilot.hql.fetch.size";
+  private static final long DEFAULT_FETCH_SIZE = 1000L;
 
   public static ProcessHQLAppSource getInstance() {
     return INSTANCE;
@@ -46,9 +64,9 @@ public class ProcessHQLAppSource {
       String hql = appSource.getFile().getHql();
       hql = hql.replaceAll("\\r\\n|\\r|\\n", " ");
 
-      String result = getHQLResult(hql, "e", extension, OBContext.getOBContext().getCurrentClient().getId());
-
-      return createAttachment(fileName, result);
+      Path tempFile = FileUtils.createSecureTempDirectory("temporary_queries").resolve(fileName);
+      writeHQLResult(hql, "e", extension, OBContext.getOBContext().getCurrentClient().getId(), tempFile);
+      return tempFile.toFile();
     } catch (IOException e) {
       throw new OBException(
           String.format(String.format(OBMessageUtils.messageBD("ETCOP_HQLGenErr"), e)));
@@ -101,17 +119,6 @@ public class ProcessHQLAppSource {
     return full_name;
   }
 
-  private File createAttachment(String fileName, String result) throws IOException {
-    Path tempDirectory = FileUtils.createSecureTempDirectory("temporary_queries");
-    Path tempFile = tempDirectory.resolve(fileName);
-    try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile.toFile())) {
-      fileOutputStream.write(result.getBytes());
-    } catch (FileNotFoundException e) {
-      throw new OBException(e);
-    }
-    return new File(tempFile.toString());
-  }
-
   /**
    * Retrieves the result of an HQL query and formats it based on the specified extension.
    * This method applies client and organization filters to the query.
@@ -123,8 +130,81 @@ public class ProcessHQLAppSource {
    * @return A string representation of the query results.
    */
   public static String getHQLResult(String hql, String entityAlias, String extension, String clientId) {
-    boolean isCsv = StringUtils.equalsIgnoreCase(extension, "csv");
-    final org.hibernate.Session session = OBDal.getInstance().getSession();
+    var qry = createFilteredQuery(OBDal.getInstance().getSession(), hql, entityAlias, clientId);
+    var resultList = qry.getResultList();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (RowWriter writer = new RowWriter(out, isCsv(extension), 0L, 0L)) {
+      writer.writeHeaders(qry.getReturnAliases());
+      for (Object resultObject : resultList) {
+        writer.write(resultObject);
+      }
+    } catch (IOException e) {
+      throw new OBException(e);
+    }
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes the result of an HQL query to a file, formatted based on the specified extension, with
+   * the same client and organization filters and format as {@link #getHQLResult}.
+   * <p>
+   * The rows are read with a forward-only cursor in a separate read-only session, which is cleared
+   * every {@code copilot.hql.fetch.size} rows (default 1000), and written as they are read, so the
+   * memory used does not depend on the size of the result. The file can be limited with the
+   * {@code copilot.hql.max.rows} and {@code copilot.hql.max.bytes} properties (default 0, no limit);
+   * the rows after the limit are not written.
+   *
+   * @param hql The HQL query string.
+   * @param entityAlias The alias for the entity in the HQL query.
+   * @param extension The file extension (e.g., "csv", "json") to determine the format.
+   * @param clientId The client ID to filter the results.
+   * @param target The file to write.
+   * @return The number of rows written.
+   * @throws IOException If the file cannot be written.
+   */
+  public static long writeHQLResult(String hql, String entityAlias, String extension, String clientId,
+      Path target) throws IOException {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    long maxRows = readLong(properties, PROP_MAX_ROWS, 0L);
+    long maxBytes = readLong(properties, PROP_MAX_BYTES, 0L);
+    int fetchSize = (int) Math.max(1L, readLong(properties, PROP_FETCH_SIZE, DEFAULT_FETCH_SIZE));
+
+    Session session = SessionFactoryController.getInstance().getSessionFactory().openSession();
+    Transaction transaction = session.beginTransaction();
+    session.setDefaultReadOnly(true);
+    try (RowWriter writer = new RowWriter(new BufferedOutputStream(Files.newOutputStream(target)),
+        isCsv(extension), maxRows, maxBytes)) {
+      var qry = createFilteredQuery(session, hql, entityAlias, clientId);
+      qry.setFetchSize(fetchSize);
+      writer.writeHeaders(qry.getReturnAliases());
+      try (ScrollableResults results = qry.scroll(ScrollMode.FORWARD_ONLY)) {
+        while (results.next()) {
+          Object[] row = results.get();
+          if (!writer.write(row.length == 1 ? row[0] : row)) {
+            log.warn("The result of the HQL query was truncated to {} rows and {} bytes: {}", writer.getRows(),
+                writer.getBytes(), hql);
+            break;
+          }
+          if (writer.getRows() % fetchSize == 0) {
+            session.clear();
+          }
+        }
+      }
+      return writer.getRows();
+    } finally {
+      transaction.rollback();
+      session.close();
+    }
+  }
+
+  private static boolean isCsv(String extension) {
+    return StringUtils.equalsIgnoreCase(extension, "csv");
+  }
+
+  /**
+   * Creates the query adding the client and organization filters to the HQL.
+   */
+  private static Query<?> createFilteredQuery(Session session, String hql, String entityAlias, String clientId) {
     Map<String, String> parameters = new HashMap<>();
     String additionalFilter = entityAlias + ".client.id in ('0', :clientId)";
     // client filter
@@ -151,27 +231,7 @@ public class ProcessHQLAppSource {
       parameters.remove(ORGANIZATIONS);
     }
     parameters.forEach(qry::setParameter);
-    List<String> results = new ArrayList<>();
-    var resultList = qry.getResultList();
-    var headersArray = qry.getReturnAliases();
-    if (isCsv && headersArray != null) {
-      results.add(String.join(", ", headersArray));
-    }
-    for (Object resultObject : resultList) {
-      if (!resultObject.getClass().isArray()) {
-        results.add(printObject(resultObject));
-        continue;
-      }
-      final Object[] values = (Object[]) resultObject;
-      var listColumnValues = Arrays.stream(values)
-          .map(ProcessHQLAppSource::printObject).collect(Collectors.toList());
-      if (!isCsv) {
-        addAliasesForColumns(listColumnValues, headersArray);
-      }
-
-      results.add(String.join(isCsv ? ", " : "\n", listColumnValues));
-    }
-    return String.join(isCsv ? "\n" : "\n\n", results);
+    return qry;
   }
 
   /**
@@ -237,4 +297,94 @@ public class ProcessHQLAppSource {
     return "/" + contextName + "/" + bob.getEntityName() + "/" + bob.getId() + "/" + title;
   }
 
+  /**
+   * Writes the rows of a query result, as CSV lines or as blocks of "alias: value" lines, stopping
+   * when the row or byte limit is reached.
+   */
+  static class RowWriter implements Closeable {
+    private final OutputStream out;
+    private final boolean csv;
+    private final long maxRows;
+    private final long maxBytes;
+    private String[] headers;
+    private boolean first = true;
+    private long rows;
+    private long bytes;
+
+    /**
+     * @param maxRows
+     *     the maximum number of rows, 0 for no limit
+     * @param maxBytes
+     *     the maximum size of the output in bytes, 0 for no limit
+     */
+    RowWriter(OutputStream out, boolean csv, long maxRows, long maxBytes) {
+      this.out = out;
+      this.csv = csv;
+      this.maxRows = maxRows;
+      this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Sets the column aliases of the query, which are written as the first line of a CSV.
+     */
+    void writeHeaders(String[] headers) throws IOException {
+      this.headers = headers;
+      if (csv && headers != null) {
+        append(String.join(", ", headers));
+      }
+    }
+
+    /**
+     * Writes a row of the result.
+     *
+     * @param resultObject
+     *     an object or, if the query selects several columns, an array of objects
+     * @return false if the row was not written because a limit is reached
+     */
+    boolean write(Object resultObject) throws IOException {
+      if (maxRows > 0 && rows >= maxRows) {
+        return false;
+      }
+      String line;
+      if (resultObject == null || !resultObject.getClass().isArray()) {
+        line = printObject(resultObject);
+      } else {
+        var listColumnValues = Arrays.stream((Object[]) resultObject)
+            .map(ProcessHQLAppSource::printObject).collect(Collectors.toList());
+        if (!csv) {
+          addAliasesForColumns(listColumnValues, headers != null ? headers : new String[0]);
+        }
+        line = String.join(csv ? ", " : "\n", listColumnValues);
+      }
+      if (!append(line)) {
+        return false;
+      }
+      rows++;
+      return true;
+    }
+
+    private boolean append(String text) throws IOException {
+      byte[] content = ((first ? "" : csv ? "\n" : "\n\n") + text).getBytes(StandardCharsets.UTF_8);
+      if (maxBytes > 0 && bytes + content.length > maxBytes) {
+        return false;
+      }
+      out.write(content);
+      bytes += content.length;
+      first = false;
+      return true;
+    }
+
+    long getRows() {
+      return rows;
+    }
+
+    long getBytes() {
+      return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
 }
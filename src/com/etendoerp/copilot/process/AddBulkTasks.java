@@ -1,34 +1,54 @@
 package com.etendoerp.copilot.process;
 
-
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
 import static io.swagger.v3.core.util.Constants.COMMA;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.Session;
 import org.hibernate.criterion.Restrictions;
 import org.openbravo.base.exception.OBException;
 import org.openbravo.base.provider.OBProvider;
+import org.openbravo.base.session.OBPropertiesProvider;
 import org.openbravo.client.application.process.BaseProcessActionHandler;
 import org.openbravo.client.application.process.ResponseActionsBuilder;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.erpCommon.utility.OBMessageUtils;
+import org.openbravo.model.ad.access.User;
 
+import com.etendoerp.copilot.util.CopilotRuntime;
+import com.etendoerp.copilot.util.CsvReader;
 import com.etendoerp.copilot.util.FileUtils;
 
 import com.etendoerp.copilot.background.BulkTaskExec;
@@ -39,12 +59,46 @@ import com.etendoerp.task.data.Task;
 import com.etendoerp.task.data.TaskType;
 
 /**
- * ExampleButtonProcess class to handle the process execution for a button.
+ * Process that creates a Copilot task for every record of a CSV or every file of a ZIP.
+ * <p>
+ * The uploaded file is imported as it is read, so its size does not affect the memory used:
+ * <ul>
+ *   <li>A CSV is parsed one record at a time, every record is a task with the record as JSON.</li>
+ *   <li>The entries of a ZIP are uploaded to Copilot by a pool of {@code copilot.bulk.upload.parallelism}
+ *   threads (by default half of the processors, between 1 and 4), every entry is a task with the path
+ *   returned by Copilot.</li>
+ * </ul>
+ * The tasks are inserted in JDBC batches of {@code copilot.bulk.import.batch.size} tasks (default 100),
+ * clearing the session after every batch, and the progress is logged. If the import fails, the
+ * transaction is rolled back, so no task of the file is created.
  */
 public class AddBulkTasks extends BaseProcessActionHandler {
 
+  private static final Logger log = LogManager.getLogger(AddBulkTasks.class);
 
   public static final String COPILOT = "Copilot";
+  public static final String PROP_BATCH_SIZE = "copilot.bulk.import.batch.size";
+  public static final String PROP_UPLOAD_PARALLELISM = "copilot.bulk.upload.parallelism";
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final String MACOSX_METADATA = "__MACOSX";
+
+  private static ExecutorService sharedExecutor;
+  private static int uploadParallelism = CopilotRuntime.BACKGROUND_PARALLELISM;
+
+  private final Executor uploadExecutor;
+  private final int batchSize;
+
+  /**
+   * Creates the process using the shared pool of upload threads and the configured batch size.
+   */
+  public AddBulkTasks() {
+    this(null, 0);
+  }
+
+  AddBulkTasks(Executor uploadExecutor, int batchSize) {
+    this.uploadExecutor = uploadExecutor;
+    this.batchSize = batchSize;
+  }
 
   @Override
   protected JSONObject doExecute(Map<String, Object> parameters, String content) {
@@ -64,54 +118,41 @@ public class AddBulkTasks extends BaseProcessActionHandler {
       if (StringUtils.isEmpty(fileName)) {
         group = fileName;
       }
-      ByteArrayInputStream fileInputStream = getInputStream(parameters);
+      InputStream fileInputStream = getInputStream(parameters);
 
-      //dump the file content into a temp file
       String extension = fileName.substring(fileName.lastIndexOf("."));
       String name = fileName.substring(0, fileName.lastIndexOf("."));
 
-      File tempFile = FileUtils.createSecureTempFile(name, extension).toFile();
-      try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-        byte[] buffer = new byte[1024];
-        int len;
-        while ((len = fileInputStream.read(buffer)) > 0) {
-          fos.write(buffer, 0, len);
-        }
-      }
-
-      String[] strings;
-      if (StringUtils.equalsIgnoreCase(extension, ".zip")) {
-        strings = unzipFile(tempFile);
-      } else if (StringUtils.equalsIgnoreCase(extension, ".csv")) {
-        strings = readCsvFile(tempFile, separator);
-      } else {
-        throw new RuntimeException("Unsupported file type");
-      }
-      //unzip file
-
-      for (String path : strings) {
-        if (path.contains("__MACOSX")) {
-          continue;
+      long start = System.currentTimeMillis();
+      TaskBatch tasks = new TaskBatch(fileName, agentid, question, group,
+          batchSize > 0 ? batchSize : readBatchSize());
+      try {
+        if (StringUtils.equalsIgnoreCase(extension, ".zip")) {
+          Executor executor = uploadExecutor != null ? uploadExecutor : getSharedExecutor();
+          uploadZipEntries(fileInputStream, name, executor, 2 * uploadParallelism, path -> {
+            if (!path.contains(MACOSX_METADATA)) {
+              tasks.add(path);
+            }
+          });
+        } else if (StringUtils.equalsIgnoreCase(extension, ".csv")) {
+          readCsv(fileInputStream, separator, tasks::add);
+        } else {
+          throw new OBException("Unsupported file type");
         }
-        //create task
-        Task tsk = OBProvider.getInstance().get(Task.class);
-        tsk.setNewOBObject(true);
-        tsk.setETCOPAgent(OBDal.getInstance().get(CopilotApp.class, agentid));
-        tsk.setEtcopQuestion(question + ":" + path);
-        tsk.setStatus(getStatus(BulkTaskExec.TASK_STATUS_PENDING));
-        tsk.setEtcopGroup(group);
-        tsk.setAssignedUser(OBContext.getOBContext().getUser());
-        tsk.setTaskType(getCopilotTaskType());
-
-        OBDal.getInstance().save(tsk);
+        tasks.flush();
+      } finally {
+        tasks.close();
       }
-      OBDal.getInstance().flush();
-
+      log.info("Bulk task import of {} finished: {} tasks created in {} ms", fileName, tasks.getCount(),
+          System.currentTimeMillis() - start);
 
       return getResponseBuilder().showMsgInProcessView(ResponseActionsBuilder.MessageType.SUCCESS,
           OBMessageUtils.messageBD("Success"),
-          String.format(OBMessageUtils.messageBD("ETCOP_AddBulkTasks_Success"), strings.length), false).build();
+          String.format(OBMessageUtils.messageBD("ETCOP_AddBulkTasks_Success"), tasks.getCount()), false).build();
     } catch (Exception e) {
+      log.error("Bulk task import failed, no task has been created", e);
+      // The batches already flushed are discarded, an import is created as a whole or not at all
+      rollbackQuietly();
       try {
         result.put("message", "Error during process execution: " + e.getMessage());
         result.put("severity", "error");
@@ -122,6 +163,14 @@ public class AddBulkTasks extends BaseProcessActionHandler {
     return result;
   }
 
+  private static void rollbackQuietly() {
+    try {
+      OBDal.getInstance().rollbackAndClose();
+    } catch (Exception e) {
+      log.debug("Error rolling back the bulk task import", e);
+    }
+  }
+
   /**
    * Retrieves the input stream from the parameters map.
    *
@@ -129,16 +178,16 @@ public class AddBulkTasks extends BaseProcessActionHandler {
    *     The parameters map containing the file information.
    * @return The input stream of the file.
    * @throws OBException
-   *     if the file is not found or cannot be cast to ByteArrayInputStream.
+   *     if the file is not found or cannot be cast to InputStream.
    */
   @SuppressWarnings("unchecked")
-  private ByteArrayInputStream getInputStream(Map<String, Object> parameters) {
+  private InputStream getInputStream(Map<String, Object> parameters) {
     try {
       Map<String, Object> fileMap = (Map<String, Object>) parameters.get("file");
       if (fileMap == null) {
         throw new OBException(OBMessageUtils.messageBD("ETCOP_NoFile"));
       }
-      ByteArrayInputStream fileInputStream = (ByteArrayInputStream) fileMap.get("content");
+      InputStream fileInputStream = (InputStream) fileMap.get("content");
       if (fileInputStream == null) {
         throw new OBException(OBMessageUtils.messageBD("ETCOP_NoFile"));
       }
@@ -167,73 +216,256 @@ public class AddBulkTasks extends BaseProcessActionHandler {
     return tasktype;
   }
 
+  /**
+   * Reads a CSV file, see {@link #readCsv(InputStream, String, Consumer)}.
+   *
+   * @param csv
+   *     the CSV file
+   * @param separator
+   *     the field separator
+   * @return every record as a JSON object, as strings
+   */
   public static String[] readCsvFile(File csv, String separator) throws IOException, JSONException {
     List<String> jsonList = new ArrayList<>();
+    try (InputStream in = Files.newInputStream(csv.toPath())) {
+      readCsv(in, separator, jsonList::add);
+    }
+    return jsonList.toArray(new String[0]);
+  }
 
-    try (BufferedReader br = new BufferedReader(new FileReader(csv))) {
-      String headerLine = br.readLine();
-      if (headerLine == null) {
-        return new String[0];
+  /**
+   * Reads a UTF-8 CSV one record at a time. The first record has the column names, every other
+   * record is passed as a JSON object with the trimmed value of each column, empty if missing.
+   *
+   * @param in
+   *     the CSV content, not closed
+   * @param separator
+   *     the field separator, see {@link CsvReader#toSeparator(String)}
+   * @param consumer
+   *     receives every record as a JSON object
+   * @return the number of records read
+   */
+  public static long readCsv(InputStream in, String separator, Consumer<String> consumer)
+      throws IOException, JSONException {
+    CsvReader reader = new CsvReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+        CsvReader.toSeparator(separator));
+    List<String> headerRecord = reader.readRecord();
+    if (headerRecord == null) {
+      return 0;
+    }
+    List<String> headers = headerRecord.stream().map(String::trim).collect(Collectors.toList());
+    long rows = 0;
+    List<String> values;
+    while ((values = reader.readRecord()) != null) {
+      JSONObject json = new JSONObject();
+      for (int i = 0; i < headers.size(); i++) {
+        json.put(headers.get(i), i < values.size() ? values.get(i).trim() : "");
       }
+      consumer.accept(json.toString());
+      rows++;
+    }
+    return rows;
+  }
 
-      String[] headers = headerLine.split(separator);
-      String line;
-
-      while ((line = br.readLine()) != null) {
-        String[] values = line.split(separator);
-        JSONObject json = new JSONObject();
+  /**
+   * Uploads the files of a ZIP to Copilot one after another, see
+   * {@link #uploadZipEntries(InputStream, String, Executor, int, Consumer)}.
+   *
+   * @param zipFile
+   *     the ZIP file
+   * @return the path returned by Copilot for every file, or the upload error
+   */
+  public static String[] unzipFile(File zipFile) throws IOException {
+    List<String> resultPathsArray = new ArrayList<>();
+    try (InputStream in = Files.newInputStream(zipFile.toPath())) {
+      uploadZipEntries(in, zipFile.getName().replaceFirst("\\.zip$", ""), Runnable::run, 1,
+          resultPathsArray::add);
+    }
+    return resultPathsArray.toArray(new String[0]);
+  }
 
-        for (int i = 0; i < headers.length; i++) {
-          json.put(headers[i].trim(), i < values.length ? values[i].trim() : "");
+  /**
+   * Extracts the files of a ZIP to a temporary directory and uploads them to Copilot with the
+   * given executor, with the context of the caller. At most {@code maxInFlight} files are extracted
+   * and not consumed yet; every file is deleted once uploaded.
+   *
+   * @param in
+   *     the ZIP content, closed when read
+   * @param name
+   *     the prefix of the temporary directory
+   * @param executor
+   *     runs the uploads
+   * @param maxInFlight
+   *     maximum number of files being uploaded
+   * @param consumer
+   *     receives, in the order of the entries, the path returned by Copilot for every file, or
+   *     {@code "Error: "} followed by the upload error
+   * @return the number of files uploaded
+   */
+  public static long uploadZipEntries(InputStream in, String name, Executor executor, int maxInFlight,
+      Consumer<String> consumer) throws IOException {
+    Path outputDir = FileUtils.createSecureTempDirectory(name);
+    CopilotRuntime.ContextIds context = CopilotRuntime.ContextIds.capture();
+    Deque<FutureTask<String>> uploads = new ArrayDeque<>();
+    long count = 0;
+    try (ZipInputStream zis = new ZipInputStream(in)) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        if (!entry.isDirectory()) {
+          Path extractedFile = extract(zis, entry, outputDir);
+          FutureTask<String> upload = new FutureTask<>(() -> upload(context, extractedFile));
+          uploads.addLast(upload);
+          executor.execute(upload);
+          count++;
+          if (uploads.size() >= Math.max(1, maxInFlight)) {
+            consumer.accept(await(uploads.pollFirst()));
+          }
         }
-
-        jsonList.add(json.toString());
+        zis.closeEntry();
+      }
+      while (!uploads.isEmpty()) {
+        consumer.accept(await(uploads.pollFirst()));
+      }
+    } finally {
+      for (FutureTask<String> upload : uploads) {
+        upload.cancel(true);
       }
+      deleteDirectory(outputDir);
     }
+    return count;
+  }
 
-    return jsonList.toArray(new String[0]);
+  private static Path extract(ZipInputStream zis, ZipEntry entry, Path outputDir) throws IOException {
+    Path extractedFile = outputDir.resolve(entry.getName()).normalize();
+    if (!extractedFile.startsWith(outputDir)) {
+      throw new OBException("Invalid ZIP entry: " + entry.getName());
+    }
+    Path parent = extractedFile.getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    Files.copy(zis, extractedFile, StandardCopyOption.REPLACE_EXISTING);
+    return extractedFile;
   }
 
-  public static String[] unzipFile(File zipFile) throws IOException {
-    // Definir el directorio de salida en /tmp con el nombre del ZIP
-    String zipFileName = zipFile.getName().replaceFirst("\\.zip$", ""); // Eliminar extensión .zip
-    File outputDir = FileUtils.createSecureTempDirectory(zipFileName).toFile();
+  /**
+   * Uploads an extracted file and deletes it. Runs in an upload thread.
+   */
+  private static String upload(CopilotRuntime.ContextIds context, Path extractedFile) {
+    OBContext previousContext = OBContext.getOBContext();
+    context.apply();
+    try {
+      return RestServiceUtil.handleFile(extractedFile.toFile(), "attachFile");
+    } catch (Exception e) {
+      return "Error: " + e.getMessage();
+    } finally {
+      OBContext.setOBContext(previousContext);
+      FileUtils.cleanupTempFile(extractedFile, false);
+    }
+  }
 
-    if (!outputDir.exists()) {
-      outputDir.mkdirs(); // Crear el directorio si no existe
+  private static String await(FutureTask<String> upload) {
+    try {
+      return upload.get();
+    } catch (ExecutionException e) {
+      return "Error: " + e.getCause().getMessage();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OBException(e);
     }
+  }
 
-    List<String> resultPathsArray = new ArrayList<>();
+  private static void deleteDirectory(Path dir) {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> FileUtils.cleanupTempFile(path, false));
+    } catch (IOException e) {
+      log.error("Failed to delete temporary directory {}: {}", dir, e.getMessage());
+    }
+  }
 
-    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
-      ZipEntry entry;
-      while ((entry = zis.getNextEntry()) != null) {
-        File extractedFile = new File(outputDir, entry.getName());
+  private static synchronized Executor getSharedExecutor() {
+    if (sharedExecutor == null) {
+      Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+      uploadParallelism = (int) Math.max(1L,
+          readLong(properties, PROP_UPLOAD_PARALLELISM, CopilotRuntime.BACKGROUND_PARALLELISM));
+      sharedExecutor = Executors.newFixedThreadPool(uploadParallelism, daemonThreads("copilot-bulk-upload"));
+    }
+    return sharedExecutor;
+  }
 
-        if (entry.isDirectory()) {
-          extractedFile.mkdirs();
-        } else {
-          File parent = extractedFile.getParentFile();
-          if (parent != null) {
-            parent.mkdirs(); // Crear directorios padres si es necesario
-          }
-          try (FileOutputStream fos = new FileOutputStream(extractedFile)) {
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = zis.read(buffer)) > 0) {
-              fos.write(buffer, 0, len);
-            }
-          }
-          try {
-            String path = RestServiceUtil.handleFile(extractedFile, "attachFile");
-            resultPathsArray.add(path);
-          } catch (Exception e) {
-            resultPathsArray.add("Error: " + e.getMessage());
-          }
-        }
-        zis.closeEntry();
+  private static int readBatchSize() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    return (int) Math.max(1L, readLong(properties, PROP_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+  }
+
+  /**
+   * Creates the tasks of an import, flushing them in JDBC batches and clearing the session after
+   * every batch so the tasks already inserted are not kept in memory.
+   */
+  private static class TaskBatch {
+    private final String fileName;
+    private final String agentId;
+    private final String question;
+    private final String group;
+    private final int size;
+    private final String statusId;
+    private final String taskTypeId;
+    private final String userId;
+    private final Session session;
+    private final Integer previousBatchSize;
+    private int pending;
+    private long count;
+
+    TaskBatch(String fileName, String agentId, String question, String group, int size) {
+      this.fileName = fileName;
+      this.agentId = agentId;
+      this.question = question;
+      this.group = group;
+      this.size = size;
+      Status status = getStatus(BulkTaskExec.TASK_STATUS_PENDING);
+      this.statusId = status != null ? status.getId() : null;
+      this.taskTypeId = getCopilotTaskType().getId();
+      User user = OBContext.getOBContext().getUser();
+      this.userId = user != null ? user.getId() : null;
+      this.session = OBDal.getInstance().getSession();
+      this.previousBatchSize = session.getJdbcBatchSize();
+      session.setJdbcBatchSize(size);
+    }
+
+    void add(String path) {
+      OBDal dal = OBDal.getInstance();
+      Task tsk = OBProvider.getInstance().get(Task.class);
+      tsk.setNewOBObject(true);
+      // Read from the session cache, or from the database once after every batch
+      tsk.setETCOPAgent(dal.get(CopilotApp.class, agentId));
+      tsk.setEtcopQuestion(question + ":" + path);
+      tsk.setStatus(statusId != null ? dal.get(Status.class, statusId) : null);
+      tsk.setEtcopGroup(group);
+      tsk.setAssignedUser(userId != null ? dal.get(User.class, userId) : null);
+      tsk.setTaskType(dal.get(TaskType.class, taskTypeId));
+      dal.save(tsk);
+      count++;
+      if (++pending >= size) {
+        flush();
       }
     }
-    return resultPathsArray.toArray(new String[0]);
+
+    void flush() {
+      if (pending == 0) {
+        return;
+      }
+      OBDal.getInstance().flush();
+      session.clear();
+      pending = 0;
+      log.info("Bulk task import of {}: {} tasks created", fileName, count);
+    }
+
+    void close() {
+      session.setJdbcBatchSize(previousBatchSize);
+    }
+
+    long getCount() {
+      return count;
+    }
   }
 }
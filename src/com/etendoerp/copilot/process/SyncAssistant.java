@@ -39,6 +39,7 @@ import com.etendoerp.copilot.util.CopilotConstants;
 import com.etendoerp.copilot.util.CopilotModelUtils;
 import com.etendoerp.copilot.util.CopilotUtils;
 import com.etendoerp.copilot.util.FileUtils;
+import com.etendoerp.copilot.util.KBSyncEngine;
 import com.etendoerp.copilot.util.OpenAIUtils;
 import com.etendoerp.openapi.data.OpenApiFlowPoint;
 import com.etendoerp.webhookevents.data.DefinedWebHook;
@@ -425,33 +426,41 @@ public class SyncAssistant extends BaseProcessActionHandler {
   private JSONObject syncKnowledgeFiles(List<CopilotApp> appList,
       String openaiApiKey) throws JSONException, IOException {
     int syncCount = 0;
+    List<KBSyncEngine.AppSync> appSyncs = new ArrayList<>();
 
-    for (CopilotApp app : appList) {
-      // Filter the application's sources to include only knowledge base files
-      String clientID = OBContext.getOBContext().getCurrentClient().getId();
-      List<CopilotAppSource> knowledgeBaseFiles = app.getETCOPAppSourceList().stream().filter(
-          CopilotConstants::isKbBehaviour).filter(
-          kbf -> mustUpdateKBF(kbf, clientID)
-      ).collect(Collectors.toList());
-      // Handle synchronization based on the application type
-      switch (app.getAppType()) {
-        case CopilotConstants.APP_TYPE_OPENAI:
-          throw new OBException("OpenAI sync is disabled. Change the agent type to Multi-Model.");
-        case CopilotConstants.APP_TYPE_LANGCHAIN:
-        case CopilotConstants.APP_TYPE_MULTIMODEL:
-          syncKBFilesToLangChain(app, knowledgeBaseFiles);
-          break;
-        case CopilotConstants.APP_TYPE_LANGGRAPH:
-          log.debug("Sync not needed for LangGraph");
-          break;
-        default:
-          log.warn("Unsupported application type encountered: {}", app.getAppType());
+    try (KBSyncEngine engine = KBSyncEngine.create()) {
+      for (CopilotApp app : appList) {
+        // Filter the application's sources to include only knowledge base files
+        String clientID = OBContext.getOBContext().getCurrentClient().getId();
+        List<CopilotAppSource> knowledgeBaseFiles = app.getETCOPAppSourceList().stream().filter(
+            CopilotConstants::isKbBehaviour).filter(
+            kbf -> mustUpdateKBF(kbf, clientID)
+        ).collect(Collectors.toList());
+        // Handle synchronization based on the application type
+        switch (app.getAppType()) {
+          case CopilotConstants.APP_TYPE_OPENAI:
+            throw new OBException("OpenAI sync is disabled. Change the agent type to Multi-Model.");
+          case CopilotConstants.APP_TYPE_LANGCHAIN:
+          case CopilotConstants.APP_TYPE_MULTIMODEL:
+            appSyncs.add(engine.submit(app, knowledgeBaseFiles));
+            break;
+          case CopilotConstants.APP_TYPE_LANGGRAPH:
+            log.debug("Sync not needed for LangGraph");
+            break;
+          default:
+            log.warn("Unsupported application type encountered: {}", app.getAppType());
+        }
+        syncCount++;
+      }
+
+      // Wait for the uploads of every agent
+      for (KBSyncEngine.AppSync appSync : appSyncs) {
+        appSync.await();
       }
-      syncCount++;
     }
 
     // Build and return a message summarizing the synchronization results
-    return buildMessage(syncCount, appList.size());
+    return buildMessage(syncCount, appList.size(), appSyncs);
   }
 
   private boolean mustUpdateKBF(CopilotAppSource kbf, String clientID) {
@@ -462,33 +471,6 @@ public class SyncAssistant extends BaseProcessActionHandler {
   }
 
 
-  /**
-   * This method synchronizes knowledge base files with the LangChain API for a given {@link CopilotApp}.
-   * It performs several steps to ensure that the application's vector database is properly updated
-   * and the knowledge base files are synchronized.
-   *
-   * <p>The synchronization process involves resetting the vector database, processing each
-   * {@link CopilotAppSource} in the list to synchronize it with the LangChain API, and then
-   * purging the vector database to remove any outdated information.
-   *
-   * @param app
-   *     The {@link CopilotApp} instance for which knowledge base files are being synchronized.
-   * @param knowledgeBaseFiles
-   *     A list of {@link CopilotAppSource} objects representing the knowledge base files to be synchronized.
-   * @throws JSONException
-   *     If an error occurs while processing JSON data.
-   * @throws IOException
-   *     If an input/output error occurs during the synchronization process.
-   */
-  private void syncKBFilesToLangChain(CopilotApp app,
-      List<CopilotAppSource> knowledgeBaseFiles) throws JSONException, IOException {
-    CopilotUtils.resetVectorDB(app);
-    for (CopilotAppSource appSource : knowledgeBaseFiles) {
-      CopilotUtils.syncAppLangchainSource(appSource);
-    }
-    CopilotUtils.purgeVectorDB(app);
-  }
-
   /**
    * Builds a JSON message object to be displayed in the process view.
    * <p>
@@ -499,19 +481,28 @@ public class SyncAssistant extends BaseProcessActionHandler {
    *     The number of successfully synchronized applications.
    * @param totalRecords
    *     The total number of applications processed.
+   * @param appSyncs
+   *     The knowledge base synchronizations, whose file counts are appended to the message.
    * @return A JSONObject containing the response actions with the success message.
    * @throws JSONException
    *     If an error occurs while creating the JSON object.
    */
-  private JSONObject buildMessage(int syncCount, int totalRecords) throws JSONException {
+  private JSONObject buildMessage(int syncCount, int totalRecords,
+      List<KBSyncEngine.AppSync> appSyncs) throws JSONException {
     JSONObject result = new JSONObject();
     // Message in tab from where the process is executed
     JSONArray actions = new JSONArray();
     JSONObject showMsgInProcessView = new JSONObject();
     showMsgInProcessView.put("msgType", "success");
     showMsgInProcessView.put("msgTitle", OBMessageUtils.messageBD("Success"));
-    showMsgInProcessView.put("msgText",
-        String.format(String.format(OBMessageUtils.messageBD("ETCOP_SuccessSync"), syncCount, totalRecords)));
+    String msgText = String.format(OBMessageUtils.messageBD("ETCOP_SuccessSync"), syncCount, totalRecords);
+    if (!appSyncs.isEmpty()) {
+      int uploaded = appSyncs.stream().mapToInt(KBSyncEngine.AppSync::getUploaded).sum();
+      int unchanged = appSyncs.stream().mapToInt(KBSyncEngine.AppSync::getUnchanged).sum();
+      int removed = appSyncs.stream().mapToInt(KBSyncEngine.AppSync::getRemoved).sum();
+      msgText += " " + String.format(OBMessageUtils.messageBD("ETCOP_KBSyncSummary"), uploaded, unchanged, removed);
+    }
+    showMsgInProcessView.put("msgText", msgText);
     showMsgInProcessView.put("wait", true);
     JSONObject showMsgInProcessViewAction = new JSONObject();
     showMsgInProcessViewAction.put("showMsgInProcessView", showMsgInProcessView);
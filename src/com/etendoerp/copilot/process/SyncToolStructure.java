@@ -4,8 +4,6 @@ import static com.etendoerp.copilot.util.OpenAIUtils.HEADER_CONTENT_TYPE;
 import static com.etendoerp.copilot.util.OpenAIUtils.wrappWithJSONSchema;
 
 import java.net.ConnectException;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.util.ArrayList;
 import java.util.List;
@@ -29,7 +27,7 @@ import org.openbravo.service.db.DbUtility;
 
 import com.etendoerp.copilot.data.CopilotAppTool;
 import com.etendoerp.copilot.data.CopilotTool;
-import com.etendoerp.copilot.util.CopilotUtils;
+import com.etendoerp.copilot.util.CopilotHttpClient;
 
 public class SyncToolStructure extends BaseProcessActionHandler {
   private static final Logger log = LogManager.getLogger(SyncToolStructure.class);
@@ -65,16 +63,11 @@ public class SyncToolStructure extends BaseProcessActionHandler {
       List<CopilotTool> appToolsList = selectedToolsCriteria.list();
       //get the tools info from copilot
 
-      HttpClient client = HttpClient.newBuilder().build();
-      String copilotPort = CopilotUtils.readPropertyWithLegacyCompatibility(properties, "copilot.port", "5005");
-      String copilotHost = CopilotUtils.readPropertyWithLegacyCompatibility(properties, "copilot.host", "localhost");
-      HttpRequest copilotRequest = HttpRequest.newBuilder()
-          .uri(new URI(String.format("http://%s:%s/tools", copilotHost, copilotPort)))
+      HttpRequest copilotRequest = CopilotHttpClient.newRequest(properties, "tools")
           .headers(HEADER_CONTENT_TYPE, "application/json;charset=UTF-8")
-          .version(HttpClient.Version.HTTP_1_1)
           .GET()
           .build();
-      java.net.http.HttpResponse<String> responseFromCopilot = client.send(copilotRequest,
+      java.net.http.HttpResponse<String> responseFromCopilot = CopilotHttpClient.send(copilotRequest,
           java.net.http.HttpResponse.BodyHandlers.ofString());
 
       JSONObject responseJsonFromCopilot = new JSONObject(responseFromCopilot.body());
@@ -0,0 +1,263 @@
+package com.etendoerp.copilot.rest;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+import com.etendoerp.copilot.util.CopilotRuntime;
+import com.etendoerp.copilot.util.UsageTelemetry;
+
+/**
+ * Runs the streaming question endpoints ({@code /aquestion} and {@code /agraph}) outside the
+ * servlet container threads.
+ * <p>
+ * When the request supports it, the request is put in asynchronous mode with an
+ * {@link AsyncContext} and the stream is relayed by a dedicated worker, so the container thread
+ * is released as soon as the request is dispatched, instead of being blocked for the whole LLM
+ * generation. When asynchronous mode is not available the stream is relayed in the calling thread,
+ * as before.
+ * <p>
+ * The worker still blocks on the Copilot stream: the HTTP client hands the response over as an
+ * {@link java.io.InputStream}, which the {@link SSEStreamRelay} reads until the generation ends.
+ * Asynchronous mode moves that wait from the container pool to the stream pool, it does not remove
+ * it. Every stream in flight therefore holds two threads, the stream worker reading the response
+ * and the writer of its {@link SSEClientStream}.
+ * <p>
+ * The asynchronous streams are configured with the following properties of
+ * {@code Openbravo.properties}:
+ * <ul>
+ *   <li>{@code copilot.stream.max.inflight}: maximum number of simultaneous asynchronous streams
+ *   (default 32, so at most 64 threads are held by them). Further questions are rejected with an
+ *   error event until a stream finishes. The streams relayed in the calling thread are bounded by
+ *   the container pool instead.</li>
+ *   <li>{@code copilot.stream.timeout}: maximum duration of an asynchronous stream in milliseconds,
+ *   0 for no limit (default 0, LLM generations can take minutes).</li>
+ * </ul>
+ */
+public class AsyncStreamDispatcher {
+
+  private static final Logger log = LogManager.getLogger(AsyncStreamDispatcher.class);
+
+  public static final String PROP_MAX_IN_FLIGHT = "copilot.stream.max.inflight";
+  public static final String PROP_STREAM_TIMEOUT = "copilot.stream.timeout";
+  private static final int DEFAULT_MAX_IN_FLIGHT = 32;
+  private static final long DEFAULT_STREAM_TIMEOUT_MS = 0L;
+
+  private static final CopilotRuntime.Shared<AsyncStreamDispatcher> INSTANCE = new CopilotRuntime.Shared<>(
+      AsyncStreamDispatcher::create);
+
+  private final int maxInFlight;
+  private final long timeoutMs;
+  private final Semaphore permits;
+  private final Executor executor;
+
+  /**
+   * Task relaying a stream to the client.
+   */
+  @FunctionalInterface
+  public interface StreamTask {
+    /**
+     * Relays the stream.
+     *
+     * @throws IOException
+     *     if writing to the client fails
+     * @throws JSONException
+     *     if the Copilot response cannot be processed
+     */
+    void run() throws IOException, JSONException;
+  }
+
+  AsyncStreamDispatcher(int maxInFlight, long timeoutMs) {
+    this(maxInFlight, timeoutMs, newExecutor(Math.max(1, maxInFlight)));
+  }
+
+  /**
+   * Creates a dispatcher running the streams with the given executor, for testing purposes.
+   */
+  AsyncStreamDispatcher(int maxInFlight, long timeoutMs, Executor executor) {
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.timeoutMs = Math.max(0L, timeoutMs);
+    this.permits = new Semaphore(this.maxInFlight);
+    this.executor = executor;
+  }
+
+  private static ThreadPoolExecutor newExecutor(int threads) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), daemonThreads("copilot-stream"));
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Returns the shared dispatcher, created on first use from {@code Openbravo.properties}.
+   *
+   * @return the shared {@link AsyncStreamDispatcher}
+   */
+  public static AsyncStreamDispatcher getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static AsyncStreamDispatcher create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    AsyncStreamDispatcher dispatcher = new AsyncStreamDispatcher(
+        (int) readLong(properties, PROP_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT),
+        readLong(properties, PROP_STREAM_TIMEOUT, DEFAULT_STREAM_TIMEOUT_MS));
+    log.info("Copilot streams limited to {} in flight", dispatcher.maxInFlight);
+    return dispatcher;
+  }
+
+  /**
+   * Replaces the shared dispatcher, for testing purposes.
+   *
+   * @param dispatcher
+   *     the dispatcher to use, or null to create it again on next use
+   */
+  static void setInstance(AsyncStreamDispatcher dispatcher) {
+    INSTANCE.set(dispatcher);
+  }
+
+  /**
+   * Executes a streaming task. If the request supports asynchronous mode, the task is dispatched to
+   * a stream worker with a context for the current user and the request usage, and this method
+   * returns immediately; otherwise the task is executed in the calling thread.
+   *
+   * @param request
+   *     the streaming request
+   * @param task
+   *     the task relaying the stream to the client
+   * @return {@code true} if the task was dispatched asynchronously, {@code false} if it was
+   *     executed in the calling thread
+   * @throws OBException
+   *     if the maximum number of asynchronous streams in flight has been reached
+   * @throws IOException
+   *     if the task fails writing to the client when executed in the calling thread
+   * @throws JSONException
+   *     if the task fails processing the response when executed in the calling thread
+   */
+  public boolean execute(HttpServletRequest request, StreamTask task) throws IOException, JSONException {
+    if (!request.isAsyncSupported()) {
+      task.run();
+      return false;
+    }
+    if (!permits.tryAcquire()) {
+      log.warn("Rejecting Copilot stream, {} streams already in flight", maxInFlight);
+      throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_TooManyStreams"), maxInFlight));
+    }
+
+    CopilotRuntime.ContextIds context = CopilotRuntime.ContextIds.capture();
+    UsageTelemetry.RequestUsage usage = UsageTelemetry.getRequest();
+    AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(timeoutMs);
+    asyncContext.addListener(new StreamListener());
+    try {
+      executor.execute(() -> runDispatched(context, usage, asyncContext, task));
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      asyncContext.complete();
+      throw new OBException(e.getMessage(), e);
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of asynchronous streams currently in flight
+   */
+  public int getInFlight() {
+    return maxInFlight - permits.availablePermits();
+  }
+
+  /**
+   * @return the maximum number of streams in flight
+   */
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  private void runDispatched(CopilotRuntime.ContextIds context, UsageTelemetry.RequestUsage usage,
+      AsyncContext asyncContext, StreamTask task) {
+    try {
+      context.apply();
+      UsageTelemetry.setRequest(usage);
+      OBContext.setAdminMode();
+      try {
+        task.run();
+        OBDal.getInstance().commitAndClose();
+      } finally {
+        OBContext.restorePreviousMode();
+      }
+    } catch (Exception e) {
+      log.error("Error relaying Copilot stream", e);
+      rollbackQuietly();
+    } finally {
+      OBContext.setOBContext((OBContext) null);
+      UsageTelemetry.setRequest(null);
+      permits.release();
+      completeQuietly(asyncContext);
+    }
+  }
+
+  private static void rollbackQuietly() {
+    try {
+      OBDal.getInstance().rollbackAndClose();
+    } catch (Exception e) {
+      log.warn("Failed to rollback transaction after stream failure", e);
+    }
+  }
+
+  private static void completeQuietly(AsyncContext asyncContext) {
+    try {
+      asyncContext.complete();
+    } catch (IllegalStateException e) {
+      // Already completed by the container, after a timeout or a client error
+      log.debug("Async context already completed", e);
+    }
+  }
+
+  /**
+   * Logs streams ended by the container and completes them on timeout.
+   */
+  private static class StreamListener implements AsyncListener {
+    @Override
+    public void onComplete(AsyncEvent event) {
+      // Nothing to do, the worker releases its resources when it finishes
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      log.warn("Copilot stream timed out");
+      completeQuietly(event.getAsyncContext());
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      log.warn("Copilot stream failed: {}", event.getThrowable() != null ? event.getThrowable().getMessage() : "");
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+      // Not used
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package com.etendoerp.copilot.rest;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.FilterRegistration;
+import javax.servlet.Registration;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.ServletRegistration;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.etendoerp.copilot.util.MessageTrackingWriter;
+import com.etendoerp.copilot.util.UsageTelemetry;
+import com.etendoerp.copilot.util.WebhookPermissionUtils;
+
+/**
+ * Listener of the web application lifecycle, registered in {@code AD_MODEL_OBJECT}.
+ * <p>
+ * When the application stops, the background writers and workers of the module finish what they
+ * have queued and their threads are stopped, so nothing keeps the classes of the application loaded after it
+ * is redeployed.
+ * <p>
+ * When the application starts, the Copilot servlets and every filter of their chain are declared
+ * as supporting asynchronous mode, so the {@link AsyncStreamDispatcher} can release the container
+ * threads while the streaming answers are generated. The servlets and filters are declared in the
+ * generated {@code web.xml}, which has no way to set it, so the registrations are updated before
+ * the container starts them. If the container does not allow to change a registration, a warning
+ * is logged and the streams are relayed in the container threads, as before.
+ */
+public class CopilotServletContextListener implements ServletContextListener {
+
+  private static final Logger log = LogManager.getLogger(CopilotServletContextListener.class);
+
+  private static final String WILDCARD = "/*";
+
+  static final Set<String> STREAMING_SERVLETS = Set.of(CopilotJwtServlet.class.getName(),
+      CopilotSecureServlet.class.getName());
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    enableAsyncSupport(event.getServletContext());
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    MessageTrackingWriter.stop();
+    UsageTelemetry.stop();
+    WebhookPermissionUtils.shutdown();
+  }
+
+  /**
+   * Declares the Copilot servlets, and the filters mapped to their names or paths, as supporting
+   * asynchronous mode.
+   *
+   * @param context
+   *     the servlet context being initialized
+   */
+  static void enableAsyncSupport(ServletContext context) {
+    Set<String> servletNames = new HashSet<>();
+    Set<String> servletPatterns = new HashSet<>();
+    for (ServletRegistration registration : context.getServletRegistrations().values()) {
+      if (STREAMING_SERVLETS.contains(registration.getClassName()) && setAsyncSupported(registration)) {
+        servletNames.add(registration.getName());
+        servletPatterns.addAll(registration.getMappings());
+      }
+    }
+    if (servletNames.isEmpty()) {
+      return;
+    }
+    for (FilterRegistration registration : context.getFilterRegistrations().values()) {
+      if (isInChain(registration, servletNames, servletPatterns)) {
+        setAsyncSupported(registration);
+      }
+    }
+    log.info("Asynchronous mode enabled for Copilot servlets {}", servletNames);
+  }
+
+  private static boolean isInChain(FilterRegistration registration, Set<String> servletNames,
+      Set<String> servletPatterns) {
+    Collection<String> names = registration.getServletNameMappings();
+    if (names != null && names.stream().anyMatch(servletNames::contains)) {
+      return true;
+    }
+    Collection<String> patterns = registration.getUrlPatternMappings();
+    return patterns != null && patterns.stream()
+        .anyMatch(pattern -> servletPatterns.stream().anyMatch(servletPattern -> matches(pattern, servletPattern)));
+  }
+
+  /**
+   * Checks if the requests to a servlet mapping go through a filter mapping. Extension mappings
+   * are ignored, since the Copilot paths have no extension.
+   */
+  static boolean matches(String filterPattern, String servletPattern) {
+    if (StringUtils.equals(filterPattern, WILDCARD)) {
+      return true;
+    }
+    if (StringUtils.endsWith(filterPattern, WILDCARD)) {
+      String prefix = filterPattern.substring(0, filterPattern.length() - WILDCARD.length());
+      return StringUtils.equals(servletPattern, prefix) || StringUtils.startsWith(servletPattern, prefix + "/");
+    }
+    return StringUtils.equals(filterPattern, servletPattern);
+  }
+
+  private static boolean setAsyncSupported(Registration registration) {
+    if (registration instanceof Registration.Dynamic) {
+      try {
+        ((Registration.Dynamic) registration).setAsyncSupported(true);
+        return true;
+      } catch (IllegalStateException | UnsupportedOperationException e) {
+        log.debug("Registration {} cannot be changed", registration.getName(), e);
+      }
+    }
+    log.warn("Asynchronous mode cannot be enabled for {}, Copilot streams will use the container threads",
+        registration.getName());
+    return false;
+  }
+}
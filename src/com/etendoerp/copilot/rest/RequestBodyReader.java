@@ -0,0 +1,147 @@
+package com.etendoerp.copilot.rest;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+/**
+ * Decodes the JSON body of the Copilot REST requests.
+ * <p>
+ * The body is parsed while it is read from the request input stream, in the request charset (UTF-8
+ * when none is declared), so its cost is linear in its size. Bodies larger than
+ * {@code copilot.request.max.bytes} (default 10 MB, 0 for no limit) are rejected with a
+ * {@link CopilotRestServiceException} with status 413.
+ */
+public final class RequestBodyReader {
+
+  private static final Logger log = LogManager.getLogger(RequestBodyReader.class);
+
+  static final String PROP_MAX_BYTES = "copilot.request.max.bytes";
+  static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024;
+
+  private RequestBodyReader() {
+  }
+
+  /**
+   * Reads the request body as a JSON object.
+   *
+   * @param request
+   *     the request whose body is read
+   * @return the parsed body
+   * @throws IOException
+   *     if the body cannot be read
+   * @throws JSONException
+   *     if the body is not a JSON object
+   * @throws CopilotRestServiceException
+   *     if the body exceeds the maximum size
+   */
+  public static JSONObject readJson(HttpServletRequest request) throws IOException, JSONException {
+    long maxBytes = getMaxBytes();
+    if (maxBytes > 0 && request.getContentLengthLong() > maxBytes) {
+      throw tooLarge(maxBytes);
+    }
+    InputStream in = request.getInputStream();
+    if (in == null) {
+      throw new JSONException("The request has no body");
+    }
+    if (maxBytes > 0) {
+      in = new BoundedInputStream(in, maxBytes);
+    }
+    return readJson(new InputStreamReader(in, getCharset(request)));
+  }
+
+  /**
+   * Parses a JSON object from a reader.
+   *
+   * @param reader
+   *     the reader of the document
+   * @return the parsed object
+   * @throws IOException
+   *     if the document cannot be read
+   * @throws JSONException
+   *     if the document is not a JSON object
+   */
+  public static JSONObject readJson(Reader reader) throws IOException, JSONException {
+    return StreamingJsonParser.parseObject(reader);
+  }
+
+  static long getMaxBytes() {
+    return readLong(PROP_MAX_BYTES, DEFAULT_MAX_BYTES);
+  }
+
+  private static Charset getCharset(HttpServletRequest request) {
+    String encoding = request.getCharacterEncoding();
+    if (StringUtils.isBlank(encoding)) {
+      return StandardCharsets.UTF_8;
+    }
+    try {
+      return Charset.forName(encoding);
+    } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+      log.warn("Unsupported request charset '{}', using UTF-8", encoding);
+      return StandardCharsets.UTF_8;
+    }
+  }
+
+  private static CopilotRestServiceException tooLarge(long maxBytes) {
+    return new CopilotRestServiceException(
+        String.format(OBMessageUtils.messageBD("ETCOP_RequestBodyTooLarge"), maxBytes),
+        HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+  }
+
+  /**
+   * Fails as soon as more than the maximum number of bytes are read, so a request that does not
+   * declare its length cannot exceed the limit either.
+   */
+  private static class BoundedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long count;
+
+    BoundedInputStream(InputStream in, long maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        count(read);
+      }
+      return read;
+    }
+
+    private void count(int read) {
+      count += read;
+      if (count > maxBytes) {
+        throw tooLarge(maxBytes);
+      }
+    }
+  }
+}
@@ -41,28 +41,28 @@ public final class RequestUtils {
   }
 
   /**
-   * Returns true when the incoming request is a POST and the request reader is available.
+   * Returns true when the incoming request is a POST.
    * This is used to decide whether to attempt to read a JSON body from the request.
    *
    * @param request the HttpServletRequest to inspect
-   * @return true when method equals POST and reader is not null
-   * @throws IOException if obtaining the reader throws an IOException
+   * @return true when method equals POST
+   * @throws IOException kept for compatibility, the body is not accessed
    */
   public static boolean isPostRequest(HttpServletRequest request) throws IOException {
-    return StringUtils.equalsIgnoreCase(request.getMethod(), "POST") && request.getReader() != null;
+    return StringUtils.equalsIgnoreCase(request.getMethod(), "POST");
   }
 
   /**
-   * Reads the request body and parses it as JSON.
+   * Reads the request body and parses it as JSON with {@link RequestBodyReader}.
    * If reading or parsing fails this method returns an empty JSONObject.
    *
    * @param request the HttpServletRequest whose body will be parsed
    * @return a JSONObject with the parsed body or an empty JSONObject on error
+   * @throws CopilotRestServiceException when the body exceeds the maximum size
    */
   public static JSONObject parseJsonFromRequest(HttpServletRequest request) {
     try {
-      String body = request.getReader().lines().reduce("", String::concat);
-      return new JSONObject(body);
+      return RequestBodyReader.readJson(request);
     } catch (IOException | JSONException e) {
       return new JSONObject();
     }
@@ -76,7 +76,7 @@ public final class RequestUtils {
    *
    * @param request the HttpServletRequest to extract data from
    * @return a JSONObject with the extracted request data
-   * @throws IOException when accessing the request reader fails
+   * @throws IOException when accessing the request body fails
    * @throws JSONException when constructing the returned JSONObject fails
    */
   public static JSONObject extractRequestBody(HttpServletRequest request) throws IOException, JSONException {
@@ -8,14 +8,10 @@ import static com.etendoerp.copilot.rest.RestServiceUtil.GET_ASSISTANTS;
 import static com.etendoerp.copilot.rest.RestServiceUtil.QUESTION;
 import static com.etendoerp.copilot.util.OpenAIUtils.logIfDebug;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TransferQueue;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -39,14 +35,13 @@ import com.etendoerp.copilot.data.CopilotApp;
 import com.etendoerp.copilot.util.ConversationUtils;
 import com.etendoerp.copilot.util.CopilotConstants;
 import com.etendoerp.copilot.util.CopilotUtils;
-import com.etendoerp.telemetry.TelemetryUsageInfo;
+import com.etendoerp.copilot.util.UsageTelemetry;
 
 /**
  * REST Service for handling Copilot requests.
  */
 public class RestService {
   private static final Logger log4j = LogManager.getLogger(RestService.class);
-  static final Map<String, TransferQueue<String>> asyncRequests = new HashMap<>();
   public static final String CACHED_QUESTION = "cachedQuestion";
 
   // Configuration for tracking specific endpoints
@@ -69,6 +64,7 @@ public class RestService {
       log4j.error(e);
       sendGetErrorResponse(response);
     } finally {
+      UsageTelemetry.setRequest(null);
       OBContext.restorePreviousMode();
     }
   }
@@ -177,6 +173,7 @@ public class RestService {
         response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e2.getMessage());
       }
     } finally {
+      UsageTelemetry.setRequest(null);
       OBContext.restorePreviousMode();
     }
   }
@@ -235,8 +232,8 @@ public class RestService {
    * Saves session information for the given HTTP request.
    * This method checks if the request should be tracked based on its method and path.
    * If tracking is enabled, it retrieves the session ID and command from the request
-   * and stores them in the SessionInfo. It also records the tracking information
-   * for the request in a static map.
+   * and keeps them, with the start time, for the thread serving the request, see
+   * {@link UsageTelemetry#startRequest}.
    *
    * @param request
    *     the HttpServletRequest object that contains the request the client made to the servlet
@@ -250,9 +247,7 @@ public class RestService {
       return;
     }
     final VariablesSecureApp vars1 = new VariablesSecureApp(request, false);
-    TelemetryUsageInfo.getInstance().setSessionId(vars1.getSessionValue("#AD_Session_ID"));
-    TelemetryUsageInfo.getInstance().setCommand(method + " " + path);
-    TelemetryUsageInfo.getInstance().setTimeMillis(System.currentTimeMillis());
+    UsageTelemetry.startRequest(vars1.getSessionValue("#AD_Session_ID"), method + " " + path);
   }
 
   /**
@@ -336,14 +331,8 @@ public class RestService {
     // Read the question sent in the body
     try {
       String question = null;
-      if ((StringUtils.equalsIgnoreCase(request.getMethod(), "POST") && request.getReader() != null)) {
-        BufferedReader reader = request.getReader();
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-          sb.append(line);
-        }
-        JSONObject jsonBody = new JSONObject(sb.toString());
+      if (StringUtils.equalsIgnoreCase(request.getMethod(), "POST")) {
+        JSONObject jsonBody = RequestBodyReader.readJson(request);
         question = jsonBody.getString(CopilotConstants.PROP_QUESTION);
         if (StringUtils.isBlank(question)) {
           throw new OBException("Question is required");
@@ -507,19 +496,49 @@ public class RestService {
     }
   }
 
+  /**
+   * Streams the answer to a question through the {@link AsyncStreamDispatcher}, so the container
+   * thread is released while the answer is generated when the request supports asynchronous mode.
+   * Errors, including the rejection of the stream when too many are in flight, are sent to the
+   * client as an error event.
+   *
+   * @param request
+   *     the {@link HttpServletRequest} of the streaming endpoint
+   * @param response
+   *     the {@link HttpServletResponse} where the events are written
+   * @param json
+   *     the question parameters
+   * @throws IOException
+   *     if an error occurs writing to the client
+   * @throws JSONException
+   *     if an error occurs building the error event
+   */
   private void processAsyncRequest(HttpServletRequest request, HttpServletResponse response,
       JSONObject json) throws IOException, JSONException {
     try {
-      RestServiceUtil.handleQuestion(true, response, json);
+      AsyncStreamDispatcher.getInstance().execute(request, () -> streamQuestion(request, response, json));
+    } catch (OBException e) {
+      sendErrorEvent(request, response, e);
+    }
+  }
 
+  private void streamQuestion(HttpServletRequest request, HttpServletResponse response,
+      JSONObject json) throws IOException, JSONException {
+    try {
+      RestServiceUtil.handleQuestion(true, response, json);
     } catch (OBException e) {
-      RestServiceUtil.setEventStreamMode(response);
-      JSONObject errorEventJSON = RestServiceUtil.getErrorEventJSON(request, e);
-      PrintWriter writerToFront = response.getWriter();
-      RestServiceUtil.sendEventToFront(writerToFront, errorEventJSON, true);
+      sendErrorEvent(request, response, e);
     }
   }
 
+  private void sendErrorEvent(HttpServletRequest request, HttpServletResponse response,
+      OBException e) throws IOException, JSONException {
+    RestServiceUtil.setEventStreamMode(response);
+    JSONObject errorEventJSON = RestServiceUtil.getErrorEventJSON(request, e);
+    PrintWriter writerToFront = RestServiceUtil.getEventWriter(response);
+    RestServiceUtil.sendEventToFront(writerToFront, errorEventJSON, true);
+  }
+
   /**
    * Processes a synchronous HTTP request by handling the provided JSON object
    * and writing the response back to the client. This method invokes a REST service
@@ -1,38 +1,32 @@
 package com.etendoerp.copilot.rest;
 
 import static com.etendoerp.copilot.util.CopilotUtils.getAppSourceContent;
-import static com.etendoerp.copilot.util.CopilotUtils.readPropertyWithLegacyCompatibility;
-import static com.etendoerp.copilot.util.TrackingUtil.getLastConversation;
 import static com.etendoerp.copilot.util.TrackingUtil.trackNullResponse;
 import static com.etendoerp.webhookevents.webhook_util.OpenAPISpecUtils.PROP_NAME;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 import com.etendoerp.copilot.util.FileUtils;
 import java.util.concurrent.TransferQueue;
-import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -59,20 +53,22 @@ import org.openbravo.model.ad.system.Language;
 import org.openbravo.model.ad.ui.Message;
 import org.openbravo.model.ad.ui.MessageTrl;
 
+import com.etendoerp.copilot.data.Conversation;
 import com.etendoerp.copilot.data.CopilotApp;
 import com.etendoerp.copilot.data.CopilotAppSource;
 import com.etendoerp.copilot.data.CopilotFile;
 import com.etendoerp.copilot.data.CopilotRoleApp;
 import com.etendoerp.copilot.hook.CopilotQuestionHookManager;
 import com.etendoerp.copilot.util.CopilotConstants;
+import com.etendoerp.copilot.util.CopilotHttpClient;
 import com.etendoerp.copilot.util.CopilotModelUtils;
+import com.etendoerp.copilot.util.CopilotRequestContext;
 import com.etendoerp.copilot.util.CopilotUtils;
 import com.etendoerp.copilot.util.ExtractedResponse;
 import com.etendoerp.copilot.util.MemoryUtils;
 import com.etendoerp.copilot.util.OpenAIUtils;
 import com.etendoerp.copilot.util.TrackingUtil;
 import com.etendoerp.copilot.util.WebhookPermissionUtils;
-import com.etendoerp.telemetry.TelemetryUsageInfo;
 
 /**
  * Utility class providing REST service operations for Copilot integration.
@@ -119,6 +115,13 @@ public class RestServiceUtil {
   public static final String ETCOP_COPILOT_ERROR = "ETCOP_CopilotError";
   public static final String METADATA = "metadata";
   public static final String PROP_STRUCTURED_OUTPUT_JSON_SCHEMA = "structured_output_json_schema";
+  private static final String ASSISTANTS_BY_LAST_ACTIVITY_HQL = "select app.id, app.name, app.description,"
+      + " app.featured, max(coalesce(conv.lastMsg, conv.creationDate))"
+      + " from " + CopilotRoleApp.ENTITY_NAME + " roleApp join roleApp.copilotApp app"
+      + " left join " + Conversation.ENTITY_NAME + " conv on conv.copilotApp = app"
+      + " and conv.userContact.id = :userId and conv.active = true"
+      + " where roleApp.role.id = :roleId and roleApp.active = true"
+      + " group by app.id, app.name, app.description, app.featured";
 
   /**
    * Private constructor to prevent instantiation of utility class.
@@ -329,8 +332,11 @@ public class RestServiceUtil {
    *     the {@link HttpServletResponse} used to write SSE messages back to the client. The
    *     response is configured by this method using {@link #setEventStreamMode(HttpServletResponse)}.
    * @param inputStream
-   *     the input stream received from the Copilot backend connection; this stream is read
-   *     line-by-line and parsed as JSON or SSE lines depending on the request mode.
+   *     the input stream received from the Copilot backend connection; its bytes are relayed
+   *     to the client by a {@link SSEStreamRelay} and only the last line is parsed as JSON. In
+   *     async mode the events go through a {@link SSEClientStream}, so a slow client does not block
+   *     the reading of this stream, and this stream is closed if the client disconnects or stalls.
+   *     When every stream writer is busy, the events are written to the client directly.
    * @return a {@link JSONObject} containing the last (or error) response when the method is invoked
    *     in non-async mode or when an error role/answer is detected; otherwise an empty
    *     {@link JSONObject} is returned.
@@ -338,34 +344,35 @@ public class RestServiceUtil {
   public static JSONObject serverSideEvents(boolean asyncRequest, HttpServletResponse response,
       InputStream inputStream) {
     setEventStreamMode(response);
-    String lastLine = "";
-    try (PrintWriter writerToFront = response.getWriter(); BufferedReader readerFromCopilot = new BufferedReader(
-        new InputStreamReader(inputStream))) {
+    SSEStreamRelay relay = SSEStreamRelay.fromProperties();
+    SSEClientStream clientStream = null;
+    try (OutputStream outputToFront = response.getOutputStream()) {
       if (asyncRequest) {
-        sendEventToFront(writerToFront, "{}", true);
-      }
-      String currentLine;
-      while ((currentLine = readerFromCopilot.readLine()) != null) {
-        if (asyncRequest && currentLine.startsWith("data:")) {
-          sendEventToFront(writerToFront, currentLine, false);
+        clientStream = SSEStreamRegistry.getInstance().open(outputToFront, inputStream);
+        if (clientStream != null) {
+          try (SSEClientStream events = clientStream) {
+            relay.relay(inputStream, events, true);
+          }
+        } else {
+          relay.relay(inputStream, outputToFront, true);
         }
-        lastLine = currentLine;
-      }
-
-      if (!asyncRequest) {
-        writerToFront.write(lastLine);
+      } else {
+        relay.relay(inputStream, outputToFront, false);
+        relay.writeLastLine(outputToFront);
       }
 
-      JSONObject jsonLastLine = null;
-      if (StringUtils.isNotEmpty(lastLine)) {
-        String payload = asyncRequest ? lastLine.substring(5) : lastLine;
-        jsonLastLine = new JSONObject(payload);
-      }
+      String payload = relay.getLastLine(asyncRequest);
+      JSONObject jsonLastLine = StringUtils.isNotEmpty(payload) ? new JSONObject(payload) : null;
       if (isAnswerWithNullOrErrorRole(jsonLastLine)) {
         return jsonLastLine.getJSONObject(PROP_ANSWER);
       }
       return new JSONObject();
     } catch (JSONException | IOException e) {
+      if (clientStream != null && clientStream.isAborted()) {
+        // The client is gone or too slow, the request to Copilot has been cancelled
+        log.warn("Copilot stream {} not completed: {}", clientStream.getId(), clientStream.getAbortReason());
+        return new JSONObject();
+      }
       throw new OBException(OBMessageUtils.messageBD("ETCOP_SSEError") + ": " + e.getMessage(), e);
     } finally {
       if (inputStream != null) {
@@ -428,12 +435,15 @@ public class RestServiceUtil {
     if (copilotApp == null) {
       throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_AppNotFound")));
     }
+    OBContext context = OBContext.getOBContext();
+    Role role = context != null ? context.getRole() : null;
+    WebhookPermissionUtils.awaitScheduledPermissions(role != null ? role.getId() : null);
     refreshDynamicFiles(copilotApp);
 
-    // Build request JSON
-    JSONObject jsonRequestForCopilot = buildRequestJson(copilotApp, conversationId, question, questionAttachedFileIds);
-
-    if (TelemetryUsageInfo.getInstance().getSessionId() != null) {
+    // Build request JSON, computing the lookups of the request once
+    JSONObject jsonRequestForCopilot;
+    try (CopilotRequestContext requestContext = CopilotRequestContext.open()) {
+      jsonRequestForCopilot = buildRequestJson(copilotApp, conversationId, question, questionAttachedFileIds);
       TrackingUtil.sendUsageData(copilotApp);
     }
 
@@ -539,34 +549,29 @@ public class RestServiceUtil {
    */
   public static JSONObject sendRequestToCopilot(boolean asyncRequest, HttpServletResponse queue,
       JSONObject jsonRequestForCopilot, CopilotApp copilotApp) throws IOException, JSONException {
-    var properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
-    String copilotPort = readPropertyWithLegacyCompatibility(properties,"copilot.port", "5005");
-    String copilotHost = readPropertyWithLegacyCompatibility(properties,"copilot.host", "localhost");
     String endpoint = determineEndpoint(asyncRequest, copilotApp);
 
     logIfDebug("Request to Copilot:);");
     logIfDebug(new JSONObject(jsonRequestForCopilot.toString()).toString(2));
 
-    URL url = new URL(String.format("http://%s:%s%s", copilotHost, copilotPort, endpoint));
     try {
-      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-      connection.setRequestMethod("POST");
-      connection.setRequestProperty("Content-Type", "application/json");
-      connection.setDoOutput(true);
-      connection.setDoInput(true);
-      connection.getOutputStream().write(jsonRequestForCopilot.toString().getBytes());
-
+      HttpRequest copilotRequest = CopilotHttpClient.newRequest(endpoint).header("Content-Type",
+          APPLICATION_JSON_CHARSET_UTF_8).POST(
+          HttpRequest.BodyPublishers.ofString(jsonRequestForCopilot.toString(), StandardCharsets.UTF_8)).build();
       if (asyncRequest) {
-        return serverSideEvents(asyncRequest, queue, connection.getInputStream());
+        return serverSideEvents(asyncRequest, queue, CopilotHttpClient.sendForStream(copilotRequest));
       } else {
-        String responseFromCopilot = new BufferedReader(
-            new InputStreamReader(connection.getInputStream())).lines().collect(Collectors.joining("\n"));
+        String responseFromCopilot = CopilotHttpClient.send(copilotRequest,
+            HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8)).body();
         return new JSONObject(responseFromCopilot);
       }
-    } catch (Exception e) {
+    } catch (InterruptedException e) {
       log.error(e);
       Thread.currentThread().interrupt();
       throw new OBException(OBMessageUtils.messageBD("ETCOP_ConnError"));
+    } catch (Exception e) {
+      log.error(e);
+      throw new OBException(OBMessageUtils.messageBD("ETCOP_ConnError"));
     }
   }
 
@@ -922,9 +927,13 @@ public class RestServiceUtil {
 
 
   /**
-   * Return a JSON array with the assistants available for the current role.
-   * This method runs in admin mode during the query and restores the previous
-   * OBContext mode before returning.
+   * Return a JSON array with the assistants available for the current role, the ones with the most
+   * recent conversation of the current user first. This method runs in admin mode during the query
+   * and restores the previous OBContext mode before returning.
+   * <p>
+   * The assistants and their last activity are read with a single aggregated query. The missing
+   * webhook permissions of the role are assigned in the background, see
+   * {@link WebhookPermissionUtils#scheduleMissingPermissions(Role)}.
    *
    * @return a {@link JSONArray} with assistant id/name objects
    */
@@ -936,24 +945,25 @@ public class RestServiceUtil {
       OBContext context = OBContext.getOBContext();
       Role role = context.getRole();
 
-      List<CopilotApp> appList = new HashSet<>(OBDal.getInstance().createCriteria(CopilotRoleApp.class).add(
-          Restrictions.eq(CopilotRoleApp.PROPERTY_ROLE, role)).list()).stream().map(
-          CopilotRoleApp::getCopilotApp).distinct().collect(Collectors.toList());
+      List<Object[]> appList = new ArrayList<>(OBDal.getInstance().getSession()
+          .createQuery(ASSISTANTS_BY_LAST_ACTIVITY_HQL, Object[].class)
+          .setParameter("roleId", role.getId())
+          .setParameter("userId", context.getUser().getId())
+          .list());
+      appList.sort(Comparator.comparing((Object[] app) -> (Date) app[4],
+          Comparator.nullsLast(Comparator.reverseOrder())).thenComparing(app -> (String) app[1]));
 
-      appList.sort((app1, app2) -> getLastConversation(context.getUser(), app2).compareTo(
-          getLastConversation(context.getUser(), app1)));
-
-      for (CopilotApp app : appList) {
+      for (Object[] app : appList) {
         JSONObject assistantJson = new JSONObject();
-        assistantJson.put(APP_ID, app.getId());
-        assistantJson.put("name", app.getName());
-        assistantJson.put(PROP_DESCRIPTION, app.getDescription());
+        assistantJson.put(APP_ID, app[0]);
+        assistantJson.put("name", app[1]);
+        assistantJson.put(PROP_DESCRIPTION, app[2]);
 
-        assistantJson.put("featured", Boolean.TRUE.equals(app.isFeatured()) ? "Y" : "N");
+        assistantJson.put("featured", Boolean.TRUE.equals(app[3]) ? "Y" : "N");
         assistants.put(assistantJson);
       }
 
-      assignWebhookPermissionsSafely(appList, role);
+      WebhookPermissionUtils.scheduleMissingPermissions(role);
 
       return assistants;
     } catch (Exception e) {
@@ -963,26 +973,6 @@ public class RestServiceUtil {
     }
   }
 
-  /**
-   * Assign missing webhook permissions for every assistant in {@code appList} for
-   * the provided {@code role}. Exceptions for individual apps are logged but do
-   * not abort the overall operation.
-   *
-   * @param appList
-   *     the list of assistants
-   * @param role
-   *     the role to assign permissions to
-   */
-  private static void assignWebhookPermissionsSafely(List<CopilotApp> appList, Role role) {
-    for (CopilotApp app : appList) {
-      try {
-        WebhookPermissionUtils.assignMissingPermissions(role, app);
-      } catch (Exception e) {
-        log.error("Error assigning webhook permissions for app '{}': {}", app.getName(), e.getMessage(), e);
-      }
-    }
-  }
-
 
   /**
    * This method is used to save a file in the temp folder of the server. The file is saved with a
@@ -998,12 +988,7 @@ public class RestServiceUtil {
     }
     // read the json sent
     HttpResponse<String> responseFromCopilot = null;
-    var properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
     try {
-      HttpClient client = HttpClient.newBuilder().build();
-
-      String copilotPort = readPropertyWithLegacyCompatibility(properties, "copilot.port", "5005");
-      String copilotHost = readPropertyWithLegacyCompatibility(properties, "copilot.host", "localhost");
       JSONObject jsonRequestForCopilot = new JSONObject();
       // appType was unused after refactor; get it inline where needed
       String conversationId = UUID.randomUUID().toString();
@@ -1019,13 +1004,11 @@ public class RestServiceUtil {
       String bodyReq = jsonRequestForCopilot.toString();
       logIfDebug("Request to Copilot:);");
       logIfDebug(new JSONObject(bodyReq).toString(2));
-      HttpRequest copilotRequest = HttpRequest.newBuilder().uri(
-          new URI(String.format("http://%s:%s" + GRAPH, copilotHost, copilotPort))).headers("Content-Type",
-          APPLICATION_JSON_CHARSET_UTF_8).version(HttpClient.Version.HTTP_1_1).POST(
-          HttpRequest.BodyPublishers.ofString(bodyReq)).build();
+      HttpRequest copilotRequest = CopilotHttpClient.newRequest(GRAPH).headers("Content-Type",
+          APPLICATION_JSON_CHARSET_UTF_8).POST(HttpRequest.BodyPublishers.ofString(bodyReq)).build();
 
-      responseFromCopilot = client.send(copilotRequest, HttpResponse.BodyHandlers.ofString());
-    } catch (URISyntaxException | InterruptedException e) {
+      responseFromCopilot = CopilotHttpClient.send(copilotRequest, HttpResponse.BodyHandlers.ofString());
+    } catch (InterruptedException e) {
       log.error(e);
       Thread.currentThread().interrupt();
       throw new OBException(OBMessageUtils.messageBD("ETCOP_ConnError"));
@@ -1090,6 +1073,25 @@ public class RestServiceUtil {
     sendEventToFront(writerToFront, json.toString(), addData);
   }
 
+  /**
+   * Returns a writer to send events to the front-end. When the SSE relay has already taken the
+   * response output stream, the writer wraps that stream, as the servlet API does not allow to
+   * obtain both.
+   *
+   * @param response
+   *     the response to write to
+   * @return a {@link PrintWriter} for the response
+   * @throws IOException
+   *     if the response streams cannot be obtained
+   */
+  static PrintWriter getEventWriter(HttpServletResponse response) throws IOException {
+    try {
+      return response.getWriter();
+    } catch (IllegalStateException e) {
+      return new PrintWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+    }
+  }
+
   /**
    * Sets the response headers to configure the HttpServletResponse object for server-sent events (SSE).
    * This method prepares the response to stream data to a client in a text/event-stream format, which is
@@ -0,0 +1,424 @@
+package com.etendoerp.copilot.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Client side of a relayed server-sent events stream, opened by the {@link SSEStreamRegistry}.
+ * <p>
+ * The events written by the {@link SSEStreamRelay} are queued in a bounded buffer and written to
+ * the client by a writer thread, so a slow or stalled browser does not block the reading of the
+ * Copilot stream, nor the agent behind it. When the buffer is full, the overflow policy is applied
+ * to the progress events, the ones whose {@code answer.role} is {@code tool}, {@code node} or
+ * {@code debug}:
+ * <ul>
+ *   <li>{@link OverflowPolicy#DROP_QUEUED}: the queued progress events are dropped, so only the
+ *   latest progress reaches the client.</li>
+ *   <li>{@link OverflowPolicy#DROP}: the new progress event is dropped, or the oldest queued one
+ *   when the new event is an answer.</li>
+ *   <li>{@link OverflowPolicy#ABORT}: the stream is aborted.</li>
+ * </ul>
+ * Events are never merged: Copilot sends every answer whole, not as token deltas. Answers are never
+ * dropped; when there is no progress event to drop the stream is aborted.
+ * <p>
+ * The stream is also aborted when the client disconnects or when a write to the client takes
+ * longer than the write timeout. Aborting closes the Copilot stream, which cancels the request to
+ * the agent, and interrupts the writer. The client stream is never closed by an abort, it belongs
+ * to the request, which closes it once {@link #close()} has returned, so only after the writer has
+ * stopped using it.
+ */
+public class SSEClientStream extends OutputStream {
+
+  private static final Logger log = LogManager.getLogger(SSEClientStream.class);
+
+  static final String ABORT_DISCONNECTED = "client disconnected";
+  static final String ABORT_TIMEOUT = "write timeout";
+  static final String ABORT_OVERFLOW = "buffer overflow";
+
+  private static final String DATA_PREFIX = "data:";
+  private static final long WAIT_STEP_MS = 100L;
+
+  /**
+   * What to do with the events when the buffer of a slow client is full.
+   */
+  public enum OverflowPolicy {
+    DROP_QUEUED, DROP, ABORT
+  }
+
+  private final String id;
+  private final OutputStream out;
+  private final Closeable upstream;
+  private final int maxEvents;
+  private final OverflowPolicy policy;
+  private final SSEStreamRegistry registry;
+  private final long abortGraceNanos;
+  private final Deque<Event> queue = new ArrayDeque<>();
+  private final CountDownLatch writerDone = new CountDownLatch(1);
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  private boolean previousNewline;
+  private boolean finished;
+  private volatile String abortReason;
+  private volatile long abortedAt = -1L;
+  private volatile long writeStartedAt = -1L;
+  private Thread writer;
+  private long queuedEvents;
+  private long writtenEvents;
+  private long droppedEvents;
+  private int maxDepth;
+
+  SSEClientStream(String id, OutputStream out, Closeable upstream, int maxEvents, OverflowPolicy policy,
+      long abortGraceMs, SSEStreamRegistry registry) {
+    this.id = id;
+    this.out = out;
+    this.upstream = upstream;
+    this.maxEvents = Math.max(1, maxEvents);
+    this.policy = policy;
+    this.abortGraceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, abortGraceMs));
+    this.registry = registry;
+  }
+
+  /**
+   * Queues the bytes of the events, every event ends with a blank line.
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkNotAborted();
+    int start = off;
+    for (int i = off; i < off + len; i++) {
+      boolean newline = b[i] == '\n';
+      if (newline && previousNewline) {
+        offer(takeEvent(b, start, i + 1));
+        start = i + 1;
+        newline = false;
+      }
+      previousNewline = newline;
+    }
+    pending.write(b, start, off + len - start);
+  }
+
+  /**
+   * @return the bytes of the event ending at {@code end}, with the bytes of the previous writes
+   */
+  private byte[] takeEvent(byte[] b, int start, int end) {
+    if (pending.size() == 0) {
+      return Arrays.copyOfRange(b, start, end);
+    }
+    pending.write(b, start, end - start);
+    byte[] bytes = pending.toByteArray();
+    pending.reset();
+    return bytes;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  /**
+   * Does not wait for the client: the writer flushes the client stream when the buffer is empty.
+   */
+  @Override
+  public void flush() throws IOException {
+    checkNotAborted();
+  }
+
+  /**
+   * Queues the bytes of an unfinished event, waits until the queued events are written to the
+   * client and the writer has stopped, and unregisters the stream. Once the stream is aborted, the
+   * interrupted writer is waited for the abort grace period at most.
+   *
+   * @throws IOException
+   *     if the writer of an aborted stream is still blocked by the client after the grace period
+   */
+  @Override
+  public void close() throws IOException {
+    if (pending.size() > 0 && abortReason == null) {
+      offer(pending.toByteArray());
+      pending.reset();
+    }
+    synchronized (this) {
+      finished = true;
+      notifyAll();
+    }
+    try {
+      awaitWriter();
+    } finally {
+      registry.closed(this);
+    }
+  }
+
+  private void awaitWriter() throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          if (writerDone.await(WAIT_STEP_MS, TimeUnit.MILLISECONDS)) {
+            return;
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+          abort(ABORT_DISCONNECTED);
+        }
+        long aborted = abortedAt;
+        if (aborted >= 0 && System.nanoTime() - aborted > abortGraceNanos) {
+          log.error("Writer of Copilot stream {} still blocked by the client {} ms after the abort", id,
+              TimeUnit.NANOSECONDS.toMillis(abortGraceNanos));
+          throw new IOException("Copilot stream " + id + " aborted: writer still blocked by the client");
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void checkNotAborted() throws IOException {
+    String reason = abortReason;
+    if (reason != null) {
+      throw new IOException("Copilot stream " + id + " aborted: " + reason);
+    }
+  }
+
+  private void offer(byte[] bytes) {
+    Event event = new Event(bytes);
+    boolean accepted;
+    synchronized (this) {
+      accepted = enqueue(event);
+      notifyAll();
+    }
+    if (!accepted) {
+      abort(ABORT_OVERFLOW);
+    }
+  }
+
+  private boolean enqueue(Event event) {
+    if (queue.size() >= maxEvents) {
+      if (policy == OverflowPolicy.ABORT) {
+        return false;
+      }
+      if (policy == OverflowPolicy.DROP && event.isProgress()) {
+        droppedEvents++;
+        return true;
+      }
+      if (removeProgress(policy == OverflowPolicy.DROP_QUEUED ? Integer.MAX_VALUE : 1) == 0) {
+        return false;
+      }
+    }
+    queue.addLast(event);
+    queuedEvents++;
+    maxDepth = Math.max(maxDepth, queue.size());
+    return true;
+  }
+
+  private int removeProgress(int max) {
+    int removed = 0;
+    Iterator<Event> it = queue.iterator();
+    while (removed < max && it.hasNext()) {
+      if (it.next().isProgress()) {
+        it.remove();
+        removed++;
+      }
+    }
+    droppedEvents += removed;
+    return removed;
+  }
+
+  /**
+   * @param event
+   *     the bytes of an event
+   * @return whether the {@code answer.role} of the data of the event is {@code tool}, {@code node}
+   *     or {@code debug}. Events without JSON data are not progress events.
+   */
+  static boolean isProgress(byte[] event) {
+    StringBuilder data = new StringBuilder();
+    for (String line : new String(event, StandardCharsets.UTF_8).split("\n")) {
+      if (line.startsWith(DATA_PREFIX)) {
+        data.append(line.substring(DATA_PREFIX.length()).trim());
+      }
+    }
+    if (data.length() == 0 || data.charAt(0) != '{') {
+      return false;
+    }
+    try {
+      JSONObject answer = new JSONObject(data.toString()).optJSONObject("answer");
+      String role = answer != null ? answer.optString("role") : null;
+      return StringUtils.equalsAny(role, "tool", "node", "debug");
+    } catch (JSONException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes the queued events to the client until the stream is finished and the buffer is empty,
+   * or the stream is aborted. Runs in a writer thread.
+   */
+  void drain() {
+    synchronized (this) {
+      writer = Thread.currentThread();
+    }
+    try {
+      Event event;
+      while ((event = next()) != null) {
+        writeStartedAt = System.nanoTime();
+        out.write(event.bytes);
+        if (event.flush) {
+          out.flush();
+        }
+        writeStartedAt = -1L;
+        synchronized (this) {
+          writtenEvents++;
+        }
+      }
+    } catch (IOException e) {
+      log.debug("Error writing Copilot stream {} to the client", id, e);
+      abort(ABORT_DISCONNECTED);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abort(ABORT_DISCONNECTED);
+    } finally {
+      synchronized (this) {
+        writer = null;
+      }
+      writeStartedAt = -1L;
+      writerDone.countDown();
+    }
+  }
+
+  private synchronized Event next() throws InterruptedException {
+    while (queue.isEmpty() && !finished && abortReason == null) {
+      wait();
+    }
+    if (abortReason != null || queue.isEmpty()) {
+      return null;
+    }
+    Event event = queue.pollFirst();
+    event.flush = queue.isEmpty();
+    return event;
+  }
+
+  /**
+   * Aborts the stream: the queued events are discarded, the Copilot stream is closed and a writer
+   * blocked by the client is interrupted. The client stream is not touched, since it may be in use
+   * by the writer. Only the first reason is kept.
+   *
+   * @param reason
+   *     why the stream is aborted
+   */
+  void abort(String reason) {
+    synchronized (this) {
+      if (abortReason != null) {
+        return;
+      }
+      abortReason = reason;
+      abortedAt = System.nanoTime();
+      queue.clear();
+      notifyAll();
+      // Interrupted while holding the lock, so the thread cannot have moved on to another stream
+      if (writer != null && writer != Thread.currentThread()) {
+        writer.interrupt();
+      }
+    }
+    log.warn("Copilot stream {} aborted: {}", id, reason);
+    if (upstream != null) {
+      try {
+        upstream.close();
+      } catch (IOException | RuntimeException e) {
+        log.debug("Error closing Copilot stream {}", id, e);
+      }
+    }
+  }
+
+  /**
+   * @param now
+   *     the current {@link System#nanoTime()}
+   * @param timeoutNanos
+   *     the write timeout
+   * @return whether a write to the client has been blocked for longer than the timeout
+   */
+  boolean isStalled(long now, long timeoutNanos) {
+    long started = writeStartedAt;
+    return started >= 0 && now - started > timeoutNanos;
+  }
+
+  /**
+   * @return the identifier of the stream
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return why the stream was aborted, or null if it was not
+   */
+  public String getAbortReason() {
+    return abortReason;
+  }
+
+  /**
+   * @return whether the stream was aborted
+   */
+  public boolean isAborted() {
+    return abortReason != null;
+  }
+
+  /**
+   * @return the number of events written to the client
+   */
+  public synchronized long getWrittenEvents() {
+    return writtenEvents;
+  }
+
+  /**
+   * @return the number of progress events dropped because the buffer was full
+   */
+  public synchronized long getDroppedEvents() {
+    return droppedEvents;
+  }
+
+  /**
+   * @return a summary of the stream, for the logs
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format("SSEClientStream[id=%s, queued=%d, written=%d, dropped=%d, maxDepth=%d%s]", id,
+        queuedEvents, writtenEvents, droppedEvents, maxDepth,
+        abortReason != null ? ", aborted=" + abortReason : "");
+  }
+
+  /**
+   * A queued event. Whether it is a progress event is only needed when the buffer is full, so the
+   * data of the event is only parsed then, once.
+   */
+  private static class Event {
+    private final byte[] bytes;
+    private Boolean progress;
+    private boolean flush;
+
+    Event(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    boolean isProgress() {
+      if (progress == null) {
+        progress = SSEClientStream.isProgress(bytes);
+      }
+      return progress;
+    }
+  }
+}
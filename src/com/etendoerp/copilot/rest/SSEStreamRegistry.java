@@ -0,0 +1,247 @@
+package com.etendoerp.copilot.rest;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+import static com.etendoerp.copilot.util.CopilotUtils.readPropertyWithLegacyCompatibility;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+import com.etendoerp.copilot.util.CopilotRuntime;
+
+/**
+ * Thread-safe registry of the server-sent events streams being relayed to the clients, see
+ * {@link SSEClientStream}.
+ * <p>
+ * Every stream gets a bounded buffer and a writer thread, configured with the following properties
+ * of {@code Openbravo.properties}:
+ * <ul>
+ *   <li>{@code copilot.sse.buffer.max.events}: maximum number of events waiting for a slow client
+ *   (default 256).</li>
+ *   <li>{@code copilot.sse.overflow.policy}: what to do when the buffer is full,
+ *   {@code DROP_QUEUED}, {@code DROP} or {@code ABORT} (default {@code DROP_QUEUED}).</li>
+ *   <li>{@code copilot.sse.write.timeout}: maximum time in milliseconds a write to the client may be
+ *   blocked before the stream is aborted, 0 for no limit (default 30000).</li>
+ *   <li>{@code copilot.sse.abort.grace}: maximum time in milliseconds the request waits for the
+ *   interrupted writer of an aborted stream before releasing the response (default 5000).</li>
+ *   <li>{@code copilot.sse.max.streams}: maximum number of streams with a writer thread (default
+ *   200). Beyond it, the streams are written to the client by the request thread, unbuffered.</li>
+ * </ul>
+ * The registry keeps the active streams and counts the streams opened, completed and aborted by
+ * reason, and the progress events dropped for slow clients.
+ */
+public class SSEStreamRegistry {
+
+  private static final Logger log = LogManager.getLogger(SSEStreamRegistry.class);
+
+  public static final String PROP_BUFFER_MAX_EVENTS = "copilot.sse.buffer.max.events";
+  public static final String PROP_OVERFLOW_POLICY = "copilot.sse.overflow.policy";
+  public static final String PROP_WRITE_TIMEOUT = "copilot.sse.write.timeout";
+  public static final String PROP_MAX_STREAMS = "copilot.sse.max.streams";
+  public static final String PROP_ABORT_GRACE = "copilot.sse.abort.grace";
+  private static final int DEFAULT_BUFFER_MAX_EVENTS = 256;
+  private static final long DEFAULT_WRITE_TIMEOUT_MS = 30_000L;
+  private static final int DEFAULT_MAX_STREAMS = 200;
+  private static final long DEFAULT_ABORT_GRACE_MS = 5000L;
+  private static final long WRITER_KEEPALIVE_S = 60L;
+  private static final long WATCHDOG_PERIOD_MS = 1000L;
+
+  private static final CopilotRuntime.Shared<SSEStreamRegistry> INSTANCE = new CopilotRuntime.Shared<>(
+      SSEStreamRegistry::create);
+
+  private final Map<String, SSEClientStream> streams = new ConcurrentHashMap<>();
+  private final int maxEvents;
+  private final SSEClientStream.OverflowPolicy policy;
+  private final long writeTimeoutNanos;
+  private final long abortGraceMs;
+  private final Executor writers;
+  private final AtomicInteger sequence = new AtomicInteger();
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final Map<String, AtomicLong> aborted = new ConcurrentHashMap<>();
+  private final AtomicLong droppedEvents = new AtomicLong();
+
+  SSEStreamRegistry(int maxEvents, SSEClientStream.OverflowPolicy policy, long writeTimeoutMs, Executor writers) {
+    this(maxEvents, policy, writeTimeoutMs, DEFAULT_ABORT_GRACE_MS, writers);
+  }
+
+  SSEStreamRegistry(int maxEvents, SSEClientStream.OverflowPolicy policy, long writeTimeoutMs, long abortGraceMs,
+      Executor writers) {
+    this.maxEvents = Math.max(1, maxEvents);
+    this.policy = policy;
+    this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, writeTimeoutMs));
+    this.abortGraceMs = Math.max(0L, abortGraceMs);
+    this.writers = writers;
+  }
+
+  /**
+   * Returns the shared registry, created on first use from {@code Openbravo.properties}.
+   *
+   * @return the shared {@link SSEStreamRegistry}
+   */
+  public static SSEStreamRegistry getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static SSEStreamRegistry create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    int maxStreams = (int) Math.max(1L, readLong(properties, PROP_MAX_STREAMS, DEFAULT_MAX_STREAMS));
+    // No queue: a stream waiting for a writer would fill its buffer, so it is rejected instead
+    Executor writers = new ThreadPoolExecutor(0, maxStreams, WRITER_KEEPALIVE_S, TimeUnit.SECONDS,
+        new SynchronousQueue<>(), daemonThreads("copilot-sse-writer"));
+    SSEStreamRegistry registry = new SSEStreamRegistry(
+        (int) readLong(properties, PROP_BUFFER_MAX_EVENTS, DEFAULT_BUFFER_MAX_EVENTS), readPolicy(properties),
+        readLong(properties, PROP_WRITE_TIMEOUT, DEFAULT_WRITE_TIMEOUT_MS),
+        readLong(properties, PROP_ABORT_GRACE, DEFAULT_ABORT_GRACE_MS), writers);
+    registry.startWatchdog();
+    return registry;
+  }
+
+  /**
+   * Replaces the shared registry, for testing purposes.
+   *
+   * @param registry
+   *     the registry to use, or null to create it again on next use
+   */
+  static void setInstance(SSEStreamRegistry registry) {
+    INSTANCE.set(registry);
+  }
+
+  /**
+   * Opens the client side of a stream and starts its writer.
+   *
+   * @param out
+   *     the client output stream
+   * @param upstream
+   *     the stream received from Copilot, closed if the client stream is aborted
+   * @return the stream to relay the events to, or null if every writer is busy, then the caller
+   *     writes the events to the client itself
+   */
+  public SSEClientStream open(OutputStream out, Closeable upstream) {
+    String id = "sse-" + sequence.incrementAndGet();
+    SSEClientStream stream = new SSEClientStream(id, out, upstream, maxEvents, policy, abortGraceMs, this);
+    streams.put(id, stream);
+    try {
+      writers.execute(stream::drain);
+    } catch (RejectedExecutionException e) {
+      streams.remove(id);
+      long count = rejected.incrementAndGet();
+      log.warn("No Copilot stream writer available, {} streams relayed by the request thread so far", count);
+      return null;
+    }
+    opened.incrementAndGet();
+    return stream;
+  }
+
+  /**
+   * Unregisters a finished stream and adds its counters to the totals.
+   *
+   * @param stream
+   *     the finished stream
+   */
+  void closed(SSEClientStream stream) {
+    if (streams.remove(stream.getId()) == null) {
+      return;
+    }
+    droppedEvents.addAndGet(stream.getDroppedEvents());
+    if (stream.isAborted()) {
+      aborted.computeIfAbsent(stream.getAbortReason(), k -> new AtomicLong()).incrementAndGet();
+    } else {
+      completed.incrementAndGet();
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("{} closed. {}", stream, getStats());
+    }
+  }
+
+  /**
+   * Aborts the streams whose client has been blocking a write for longer than the write timeout.
+   */
+  void abortStalled() {
+    if (writeTimeoutNanos == 0L) {
+      return;
+    }
+    long now = System.nanoTime();
+    for (SSEClientStream stream : streams.values()) {
+      if (stream.isStalled(now, writeTimeoutNanos)) {
+        stream.abort(SSEClientStream.ABORT_TIMEOUT);
+      }
+    }
+  }
+
+  private void startWatchdog() {
+    if (writeTimeoutNanos == 0L) {
+      return;
+    }
+    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+        daemonThreads("copilot-sse-watchdog"));
+    watchdog.scheduleWithFixedDelay(this::abortStalled, WATCHDOG_PERIOD_MS, WATCHDOG_PERIOD_MS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the number of streams being relayed
+   */
+  public int getActiveCount() {
+    return streams.size();
+  }
+
+  /**
+   * @return the number of streams relayed by the request thread because every writer was busy
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return the number of streams aborted, by reason
+   */
+  public Map<String, Long> getAbortedCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    aborted.forEach((reason, count) -> counts.put(reason, count.get()));
+    return counts;
+  }
+
+  /**
+   * @return the stream counters and the progress events dropped for slow clients
+   */
+  public String getStats() {
+    return String.format(
+        "SSEStreamRegistry[active=%d, opened=%d, completed=%d, aborted=%s, rejected=%d, dropped=%d]",
+        streams.size(), opened.get(), completed.get(), getAbortedCounts(), rejected.get(), droppedEvents.get());
+  }
+
+  private static SSEClientStream.OverflowPolicy readPolicy(Properties properties) {
+    String value = properties != null ? readPropertyWithLegacyCompatibility(properties, PROP_OVERFLOW_POLICY, null)
+        : null;
+    if (StringUtils.isBlank(value)) {
+      return SSEClientStream.OverflowPolicy.DROP_QUEUED;
+    }
+    try {
+      return SSEClientStream.OverflowPolicy.valueOf(value.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      log.warn("Invalid value '{}' for property '{}', using {}", value, PROP_OVERFLOW_POLICY,
+          SSEClientStream.OverflowPolicy.DROP_QUEUED);
+      return SSEClientStream.OverflowPolicy.DROP_QUEUED;
+    }
+  }
+}
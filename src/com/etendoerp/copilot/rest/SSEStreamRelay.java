@@ -0,0 +1,208 @@
+package com.etendoerp.copilot.rest;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Byte level relay of the server-sent events stream produced by the Copilot service for the
+ * {@code /aquestion} and {@code /agraph} endpoints.
+ * <p>
+ * The bytes received from Copilot are copied to the client output stream through a reusable
+ * read buffer, without decoding every line into a {@link String}. Only {@code data:} lines are
+ * forwarded, each followed by a blank line to close the event. Flushes are coalesced: the output
+ * is flushed when no more input is immediately available (so a token never waits for the next
+ * one) or when the oldest unflushed event is older than the configured maximum latency, set with
+ * the {@code copilot.sse.flush.max.latency} property in milliseconds (default 25).
+ * <p>
+ * The last non-empty line is kept in a reusable buffer, so the final {@code answer} frame can be
+ * decoded once at the end of the stream to detect error responses.
+ */
+public class SSEStreamRelay {
+
+  private static final Logger log = LogManager.getLogger(SSEStreamRelay.class);
+
+  public static final String PROP_FLUSH_MAX_LATENCY = "copilot.sse.flush.max.latency";
+  static final long DEFAULT_FLUSH_MAX_LATENCY_MS = 25L;
+
+  private static final int READ_BUFFER_SIZE = 8192;
+  private static final int INITIAL_LINE_SIZE = 1024;
+  private static final byte[] DATA_PREFIX = "data:".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] EVENT_END = "\n\n".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] EMPTY_EVENT = "data: {}\n\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final long maxLatencyNanos;
+  private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+  private byte[] line = new byte[INITIAL_LINE_SIZE];
+  private int lineLength;
+  private byte[] lastLine = new byte[INITIAL_LINE_SIZE];
+  private int lastLineLength;
+  private long firstPendingNanos = -1L;
+  private long eventCount;
+  private long flushCount;
+
+  /**
+   * Creates a relay with the given maximum flush latency.
+   *
+   * @param maxLatencyMillis
+   *     maximum time in milliseconds a forwarded event may wait in the output buffer while more
+   *     input is available; 0 flushes after every read.
+   */
+  public SSEStreamRelay(long maxLatencyMillis) {
+    this.maxLatencyNanos = Math.max(0L, maxLatencyMillis) * 1_000_000L;
+  }
+
+  /**
+   * Creates a relay configured from {@code Openbravo.properties}.
+   *
+   * @return a new relay using the {@code copilot.sse.flush.max.latency} property
+   */
+  public static SSEStreamRelay fromProperties() {
+    return new SSEStreamRelay(readLong(PROP_FLUSH_MAX_LATENCY, DEFAULT_FLUSH_MAX_LATENCY_MS));
+  }
+
+  /**
+   * Copies the Copilot stream to the client. When {@code forwardEvents} is true, an initial empty
+   * event is sent and every {@code data:} line is relayed as it arrives; otherwise nothing is
+   * written and only the last line is retained.
+   *
+   * @param in
+   *     the stream received from Copilot
+   * @param out
+   *     the client output stream
+   * @param forwardEvents
+   *     whether the events must be relayed to the client
+   * @throws IOException
+   *     if reading from Copilot or writing to the client fails
+   */
+  public void relay(InputStream in, OutputStream out, boolean forwardEvents) throws IOException {
+    if (forwardEvents) {
+      out.write(EMPTY_EVENT);
+      flush(out);
+    }
+    int read;
+    while ((read = in.read(readBuffer)) != -1) {
+      int start = 0;
+      for (int i = 0; i < read; i++) {
+        if (readBuffer[i] == '\n') {
+          appendToLine(start, i - start);
+          endLine(out, forwardEvents);
+          start = i + 1;
+        }
+      }
+      appendToLine(start, read - start);
+      if (firstPendingNanos >= 0 && (in.available() <= 0
+          || System.nanoTime() - firstPendingNanos >= maxLatencyNanos)) {
+        flush(out);
+      }
+    }
+    if (lineLength > 0) {
+      endLine(out, forwardEvents);
+    }
+    if (firstPendingNanos >= 0) {
+      flush(out);
+    }
+  }
+
+  /**
+   * Writes the last non-empty line received, as is, to the given stream.
+   *
+   * @param out
+   *     the stream to write to
+   * @throws IOException
+   *     if writing fails
+   */
+  public void writeLastLine(OutputStream out) throws IOException {
+    out.write(lastLine, 0, lastLineLength);
+    out.flush();
+  }
+
+  /**
+   * Returns the last non-empty line received, decoded as UTF-8.
+   *
+   * @param stripDataPrefix
+   *     whether the leading {@code data:} of the SSE frame must be removed
+   * @return the last line, or an empty string if no line was received
+   */
+  public String getLastLine(boolean stripDataPrefix) {
+    int offset = stripDataPrefix && startsWithData(lastLine, lastLineLength) ? DATA_PREFIX.length : 0;
+    return new String(lastLine, offset, lastLineLength - offset, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the number of events forwarded to the client
+   */
+  public long getEventCount() {
+    return eventCount;
+  }
+
+  /**
+   * @return the number of flushes done on the client stream
+   */
+  public long getFlushCount() {
+    return flushCount;
+  }
+
+  private void appendToLine(int offset, int length) {
+    if (length <= 0) {
+      return;
+    }
+    if (lineLength + length > line.length) {
+      line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+    }
+    System.arraycopy(readBuffer, offset, line, lineLength, length);
+    lineLength += length;
+  }
+
+  private void endLine(OutputStream out, boolean forwardEvents) throws IOException {
+    int length = lineLength;
+    if (length > 0 && line[length - 1] == '\r') {
+      length--;
+    }
+    lineLength = 0;
+    if (length == 0) {
+      return;
+    }
+    if (forwardEvents && startsWithData(line, length)) {
+      out.write(line, 0, length);
+      out.write(EVENT_END);
+      eventCount++;
+      if (firstPendingNanos < 0) {
+        firstPendingNanos = System.nanoTime();
+      }
+      if (log.isDebugEnabled()) {
+        log.debug(new String(line, 0, length, StandardCharsets.UTF_8));
+      }
+    }
+    // Swap buffers instead of copying, the old last line becomes the next working buffer.
+    byte[] previous = lastLine;
+    lastLine = line;
+    lastLineLength = length;
+    line = previous;
+  }
+
+  private void flush(OutputStream out) throws IOException {
+    out.flush();
+    flushCount++;
+    firstPendingNanos = -1L;
+  }
+
+  private static boolean startsWithData(byte[] bytes, int length) {
+    if (length < DATA_PREFIX.length) {
+      return false;
+    }
+    for (int i = 0; i < DATA_PREFIX.length; i++) {
+      if (bytes[i] != DATA_PREFIX[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
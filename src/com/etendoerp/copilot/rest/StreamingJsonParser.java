@@ -0,0 +1,255 @@
+package com.etendoerp.copilot.rest;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Single pass JSON parser that reads the characters from a {@link Reader} and builds the Jettison
+ * objects directly, without holding the whole document in a {@link String} first.
+ * <p>
+ * Values are typed as Jettison does: integers as {@link Integer} or {@link Long}, decimals as
+ * {@link Double}, {@code null} as {@link JSONObject#NULL}. Line breaks inside strings are dropped,
+ * as the previous line based reading of the request body did.
+ */
+final class StreamingJsonParser {
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAX_DEPTH = 256;
+
+  private final Reader reader;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private final StringBuilder text = new StringBuilder();
+  private int position;
+  private int limit;
+  private long offset;
+  private int depth;
+
+  private StreamingJsonParser(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Parses a JSON object. The characters after the closing brace are not read.
+   *
+   * @param reader
+   *     the reader of the document
+   * @return the parsed object
+   * @throws IOException
+   *     if the document cannot be read
+   * @throws JSONException
+   *     if the document is not a JSON object
+   */
+  static JSONObject parseObject(Reader reader) throws IOException, JSONException {
+    StreamingJsonParser parser = new StreamingJsonParser(reader);
+    if (parser.nextClean() != '{') {
+      throw parser.syntaxError("A JSON object text must begin with '{'");
+    }
+    return parser.readObject();
+  }
+
+  private JSONObject readObject() throws IOException, JSONException {
+    enter();
+    JSONObject object = new JSONObject();
+    int c = nextClean();
+    if (c == '}') {
+      depth--;
+      return object;
+    }
+    while (true) {
+      if (c != '"') {
+        throw syntaxError("Expected a quoted key");
+      }
+      String key = readString();
+      if (nextClean() != ':') {
+        throw syntaxError("Expected a ':' after a key");
+      }
+      object.put(key, readValue(nextClean()));
+      c = nextClean();
+      if (c == '}') {
+        depth--;
+        return object;
+      }
+      if (c != ',') {
+        throw syntaxError("Expected a ',' or '}'");
+      }
+      c = nextClean();
+    }
+  }
+
+  private JSONArray readArray() throws IOException, JSONException {
+    enter();
+    JSONArray array = new JSONArray();
+    int c = nextClean();
+    if (c == ']') {
+      depth--;
+      return array;
+    }
+    while (true) {
+      array.put(readValue(c));
+      c = nextClean();
+      if (c == ']') {
+        depth--;
+        return array;
+      }
+      if (c != ',') {
+        throw syntaxError("Expected a ',' or ']'");
+      }
+      c = nextClean();
+    }
+  }
+
+  private Object readValue(int c) throws IOException, JSONException {
+    switch (c) {
+      case '{':
+        return readObject();
+      case '[':
+        return readArray();
+      case '"':
+        return readString();
+      case -1:
+        throw syntaxError("Unexpected end of the document");
+      default:
+        return readLiteral(c);
+    }
+  }
+
+  private String readString() throws IOException, JSONException {
+    text.setLength(0);
+    while (true) {
+      int c = next();
+      switch (c) {
+        case -1:
+          throw syntaxError("Unterminated string");
+        case '"':
+          return text.toString();
+        case '\\':
+          text.append(readEscape());
+          break;
+        case '\n':
+        case '\r':
+          break;
+        default:
+          text.append((char) c);
+      }
+    }
+  }
+
+  private char readEscape() throws IOException, JSONException {
+    int c = next();
+    switch (c) {
+      case 'b':
+        return '\b';
+      case 't':
+        return '\t';
+      case 'n':
+        return '\n';
+      case 'f':
+        return '\f';
+      case 'r':
+        return '\r';
+      case 'u':
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(next(), 16);
+          if (digit < 0) {
+            throw syntaxError("Illegal unicode escape");
+          }
+          code = (code << 4) | digit;
+        }
+        return (char) code;
+      case '"':
+      case '\\':
+      case '/':
+        return (char) c;
+      default:
+        throw syntaxError("Illegal escape");
+    }
+  }
+
+  private Object readLiteral(int first) throws IOException, JSONException {
+    text.setLength(0);
+    int c = first;
+    while (c != -1 && ",:]}/\\\"[{;=#".indexOf(c) < 0 && !Character.isWhitespace(c)) {
+      text.append((char) c);
+      c = next();
+    }
+    position--;
+    String literal = text.toString();
+    if (literal.isEmpty()) {
+      throw syntaxError("Missing value");
+    }
+    if ("true".equals(literal)) {
+      return Boolean.TRUE;
+    }
+    if ("false".equals(literal)) {
+      return Boolean.FALSE;
+    }
+    if ("null".equals(literal)) {
+      return JSONObject.NULL;
+    }
+    return toNumber(literal);
+  }
+
+  private Object toNumber(String literal) throws JSONException {
+    try {
+      if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+        long value = Long.parseLong(literal);
+        if (value == (int) value) {
+          return (int) value;
+        }
+        return value;
+      }
+      return Double.valueOf(literal);
+    } catch (NumberFormatException e) {
+      try {
+        return Double.valueOf(literal);
+      } catch (NumberFormatException e2) {
+        throw syntaxError("Illegal value '" + literal + "'");
+      }
+    }
+  }
+
+  private void enter() throws JSONException {
+    if (++depth > MAX_DEPTH) {
+      throw syntaxError("Maximum nesting depth of " + MAX_DEPTH + " exceeded");
+    }
+  }
+
+  private int nextClean() throws IOException {
+    int c = next();
+    while (c != -1 && Character.isWhitespace(c)) {
+      c = next();
+    }
+    return c;
+  }
+
+  /**
+   * @return the next character, or -1 at the end of the document. After the end, {@code position}
+   *     is still advanced, so a literal ending the document can step back one character.
+   */
+  private int next() throws IOException {
+    if (position >= limit) {
+      if (limit == -1) {
+        position++;
+        return -1;
+      }
+      offset += limit;
+      limit = reader.read(buffer, 0, buffer.length);
+      position = 0;
+      if (limit <= 0) {
+        limit = -1;
+        position = 1;
+        return -1;
+      }
+    }
+    return buffer[position++];
+  }
+
+  private JSONException syntaxError(String message) {
+    return new JSONException(message + " at character " + (offset + Math.max(position, 0)));
+  }
+}
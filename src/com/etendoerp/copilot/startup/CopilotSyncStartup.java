@@ -1,7 +1,6 @@
 package com.etendoerp.copilot.startup;
 
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.List;
@@ -35,7 +34,7 @@ import com.etendoerp.copilot.data.CopilotRoleApp;
 import com.etendoerp.copilot.process.SyncAssistant;
 import com.etendoerp.copilot.util.CopilotAppInfoUtils;
 import com.etendoerp.copilot.util.CopilotConstants;
-import com.etendoerp.copilot.util.CopilotUtils;
+import com.etendoerp.copilot.util.CopilotHttpClient;
 
 /**
  * Startup component that synchronizes all Copilot agents with pending synchronization
@@ -52,7 +51,6 @@ public class CopilotSyncStartup implements ApplicationInitializer {
   private static final long SESSION_INIT_WAIT_TIMEOUT_MS = 60_000L;
   private static final long SESSION_INIT_POLL_MS = 100L;
   private static final String RECORD_IDS = "recordIds";
-  private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder().build();
 
   @Override
   public void initialize() {
@@ -254,20 +252,14 @@ public class CopilotSyncStartup implements ApplicationInitializer {
   }
 
   private void waitForCopilotService() throws InterruptedException {
-    String host = CopilotUtils.getCopilotHost();
-    String port = CopilotUtils.getCopilotPort();
-    if (StringUtils.isEmpty(host)) {
-      host = "localhost";
-    }
-    String healthUrl = String.format("http://%s:%s/", host, port);
+    URI healthUrl = CopilotHttpClient.getCopilotUri("/");
 
     for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
       try {
-        HttpRequest req = HttpRequest.newBuilder()
-            .uri(new URI(healthUrl))
+        HttpRequest req = CopilotHttpClient.newRequest("/")
             .GET()
             .build();
-        HTTP_CLIENT.send(req, HttpResponse.BodyHandlers.ofString());
+        CopilotHttpClient.send(req, HttpResponse.BodyHandlers.ofString());
         log.info("Copilot service is reachable at {}", healthUrl);
         return;
       } catch (InterruptedException e) {
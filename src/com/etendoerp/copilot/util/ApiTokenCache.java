@@ -0,0 +1,115 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+import com.etendoerp.copilot.data.CopilotApiToken;
+
+/**
+ * Cache of the decrypted {@link CopilotApiToken API tokens} that replace the {@code @ALIAS@}
+ * placeholders of the prompts, see {@link CopilotVarReplacerUtil}.
+ * <p>
+ * The tokens of a client, user and role are read and decrypted once and kept for
+ * {@code copilot.api.token.cache.ttl} seconds (default 60, 0 disables the cache). The cache is
+ * discarded when an API token is created, updated or deleted, as notified by the
+ * {@link com.etendoerp.copilot.eventhandler.ApiTokenCacheHandler}; the changes made in other cluster
+ * nodes are picked up when the entries expire.
+ */
+public class ApiTokenCache {
+
+  public static final String PROP_TTL = "copilot.api.token.cache.ttl";
+  private static final long DEFAULT_TTL_S = 60L;
+  private static final int MAX_ENTRIES = 1000;
+
+  private static final CopilotRuntime.Shared<ApiTokenCache> INSTANCE = new CopilotRuntime.Shared<>(
+      ApiTokenCache::create);
+
+  private final CopilotRuntime.TtlCache<Map<String, String>> entries;
+  private final long ttlNanos;
+
+  ApiTokenCache(long ttlSeconds, LongSupplier clock) {
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0L, ttlSeconds));
+    this.entries = new CopilotRuntime.TtlCache<>("API token", MAX_ENTRIES, clock);
+  }
+
+  /**
+   * Returns the shared cache, configured from {@code Openbravo.properties} on first use.
+   *
+   * @return the shared {@link ApiTokenCache}
+   */
+  public static ApiTokenCache getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static ApiTokenCache create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    return new ApiTokenCache(readLong(properties, PROP_TTL, DEFAULT_TTL_S), System::nanoTime);
+  }
+
+  /**
+   * Returns the decrypted tokens of a client, user and role, loading them when there is no valid
+   * cached entry.
+   *
+   * @param clientId
+   *     the client identifier, can be null
+   * @param userId
+   *     the user identifier, can be null
+   * @param roleId
+   *     the role identifier, can be null
+   * @param loader
+   *     reads and decrypts the tokens on a cache miss
+   * @return the decrypted tokens by alias
+   */
+  public Map<String, String> getTokens(String clientId, String userId, String roleId,
+      Supplier<Map<String, String>> loader) {
+    if (ttlNanos == 0L) {
+      return loader.get();
+    }
+    String key = String.join("|", StringUtils.defaultString(clientId), StringUtils.defaultString(userId),
+        StringUtils.defaultString(roleId));
+    return entries.get(key, () -> Map.copyOf(loader.get()), ttlNanos);
+  }
+
+  /**
+   * Discards every cached token. Does nothing if the cache has not been used yet.
+   */
+  public static void invalidateAll() {
+    ApiTokenCache cache = INSTANCE.peek();
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  void clear() {
+    entries.clear();
+  }
+
+  /**
+   * @return the hit and miss counters
+   */
+  public String getStats() {
+    return "ApiTokenCache" + entries;
+  }
+
+  /**
+   * @return the number of lookups served from the cache
+   */
+  public long getHits() {
+    return entries.getHits();
+  }
+
+  /**
+   * @return the number of lookups that had to read and decrypt the tokens
+   */
+  public long getMisses() {
+    return entries.getMisses();
+  }
+}
@@ -0,0 +1,358 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+import static com.etendoerp.copilot.util.CopilotUtils.readPropertyWithLegacyCompatibility;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+import com.etendoerp.copilot.data.Conversation;
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.CopilotModel;
+import com.etendoerp.copilot.data.Message;
+import com.etendoerp.copilot.rest.RestServiceUtil;
+
+/**
+ * Builds the conversation history sent to Copilot with each question.
+ * <p>
+ * Instead of the whole conversation, only the newest messages that fit in a token budget are sent,
+ * so the size of the requests does not grow with the length of the conversation. The budget is a
+ * percentage of the {@code max_tokens} of the model of the agent, and the tokens of a message are
+ * estimated from its length. The configuration is:
+ * <ul>
+ *   <li>{@code copilot.history.max.messages}: messages read from the conversation at most
+ *   (default 100);</li>
+ *   <li>{@code copilot.history.budget.percent}: percentage of the {@code max_tokens} of the model
+ *   used by the history (default 50);</li>
+ *   <li>{@code copilot.history.max.tokens}: budget when the model has no {@code max_tokens}
+ *   (default 16000);</li>
+ *   <li>{@code copilot.history.summary.agent}: agent that summarizes the messages left out of the
+ *   window (default none, no summaries).</li>
+ * </ul>
+ * When a summary agent is configured, the messages that fall out of the window are summarized in
+ * the background and the summary is stored on the conversation. The summary agent is asked
+ * directly to the Copilot service, so no conversation, tracked message or usage audit is created
+ * for it. While the window is truncated, the
+ * summary is sent before the messages of the window.
+ * <p>
+ * The summary is kept in the {@code summary} and {@code summaryLineno} properties of the
+ * {@link Conversation}. It is read from the conversation of the messages of the window, and written
+ * with a conditional update, so a summary never replaces a newer one.
+ */
+public class ConversationHistory {
+
+  private static final Logger log = LogManager.getLogger(ConversationHistory.class);
+
+  static final String PROP_MAX_MESSAGES = "copilot.history.max.messages";
+  static final String PROP_BUDGET_PERCENT = "copilot.history.budget.percent";
+  static final String PROP_MAX_TOKENS = "copilot.history.max.tokens";
+  static final String PROP_SUMMARY_AGENT = "copilot.history.summary.agent";
+  private static final long DEFAULT_MAX_MESSAGES = 100L;
+  private static final long DEFAULT_BUDGET_PERCENT = 50L;
+  private static final long DEFAULT_MAX_TOKENS = 16000L;
+  static final int CHARS_PER_TOKEN = 4;
+  static final int SUMMARY_MIN_MESSAGES = 10;
+  static final String SUMMARY_PREFIX = "Summary of the earlier conversation:\n";
+
+  private static final String WINDOW_HQL = "as m where m.conversation.externalID = :conversationId"
+      + " order by m.creationDate desc, m.lineno desc";
+  private static final String DROPPED_HQL = "as m where m.conversation.externalID = :conversationId"
+      + " and m.lineno > :from and m.lineno < :to order by m.lineno asc";
+  private static final String WRITE_SUMMARY_HQL = "update " + Conversation.ENTITY_NAME + " set "
+      + Conversation.PROPERTY_SUMMARY + " = :summary, " + Conversation.PROPERTY_SUMMARYLINENO + " = :lineno where "
+      + Conversation.PROPERTY_EXTERNALID + " = :conversationId and (" + Conversation.PROPERTY_SUMMARYLINENO
+      + " is null or " + Conversation.PROPERTY_SUMMARYLINENO + " < :lineno)";
+
+  private static final CopilotRuntime.Shared<ConversationHistory> INSTANCE = new CopilotRuntime.Shared<>(
+      ConversationHistory::create);
+
+  private final int maxMessages;
+  private final long budgetPercent;
+  private final long defaultMaxTokens;
+  private final String summaryAgentId;
+  private final Executor summaryExecutor;
+  private final Set<String> summarizing = ConcurrentHashMap.newKeySet();
+
+  ConversationHistory(int maxMessages, long budgetPercent, long defaultMaxTokens, String summaryAgentId,
+      Executor summaryExecutor) {
+    this.maxMessages = Math.max(1, maxMessages);
+    this.budgetPercent = Math.max(1L, Math.min(100L, budgetPercent));
+    this.defaultMaxTokens = Math.max(1L, defaultMaxTokens);
+    this.summaryAgentId = summaryAgentId;
+    this.summaryExecutor = summaryExecutor;
+  }
+
+  /**
+   * @return the shared instance, configured from {@code Openbravo.properties} on first use
+   */
+  public static ConversationHistory getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static ConversationHistory create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    String agentId = properties != null
+        ? readPropertyWithLegacyCompatibility(properties, PROP_SUMMARY_AGENT, null)
+        : null;
+    Executor executor = StringUtils.isBlank(agentId) ? null
+        : Executors.newSingleThreadExecutor(daemonThreads("copilot-history-summary"));
+    return new ConversationHistory((int) readLong(properties, PROP_MAX_MESSAGES, DEFAULT_MAX_MESSAGES),
+        readLong(properties, PROP_BUDGET_PERCENT, DEFAULT_BUDGET_PERCENT),
+        readLong(properties, PROP_MAX_TOKENS, DEFAULT_MAX_TOKENS), StringUtils.trimToNull(agentId), executor);
+  }
+
+  /**
+   * Returns the newest messages of a conversation that fit in the token budget of an agent,
+   * preceded by the summary of the older ones when there is one. The messages of the conversation
+   * still queued for tracking are awaited first.
+   *
+   * @param conversationId
+   *     the external identifier of the conversation
+   * @param app
+   *     the agent that receives the history, or null to use the default budget
+   * @return the history, with role and content for each message, from the oldest to the newest
+   * @throws JSONException
+   *     if there's an error creating the JSON response
+   */
+  public JSONArray getWindow(String conversationId, CopilotApp app) throws JSONException {
+    MessageTrackingWriter.awaitWritten(conversationId);
+    long budget = getTokenBudget(app);
+    List<Message> newest = OBDal.getInstance()
+        .createQuery(Message.class, WINDOW_HQL)
+        .setNamedParameter("conversationId", conversationId)
+        .setMaxResult(maxMessages + 1)
+        .list();
+
+    List<Message> kept = new ArrayList<>();
+    long used = 0;
+    boolean truncated = newest.size() > maxMessages;
+    for (Message message : newest.subList(0, Math.min(newest.size(), maxMessages))) {
+      long tokens = estimateTokens(message.getMessage());
+      if (used + tokens > budget) {
+        truncated = true;
+        break;
+      }
+      used += tokens;
+      kept.add(message);
+    }
+    Collections.reverse(kept);
+
+    JSONArray history = new JSONArray();
+    if (truncated) {
+      addSummary(conversationId, newest, kept, budget, used, history);
+    }
+    for (Message message : kept) {
+      history.put(toJson(message.getRole(), message.getMessage()));
+    }
+    return history;
+  }
+
+  /**
+   * Computes the tokens available for the history of an agent, from the {@code max_tokens} of its
+   * model or of the default model.
+   *
+   * @param app
+   *     the agent, or null
+   * @return the token budget
+   */
+  long getTokenBudget(CopilotApp app) {
+    CopilotModel model = null;
+    if (app != null) {
+      model = app.getModel() != null ? app.getModel() : CopilotModelUtils.getDefaultModel(null);
+    }
+    if (model == null || model.getMaxTokens() == null || model.getMaxTokens() <= 0) {
+      return defaultMaxTokens;
+    }
+    return Math.max(1L, model.getMaxTokens() * budgetPercent / 100L);
+  }
+
+  /**
+   * Estimates the tokens of a text from its length.
+   *
+   * @param text
+   *     the text, can be null
+   * @return the estimated tokens
+   */
+  static long estimateTokens(String text) {
+    return text == null ? 0L : (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+  }
+
+  /**
+   * Adds the stored summary before the window, leaving out the oldest messages of the window until
+   * the summary fits in the budget, and schedules a new summary when enough messages are not
+   * covered by it.
+   */
+  private void addSummary(String conversationId, List<Message> newest, List<Message> kept, long budget, long used,
+      JSONArray history) throws JSONException {
+    Conversation conversation = newest.get(0).getConversation();
+    String summary = StringUtils.trimToNull(conversation.getSummary());
+    long summaryTokens = summary != null ? estimateTokens(SUMMARY_PREFIX + summary) : 0L;
+    if (summary != null && summaryTokens <= budget) {
+      long total = used + summaryTokens;
+      while (total > budget) {
+        total -= estimateTokens(kept.remove(0).getMessage());
+      }
+      history.put(toJson(CopilotConstants.MESSAGE_ASSISTANT, SUMMARY_PREFIX + summary));
+    }
+    if (summaryAgentId == null || kept.isEmpty() || kept.get(0).getLineno() == null) {
+      return;
+    }
+    long covered = conversation.getSummaryLineno() != null ? conversation.getSummaryLineno() : 0L;
+    long pending = newest.stream()
+        .skip(kept.size())
+        .filter(message -> message.getLineno() != null && message.getLineno() > covered)
+        .count();
+    if (pending >= SUMMARY_MIN_MESSAGES && summarizing.add(conversationId)) {
+      CopilotRuntime.ContextIds context = CopilotRuntime.ContextIds.capture();
+      long firstKept = kept.get(0).getLineno();
+      summaryExecutor.execute(() -> summarizeInWorker(context, conversationId, covered, firstKept, summary));
+    }
+  }
+
+  private void summarizeInWorker(CopilotRuntime.ContextIds context, String conversationId, long from,
+      long to, String previousSummary) {
+    context.apply();
+    OBContext.setAdminMode(true);
+    try {
+      summarize(conversationId, from, to, previousSummary);
+      OBDal.getInstance().commitAndClose();
+    } catch (Exception e) {
+      log.error("Error summarizing conversation {}", conversationId, e);
+      OBDal.getInstance().rollbackAndClose();
+    } finally {
+      summarizing.remove(conversationId);
+      OBContext.restorePreviousMode();
+      OBContext.setOBContext((OBContext) null);
+    }
+  }
+
+  /**
+   * Asks the summary agent to summarize the messages between two line numbers together with the
+   * previous summary, and stores the result on the conversation. The input of the agent is limited
+   * to the default token budget; the messages that do not fit are left for the next summary.
+   *
+   * @param conversationId
+   *     the external identifier of the conversation
+   * @param from
+   *     the line number of the last message covered by the previous summary
+   * @param to
+   *     the line number of the first message of the window
+   * @param previousSummary
+   *     the previous summary, or null
+   * @throws Exception
+   *     if the summary cannot be generated or stored
+   */
+  void summarize(String conversationId, long from, long to, String previousSummary) throws Exception {
+    List<Message> dropped = OBDal.getInstance()
+        .createQuery(Message.class, DROPPED_HQL)
+        .setNamedParameter("conversationId", conversationId)
+        .setNamedParameter("from", from)
+        .setNamedParameter("to", to)
+        .setMaxResult(maxMessages)
+        .list();
+    StringBuilder question = new StringBuilder();
+    if (previousSummary != null) {
+      question.append(SUMMARY_PREFIX).append(previousSummary).append("\n\n");
+    }
+    long maxChars = defaultMaxTokens * CHARS_PER_TOKEN;
+    Long lastLineno = null;
+    for (Message message : dropped) {
+      String line = String.format("%s: %s%n", message.getRole(), message.getMessage());
+      if (lastLineno != null && question.length() + line.length() > maxChars) {
+        break;
+      }
+      question.append(line);
+      lastLineno = message.getLineno();
+    }
+    if (lastLineno == null) {
+      return;
+    }
+    String summary = askSummaryAgent(question.toString());
+    if (StringUtils.isBlank(summary)) {
+      return;
+    }
+    writeSummary(conversationId, summary, lastLineno);
+    log.debug("Conversation {} summarized up to line {}", conversationId, lastLineno);
+  }
+
+  /**
+   * Sends a question to the summary agent through the Copilot service, without a conversation.
+   *
+   * @param question
+   *     the messages to summarize
+   * @return the answer of the agent, or null if there is none
+   * @throws IOException
+   *     if the request cannot be built or sent
+   * @throws JSONException
+   *     if the request or the answer are not valid JSON
+   */
+  private String askSummaryAgent(String question) throws IOException, JSONException {
+    CopilotApp agent = OBDal.getInstance().get(CopilotApp.class, summaryAgentId);
+    if (agent == null) {
+      throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_AppNotFound")));
+    }
+    JSONObject request = new JSONObject();
+    try (CopilotRequestContext requestContext = CopilotRequestContext.open()) {
+      RestServiceUtil.generateAssistantStructure(agent, request);
+    }
+    OBContext context = OBContext.getOBContext();
+    request.put(RestServiceUtil.PROP_AD_USER_ID, context.getUser().getId());
+    request.put(RestServiceUtil.PROP_AD_CLIENT_ID, context.getCurrentClient().getId());
+    request.put(RestServiceUtil.PROP_QUESTION, question);
+    HttpRequest httpRequest = CopilotHttpClient.newRequest(RestServiceUtil.determineEndpoint(false, agent))
+        .header("Content-Type", RestServiceUtil.APPLICATION_JSON_CHARSET_UTF_8)
+        .POST(HttpRequest.BodyPublishers.ofString(request.toString(), StandardCharsets.UTF_8))
+        .build();
+    String body;
+    try {
+      body = CopilotHttpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8)).body();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OBException(OBMessageUtils.messageBD("ETCOP_ConnError"));
+    }
+    JSONObject answer = new JSONObject(body).optJSONObject(RestServiceUtil.PROP_ANSWER);
+    return answer != null ? answer.optString(RestServiceUtil.PROP_RESPONSE, null) : null;
+  }
+
+  /**
+   * Stores the summary of a conversation, unless it already has a summary that covers more
+   * messages.
+   */
+  static void writeSummary(String conversationId, String summary, long lineno) {
+    OBDal.getInstance().getSession().createQuery(WRITE_SUMMARY_HQL)
+        .setParameter("summary", summary)
+        .setParameter("lineno", lineno)
+        .setParameter("conversationId", conversationId)
+        .executeUpdate();
+  }
+
+  private static JSONObject toJson(String role, String content) throws JSONException {
+    JSONObject msg = new JSONObject();
+    msg.put("role", role);
+    msg.put("content", content);
+    return msg;
+  }
+}
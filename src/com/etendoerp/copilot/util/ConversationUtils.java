@@ -7,9 +7,16 @@ import static com.etendoerp.copilot.rest.RestServiceUtil.PROP_RESPONSE;
 import static com.etendoerp.copilot.util.CopilotConstants.PROP_QUESTION;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -20,8 +27,8 @@ import org.apache.logging.log4j.Logger;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
-import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.query.Query;
 import org.openbravo.base.exception.OBException;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBCriteria;
@@ -51,6 +58,14 @@ public class ConversationUtils {
   private static final String PROP_TITLE = "title";
   private static final String PROP_SUCCESS = "success";
   private static final String CONVERSATION_NOT_FOUND = "Conversation not found";
+  private static final String INVALID_CURSOR = "Invalid cursor";
+  private static final String INVALID_LIMIT = "Invalid limit: ";
+  private static final String PROP_LIMIT = "limit";
+  private static final String PROP_CURSOR = "cursor";
+  private static final String PROP_ITEMS = "items";
+  private static final String PROP_NEXT_CURSOR = "next_cursor";
+  private static final String CURSOR_SEPARATOR = "|";
+  static final int MAX_PAGE_SIZE = 200;
 
 
   private ConversationUtils() {
@@ -120,29 +135,30 @@ public class ConversationUtils {
   }
 
   /**
-   * Converts a list of conversations to a JSON array, including each conversation's
+   * Converts the rows of {@link #queryConversations} to a JSON array, including each conversation's
    * external ID and title (if present). Conversations without an external ID are skipped.
    *
    * @param conversations
-   *     the list of conversations to convert
+   *     the identifier, external ID, title and last message date of the conversations
    * @return a {@link JSONArray} with the conversation data
    */
-  private static JSONArray conversationsToJson(List<Conversation> conversations) {
+  private static JSONArray conversationsToJson(List<Object[]> conversations) {
     JSONArray conversationsJson = new JSONArray();
     conversations.forEach(conv -> {
       try {
-        if (StringUtils.isEmpty(conv.getExternalID())) {
+        String externalId = (String) conv[1];
+        if (StringUtils.isEmpty(externalId)) {
           return;
         }
         JSONObject convJson = new JSONObject();
-        convJson.put("id", conv.getExternalID());
-        String title = conv.getTitle();
+        convJson.put("id", externalId);
+        String title = (String) conv[2];
         if (!StringUtils.isEmpty(title)) {
           convJson.put(PROP_TITLE, title);
         }
         conversationsJson.put(convJson);
       } catch (JSONException e) {
-        log4j.error("Error creating JSON for conversation: {}", conv.getId(), e);
+        log4j.error("Error creating JSON for conversation: {}", conv[0], e);
       }
     });
     return conversationsJson;
@@ -205,6 +221,10 @@ public class ConversationUtils {
    * This method retrieves the assistant ID from the request parameters, validates its presence,
    * fetches the assistant object, and retrieves the associated conversations. The conversations
    * are then returned as a JSON response. If an error occurs, appropriate error responses are sent.
+   * <p>
+   * When the {@code limit} parameter is present, only one page is returned, as an object with the
+   * conversations in {@code items} and the value of the {@code cursor} parameter for the next page
+   * in {@code next_cursor}.
    *
    * @param request
    *     the {@link HttpServletRequest} object containing client request information
@@ -221,7 +241,10 @@ public class ConversationUtils {
       }
 
       CopilotApp assistant = CopilotUtils.getAssistantByIDOrName(appId);
-      JSONArray conversations = ConversationUtils.getConversations(assistant);
+      Integer limit = getLimit(request);
+      Object conversations = limit != null
+          ? ConversationUtils.getConversations(assistant, request.getParameter(PROP_CURSOR), limit)
+          : ConversationUtils.getConversations(assistant);
 
       response.setContentType(APPLICATION_JSON_CHARSET_UTF_8);
       response.getWriter().write(conversations.toString());
@@ -234,6 +257,10 @@ public class ConversationUtils {
    * This method retrieves the conversation ID from the request parameters, validates its presence,
    * fetches the associated messages, and returns them as a JSON response. If an error occurs,
    * appropriate error responses are sent.
+   * <p>
+   * When the {@code limit} parameter is present, only the most recent messages are returned, as an
+   * object with the messages in {@code items} and the value of the {@code cursor} parameter for the
+   * previous messages in {@code next_cursor}.
    *
    * @param request
    *     the {@link HttpServletRequest} object containing client request information
@@ -250,7 +277,10 @@ public class ConversationUtils {
         throwConversationIDRequired();
       }
 
-      JSONArray messages = ConversationUtils.getConversationMessages(conversationId);
+      Integer limit = getLimit(request);
+      Object messages = limit != null
+          ? ConversationUtils.getConversationMessages(conversationId, request.getParameter(PROP_CURSOR), limit)
+          : ConversationUtils.getConversationMessages(conversationId);
 
       response.setContentType(APPLICATION_JSON_CHARSET_UTF_8);
       response.getWriter().write(messages.toString());
@@ -368,7 +398,8 @@ public class ConversationUtils {
 
   /**
    * Handles the retrieval of archived (inactive) conversations for a specific assistant
-   * and writes them to the HTTP response as a JSON array.
+   * and writes them to the HTTP response as a JSON array. Like {@link #handleConversations}, the
+   * {@code limit} and {@code cursor} parameters return one page.
    *
    * @param request
    *     the {@link HttpServletRequest} containing the assistant app ID parameter
@@ -386,13 +417,34 @@ public class ConversationUtils {
       }
 
       CopilotApp assistant = CopilotUtils.getAssistantByIDOrName(appId);
-      JSONArray conversations = getArchivedConversations(assistant);
+      Integer limit = getLimit(request);
+      Object conversations = limit != null
+          ? getArchivedConversations(assistant, request.getParameter(PROP_CURSOR), limit)
+          : getArchivedConversations(assistant);
 
       response.setContentType(APPLICATION_JSON_CHARSET_UTF_8);
       response.getWriter().write(conversations.toString());
     });
   }
 
+  /**
+   * Reads the page size requested with the {@code limit} parameter. A limit that is not a number is
+   * rejected like the other parameters, so the request is answered with a bad request.
+   *
+   * @return the page size, or {@code null} if the request is not paginated
+   */
+  private static Integer getLimit(HttpServletRequest request) {
+    String limit = request.getParameter(PROP_LIMIT);
+    if (StringUtils.isEmpty(limit)) {
+      return null;
+    }
+    try {
+      return Integer.parseInt(limit.trim());
+    } catch (NumberFormatException e) {
+      throw new OBException(INVALID_LIMIT + limit);
+    }
+  }
+
   private static void throwConversationIDRequired() {
     throw new OBException(OBMessageUtils.messageBD("ETCOP_ConversationRequired"));
   }
@@ -410,12 +462,27 @@ public class ConversationUtils {
    * @return a {@link JSONArray} containing the conversations as JSON objects with their external ID and title
    */
   public static JSONArray getConversations(CopilotApp assistant) {
-    OBCriteria<Conversation> convCrit = OBDal.getReadOnlyInstance().createCriteria(Conversation.class);
-    convCrit.add(Restrictions.eq(Conversation.PROPERTY_COPILOTAPP, assistant));
-    convCrit.add(Restrictions.eq(Conversation.PROPERTY_USERCONTACT, OBContext.getOBContext().getUser()));
-    convCrit.addOrder(Order.desc(Conversation.PROPERTY_LASTMSG));
+    return conversationsToJson(queryConversations(assistant, true, null, 0));
+  }
 
-    return conversationsToJson(convCrit.list());
+  /**
+   * Retrieves a page of the conversations associated with a specific assistant and the current user,
+   * sorted in descending order by their last message timestamp.
+   *
+   * @param assistant
+   *     the {@link CopilotApp} instance representing the assistant whose conversations are to be retrieved
+   * @param cursor
+   *     the {@code next_cursor} returned with the previous page, or {@code null} for the first page
+   * @param limit
+   *     the maximum number of conversations of the page, up to {@value #MAX_PAGE_SIZE}
+   * @return a {@link JSONObject} with the conversations in {@code items} and, if there are more, the cursor of
+   *     the next page in {@code next_cursor}
+   * @throws JSONException
+   *     if an error occurs while creating the JSON objects
+   */
+  public static JSONObject getConversations(CopilotApp assistant, String cursor,
+      int limit) throws JSONException {
+    return conversationsPage(assistant, true, cursor, limit);
   }
 
   /**
@@ -427,14 +494,114 @@ public class ConversationUtils {
    * @return a {@link JSONArray} containing the archived conversations as JSON objects with their external ID and title
    */
   public static JSONArray getArchivedConversations(CopilotApp assistant) {
-    OBCriteria<Conversation> convCrit = OBDal.getInstance().createCriteria(Conversation.class);
-    convCrit.setFilterOnActive(false);
-    convCrit.add(Restrictions.eq(Conversation.PROPERTY_COPILOTAPP, assistant));
-    convCrit.add(Restrictions.eq(Conversation.PROPERTY_USERCONTACT, OBContext.getOBContext().getUser()));
-    convCrit.add(Restrictions.eq(Conversation.PROPERTY_ACTIVE, false));
-    convCrit.addOrder(Order.desc(Conversation.PROPERTY_LASTMSG));
+    return conversationsToJson(queryConversations(assistant, false, null, 0));
+  }
+
+  /**
+   * Retrieves a page of the archived (inactive) conversations for a specific assistant. Similar to
+   * {@link #getConversations(CopilotApp, String, int)} but only returns conversations marked as inactive.
+   *
+   * @param assistant
+   *     the {@link CopilotApp} instance representing the assistant whose archived conversations are to be retrieved
+   * @param cursor
+   *     the {@code next_cursor} returned with the previous page, or {@code null} for the first page
+   * @param limit
+   *     the maximum number of conversations of the page, up to {@value #MAX_PAGE_SIZE}
+   * @return a {@link JSONObject} with the conversations in {@code items} and, if there are more, the cursor of
+   *     the next page in {@code next_cursor}
+   * @throws JSONException
+   *     if an error occurs while creating the JSON objects
+   */
+  public static JSONObject getArchivedConversations(CopilotApp assistant, String cursor,
+      int limit) throws JSONException {
+    return conversationsPage(assistant, false, cursor, limit);
+  }
 
-    return conversationsToJson(convCrit.list());
+  private static JSONObject conversationsPage(CopilotApp assistant, boolean active, String cursor,
+      int limit) throws JSONException {
+    int pageSize = Math.min(Math.max(limit, 1), MAX_PAGE_SIZE);
+    List<Object[]> rows = queryConversations(assistant, active, cursor, pageSize + 1);
+    String nextCursor = null;
+    if (rows.size() > pageSize) {
+      rows = rows.subList(0, pageSize);
+      Object[] last = rows.get(pageSize - 1);
+      nextCursor = encodeConversationCursor((Date) last[3], (String) last[0]);
+    }
+    return page(conversationsToJson(rows), nextCursor);
+  }
+
+  /**
+   * Queries the identifier, external ID, title and last message date of the conversations of the
+   * current user, without loading the entities. The order, last message date and identifier
+   * descending, is the one of the conversation index, so each page is read from the index.
+   *
+   * @param maxResults
+   *     the maximum number of rows, 0 for all of them
+   */
+  private static List<Object[]> queryConversations(CopilotApp assistant, boolean active, String cursor,
+      int maxResults) {
+    StringBuilder hql = new StringBuilder();
+    hql.append("select c.id, c.externalID, c.title, c.lastMsg from ").append(Conversation.ENTITY_NAME).append(" c");
+    hql.append(" where c.copilotApp.id = :appId and c.userContact.id = :userId and c.active = :active");
+    Instant cursorLastMsg = null;
+    String cursorId = null;
+    if (StringUtils.isNotEmpty(cursor)) {
+      String decoded = decodeCursor(cursor);
+      int separator = decoded.indexOf(CURSOR_SEPARATOR);
+      try {
+        cursorLastMsg = separator > 0 ? Instant.parse(decoded.substring(0, separator)) : null;
+      } catch (DateTimeParseException e) {
+        throw new OBException(INVALID_CURSOR, e);
+      }
+      cursorId = decoded.substring(separator + 1);
+      // Null dates come first in descending order, so after a null date come the remaining null
+      // dates and then every non-null date
+      hql.append(cursorLastMsg != null
+          ? " and (c.lastMsg < :lastMsg or (c.lastMsg = :lastMsg and c.id < :id))"
+          : " and ((c.lastMsg is null and c.id < :id) or c.lastMsg is not null)");
+    }
+    hql.append(" order by c.lastMsg desc, c.id desc");
+
+    Query<Object[]> query = OBDal.getReadOnlyInstance().getSession().createQuery(hql.toString(), Object[].class);
+    query.setParameter("appId", assistant.getId());
+    query.setParameter("userId", OBContext.getOBContext().getUser().getId());
+    query.setParameter("active", active);
+    if (cursorId != null) {
+      query.setParameter("id", cursorId);
+    }
+    if (cursorLastMsg != null) {
+      query.setParameter("lastMsg", Timestamp.from(cursorLastMsg));
+    }
+    if (maxResults > 0) {
+      query.setMaxResults(maxResults);
+    }
+    return query.list();
+  }
+
+  private static String encodeConversationCursor(Date lastMsg, String id) {
+    String value = (lastMsg != null ? lastMsg.toInstant().toString() : "") + CURSOR_SEPARATOR + id;
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String decodeCursor(String cursor) {
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      if (decoded.indexOf(CURSOR_SEPARATOR) < 0 || decoded.endsWith(CURSOR_SEPARATOR)) {
+        throw new OBException(INVALID_CURSOR);
+      }
+      return decoded;
+    } catch (IllegalArgumentException e) {
+      throw new OBException(INVALID_CURSOR, e);
+    }
+  }
+
+  private static JSONObject page(JSONArray items, String nextCursor) throws JSONException {
+    JSONObject page = new JSONObject();
+    page.put(PROP_ITEMS, items);
+    if (nextCursor != null) {
+      page.put(PROP_NEXT_CURSOR, nextCursor);
+    }
+    return page;
   }
 
   /**
@@ -445,7 +612,9 @@ public class ConversationUtils {
    * generates a title by processing the conversation's messages and sending them to a title
    * generation service. The generated title is then saved to the database and returned.
    * <p>
-   * If an error occurs during title generation, an empty string is returned.
+   * If an error occurs during title generation, an empty string is returned. The messages of the
+   * conversation still queued for tracking by the {@link MessageTrackingWriter} are awaited first,
+   * and they are sent in the order of their line number.
    *
    * @param conversationId
    *     the ID of the conversation whose title is to be retrieved
@@ -453,6 +622,7 @@ public class ConversationUtils {
    *     or an error occurs
    */
   public static String getTitleConversation(String conversationId) {
+    MessageTrackingWriter.awaitWritten(conversationId);
     var conversation = getConversationByIDorExtRef(conversationId);
     if (conversation == null) {
       return "";
@@ -467,7 +637,8 @@ public class ConversationUtils {
       body.put(APP_ID, TITLE_GENERATOR_ID);
       StringBuilder sb = new StringBuilder();
       List<com.etendoerp.copilot.data.Message> msgList = conversation.getETCOPMessageList();
-      msgList.stream().sorted(Comparator.comparing(com.etendoerp.copilot.data.Message::getCreationDate))
+      msgList.stream().sorted(Comparator.comparing(com.etendoerp.copilot.data.Message::getLineno,
+              Comparator.nullsFirst(Comparator.naturalOrder())))
           .forEach(
               msg -> sb.append(String.format("%s: %s %n", msg.getRole(), msg.getMessage()))
           );
@@ -487,11 +658,12 @@ public class ConversationUtils {
   /**
    * Retrieves the messages of a specific conversation and formats them as a JSON array.
    * <p>
-   * This method fetches a conversation by its ID, retrieves its associated messages,
-   * sorts them by their line number, and converts each message into a JSON object.
-   * The resulting JSON objects are added to a JSON array, which is returned as the response.
+   * This method fetches a conversation by its ID, retrieves its associated messages sorted by their
+   * line number, and converts each message into a JSON object. The resulting JSON objects are added
+   * to a JSON array, which is returned as the response.
    * <p>
-   * If an error occurs during the process, an empty JSON array is returned.
+   * If an error occurs during the process, an empty JSON array is returned. The messages of the
+   * conversation still queued for tracking by the {@link MessageTrackingWriter} are awaited first.
    *
    * @param conversationId
    *     the ID of the conversation whose messages are to be retrieved
@@ -500,31 +672,10 @@ public class ConversationUtils {
    *     if an error occurs while creating the JSON objects
    */
   public static JSONArray getConversationMessages(String conversationId) throws JSONException {
+    MessageTrackingWriter.awaitWritten(conversationId);
     try {
-      // Retrieve the conversation by its ID or external reference
       Conversation conversation = getConversationByIDorExtRef(conversationId);
-
-      // Fetch and sort the messages of the conversation by their line number
-      List<Message> etcopMessageList = conversation.getETCOPMessageList();
-      List<com.etendoerp.copilot.data.Message> msgs = etcopMessageList.stream()
-          .sorted(Comparator.comparing(com.etendoerp.copilot.data.Message::getLineno))
-          .collect(Collectors.toList());
-
-      // Create a JSON array to store the messages
-      JSONArray arr = new JSONArray();
-
-      // Convert each message into a JSON object and add it to the array
-      for (com.etendoerp.copilot.data.Message msg : msgs) {
-        JSONObject msgJson = new JSONObject();
-        msgJson.put("id", msg.getId());
-        msgJson.put("role", msg.getRole());
-        msgJson.put("content", msg.getMessage());
-        msgJson.put("timestamp", msg.getCreationDate().toString());
-        arr.put(msgJson);
-      }
-
-      // Return the JSON array of messages
-      return arr;
+      return messagesToJson(queryMessages(conversation.getId(), null, 0));
     } catch (Exception e) {
       // Log the error and return an empty JSON array
       log4j.error("Error getting messages for conversation: {}", conversationId, e);
@@ -532,6 +683,95 @@ public class ConversationUtils {
     }
   }
 
+  /**
+   * Retrieves a page of the messages of a specific conversation. The first page contains the most
+   * recent messages and each following page the messages before it, so a chat can be loaded from
+   * the end. The messages of each page are sorted by their line number, which is also the cursor, so
+   * the messages without line number are left out of the pages. The messages of the conversation
+   * still queued for tracking by the {@link MessageTrackingWriter} are awaited first.
+   *
+   * @param conversationId
+   *     the ID or external ID of the conversation whose messages are to be retrieved
+   * @param cursor
+   *     the {@code next_cursor} returned with the previous page, or {@code null} for the first page
+   * @param limit
+   *     the maximum number of messages of the page, up to {@value #MAX_PAGE_SIZE}
+   * @return a {@link JSONObject} with the messages in {@code items} and, if there are older ones, the
+   *     cursor of the next page in {@code next_cursor}; with no messages if the conversation does
+   *     not exist, as {@link #getConversationMessages(String)}
+   * @throws JSONException
+   *     if an error occurs while creating the JSON objects
+   */
+  public static JSONObject getConversationMessages(String conversationId, String cursor,
+      int limit) throws JSONException {
+    MessageTrackingWriter.awaitWritten(conversationId);
+    Conversation conversation = getConversationByIDorExtRef(conversationId);
+    if (conversation == null) {
+      log4j.debug("Conversation {} not found, returning an empty page", conversationId);
+      return page(new JSONArray(), null);
+    }
+    Long before = null;
+    if (StringUtils.isNotEmpty(cursor)) {
+      try {
+        before = Long.parseLong(cursor);
+      } catch (NumberFormatException e) {
+        throw new OBException(INVALID_CURSOR, e);
+      }
+    }
+    int pageSize = Math.min(Math.max(limit, 1), MAX_PAGE_SIZE);
+    List<Object[]> rows = queryMessages(conversation.getId(), before, pageSize + 1);
+    String nextCursor = null;
+    if (rows.size() > pageSize) {
+      rows = rows.subList(0, pageSize);
+      nextCursor = String.valueOf(rows.get(pageSize - 1)[4]);
+    }
+    List<Object[]> ascending = new ArrayList<>(rows);
+    Collections.reverse(ascending);
+    return page(messagesToJson(ascending), nextCursor);
+  }
+
+  /**
+   * Queries the identifier, role, content, creation date and line number of the messages of a
+   * conversation, without loading the entities. All the messages are returned in ascending order;
+   * a page, limited by {@code maxResults}, in descending order from {@code before}, only with the
+   * messages that have a line number.
+   */
+  private static List<Object[]> queryMessages(String conversationDbId, Long before, int maxResults) {
+    StringBuilder hql = new StringBuilder();
+    hql.append("select m.id, m.role, m.message, m.creationDate, m.lineno from ").append(Message.ENTITY_NAME)
+        .append(" m where m.conversation.id = :conversationId");
+    if (maxResults > 0) {
+      hql.append(" and m.lineno is not null");
+    }
+    if (before != null) {
+      hql.append(" and m.lineno < :before");
+    }
+    hql.append(maxResults > 0 ? " order by m.lineno desc" : " order by m.lineno asc");
+
+    Query<Object[]> query = OBDal.getReadOnlyInstance().getSession().createQuery(hql.toString(), Object[].class);
+    query.setParameter("conversationId", conversationDbId);
+    if (before != null) {
+      query.setParameter("before", before);
+    }
+    if (maxResults > 0) {
+      query.setMaxResults(maxResults);
+    }
+    return query.list();
+  }
+
+  private static JSONArray messagesToJson(List<Object[]> rows) throws JSONException {
+    JSONArray arr = new JSONArray();
+    for (Object[] row : rows) {
+      JSONObject msgJson = new JSONObject();
+      msgJson.put("id", row[0]);
+      msgJson.put("role", row[1]);
+      msgJson.put("content", row[2]);
+      msgJson.put("timestamp", String.valueOf(row[3]));
+      arr.put(msgJson);
+    }
+    return arr;
+  }
+
   private static Conversation getConversationByIDorExtRef(String conversationId) {
     return getConversationByIDorExtRef(conversationId, false);
   }
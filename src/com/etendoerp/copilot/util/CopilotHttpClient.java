@@ -0,0 +1,380 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+import static com.etendoerp.copilot.util.CopilotUtils.COPILOT_HOST;
+import static com.etendoerp.copilot.util.CopilotUtils.COPILOT_PORT;
+import static com.etendoerp.copilot.util.CopilotUtils.readPropertyWithLegacyCompatibility;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+/**
+ * Shared HTTP client used for every call from Etendo to the Copilot service.
+ * <p>
+ * A single {@link HttpClient} is created lazily and reused, so TCP connections are kept alive
+ * and pooled between questions, file uploads and vector database calls instead of being opened
+ * for each request. The client is configured from {@code Openbravo.properties}:
+ * <ul>
+ *   <li>{@code copilot.http.connect.timeout}: connect timeout in milliseconds (default 10000).</li>
+ *   <li>{@code copilot.http.read.timeout}: time in milliseconds to wait for the response headers,
+ *   0 to wait forever (default 0, LLM generations can take minutes).</li>
+ *   <li>{@code copilot.http.threads}: size of the bounded executor used by the client (default
+ *   {@link CopilotRuntime#IO_THREADS}).</li>
+ *   <li>{@code copilot.http.version}: {@code HTTP_1_1} (default) or {@code HTTP_2}.</li>
+ * </ul>
+ * The size of the connection pool and the keep-alive time of the idle connections are JVM wide
+ * settings of the JDK client, shared with every other {@link HttpClient} of the JVM, so they are
+ * not set here. They can be tuned with the {@code -Djdk.httpclient.connectionPoolSize} and
+ * {@code -Djdk.httpclient.keepalive.timeout} (seconds) JVM options of the servlet container.
+ */
+public class CopilotHttpClient {
+
+  private static final Logger log = LogManager.getLogger(CopilotHttpClient.class);
+
+  public static final String PROP_CONNECT_TIMEOUT = "copilot.http.connect.timeout";
+  public static final String PROP_READ_TIMEOUT = "copilot.http.read.timeout";
+  public static final String PROP_THREADS = "copilot.http.threads";
+  public static final String PROP_HTTP_VERSION = "copilot.http.version";
+  private static final long DEFAULT_CONNECT_TIMEOUT_MS = 10_000L;
+
+  private static final AtomicInteger ACTIVE = new AtomicInteger();
+  private static final AtomicInteger PEAK = new AtomicInteger();
+  private static final AtomicLong TOTAL_REQUESTS = new AtomicLong();
+  private static final AtomicLong FAILED_REQUESTS = new AtomicLong();
+  private static final AtomicLong TOTAL_LATENCY_NANOS = new AtomicLong();
+  private static final AtomicLong MAX_LATENCY_NANOS = new AtomicLong();
+
+  private static final CopilotRuntime.Shared<HttpClient> CLIENT = new CopilotRuntime.Shared<>(
+      CopilotHttpClient::createSharedClient);
+  private static volatile ThreadPoolExecutor executor;
+  private static volatile Duration readTimeout;
+
+  private CopilotHttpClient() {
+    // Private constructor to prevent instantiation
+  }
+
+  /**
+   * Returns the shared client, creating it on first use.
+   *
+   * @return the shared {@link HttpClient} used to reach the Copilot service
+   */
+  public static HttpClient getClient() {
+    return CLIENT.get();
+  }
+
+  private static HttpClient createSharedClient() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    long readTimeoutMs = readLong(properties, PROP_READ_TIMEOUT, 0L);
+    readTimeout = readTimeoutMs > 0 ? Duration.ofMillis(readTimeoutMs) : null;
+    HttpClient result = createClient(properties);
+    executor = result.executor().filter(ThreadPoolExecutor.class::isInstance).map(
+        ThreadPoolExecutor.class::cast).orElse(null);
+    return result;
+  }
+
+  /**
+   * Builds a client and its bounded executor from the given properties.
+   *
+   * @param properties
+   *     the {@link Properties} containing the client configuration
+   * @return a new configured {@link HttpClient}
+   */
+  static HttpClient createClient(Properties properties) {
+    long connectTimeout = readLong(properties, PROP_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT_MS);
+    int threads = (int) Math.max(1L, readLong(properties, PROP_THREADS, CopilotRuntime.IO_THREADS));
+
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), daemonThreads("copilot-http"));
+    pool.allowCoreThreadTimeOut(true);
+
+    HttpClient.Version version = StringUtils.equalsIgnoreCase(
+        readPropertyWithLegacyCompatibility(properties, PROP_HTTP_VERSION, ""),
+        HttpClient.Version.HTTP_2.name()) ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+
+    log.info("Creating Copilot HTTP client: version={}, connectTimeout={}ms, threads={}", version, connectTimeout,
+        threads);
+    return HttpClient.newBuilder()
+        .version(version)
+        .connectTimeout(Duration.ofMillis(connectTimeout))
+        .executor(pool)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+  }
+
+  /**
+   * Builds the URI of a Copilot service endpoint using the configured host and port.
+   *
+   * @param endpoint
+   *     the endpoint, with or without a leading slash (e.g. "question" or "/question")
+   * @return the {@link URI} of the endpoint
+   */
+  public static URI getCopilotUri(String endpoint) {
+    return getCopilotUri(OBPropertiesProvider.getInstance().getOpenbravoProperties(), endpoint);
+  }
+
+  /**
+   * Builds the URI of a Copilot service endpoint using the host and port of the given properties.
+   *
+   * @param properties
+   *     the {@link Properties} containing the Copilot host and port
+   * @param endpoint
+   *     the endpoint, with or without a leading slash
+   * @return the {@link URI} of the endpoint
+   */
+  public static URI getCopilotUri(Properties properties, String endpoint) {
+    String copilotPort = readPropertyWithLegacyCompatibility(properties, COPILOT_PORT, "5005");
+    String copilotHost = readPropertyWithLegacyCompatibility(properties, COPILOT_HOST, "localhost");
+    String path = StringUtils.startsWith(endpoint, "/") ? endpoint : "/" + StringUtils.defaultString(endpoint);
+    return URI.create(String.format("http://%s:%s%s", copilotHost, copilotPort, path));
+  }
+
+  /**
+   * Creates a request builder for a Copilot service endpoint, with the configured read timeout.
+   *
+   * @param endpoint
+   *     the endpoint of the Copilot service
+   * @return a {@link HttpRequest.Builder} pointing to the endpoint
+   */
+  public static HttpRequest.Builder newRequest(String endpoint) {
+    return applyTimeout(HttpRequest.newBuilder().uri(getCopilotUri(endpoint)));
+  }
+
+  /**
+   * Creates a request builder for a Copilot service endpoint, resolving the host and port from the
+   * given properties.
+   *
+   * @param properties
+   *     the {@link Properties} containing the Copilot host and port
+   * @param endpoint
+   *     the endpoint of the Copilot service
+   * @return a {@link HttpRequest.Builder} pointing to the endpoint
+   */
+  public static HttpRequest.Builder newRequest(Properties properties, String endpoint) {
+    return applyTimeout(HttpRequest.newBuilder().uri(getCopilotUri(properties, endpoint)));
+  }
+
+  /**
+   * Applies the configured read timeout, if any, to the given request builder.
+   *
+   * @param builder
+   *     the request builder to configure
+   * @return the same builder
+   */
+  public static HttpRequest.Builder applyTimeout(HttpRequest.Builder builder) {
+    getClient();
+    Duration timeout = readTimeout;
+    if (timeout != null) {
+      builder.timeout(timeout);
+    }
+    return builder;
+  }
+
+  /**
+   * Sends a request through the shared client, recording the pool metrics.
+   *
+   * @param request
+   *     the request to send
+   * @param bodyHandler
+   *     the handler for the response body
+   * @return the response
+   * @throws IOException
+   *     if an I/O error occurs when sending or receiving
+   * @throws InterruptedException
+   *     if the operation is interrupted
+   */
+  public static <T> HttpResponse<T> send(HttpRequest request,
+      HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+    long start = begin();
+    boolean ok = false;
+    try {
+      HttpResponse<T> response = getClient().send(request, bodyHandler);
+      ok = true;
+      return response;
+    } finally {
+      end(start, ok);
+    }
+  }
+
+  /**
+   * Sends a request and returns the body as a stream. The connection is accounted as active
+   * until the returned stream is closed. Responses with an error status are closed and reported
+   * as an {@link IOException}.
+   *
+   * @param request
+   *     the request to send
+   * @return the response body stream
+   * @throws IOException
+   *     if an I/O error occurs or the Copilot service answers with an error status
+   * @throws InterruptedException
+   *     if the operation is interrupted
+   */
+  public static InputStream sendForStream(HttpRequest request) throws IOException, InterruptedException {
+    long start = begin();
+    HttpResponse<InputStream> response;
+    try {
+      response = getClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      end(start, false);
+      throw e;
+    }
+    if (response.statusCode() >= 400) {
+      response.body().close();
+      end(start, false);
+      throw new IOException(
+          String.format("Copilot service returned HTTP %d for %s", response.statusCode(), request.uri()));
+    }
+    recordLatency(start);
+    return new TrackedInputStream(response.body());
+  }
+
+  /**
+   * Returns a snapshot of the client metrics.
+   *
+   * @return the current {@link PoolStats}
+   */
+  public static PoolStats getStats() {
+    ThreadPoolExecutor pool = executor;
+    long total = TOTAL_REQUESTS.get();
+    long failed = FAILED_REQUESTS.get();
+    long succeeded = total - failed;
+    return new PoolStats(ACTIVE.get(), PEAK.get(), total, failed,
+        succeeded > 0 ? TimeUnit.NANOSECONDS.toMillis(TOTAL_LATENCY_NANOS.get()) / succeeded : 0L,
+        TimeUnit.NANOSECONDS.toMillis(MAX_LATENCY_NANOS.get()), pool != null ? pool.getActiveCount() : 0,
+        pool != null ? pool.getQueue().size() : 0);
+  }
+
+  private static long begin() {
+    int active = ACTIVE.incrementAndGet();
+    PEAK.accumulateAndGet(active, Math::max);
+    TOTAL_REQUESTS.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  private static void recordLatency(long start) {
+    long latency = System.nanoTime() - start;
+    TOTAL_LATENCY_NANOS.addAndGet(latency);
+    MAX_LATENCY_NANOS.accumulateAndGet(latency, Math::max);
+  }
+
+  private static void end(long start, boolean ok) {
+    if (ok) {
+      recordLatency(start);
+    } else {
+      FAILED_REQUESTS.incrementAndGet();
+    }
+    ACTIVE.decrementAndGet();
+    if (log.isDebugEnabled()) {
+      log.debug("Copilot HTTP client stats: {}", getStats());
+    }
+  }
+
+  /**
+   * Input stream that releases the active connection count when closed.
+   */
+  private static class TrackedInputStream extends FilterInputStream {
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    TrackedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (closed.compareAndSet(false, true)) {
+          ACTIVE.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Immutable snapshot of the Copilot HTTP client metrics. The JDK client does not expose its
+   * connection pool, so only the requests in flight are counted, not the open connections. The
+   * latency of a request is the time until its response is received: the whole body for
+   * {@link #send}, the headers for {@link #sendForStream}.
+   */
+  public static final class PoolStats {
+    private final int activeConnections;
+    private final int peakConnections;
+    private final long totalRequests;
+    private final long failedRequests;
+    private final long avgLatencyMillis;
+    private final long maxLatencyMillis;
+    private final int busyThreads;
+    private final int queuedTasks;
+
+    PoolStats(int activeConnections, int peakConnections, long totalRequests, long failedRequests,
+        long avgLatencyMillis, long maxLatencyMillis, int busyThreads, int queuedTasks) {
+      this.activeConnections = activeConnections;
+      this.peakConnections = peakConnections;
+      this.totalRequests = totalRequests;
+      this.failedRequests = failedRequests;
+      this.avgLatencyMillis = avgLatencyMillis;
+      this.maxLatencyMillis = maxLatencyMillis;
+      this.busyThreads = busyThreads;
+      this.queuedTasks = queuedTasks;
+    }
+
+    public int getActiveConnections() {
+      return activeConnections;
+    }
+
+    public int getPeakConnections() {
+      return peakConnections;
+    }
+
+    public long getTotalRequests() {
+      return totalRequests;
+    }
+
+    public long getFailedRequests() {
+      return failedRequests;
+    }
+
+    public long getAvgLatencyMillis() {
+      return avgLatencyMillis;
+    }
+
+    public long getMaxLatencyMillis() {
+      return maxLatencyMillis;
+    }
+
+    public int getBusyThreads() {
+      return busyThreads;
+    }
+
+    public int getQueuedTasks() {
+      return queuedTasks;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "active=%d, peak=%d, requests=%d, failed=%d, avgLatency=%dms, maxLatency=%dms, busyThreads=%d, queued=%d",
+          activeConnections, peakConnections, totalRequests, failedRequests, avgLatencyMillis, maxLatencyMillis,
+          busyThreads, queuedTasks);
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.data.CopilotModel;
+
+/**
+ * In-memory registry of the resolved Copilot models: the default model of each provider and
+ * context, the model selected by the {@code ETCOP_DefaultModelOverride} preference for each context
+ * and the configuration of all the models sent to Copilot.
+ * <p>
+ * The resolutions are loaded on first use and kept until the models change. The
+ * {@link com.etendoerp.copilot.eventhandler.ModelHandler} discards them when a {@link CopilotModel}
+ * is created, updated or deleted in this node. To see the changes made in other nodes of a cluster,
+ * the registry compares a version stamp of the models and of the override preferences with the
+ * database at most every {@code copilot.model.registry.check.interval} seconds (default 10), and
+ * discards the resolutions when it changed. A negative interval disables the registry, and the
+ * models are read from the database every time.
+ * <p>
+ * Only the identifiers of the models are kept; the models are returned from the DAL session of the
+ * caller.
+ */
+public class CopilotModelRegistry {
+
+  private static final Logger log = LogManager.getLogger(CopilotModelRegistry.class);
+
+  static final String PROP_CHECK_INTERVAL = "copilot.model.registry.check.interval";
+  private static final long DEFAULT_CHECK_INTERVAL_S = 10L;
+  private static final int MAX_ENTRIES = 1000;
+  private static final String NONE = "";
+  public static final String OVERRIDE_PREFERENCE = "ETCOP_DefaultModelOverride";
+  private static final String STAMP_SQL = "SELECT (SELECT COUNT(*) FROM etcop_openai_model),"
+      + " (SELECT MAX(updated) FROM etcop_openai_model),"
+      + " (SELECT COUNT(*) FROM ad_preference WHERE property = ?),"
+      + " (SELECT MAX(updated) FROM ad_preference WHERE property = ?)";
+
+  private static final CopilotRuntime.Shared<CopilotModelRegistry> INSTANCE = new CopilotRuntime.Shared<>(
+      CopilotModelRegistry::create);
+
+  private final long checkIntervalNanos;
+  private final StampReader stampReader;
+  private final LongSupplier clock;
+  private final Map<String, String> modelIds = new ConcurrentHashMap<>();
+  private final AtomicInteger generation = new AtomicInteger();
+  private volatile String modelsConfig;
+  private volatile String stamp;
+  private volatile long checkedAt;
+
+  /**
+   * Reads the version stamp of the models from the database.
+   */
+  @FunctionalInterface
+  interface StampReader {
+    String read() throws SQLException;
+  }
+
+  CopilotModelRegistry(long checkIntervalSeconds, StampReader stampReader, LongSupplier clock) {
+    this.checkIntervalNanos = checkIntervalSeconds < 0 ? -1L : TimeUnit.SECONDS.toNanos(checkIntervalSeconds);
+    this.stampReader = stampReader;
+    this.clock = clock;
+  }
+
+  /**
+   * @return the shared registry, configured from {@code Openbravo.properties} on first use
+   */
+  public static CopilotModelRegistry getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static CopilotModelRegistry create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    return new CopilotModelRegistry(readLong(properties, PROP_CHECK_INTERVAL, DEFAULT_CHECK_INTERVAL_S),
+        CopilotModelRegistry::readStamp, System::nanoTime);
+  }
+
+  /**
+   * Replaces the shared registry, used by the tests.
+   *
+   * @param registry
+   *     the registry to use, or null to create it again on next use
+   */
+  static void setInstance(CopilotModelRegistry registry) {
+    INSTANCE.set(registry);
+  }
+
+  /**
+   * Discards the resolutions of the shared registry, after a change of the models or of the override
+   * preference in this node.
+   */
+  public static void invalidateAll() {
+    CopilotModelRegistry current = INSTANCE.peek();
+    if (current != null) {
+      current.clear();
+    }
+  }
+
+  /**
+   * Returns the model resolved for a key, loading it the first time.
+   *
+   * @param key
+   *     the key of the resolution
+   * @param loader
+   *     reads the model from the database, it can return null
+   * @return the model, from the DAL session of the caller, or null if there is none
+   */
+  CopilotModel getModel(String key, Supplier<CopilotModel> loader) {
+    if (!isEnabled()) {
+      return loader.get();
+    }
+    validate();
+    String id = modelIds.get(key);
+    if (id != null) {
+      if (NONE.equals(id)) {
+        return null;
+      }
+      CopilotModel model = OBDal.getInstance().get(CopilotModel.class, id);
+      if (model != null) {
+        return model;
+      }
+    }
+    int loadedGeneration = generation.get();
+    CopilotModel model = loader.get();
+    if (modelIds.size() >= MAX_ENTRIES) {
+      modelIds.clear();
+    }
+    if (loadedGeneration == generation.get()) {
+      modelIds.put(key, model != null ? model.getId() : NONE);
+    }
+    return model;
+  }
+
+  /**
+   * Returns the configuration of all the models, building it the first time.
+   *
+   * @param builder
+   *     builds the configuration from the database
+   * @return the configuration, as a JSON string
+   */
+  String getModelsConfig(Supplier<String> builder) {
+    if (!isEnabled()) {
+      return builder.get();
+    }
+    validate();
+    String result = modelsConfig;
+    if (result == null) {
+      int loadedGeneration = generation.get();
+      result = builder.get();
+      if (loadedGeneration == generation.get()) {
+        modelsConfig = result;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Discards all the resolutions.
+   */
+  void clear() {
+    discard();
+    stamp = null;
+    checkedAt = 0L;
+  }
+
+  private void discard() {
+    generation.incrementAndGet();
+    modelIds.clear();
+    modelsConfig = null;
+  }
+
+  /**
+   * @return the number of resolutions kept
+   */
+  int size() {
+    return modelIds.size() + (modelsConfig != null ? 1 : 0);
+  }
+
+  private boolean isEnabled() {
+    return checkIntervalNanos >= 0;
+  }
+
+  /**
+   * Discards the resolutions when the version stamp in the database changed, reading it at most
+   * once per check interval.
+   */
+  private void validate() {
+    long now = clock.getAsLong();
+    if (stamp != null && now - checkedAt < checkIntervalNanos) {
+      return;
+    }
+    synchronized (this) {
+      if (stamp != null && now - checkedAt < checkIntervalNanos) {
+        return;
+      }
+      String current;
+      try {
+        current = stampReader.read();
+      } catch (SQLException e) {
+        log.warn("Version of the Copilot models could not be read, the resolved models are discarded", e);
+        discard();
+        return;
+      }
+      if (!Objects.equals(current, stamp)) {
+        if (stamp != null) {
+          log.debug("Copilot models changed, the resolved models are discarded");
+        }
+        discard();
+        stamp = current;
+      }
+      checkedAt = now;
+    }
+  }
+
+  private static String readStamp() throws SQLException {
+    Connection connection = OBDal.getInstance().getConnection(false);
+    try (PreparedStatement ps = connection.prepareStatement(STAMP_SQL)) {
+      ps.setString(1, OVERRIDE_PREFERENCE);
+      ps.setString(2, OVERRIDE_PREFERENCE);
+      try (ResultSet rs = ps.executeQuery()) {
+        rs.next();
+        return rs.getLong(1) + "/" + rs.getTimestamp(2) + "/" + rs.getLong(3) + "/" + rs.getTimestamp(4);
+      }
+    }
+  }
+}
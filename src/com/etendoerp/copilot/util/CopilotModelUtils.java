@@ -9,6 +9,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.criterion.Restrictions;
 import org.openbravo.base.exception.OBException;
+import org.openbravo.base.structure.BaseOBObject;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
@@ -49,17 +50,43 @@ public class CopilotModelUtils {
     * returned immediately (the preference acts as a global override).
     * <p>
     * The criteria then filters by {@code default = true} and orders results by creation date
-    * returning the first model found.
+    * returning the first model found. Both resolutions are kept in the {@link CopilotModelRegistry},
+    * per client, organization and role, until the models or the override preference change.
     *
     * @param provider The provider to filter the CopilotModel by, or {@code null} to match any provider.
     * @return The default {@link CopilotModel} for the given provider, or {@code null} if none found.
    */
   static CopilotModel getDefaultModel(String provider) {
-    CopilotModel result = null;
-    result = readOverrideDefaultModel();
+    CopilotModelRegistry registry = CopilotModelRegistry.getInstance();
+    CopilotModel result = registry.getModel(overrideKey(), CopilotModelUtils::readOverrideDefaultModel);
     if (result != null) {
       return result;
     }
+    return registry.getModel(defaultKey(provider), () -> readDefaultModel(provider));
+  }
+
+  private static String overrideKey() {
+    OBContext context = OBContext.getOBContext();
+    return String.join(":", "override", idOf(context.getCurrentClient()), idOf(context.getCurrentOrganization()),
+        idOf(context.getUser()), idOf(context.getRole()));
+  }
+
+  /**
+   * The default model is read with a criteria, filtered by the readable clients and organizations
+   * of the context, so it is kept per client, organization and role.
+   */
+  private static String defaultKey(String provider) {
+    OBContext context = OBContext.getOBContext();
+    return String.join(":", "default", idOf(context.getCurrentClient()), idOf(context.getCurrentOrganization()),
+        idOf(context.getRole()), StringUtils.defaultString(provider));
+  }
+
+  private static String idOf(BaseOBObject object) {
+    return object != null ? (String) object.getId() : "";
+  }
+
+  private static CopilotModel readDefaultModel(String provider) {
+    CopilotModel result;
     OBCriteria<CopilotModel> modelCriteria = OBDal.getInstance().createCriteria(CopilotModel.class);
     if (StringUtils.isNotEmpty(provider)) {
       modelCriteria.add(Restrictions.eq(CopilotModel.PROPERTY_PROVIDER, provider));
@@ -90,7 +117,7 @@ public class CopilotModelUtils {
     //if propertie not found or exception return null
     try {
       String overrideModelStr = Preferences.getPreferenceValue(
-          "ETCOP_DefaultModelOverride",
+          CopilotModelRegistry.OVERRIDE_PREFERENCE,
           true,
           OBContext.getOBContext().getCurrentClient(),
           OBContext.getOBContext().getCurrentOrganization(),
@@ -248,6 +275,8 @@ public class CopilotModelUtils {
    *   by this method — callers that require a non-null provider should call {@link #getProvider}
    *   or perform their own fallback logic.
    *
+   * The result is computed once per request, see {@link CopilotRequestContext}.
+   *
    * @param agent the {@link CopilotApp} to inspect; must not be {@code null}
    * @return a {@link ModelProviderResult} with the model search key and provider
    * @throws OBException if {@code agent} is {@code null} or if no default model is found
@@ -256,6 +285,10 @@ public class CopilotModelUtils {
     if (agent == null) {
       throw new OBException("CopilotApp agent is null");
     }
+    return CopilotRequestContext.memoize("model:" + agent.getId(), () -> loadModelProviderResult(agent));
+  }
+
+  private static ModelProviderResult loadModelProviderResult(CopilotApp agent) {
     CopilotModel model = agent.getModel();
     if (model != null) {
       return new ModelProviderResult(model.getSearchkey(), model.getProvider());
@@ -0,0 +1,189 @@
+package com.etendoerp.copilot.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Values looked up while a question is handled, computed once and shared by the prompt, tool, MCP
+ * and team member building of the request.
+ * <p>
+ * The context is opened by the thread that handles the question and closed when the question is
+ * answered. Worker threads that build part of the request {@link #attach(CopilotRequestContext)
+ * attach} it, so the team members built in parallel share the values too. Outside of a request the
+ * lookups are computed every time.
+ * <p>
+ * Only values that do not depend on a DAL session are kept, like JSON structures, strings or maps,
+ * because the workers use their own sessions. The values are shared by every caller of the request
+ * and must be treated as read-only; a caller that needs to change a JSON value must change a copy of
+ * it. Every lookup that is computed is counted by kind, and the counters are logged at debug level
+ * when the request finishes, so a lookup that is repeated in a request shows up in the logs and in
+ * the tests.
+ */
+public final class CopilotRequestContext implements AutoCloseable {
+
+  private static final Logger log = LogManager.getLogger(CopilotRequestContext.class);
+  private static final ThreadLocal<CopilotRequestContext> CURRENT = new ThreadLocal<>();
+  private static final Object NULL = new Object();
+
+  private final Map<String, Object> values = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> computed = new ConcurrentHashMap<>();
+  private final AtomicInteger reused = new AtomicInteger();
+  private final long start = System.nanoTime();
+  private final boolean owner;
+  private final CopilotRequestContext shared;
+
+  /**
+   * Computes a value of the request.
+   *
+   * @param <T>
+   *     the type of the value
+   * @param <E>
+   *     the exception thrown by the lookup
+   */
+  @FunctionalInterface
+  public interface Lookup<T, E extends Exception> {
+    T get() throws E;
+  }
+
+  private CopilotRequestContext(CopilotRequestContext shared) {
+    this.owner = shared == null;
+    this.shared = shared != null ? shared : this;
+  }
+
+  /**
+   * Opens the context of a request in the current thread. If the thread already handles a request,
+   * the context of that request is reused and closing the returned handle does not finish it.
+   *
+   * @return the handle to close when the request finishes
+   */
+  public static CopilotRequestContext open() {
+    CopilotRequestContext current = CURRENT.get();
+    if (current != null) {
+      return new CopilotRequestContext(current);
+    }
+    CopilotRequestContext context = new CopilotRequestContext(null);
+    CURRENT.set(context);
+    return context;
+  }
+
+  /**
+   * @return the context of the request handled by the current thread, or null
+   */
+  public static CopilotRequestContext current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Attaches the context of a request to the current worker thread, which must {@link
+   * #detach(CopilotRequestContext) detach} it when it finishes.
+   *
+   * @param context
+   *     the context of the request, can be null
+   * @return the context the thread had before, to restore on detach
+   */
+  public static CopilotRequestContext attach(CopilotRequestContext context) {
+    CopilotRequestContext previous = CURRENT.get();
+    if (context != null) {
+      CURRENT.set(context.shared);
+    }
+    return previous;
+  }
+
+  /**
+   * Detaches the context of a request from the current worker thread, restoring the one it had
+   * before.
+   *
+   * @param previous
+   *     the context returned by {@link #attach(CopilotRequestContext)}
+   */
+  public static void detach(CopilotRequestContext previous) {
+    if (previous != null) {
+      CURRENT.set(previous);
+    } else {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * Returns the value of a key in the request handled by the current thread, computing it the first
+   * time. Without request, the value is computed every time. The value is shared by the callers of
+   * the request, so it must not be changed.
+   *
+   * @param key
+   *     the key of the value; the kind of lookup goes before the first ':'
+   * @param lookup
+   *     computes the value
+   * @param <T>
+   *     the type of the value
+   * @param <E>
+   *     the exception thrown by the lookup
+   * @return the value
+   * @throws E
+   *     if the value cannot be computed
+   */
+  @SuppressWarnings("unchecked")
+  public static <T, E extends Exception> T memoize(String key, Lookup<T, E> lookup) throws E {
+    CopilotRequestContext context = CURRENT.get();
+    if (context == null) {
+      return lookup.get();
+    }
+    Object value = context.values.get(key);
+    if (value != null) {
+      context.reused.incrementAndGet();
+      return value == NULL ? null : (T) value;
+    }
+    T result = lookup.get();
+    context.computed.computeIfAbsent(kind(key), k -> new AtomicInteger()).incrementAndGet();
+    Object previous = context.values.putIfAbsent(key, result != null ? result : NULL);
+    return previous == null || previous == NULL ? result : (T) previous;
+  }
+
+  private static String kind(String key) {
+    int index = key.indexOf(':');
+    return index < 0 ? key : key.substring(0, index);
+  }
+
+  /**
+   * @return the lookups computed in the request, by kind of lookup
+   */
+  public Map<String, Integer> getComputedCounts() {
+    Map<String, Integer> counts = new TreeMap<>();
+    shared.computed.forEach((kind, count) -> counts.put(kind, count.get()));
+    return counts;
+  }
+
+  /**
+   * @return the total number of lookups computed in the request
+   */
+  public int getComputedCount() {
+    return shared.computed.values().stream().mapToInt(AtomicInteger::get).sum();
+  }
+
+  /**
+   * @return the number of lookups answered with a value already computed in the request
+   */
+  public int getReusedCount() {
+    return shared.reused.get();
+  }
+
+  /**
+   * Finishes the request, logging the lookups it computed, unless the handle was opened inside
+   * another request.
+   */
+  @Override
+  public void close() {
+    if (!owner) {
+      return;
+    }
+    CURRENT.remove();
+    if (log.isDebugEnabled()) {
+      log.debug("Request context: {} lookups computed {}, {} reused, {} ms", getComputedCount(), getComputedCounts(),
+          getReusedCount(), (System.nanoTime() - start) / 1_000_000L);
+    }
+  }
+}
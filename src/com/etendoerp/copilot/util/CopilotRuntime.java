@@ -0,0 +1,416 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotUtils.readPropertyWithLegacyCompatibility;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+
+/**
+ * Configuration and threads shared by the caches, background writers and worker pools of the
+ * module.
+ * <p>
+ * The numeric properties of {@code Openbravo.properties} are read with {@link #readLong}, the
+ * shared instances are created on first use by a {@link Shared} holder and the pools use the daemon
+ * threads of {@link #daemonThreads(String)}, named after the pool. The caches keep their entries in a
+ * {@link TtlCache}. The workers run with a context
+ * of their own, created from the {@link ContextIds} of the request.
+ * <p>
+ * The default sizes of the pools are coordinated, so together they do not use more threads and
+ * database connections than the node has processors for:
+ * <ul>
+ *   <li>{@link #REQUEST_PARALLELISM}: pools that work for a question while the user waits, the
+ *   team member payloads and the HQL sources. One thread per processor, between 2 and 4.</li>
+ *   <li>{@link #BACKGROUND_PARALLELISM}: pools of the background processes, the knowledge base
+ *   synchronization, the bulk tasks and their uploads. Half of the processors, between 1 and 4, so
+ *   they leave room for the requests.</li>
+ *   <li>{@link #IO_THREADS}: threads of the HTTP client, which only wait for the Copilot service.
+ *   Two per processor, between 4 and 16.</li>
+ * </ul>
+ * Every default can be changed with the property of its pool.
+ */
+public final class CopilotRuntime {
+
+  private static final Logger log = LogManager.getLogger(CopilotRuntime.class);
+
+  private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Default threads of the pools that work for a question while the user waits.
+   */
+  public static final int REQUEST_PARALLELISM = bounded(PROCESSORS, 2, 4);
+
+  /**
+   * Default threads of the pools of the background processes.
+   */
+  public static final int BACKGROUND_PARALLELISM = bounded(PROCESSORS / 2, 1, 4);
+
+  /**
+   * Default threads of the HTTP client of the Copilot service.
+   */
+  public static final int IO_THREADS = bounded(PROCESSORS * 2, 4, 16);
+
+  private CopilotRuntime() {
+  }
+
+  private static int bounded(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /**
+   * Reads a numeric property, also accepting its legacy name.
+   *
+   * @param properties
+   *     the properties, can be null
+   * @param name
+   *     the name of the property
+   * @param defaultValue
+   *     the value used when the property is missing or is not a number
+   * @return the value of the property
+   */
+  public static long readLong(Properties properties, String name, long defaultValue) {
+    String value = properties != null ? readPropertyWithLegacyCompatibility(properties, name, null) : null;
+    if (StringUtils.isBlank(value)) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      log.warn("Invalid value '{}' for property '{}', using {}", value, name, defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads a numeric property of {@code Openbravo.properties}, also accepting its legacy name.
+   *
+   * @param name
+   *     the name of the property
+   * @param defaultValue
+   *     the value used when the property is missing or is not a number
+   * @return the value of the property
+   */
+  public static long readLong(String name, long defaultValue) {
+    return readLong(OBPropertiesProvider.getInstance().getOpenbravoProperties(), name, defaultValue);
+  }
+
+  /**
+   * Returns a factory of daemon threads named after a pool, so the pool never keeps the JVM alive
+   * and its threads are recognized in thread dumps.
+   *
+   * @param name
+   *     the name of the pool, the threads are named {@code <name>-1}, {@code <name>-2}...
+   * @return the thread factory
+   */
+  public static ThreadFactory daemonThreads(String name) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Holder of a shared instance, created on first use. The instance can be replaced for testing
+   * purposes, and discarded to be created again on next use.
+   *
+   * @param <T>
+   *     the type of the instance
+   */
+  public static final class Shared<T> {
+    private final Supplier<T> factory;
+    private volatile T instance;
+
+    /**
+     * @param factory
+     *     creates the instance on first use
+     */
+    public Shared(Supplier<T> factory) {
+      this.factory = factory;
+    }
+
+    /**
+     * @return the shared instance, created if there is none
+     */
+    public T get() {
+      T result = instance;
+      if (result == null) {
+        synchronized (this) {
+          result = instance;
+          if (result == null) {
+            result = factory.get();
+            instance = result;
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return the shared instance, or null if it has not been created
+     */
+    public T peek() {
+      return instance;
+    }
+
+    /**
+     * Replaces the shared instance.
+     *
+     * @param value
+     *     the instance to use, or null to create it again on next use
+     */
+    public synchronized void set(T value) {
+      instance = value;
+    }
+
+    /**
+     * Discards the shared instance, so it is created again on next use.
+     *
+     * @return the discarded instance, or null if it had not been created
+     */
+    public synchronized T clear() {
+      T current = instance;
+      instance = null;
+      return current;
+    }
+  }
+
+  /**
+   * Bounded cache of values by key, with a time to live per entry, used by the caches of the
+   * module.
+   * <p>
+   * A value is loaded on a miss and kept until it expires or it is invalidated. A value loaded
+   * while an invalidation happened may be stale, so it is returned but not kept. When the cache is
+   * full the expired entries are discarded, and if it is still full the new value is not kept until
+   * some entry expires or is invalidated. Hits and misses are counted.
+   *
+   * @param <V>
+   *     the type of the values
+   */
+  public static final class TtlCache<V> {
+    private final String name;
+    private final int maxEntries;
+    private final LongSupplier clock;
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param name
+     *     the name of the cache, for the logs
+     * @param maxEntries
+     *     the maximum number of entries
+     * @param clock
+     *     the current time, in the unit of the times to live
+     */
+    public TtlCache(String name, int maxEntries, LongSupplier clock) {
+      this.name = name;
+      this.maxEntries = Math.max(1, maxEntries);
+      this.clock = clock;
+    }
+
+    /**
+     * Returns the value of a key, loading it when there is no valid entry.
+     *
+     * @param key
+     *     the key
+     * @param valid
+     *     whether an entry that has not expired can still be used
+     * @param loader
+     *     loads the value on a miss
+     * @param ttl
+     *     the time to live of a loaded value, in the unit of the clock; the value is not kept if it
+     *     is not positive
+     * @return the value
+     * @throws E
+     *     if the value has to be loaded and it fails
+     */
+    public <E extends Exception> V get(String key, Predicate<V> valid, CopilotRequestContext.Lookup<V, E> loader,
+        ToLongFunction<V> ttl) throws E {
+      long now = clock.getAsLong();
+      Entry<V> entry = entries.get(key);
+      if (entry != null && entry.expiresAt - now > 0 && valid.test(entry.value)) {
+        hits.incrementAndGet();
+        return entry.value;
+      }
+
+      long generation = invalidations.get();
+      V value = loader.get();
+      misses.incrementAndGet();
+      long timeToLive = value != null ? ttl.applyAsLong(value) : 0L;
+      if (timeToLive > 0L) {
+        store(key, new Entry<>(value, now + timeToLive), generation, now);
+      }
+      if (log.isDebugEnabled()) {
+        log.debug("{} cache miss for {}. {}", name, key, this);
+      }
+      return value;
+    }
+
+    /**
+     * Returns the value of a key, loading it when there is no entry or it has expired.
+     *
+     * @param key
+     *     the key
+     * @param loader
+     *     loads the value on a miss
+     * @param ttl
+     *     the time to live of the loaded value, in the unit of the clock
+     * @return the value
+     * @throws E
+     *     if the value has to be loaded and it fails
+     */
+    public <E extends Exception> V get(String key, CopilotRequestContext.Lookup<V, E> loader, long ttl) throws E {
+      return get(key, value -> true, loader, value -> ttl);
+    }
+
+    private void store(String key, Entry<V> entry, long generation, long now) {
+      if (entries.size() >= maxEntries) {
+        entries.values().removeIf(e -> e.expiresAt - now <= 0);
+      }
+      if (entries.size() < maxEntries && generation == invalidations.get()) {
+        entries.put(key, entry);
+      }
+    }
+
+    /**
+     * Discards the entries that match a filter.
+     *
+     * @param filter
+     *     tests the key and the value of an entry
+     * @return whether some entry was discarded
+     */
+    public boolean invalidate(BiPredicate<String, V> filter) {
+      invalidations.incrementAndGet();
+      return entries.entrySet().removeIf(e -> filter.test(e.getKey(), e.getValue().value));
+    }
+
+    /**
+     * Discards every entry.
+     */
+    public void clear() {
+      invalidations.incrementAndGet();
+      entries.clear();
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+      return entries.size();
+    }
+
+    /**
+     * @return the number of values served from the cache
+     */
+    public long getHits() {
+      return hits.get();
+    }
+
+    /**
+     * @return the number of values that had to be loaded
+     */
+    public long getMisses() {
+      return misses.get();
+    }
+
+    /**
+     * @return the number of entries and the hit and miss counters
+     */
+    @Override
+    public String toString() {
+      return String.format("[entries=%d, hits=%d, misses=%d]", entries.size(), hits.get(), misses.get());
+    }
+
+    private static class Entry<V> {
+      private final V value;
+      private final long expiresAt;
+
+      Entry(V value, long expiresAt) {
+        this.value = value;
+        this.expiresAt = expiresAt;
+      }
+    }
+  }
+
+  /**
+   * Identifiers of the user, role, client and organization of a context, captured by the request
+   * thread so a worker can create an equivalent {@link OBContext}. The context of the request is
+   * not thread safe, so it is never shared with the workers.
+   */
+  public static final class ContextIds {
+    private final String userId;
+    private final String roleId;
+    private final String clientId;
+    private final String orgId;
+
+    private ContextIds(String userId, String roleId, String clientId, String orgId) {
+      this.userId = userId;
+      this.roleId = roleId;
+      this.clientId = clientId;
+      this.orgId = orgId;
+    }
+
+    /**
+     * @return the identifiers of the context of the current thread, without identifiers if there
+     *     is no context
+     */
+    public static ContextIds capture() {
+      OBContext context = OBContext.getOBContext();
+      if (context == null || context.getUser() == null) {
+        return new ContextIds(null, null, null, null);
+      }
+      return new ContextIds(context.getUser().getId(),
+          context.getRole() != null ? context.getRole().getId() : null,
+          context.getCurrentClient() != null ? context.getCurrentClient().getId() : null,
+          context.getCurrentOrganization() != null ? context.getCurrentOrganization().getId() : null);
+    }
+
+    /**
+     * Sets in the current thread a new context with the captured identifiers, or no context if
+     * there were none.
+     */
+    public void apply() {
+      if (userId == null) {
+        OBContext.setOBContext((OBContext) null);
+      } else {
+        OBContext.setOBContext(userId, roleId, clientId, orgId);
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ContextIds)) {
+        return false;
+      }
+      ContextIds other = (ContextIds) o;
+      return Objects.equals(userId, other.userId) && Objects.equals(roleId, other.roleId)
+          && Objects.equals(clientId, other.clientId) && Objects.equals(orgId, other.orgId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(userId, roleId, clientId, orgId);
+    }
+  }
+}
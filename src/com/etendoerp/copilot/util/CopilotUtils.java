@@ -12,14 +12,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.MalformedInputException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -70,6 +69,9 @@ public class CopilotUtils {
   public static final String MAX_CHUNK_SIZE = "max_chunk_size";
   public static final String CHUNK_OVERLAP = "chunk_overlap";
   public static final String AD_CLIENT_ID = "ad_client_id";
+  public static final String KB_FILE_ID = "kb_file_id";
+  public static final String KB_HASH = "kb_hash";
+  static final String MCP_SERVERS = "mcp_servers";
 
   private CopilotUtils() {
     // Private constructor to prevent instantiation
@@ -80,7 +82,7 @@ public class CopilotUtils {
   public static final String KB_VECTORDB_ID = "kb_vectordb_id";
   public static final String COPILOT_PORT = "copilot.port";
   public static final String COPILOT_HOST = "copilot.host";
-  private static final String DEFAULT_PROMPT_PREFERENCE_KEY = "ETCOP_DefaultContextPrompt";
+  public static final String DEFAULT_PROMPT_PREFERENCE_KEY = "ETCOP_DefaultContextPrompt";
 
   /**
    * Uploads a file to the vector database with specified parameters.
@@ -114,6 +116,25 @@ public class CopilotUtils {
     Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
     String endpoint = "addToVectorDB";
     HttpResponse<String> responseFromCopilot;
+    JSONObject jsonRequestForCopilot = buildVectorDBRequest(fileToSend, dbName, format, skipSplitting, maxChunkSize,
+        chunkOverlap, clientId);
+
+    responseFromCopilot = getResponseFromCopilot(properties, endpoint, jsonRequestForCopilot, fileToSend);
+
+    if (responseFromCopilot == null || responseFromCopilot.statusCode() < 200 || responseFromCopilot.statusCode() >= 300) {
+      throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_Error_sync_vectorDB")));
+    }
+  }
+
+  /**
+   * Builds the parameters of an {@code addToVectorDB} request.
+   *
+   * @return the parameters, sent as form fields along with the file
+   * @throws JSONException
+   *     If an error occurs while constructing the JSON request.
+   */
+  static JSONObject buildVectorDBRequest(File fileToSend, String dbName, String format, boolean skipSplitting,
+      Long maxChunkSize, Long chunkOverlap, String clientId) throws JSONException {
     JSONObject jsonRequestForCopilot = new JSONObject();
     jsonRequestForCopilot.put("filename", fileToSend.getName());
     jsonRequestForCopilot.put(KB_VECTORDB_ID, dbName);
@@ -127,12 +148,7 @@ public class CopilotUtils {
     if (chunkOverlap != null) {
       jsonRequestForCopilot.put(CHUNK_OVERLAP, chunkOverlap);
     }
-
-    responseFromCopilot = getResponseFromCopilot(properties, endpoint, jsonRequestForCopilot, fileToSend);
-
-    if (responseFromCopilot == null || responseFromCopilot.statusCode() < 200 || responseFromCopilot.statusCode() >= 300) {
-      throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_Error_sync_vectorDB")));
-    }
+    return jsonRequestForCopilot;
   }
 
   /**
@@ -159,10 +175,6 @@ public class CopilotUtils {
       File fileToSend) {
 
     try {
-      HttpClient client = HttpClient.newBuilder().build();
-      String copilotPort = readPropertyWithLegacyCompatibility(properties, COPILOT_PORT, "5005");
-      String copilotHost = readPropertyWithLegacyCompatibility(properties, COPILOT_HOST, "localhost");
-
       HttpRequest.BodyPublisher requestBodyPublisher;
       String contentType;
 
@@ -174,11 +186,10 @@ public class CopilotUtils {
         contentType = "application/json;charset=UTF-8";
       }
 
-      HttpRequest copilotRequest = HttpRequest.newBuilder().uri(
-          new URI(String.format("http://%s:%s/%s", copilotHost, copilotPort, endpoint))).header("Content-Type",
-          contentType).version(HttpClient.Version.HTTP_1_1).POST(requestBodyPublisher).build();
+      HttpRequest copilotRequest = CopilotHttpClient.newRequest(properties, endpoint).header("Content-Type",
+          contentType).POST(requestBodyPublisher).build();
 
-      return client.send(copilotRequest, HttpResponse.BodyHandlers.ofString());
+      return CopilotHttpClient.send(copilotRequest, HttpResponse.BodyHandlers.ofString());
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       throw new OBException(e);
@@ -231,14 +242,9 @@ public class CopilotUtils {
    */
   static HttpResponse<String> doGetCopilot(Properties properties, String endpoint) {
     try {
-      HttpClient client = HttpClient.newBuilder().build();
-      String copilotPort = readPropertyWithLegacyCompatibility(properties, COPILOT_PORT, "5005");
-      String copilotHost = readPropertyWithLegacyCompatibility(properties, COPILOT_HOST, "localhost");
-
-      HttpRequest copilotRequest = HttpRequest.newBuilder().uri(
-          new URI(String.format("http://%s:%s/%s", copilotHost, copilotPort, endpoint))).GET().build();
+      HttpRequest copilotRequest = CopilotHttpClient.newRequest(properties, endpoint).GET().build();
 
-      return client.send(copilotRequest, HttpResponse.BodyHandlers.ofString());
+      return CopilotHttpClient.send(copilotRequest, HttpResponse.BodyHandlers.ofString());
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       throw new OBException(e);
@@ -251,7 +257,8 @@ public class CopilotUtils {
    * Creates a multipart body publisher for an HTTP request.
    * <p>
    * This method constructs a multipart/form-data body containing the JSON parameters
-   * and the file to be sent to the Copilot service.
+   * and the file to be sent to the Copilot service. The file is read from disk in chunks while
+   * the request is sent, so the memory used does not depend on its size.
    *
    * @param jsonBody
    *     The {@link JSONObject} containing the parameters to include in the request.
@@ -259,7 +266,7 @@ public class CopilotUtils {
    *     The {@link File} to include in the request.
    * @return An {@link HttpRequest.BodyPublisher} containing the multipart body.
    * @throws IOException
-   *     If an I/O error occurs while reading the file.
+   *     If the file cannot be found.
    * @throws JSONException
    *     If an error occurs while processing the JSON data.
    */
@@ -308,19 +315,31 @@ public class CopilotUtils {
       writer.append("Content-Disposition: form-data; name=\"chunk_overlap\"\r\n\r\n");
       writer.append(String.valueOf(jsonBody.getLong(CHUNK_OVERLAP))).append("\r\n");
     }
-    // File part
+    if (jsonBody.has(KB_FILE_ID)) {
+      writer.append("--").append(BOUNDARY).append("\r\n");
+      writer.append("Content-Disposition: form-data; name=\"kb_file_id\"\r\n\r\n");
+      writer.append(jsonBody.getString(KB_FILE_ID)).append("\r\n");
+    }
+    if (jsonBody.has(KB_HASH)) {
+      writer.append("--").append(BOUNDARY).append("\r\n");
+      writer.append("Content-Disposition: form-data; name=\"kb_hash\"\r\n\r\n");
+      writer.append(jsonBody.getString(KB_HASH)).append("\r\n");
+    }
+    String closingBoundary = "--" + BOUNDARY + "--\r\n";
+    // File part, streamed from disk so that large files are not loaded in memory
     if (file != null) {
       writer.append("--").append(BOUNDARY).append("\r\n");
       writer.append("Content-Disposition: form-data; name=\"file\"; filename=\"").append(file.getName()).append(
           "\"\r\n");
       writer.append("Content-Type: application/octet-stream\r\n\r\n");
-      writer.flush();
+      writer.close();
 
-      Files.copy(file.toPath(), byteArrays);
-      writer.append("\r\n").flush();
+      return HttpRequest.BodyPublishers.concat(HttpRequest.BodyPublishers.ofByteArray(byteArrays.toByteArray()),
+          HttpRequest.BodyPublishers.ofFile(file.toPath()),
+          HttpRequest.BodyPublishers.ofString("\r\n" + closingBoundary, StandardCharsets.UTF_8));
     }
 
-    writer.append("--").append(BOUNDARY).append("--\r\n");
+    writer.append(closingBoundary);
     writer.close();
 
     return HttpRequest.BodyPublishers.ofByteArray(byteArrays.toByteArray());
@@ -395,12 +414,38 @@ public class CopilotUtils {
     CopilotFile fileToSync = appSource.getFile();
     logIfDebug("Uploading file " + fileToSync.getName());
 
-    // Extract the file name and determine its extension
-    String filename = fileToSync.getFilename();
-    String extension = StringUtils.isNotEmpty(filename) ? filename.substring(filename.lastIndexOf(".") + 1) : null;
+    File fileFromCopilotFile = getLangchainSourceFile(appSource);
+
+    // Prepare database and synchronization parameters
+    String dbName = "KB_" + appSource.getEtcopApp().getId();
+    boolean skipSplitting = appSource.getFile().isSkipSplitting();
+    Long maxChunkSize = appSource.getFile().getMaxChunkSize();
+    Long chunkOverlap = appSource.getFile().getChunkOverlap();
+
+    String extension = getLangchainSourceExtension(fileToSync, fileFromCopilotFile);
+    // Upload the file to the vector database
+    FileUtils.binaryFileToVectorDB(fileFromCopilotFile, dbName, extension, skipSplitting, maxChunkSize, chunkOverlap,
+        fileToSync.getClient().getId());
 
-    File fileFromCopilotFile = null;
+    //delete file after uploading to vectorDB
+    deleteLangchainSourceFile(fileFromCopilotFile);
 
+    OBDal.getInstance().flush();
+  }
+
+  /**
+   * Returns the file to upload to the vector database for a knowledge base source. HQL query files
+   * are generated, deleting any OpenAI file associated with them, and the rest are retrieved from
+   * the {@link CopilotFile}.
+   *
+   * @param appSource
+   *     The {@link CopilotAppSource} instance containing the file to be synchronized.
+   * @return the file to upload, to be deleted after uploading it
+   * @throws IOException
+   *     If an I/O error occurs during file processing.
+   */
+  static File getLangchainSourceFile(CopilotAppSource appSource) throws IOException {
+    CopilotFile fileToSync = appSource.getFile();
     // Handle HQL query files
     if (isHQLQueryFile(fileToSync)) {
       String openaiFileId = appSource.getOpenaiIdFile();
@@ -408,36 +453,41 @@ public class CopilotUtils {
         logIfDebug("Deleting file " + appSource.getFile().getName());
         deleteFile(appSource.getOpenaiIdFile(), OpenAIUtils.getOpenaiApiKey());
       }
-
-      fileFromCopilotFile = FileUtils.generateHQLFile(appSource);
-
-    } else {
-      // Retrieve the file for non-HQL query files
-      fileFromCopilotFile = FileUtils.getFileFromCopilotFile(fileToSync);
+      return FileUtils.generateHQLFile(appSource);
     }
+    // Retrieve the file for non-HQL query files
+    return FileUtils.getFileFromCopilotFile(fileToSync);
+  }
 
-    // Prepare database and synchronization parameters
-    String dbName = "KB_" + appSource.getEtcopApp().getId();
-    boolean skipSplitting = appSource.getFile().isSkipSplitting();
-    Long maxChunkSize = appSource.getFile().getMaxChunkSize();
-    Long chunkOverlap = appSource.getFile().getChunkOverlap();
-
+  /**
+   * Returns the extension of a knowledge base file, from its file name or, if it has none, from the
+   * file to upload.
+   *
+   * @param fileToSync
+   *     The {@link CopilotFile} being synchronized.
+   * @param fileFromCopilotFile
+   *     The file to upload.
+   * @return the extension of the file
+   * @throws OBException
+   *     If the extension is not supported.
+   */
+  static String getLangchainSourceExtension(CopilotFile fileToSync, File fileFromCopilotFile) {
+    // Extract the file name and determine its extension
+    String filename = fileToSync.getFilename();
+    String extension = StringUtils.isNotEmpty(filename) ? filename.substring(filename.lastIndexOf(".") + 1) : null;
     // Validate and determine the file extension
     if (StringUtils.isEmpty(extension)) {
       extension = fileFromCopilotFile.getName().substring(fileFromCopilotFile.getName().lastIndexOf(".") + 1);
     }
-
     // Check if the file extension is valid
-    if (FileUtils.isValidExtension(extension)) {
-      // Upload the file to the vector database
-      FileUtils.binaryFileToVectorDB(fileFromCopilotFile, dbName, extension, skipSplitting, maxChunkSize, chunkOverlap,
-          fileToSync.getClient().getId());
-    } else {
+    if (!FileUtils.isValidExtension(extension)) {
       // Throw an exception for invalid file formats
       throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_ErrorInvalidFormat"), extension));
     }
+    return extension;
+  }
 
-    //delete file after uploading to vectorDB
+  static void deleteLangchainSourceFile(File fileFromCopilotFile) {
     if (fileFromCopilotFile != null && fileFromCopilotFile.exists()) {
       try {
         Files.delete(fileFromCopilotFile.toPath());
@@ -445,8 +495,6 @@ public class CopilotUtils {
         log.error("Temporary file {} could not be deleted: {}", fileFromCopilotFile.getAbsolutePath(), e.getMessage());
       }
     }
-
-    OBDal.getInstance().flush();
   }
 
   /**
@@ -468,29 +516,64 @@ public class CopilotUtils {
   }
 
   /**
-   * Generates the assistant prompt for a given Copilot application.
+   * Returns the assistant prompt for a given Copilot application in the current context.
    * <p>
-   * This method constructs a prompt by appending the application's base prompt,
-   * executing hooks, and including additional context such as default preferences
-   * and application source content. It also handles alias replacement for specific
-   * application sources.
+   * The static part of the prompt is served from the {@link PromptCache} when a valid entry exists
+   * for the agent and the current context; otherwise it is generated with
+   * {@link #buildPromptTemplate(CopilotApp)} and cached. The prompt hooks, the context variables
+   * and the API tokens are resolved on every call, so their values are never cached.
    *
    * @param app
    *     The {@link CopilotApp} instance for which the assistant prompt is generated.
-   * @return A {@link String} representing the generated assistant prompt.
+   * @return A {@link String} representing the assistant prompt.
    * @throws IOException
    *     If an I/O error occurs while retrieving application source content.
    */
   public static String getAssistantPrompt(CopilotApp app) throws IOException {
-    StringBuilder promptBuilder = new StringBuilder();
-    promptBuilder.append(app.getPrompt());
-    promptBuilder.append("\n");
+    PromptCache.Template template = PromptCache.getInstance().getTemplate(app, () -> buildPromptTemplate(app));
+    String hooksOutput = executePromptHooks(app);
+    // the aliases are replaced in the output of the hooks too, reading only the sources it uses
+    List<CopilotAppSource> usedAliases = getAppSourcesWithAlias(app).stream().filter(
+        appSource -> StringUtils.contains(hooksOutput, "@" + appSource.getAlias() + "@")).collect(
+        Collectors.toList());
+    StringBuilder promptBuilder = new StringBuilder(template.getHead());
+    promptBuilder.append(replaceAliasInPrompt(new StringBuilder(hooksOutput), usedAliases));
+    promptBuilder.append(template.getTail());
+    return CopilotVarReplacerUtil.replaceCopilotPromptVariables(promptBuilder.toString());
+  }
 
+  private static String executePromptHooks(CopilotApp app) {
     try {
-      promptBuilder.append(WeldUtils.getInstanceFromStaticBeanManager(OpenAIPromptHookManager.class).executeHooks(app));
+      return WeldUtils.getInstanceFromStaticBeanManager(OpenAIPromptHookManager.class).executeHooks(app);
     } catch (OBException e) {
       log.error("Error executing hooks", e);
+      return "";
     }
+  }
+
+  private static List<CopilotAppSource> getAppSourcesWithAlias(CopilotApp app) {
+    return app.getETCOPAppSourceList().stream().filter(
+        appSource -> StringUtils.equalsIgnoreCase(appSource.getBehaviour(),
+            CopilotConstants.FILE_BEHAVIOUR_SYSTEM) && StringUtils.isNotEmpty(appSource.getAlias())).collect(
+        Collectors.toList());
+  }
+
+  /**
+   * Generates the static part of the assistant prompt for a given Copilot application.
+   * <p>
+   * The text before the output of the prompt hooks is the application's base prompt; the text
+   * after it is the default context prompt preference and the content of the system application
+   * sources. The sources with an alias replace it in the base prompt and in the preference, the
+   * others are appended. The context variables and the API tokens are left unresolved.
+   *
+   * @param app
+   *     The {@link CopilotApp} instance for which the assistant prompt is generated.
+   * @return The {@link PromptCache.Template} of the assistant prompt.
+   * @throws IOException
+   *     If an I/O error occurs while retrieving application source content.
+   */
+  static PromptCache.Template buildPromptTemplate(CopilotApp app) throws IOException {
+    String head = app.getPrompt() + "\n";
 
     OBContext context = OBContext.getOBContext();
     String defaultContextPrompt = null;
@@ -508,29 +591,33 @@ public class CopilotUtils {
       log.error("Error retrieving default context prompt", e);
     }
 
+    StringBuilder tailBuilder = new StringBuilder();
     if (defaultContextPrompt != null) {
-      promptBuilder.append(defaultContextPrompt).append("\n");
+      tailBuilder.append(defaultContextPrompt).append("\n");
     } else {
       log.warn("No default context prompt found.");
     }
 
-    List<CopilotAppSource> appSourcesToAppend = app.getETCOPAppSourceList();
-
     // app sources to replace with an alias
-    List<CopilotAppSource> appSourcesWithAlias = appSourcesToAppend.stream().filter(
-        appSource -> StringUtils.equalsIgnoreCase(appSource.getBehaviour(),
-            CopilotConstants.FILE_BEHAVIOUR_SYSTEM) && StringUtils.isNotEmpty(appSource.getAlias())).collect(
-        Collectors.toList());
+    List<CopilotAppSource> appSourcesWithAlias = getAppSourcesWithAlias(app);
 
     // the app sources to append are the ones that are not with an alias
-    appSourcesToAppend = appSourcesToAppend.stream().filter(
+    List<CopilotAppSource> appSourcesToAppend = app.getETCOPAppSourceList().stream().filter(
         appSource -> !appSourcesWithAlias.contains(appSource)).collect(Collectors.toList());
 
-    promptBuilder = replaceAliasInPrompt(promptBuilder, appSourcesWithAlias);
-
-    promptBuilder.append(getAppSourceContent(appSourcesToAppend, CopilotConstants.FILE_BEHAVIOUR_SYSTEM));
+    // each aliased source is read once for both parts of the prompt
+    String tail = tailBuilder.toString();
+    for (CopilotAppSource appSource : appSourcesWithAlias) {
+      String aliasToReplace = "@" + appSource.getAlias() + "@";
+      if (StringUtils.contains(head, aliasToReplace) || StringUtils.contains(tail, aliasToReplace)) {
+        String content = getAppSourceContent(appSource);
+        head = StringUtils.replace(head, aliasToReplace, content);
+        tail = StringUtils.replace(tail, aliasToReplace, content);
+      }
+    }
 
-    return CopilotVarReplacerUtil.replaceCopilotPromptVariables(promptBuilder.toString());
+    return new PromptCache.Template(head, tail + getAppSourceContent(appSourcesToAppend,
+        CopilotConstants.FILE_BEHAVIOUR_SYSTEM));
   }
 
 
@@ -750,6 +837,70 @@ public class CopilotUtils {
 
   }
 
+  /**
+   * Retrieves the knowledge base files indexed in the vector database of the specified
+   * {@link CopilotApp}, for the current client.
+   * <p>
+   * The returned object contains {@code files}, with the content hash each file was indexed with by
+   * its {@link CopilotFile} identifier, and {@code untracked}, the number of documents indexed
+   * without file information by previous versions.
+   *
+   * @param app
+   *     The {@link CopilotApp} instance whose vector database is inspected.
+   * @return the manifest of the vector database, or {@code null} if the Copilot service does not
+   *     support it
+   * @throws JSONException
+   *     If there is an error constructing the request or reading the response.
+   * @throws OBException
+   *     If the response from the Copilot service indicates a failure.
+   */
+  public static JSONObject getVectorDBManifest(CopilotApp app) throws JSONException {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    JSONObject jsonRequestForCopilot = new JSONObject();
+    jsonRequestForCopilot.put(KB_VECTORDB_ID, "KB_" + app.getId());
+    jsonRequestForCopilot.put(AD_CLIENT_ID, OBContext.getOBContext().getCurrentClient().getId());
+    HttpResponse<String> responseFromCopilot = getResponseFromCopilot(properties, "getVectorDBManifest",
+        jsonRequestForCopilot, null);
+    if (responseFromCopilot != null && responseFromCopilot.statusCode() == 404) {
+      return null;
+    }
+    if (responseFromCopilot == null || responseFromCopilot.statusCode() < 200 || responseFromCopilot.statusCode() >= 300) {
+      throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_ErrorKBSync"), app.getName(),
+          responseFromCopilot != null ? responseFromCopilot.body() : ""));
+    }
+    return new JSONObject(responseFromCopilot.body());
+  }
+
+  /**
+   * Removes the documents of the given knowledge base files from the vector database of the
+   * specified {@link CopilotApp}.
+   *
+   * @param app
+   *     The {@link CopilotApp} instance whose vector database is updated.
+   * @param fileIds
+   *     The identifiers of the {@link CopilotFile} instances to remove.
+   * @throws JSONException
+   *     If there is an error constructing the JSON request.
+   * @throws OBException
+   *     If the response from the Copilot service indicates a failure.
+   */
+  public static void removeFromVectorDB(CopilotApp app, Collection<String> fileIds) throws JSONException {
+    if (fileIds.isEmpty()) {
+      return;
+    }
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    JSONObject jsonRequestForCopilot = new JSONObject();
+    jsonRequestForCopilot.put(KB_VECTORDB_ID, "KB_" + app.getId());
+    jsonRequestForCopilot.put(AD_CLIENT_ID, OBContext.getOBContext().getCurrentClient().getId());
+    jsonRequestForCopilot.put("kb_file_ids", new JSONArray(fileIds));
+    HttpResponse<String> responseFromCopilot = getResponseFromCopilot(properties, "removeFromVectorDB",
+        jsonRequestForCopilot, null);
+    if (responseFromCopilot == null || responseFromCopilot.statusCode() < 200 || responseFromCopilot.statusCode() >= 300) {
+      throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_ErrorKBSync"), app.getName(),
+          responseFromCopilot != null ? responseFromCopilot.body() : ""));
+    }
+  }
+
   /**
    * Retrieves the configuration for all models in the system.
    * <p>
@@ -757,7 +908,8 @@ public class CopilotUtils {
    * each model,
    * organized by provider and model name. The configuration includes the maximum
    * number of tokens
-   * allowed for each model.
+   * allowed for each model. The configuration is kept in the {@link CopilotModelRegistry} until the
+   * models change, and parsed once per request, see {@link CopilotRequestContext}.
    *
    * @return A JSONObject representing the configuration of all models, organized
    *     by provider and model name.
@@ -765,6 +917,20 @@ public class CopilotUtils {
    *     If an error occurs while creating the JSON object.
    */
   public static JSONObject getModelsConfigJSON() throws JSONException {
+    return CopilotRequestContext.memoize("models_config", CopilotUtils::loadModelsConfigJSON);
+  }
+
+  private static JSONObject loadModelsConfigJSON() throws JSONException {
+    return new JSONObject(CopilotModelRegistry.getInstance().getModelsConfig(() -> {
+      try {
+        return buildModelsConfigJSON().toString();
+      } catch (JSONException e) {
+        throw new OBException(e);
+      }
+    }));
+  }
+
+  private static JSONObject buildModelsConfigJSON() throws JSONException {
     JSONObject modelsConfig = new JSONObject();
     var models = OBDal.getInstance().createCriteria(CopilotModel.class).list();
     for (CopilotModel model : models) {
@@ -788,7 +954,8 @@ public class CopilotUtils {
    * Generates a JSON object containing authentication information.
    * <p>
    * This method creates a JSON object and adds an authentication token to it if
-   * the role has web service enabled.
+   * the role has web service enabled. The token is generated once per request, see
+   * {@link CopilotRequestContext}.
    *
    * @param role
    *     The role of the user.
@@ -799,6 +966,10 @@ public class CopilotUtils {
    *     If an error occurs while generating the token.
    */
   public static JSONObject getAuthJson(Role role, OBContext context) throws Exception {
+    return CopilotRequestContext.memoize("auth:" + role.getId(), () -> buildAuthJson(role, context));
+  }
+
+  private static JSONObject buildAuthJson(Role role, OBContext context) throws Exception {
     JSONObject authJson = new JSONObject();
     // Adding auth token to interact with the Etendo web services
     if (role.isWebServiceEnabled().booleanValue()) {
@@ -812,7 +983,8 @@ public class CopilotUtils {
    * <p>
    * This method retrieves the user, current organization, and warehouse from the
    * OBContext,
-   * and then generates a secure token using these details.
+   * and then generates a secure token using these details. The token is kept in the
+   * {@link SWSTokenCache} and reused until it is close to expire.
    *
    * @param context
    *     The OBContext containing the current session information.
@@ -824,6 +996,13 @@ public class CopilotUtils {
    *     If an error occurs while generating the token.
    */
   static String getEtendoSWSToken(OBContext context, Role role) throws Exception {
+    String roleId = role != null ? role.getId() : context.getRole().getId();
+    String warehouseId = context.getWarehouse() != null ? context.getWarehouse().getId() : null;
+    return SWSTokenCache.getInstance().getToken(context.getUser().getId(), roleId,
+        context.getCurrentOrganization().getId(), warehouseId, () -> signEtendoSWSToken(context, role));
+  }
+
+  private static String signEtendoSWSToken(OBContext context, Role role) throws Exception {
     if (role == null) {
       role = OBDal.getInstance().get(Role.class, context.getRole().getId());
     }
@@ -957,8 +1136,8 @@ public class CopilotUtils {
 
   /**
    * This method is used to load the stages and their associated assistants for a given CopilotApp instance.
-   * It iterates over the team members of the CopilotApp instance and creates a JSON object for each one.
-   * Each team member JSON object contains the name of the team member and the type of the assistant.
+   * The JSON object of each team member is built by {@link TeamMemberPayloads}, concurrently and reusing the
+   * ones built by previous requests when the team member has not changed.
    * The team member JSON objects are added to a JSON array, which is then added to the request JSON object under
    * the key "assistants".
    *
@@ -974,39 +1153,14 @@ public class CopilotUtils {
     ArrayList<String> teamMembersIdentifier = new ArrayList<>();
     JSONArray assistantsArray = new JSONArray();
 
-    for (CopilotApp teamMember : getTeamMembers(copilotApp)) {
-      JSONObject memberData = new JSONObject();
-      try {
-        //the name is the identifier of the team member, but without any character that is not a letter or a number
-        String name = teamMember.getName().replaceAll("[^a-zA-Z0-9]", "");
-        memberData.put("name", name);
-        teamMembersIdentifier.add(name);
-        memberData.put("type", teamMember.getAppType());
-        memberData.put("description", teamMember.getDescription());
-
-        if (StringUtils.equalsIgnoreCase(teamMember.getAppType(), CopilotConstants.APP_TYPE_OPENAI)) {
-          String assistantId = teamMember.getOpenaiAssistantID();
-          if (StringUtils.isEmpty(assistantId)) {
-            throw new OBException(
-                String.format(OBMessageUtils.messageBD("ETCOP_ErrTeamMembNotSync"), teamMember.getName()));
-          }
-          memberData.put(RestServiceUtil.PROP_ASSISTANT_ID, assistantId);
-        } else if (StringUtils.equalsIgnoreCase(teamMember.getAppType(),
-            CopilotConstants.APP_TYPE_LANGCHAIN) || StringUtils.equalsIgnoreCase(teamMember.getAppType(),
-            CopilotConstants.APP_TYPE_MULTIMODEL)) {
-          buildLangchainRequestForCopilot(teamMember, null, memberData, teamMember.getAppType());
-        }
-
-        assistantsArray.put(memberData);
-
-      } catch (JSONException | IOException e) {
-        RestServiceUtil.log.error(e);
-      }
+    for (JSONObject memberData : TeamMemberPayloads.getInstance().build(getTeamMembers(copilotApp))) {
+      teamMembersIdentifier.add(memberData.getString("name"));
+      assistantsArray.put(memberData);
     }
     stagesAssistants.put("stage1", teamMembersIdentifier);
     jsonRequestForCopilot.put("assistants", assistantsArray);
     if (StringUtils.isNotEmpty(conversationId)) {
-      jsonRequestForCopilot.put(RestServiceUtil.PROP_HISTORY, TrackingUtil.getHistory(conversationId));
+      jsonRequestForCopilot.put(RestServiceUtil.PROP_HISTORY, TrackingUtil.getHistory(conversationId, copilotApp));
     }
     //prompt of the graph supervisor
     if (StringUtils.isNotEmpty(copilotApp.getPrompt())) {
@@ -1016,6 +1170,44 @@ public class CopilotUtils {
     jsonRequestForCopilot.put(RestServiceUtil.PROP_TEMPERATURE, copilotApp.getTemperature());
   }
 
+  /**
+   * Builds the JSON object that describes a team member to the graph supervisor: its name, without any character
+   * that is not a letter or a number, its type and description, and the assistant id or the full Langchain request
+   * depending on its type.
+   *
+   * @param teamMember
+   *     The team member.
+   * @return The JSON object of the team member.
+   * @throws JSONException
+   *     If an error occurs while building the JSON object.
+   * @throws IOException
+   *     If an error occurs while reading the content of an app source file.
+   * @throws OBException
+   *     If the team member is an OpenAI assistant that is not synchronized.
+   */
+  static JSONObject buildTeamMemberPayload(CopilotApp teamMember) throws JSONException, IOException {
+    JSONObject memberData = new JSONObject();
+    //the name is the identifier of the team member, but without any character that is not a letter or a number
+    String name = teamMember.getName().replaceAll("[^a-zA-Z0-9]", "");
+    memberData.put("name", name);
+    memberData.put("type", teamMember.getAppType());
+    memberData.put("description", teamMember.getDescription());
+
+    if (StringUtils.equalsIgnoreCase(teamMember.getAppType(), CopilotConstants.APP_TYPE_OPENAI)) {
+      String assistantId = teamMember.getOpenaiAssistantID();
+      if (StringUtils.isEmpty(assistantId)) {
+        throw new OBException(
+            String.format(OBMessageUtils.messageBD("ETCOP_ErrTeamMembNotSync"), teamMember.getName()));
+      }
+      memberData.put(RestServiceUtil.PROP_ASSISTANT_ID, assistantId);
+    } else if (StringUtils.equalsIgnoreCase(teamMember.getAppType(),
+        CopilotConstants.APP_TYPE_LANGCHAIN) || StringUtils.equalsIgnoreCase(teamMember.getAppType(),
+        CopilotConstants.APP_TYPE_MULTIMODEL)) {
+      buildLangchainRequestForCopilot(teamMember, null, memberData, teamMember.getAppType());
+    }
+    return memberData;
+  }
+
   /**
    * This method is used to set the stages for a given request to the Langchain assistant.
    * It iterates over the stages and their associated assistants, creating a JSON object for each stage.
@@ -1084,7 +1276,7 @@ public class CopilotUtils {
     jsonRequestForCopilot.put(PROP_NAME, copilotApp.getName());
     jsonRequestForCopilot.put(RestServiceUtil.PROP_TYPE, appType);
     if (StringUtils.isNotEmpty(conversationId)) {
-      jsonRequestForCopilot.put(RestServiceUtil.PROP_HISTORY, TrackingUtil.getHistory(conversationId));
+      jsonRequestForCopilot.put(RestServiceUtil.PROP_HISTORY, TrackingUtil.getHistory(conversationId, copilotApp));
     }
     jsonRequestForCopilot.put(RestServiceUtil.PROP_TEMPERATURE, copilotApp.getTemperature());
     jsonRequestForCopilot.put(RestServiceUtil.PROP_TOOLS, ToolsUtil.getToolSet(copilotApp));
@@ -1122,9 +1314,23 @@ public class CopilotUtils {
     jsonRequestForCopilot.put("specs", appSpecs);
 
     // Add MCP configurations
+    addMCPConfigurations(copilotApp, jsonRequestForCopilot);
+  }
+
+  /**
+   * Adds the MCP configurations of the assistant to the request, under the key "mcp_servers", when it has any.
+   *
+   * @param copilotApp
+   *     The CopilotApp instance whose MCP configurations are added.
+   * @param jsonRequestForCopilot
+   *     The JSONObject to which the MCP configurations are to be added.
+   * @throws JSONException
+   *     If an error occurs while building the configurations.
+   */
+  static void addMCPConfigurations(CopilotApp copilotApp, JSONObject jsonRequestForCopilot) throws JSONException {
     JSONArray mcpConfigurations = MCPUtils.getMCPConfigurations(copilotApp);
     if (mcpConfigurations.length() > 0) {
-      jsonRequestForCopilot.put("mcp_servers", mcpConfigurations);
+      jsonRequestForCopilot.put(MCP_SERVERS, mcpConfigurations);
     }
   }
 
@@ -1,14 +1,15 @@
 package com.etendoerp.copilot.util;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.text.StrSubstitutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.codehaus.jettison.json.JSONException;
@@ -16,6 +17,7 @@ import org.codehaus.jettison.json.JSONObject;
 import org.hibernate.criterion.Restrictions;
 import org.openbravo.base.exception.OBException;
 import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.base.structure.BaseOBObject;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
@@ -69,6 +71,10 @@ public class CopilotVarReplacerUtil {
    * system/context placeholders, plus custom variables from the maps parameter.
    * API tokens are also replaced using the pattern {@code @TOKEN_ALIAS@} based on user/role priority.
    * Optionally escapes and validates curly braces if {@code balanceBrackets} is true.
+   * <p>
+   * The string is compiled once into a {@link PromptTemplate} and rendered in a single pass. The
+   * values are only computed for the placeholders the string contains, and the placeholders can be
+   * escaped as {@code \@NAME@} and {@code $${name}}.
    *
    * @param string
    *     The input string containing placeholders to replace
@@ -83,71 +89,99 @@ public class CopilotVarReplacerUtil {
    *     If bracket balancing is enabled and brackets are not balanced
    */
   public static String replaceCopilotPromptVariables(String string, JSONObject maps, boolean balanceBrackets) throws JSONException {
-    OBContext obContext = OBContext.getOBContext();
-    String stringParsed = StringUtils.replace(string, "@ETENDO_HOST@", CopilotUtils.getEtendoHost()); //for backward compatibility
-    stringParsed = StringUtils.replace(stringParsed, "@etendo.host@", CopilotUtils.getEtendoHost());
-    stringParsed = StringUtils.replace(stringParsed, "@ETENDO_HOST_DOCKER@", CopilotUtils.getEtendoHostDocker()); // for backward compatibility
-    stringParsed = StringUtils.replace(stringParsed, "@etendo.host.docker@", CopilotUtils.getEtendoHostDocker());
-    stringParsed = StringUtils.replace(stringParsed, "@context.url@", CopilotUtils.getContextUrl());
-
-    if (obContext.getCurrentClient() != null) {
-      stringParsed = StringUtils.replace(stringParsed, "@AD_CLIENT_ID@", obContext.getCurrentClient().getId());
-      stringParsed = StringUtils.replace(stringParsed, "@CLIENT_NAME@", obContext.getCurrentClient().getName());
-    }
-    if (obContext.getCurrentOrganization() != null) {
-      stringParsed = StringUtils.replace(stringParsed, "@AD_ORG_ID@", obContext.getCurrentOrganization().getId());
-      stringParsed = StringUtils.replace(stringParsed, "@ORG_NAME@", obContext.getCurrentOrganization().getName());
-    }
-    if (obContext.getUser() != null) {
-      stringParsed = StringUtils.replace(stringParsed, "@AD_USER_ID@", obContext.getUser().getId());
-      stringParsed = StringUtils.replace(stringParsed, "@USERNAME@", obContext.getUser().getUsername());
-    }
-    if (obContext.getRole() != null) {
-      stringParsed = StringUtils.replace(stringParsed, "@AD_ROLE_ID@", obContext.getRole().getId());
-      stringParsed = StringUtils.replace(stringParsed, "@ROLE_NAME@", obContext.getRole().getName());
+    if (string == null) {
+      return null;
     }
-    if (obContext.getWarehouse() != null) {
-      stringParsed = StringUtils.replace(stringParsed, "@M_WAREHOUSE_ID@", obContext.getWarehouse().getId());
-      stringParsed = StringUtils.replace(stringParsed, "@WAREHOUSE_NAME@", obContext.getWarehouse().getName());
+    Map<String, String> replacements = maps != null ? extractReplacementsFromJson(maps) : null;
+    return PromptTemplate.compile(string).render(new ContextValues(OBContext.getOBContext()), replacements,
+        balanceBrackets);
+  }
+
+  /**
+   * Values of the {@code @NAME@} placeholders in the current context, computed the first time they
+   * are used in a string.
+   */
+  private static class ContextValues implements UnaryOperator<String> {
+    private final OBContext obContext;
+    private final Map<String, String> values = new HashMap<>();
+    private Properties properties;
+
+    ContextValues(OBContext obContext) {
+      this.obContext = obContext;
     }
-    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
-    stringParsed = StringUtils.replace(stringParsed, "@source.path@", CopilotUtils.getSourcesPath(properties));
-
-    stringParsed = StringUtils.replace(stringParsed, "@context.name@",
-        properties.getProperty("context.name", "etendo"));
-    stringParsed = StringUtils.replace(stringParsed, "@context.url@",
-        properties.getProperty("context.url", "http://localhost:8080/etendo"));
-    // Replace API tokens with priority: user+role > user > role > null user and role
-    Map<String, String> apiTokens = getApiTokensForCurrentContext(obContext);
-    for (Map.Entry<String, String> tokenEntry : apiTokens.entrySet()) {
-      String token;
-      try {
-        token = CryptoUtility.decrypt(tokenEntry.getValue());
-      } catch (ServletException e) {
-        String errorMsg = OBMessageUtils.messageBD("ETCOP_DecryptTokenError");
-        String formattedMsg = String.format(errorMsg, tokenEntry.getKey());
-        log.error(formattedMsg, e);
-        continue;
+
+    @Override
+    public String apply(String name) {
+      if (values.containsKey(name)) {
+        return values.get(name);
       }
-      String tokenPlaceholder = "@" + tokenEntry.getKey() + "@";
-      stringParsed = StringUtils.replace(stringParsed, tokenPlaceholder, token);
+      String value = resolve(name);
+      values.put(name, value);
+      return value;
     }
 
-    if (maps != null) {
-      Map<String, String> replacements = extractReplacementsFromJson(maps);
-      StrSubstitutor sub = new StrSubstitutor(replacements);
-      stringParsed = sub.replace(stringParsed);
+    private String resolve(String name) {
+      switch (name) {
+        case "ETENDO_HOST": // for backward compatibility
+        case "etendo.host":
+          return CopilotUtils.getEtendoHost();
+        case "ETENDO_HOST_DOCKER": // for backward compatibility
+        case "etendo.host.docker":
+          return CopilotUtils.getEtendoHostDocker();
+        case "context.url":
+          return getContextUrl();
+        case "context.name":
+          return getProperties().getProperty("context.name", "etendo");
+        case "source.path":
+          return CopilotUtils.getSourcesPath(getProperties());
+        case "AD_CLIENT_ID":
+          return obContext.getCurrentClient() != null ? obContext.getCurrentClient().getId() : null;
+        case "CLIENT_NAME":
+          return obContext.getCurrentClient() != null ? obContext.getCurrentClient().getName() : null;
+        case "AD_ORG_ID":
+          return obContext.getCurrentOrganization() != null ? obContext.getCurrentOrganization().getId() : null;
+        case "ORG_NAME":
+          return obContext.getCurrentOrganization() != null ? obContext.getCurrentOrganization().getName() : null;
+        case "AD_USER_ID":
+          return obContext.getUser() != null ? obContext.getUser().getId() : null;
+        case "USERNAME":
+          return obContext.getUser() != null ? obContext.getUser().getUsername() : null;
+        case "AD_ROLE_ID":
+          return obContext.getRole() != null ? obContext.getRole().getId() : null;
+        case "ROLE_NAME":
+          return obContext.getRole() != null ? obContext.getRole().getName() : null;
+        case "M_WAREHOUSE_ID":
+          return obContext.getWarehouse() != null ? obContext.getWarehouse().getId() : null;
+        case "WAREHOUSE_NAME":
+          return obContext.getWarehouse() != null ? obContext.getWarehouse().getName() : null;
+        default:
+          // API tokens with priority: user+role > user > role > null user and role
+          return getApiTokensForCurrentContext(obContext).get(name);
+      }
     }
 
-    if (balanceBrackets) {
-      stringParsed = stringParsed.replace("{", "{{").replace("}", "}}");
+    private String getContextUrl() {
+      String contextUrl = CopilotUtils.getContextUrl();
+      return contextUrl != null ? contextUrl : getProperties().getProperty("context.url",
+          "http://localhost:8080/etendo");
+    }
 
-      if (StringUtils.countMatches(stringParsed, "{{") != StringUtils.countMatches(stringParsed, "}}")) {
-        throw new OBException(OBMessageUtils.messageBD("ETCOP_BalancedBrackets"));
+    private Properties getProperties() {
+      if (properties == null) {
+        properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
       }
+      return properties;
     }
+  }
 
-    return stringParsed;
+  /**
+   * Returns the API tokens that replace the placeholders in the current context.
+   *
+   * @return the decrypted tokens by alias, empty if there is no context
+   */
+  static Map<String, String> getApiTokens() {
+    OBContext obContext = OBContext.getOBContext();
+    return obContext != null ? getApiTokensForCurrentContext(obContext) : Collections.emptyMap();
   }
 
   /**
@@ -157,11 +191,37 @@ public class CopilotVarReplacerUtil {
    * It implements a priority system where tokens with both user and role specified have the highest priority,
    * followed by user-only tokens, then role-only tokens, and finally tokens with null user and role.
    * Each alias can have only one token returned, with higher priority tokens taking precedence.
+   * The tokens are decrypted and kept in the {@link ApiTokenCache}, and looked up once per request,
+   * see {@link CopilotRequestContext}.
    *
    * @param obContext The current OBContext containing user and role information
-   * @return A map where keys are token aliases and values are the corresponding tokens
+   * @return A map where keys are token aliases and values are the corresponding decrypted tokens
    */
   private static Map<String, String> getApiTokensForCurrentContext(OBContext obContext) {
+    return CopilotRequestContext.memoize("api_tokens", () -> ApiTokenCache.getInstance()
+        .getTokens(idOf(obContext.getCurrentClient()), idOf(obContext.getUser()), idOf(obContext.getRole()),
+            () -> decryptApiTokens(loadApiTokens(obContext))));
+  }
+
+  private static String idOf(BaseOBObject object) {
+    return object != null ? (String) object.getId() : null;
+  }
+
+  private static Map<String, String> decryptApiTokens(Map<String, String> encryptedTokens) {
+    Map<String, String> tokens = new HashMap<>();
+    for (Map.Entry<String, String> tokenEntry : encryptedTokens.entrySet()) {
+      try {
+        tokens.put(tokenEntry.getKey(), CryptoUtility.decrypt(tokenEntry.getValue()));
+      } catch (ServletException e) {
+        String errorMsg = OBMessageUtils.messageBD("ETCOP_DecryptTokenError");
+        String formattedMsg = String.format(errorMsg, tokenEntry.getKey());
+        log.error(formattedMsg, e);
+      }
+    }
+    return tokens;
+  }
+
+  private static Map<String, String> loadApiTokens(OBContext obContext) {
     Map<String, String> tokenMap = new HashMap<>();
 
     try {
@@ -253,7 +313,7 @@ public class CopilotVarReplacerUtil {
   }
 
   /**
-   * Extracts replacements from a JSONObject for use with StrSubstitutor.
+   * Extracts the replacements of the {@code ${name}} placeholders from a JSONObject.
    * <p>
    * This method iterates through the keys of the provided JSONObject and extracts
    * key-value pairs where the value is either a String or Boolean. The extracted
@@ -0,0 +1,170 @@
+package com.etendoerp.copilot.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openbravo.base.exception.OBException;
+
+/**
+ * Streaming reader of CSV records, as defined by RFC 4180: fields may be enclosed in double quotes,
+ * in which case they can contain separators, line breaks and escaped double quotes ({@code ""}).
+ * <p>
+ * Records are read one at a time, so the size of the file does not affect the memory used. Both
+ * {@code \n} and {@code \r\n} line breaks are accepted, a leading byte order mark is skipped and
+ * empty lines are ignored.
+ */
+public class CsvReader implements Closeable {
+
+  private static final char QUOTE = '"';
+  private static final char BOM = '\uFEFF';
+
+  private final Reader reader;
+  private final char separator;
+  private final StringBuilder field = new StringBuilder();
+  private int peeked = -2;
+  private boolean started;
+  private long lineNumber = 1;
+
+  /**
+   * @param reader
+   *     the reader of the CSV content, buffered if needed
+   * @param separator
+   *     the field separator
+   */
+  public CsvReader(Reader reader, char separator) {
+    this.reader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+    this.separator = separator;
+  }
+
+  /**
+   * Returns the separator character for a separator parameter: the character itself, a tab for
+   * {@code \t}, or a comma if it is empty.
+   *
+   * @param separator
+   *     the separator, as entered by the user
+   * @return the separator character
+   * @throws OBException
+   *     if the separator has more than one character
+   */
+  public static char toSeparator(String separator) {
+    if (StringUtils.isEmpty(separator) || StringUtils.equalsIgnoreCase(separator, "null")) {
+      return ',';
+    }
+    if (StringUtils.equals(separator, "\\t")) {
+      return '\t';
+    }
+    if (separator.length() > 1) {
+      throw new OBException("Invalid separator '" + separator + "', it must be a single character or \\t");
+    }
+    return separator.charAt(0);
+  }
+
+  /**
+   * Reads the next record.
+   *
+   * @return the fields of the record, or null at the end of the content
+   * @throws IOException
+   *     if the content cannot be read or a quoted field is not closed
+   */
+  public List<String> readRecord() throws IOException {
+    if (!started) {
+      started = true;
+      if (peek() == BOM) {
+        read();
+      }
+    }
+    while (peek() == '\n' || peek() == '\r') {
+      readLineBreak();
+    }
+    if (peek() < 0) {
+      return null;
+    }
+    List<String> record = new ArrayList<>();
+    while (true) {
+      record.add(readField());
+      int c = read();
+      if (c < 0) {
+        return record;
+      }
+      if (c != separator) {
+        // Line break
+        if (c == '\r' && peek() == '\n') {
+          read();
+        }
+        lineNumber++;
+        return record;
+      }
+    }
+  }
+
+  private String readField() throws IOException {
+    field.setLength(0);
+    if (peek() != QUOTE) {
+      int c;
+      while ((c = peek()) >= 0 && c != separator && c != '\n' && c != '\r') {
+        field.append((char) read());
+      }
+      return field.toString();
+    }
+    long startLine = lineNumber;
+    read();
+    while (true) {
+      int c = read();
+      if (c < 0) {
+        throw new IOException("Unclosed quoted field starting at line " + startLine);
+      }
+      if (c == QUOTE) {
+        if (peek() != QUOTE) {
+          break;
+        }
+        read();
+      } else if (c == '\n') {
+        lineNumber++;
+      }
+      field.append((char) c);
+    }
+    // Characters after the closing quote are kept, as most spreadsheets do
+    int c;
+    while ((c = peek()) >= 0 && c != separator && c != '\n' && c != '\r') {
+      field.append((char) read());
+    }
+    return field.toString();
+  }
+
+  private void readLineBreak() throws IOException {
+    if (read() == '\r' && peek() == '\n') {
+      read();
+    }
+    lineNumber++;
+  }
+
+  private int peek() throws IOException {
+    if (peeked == -2) {
+      peeked = reader.read();
+    }
+    return peeked;
+  }
+
+  private int read() throws IOException {
+    int c = peek();
+    peeked = -2;
+    return c;
+  }
+
+  /**
+   * @return the line where the next record starts
+   */
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
@@ -0,0 +1,288 @@
+package com.etendoerp.copilot.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.data.CopilotFile;
+import com.etendoerp.copilot.data.KnowledgeBaseFileVariant;
+
+/**
+ * Content addressed storage of the knowledge base files kept in the database.
+ * <p>
+ * The content of a file is stored once in {@code ETCOP_FILE_BLOB}, identified by its SHA-256 hash,
+ * and every {@link KnowledgeBaseFileVariant} with the same content points to it, so a file shared by
+ * all the clients is stored only once. The blobs belong to the System client, so every client can
+ * read them. A blob is deleted when its last variant stops pointing to it, also when the variant or
+ * its file are deleted. The content is streamed from and to files, without loading it in memory.
+ * <p>
+ * The blobs are accessed through JDBC on the connection of the current DAL session, because the DAL
+ * maps binary columns to byte arrays.
+ */
+public final class FileBlobStore {
+
+  private static final String EXISTS_SQL = "SELECT 1 FROM etcop_file_blob WHERE etcop_file_blob_id = ?";
+  private static final String INSERT_SQL = "INSERT INTO etcop_file_blob"
+      + " (etcop_file_blob_id, ad_client_id, ad_org_id, isactive, created, createdby, updated, updatedby,"
+      + " filedata, filesize) VALUES (?, '0', '0', 'Y', NOW(), '0', NOW(), '0', ?, ?)"
+      + " ON CONFLICT (etcop_file_blob_id) DO NOTHING";
+  private static final String CURRENT_SQL = "SELECT etcop_file_blob_id FROM etcop_file_variant"
+      + " WHERE etcop_file_variant_id = ?";
+  private static final String LINK_SQL = "UPDATE etcop_file_variant SET etcop_file_blob_id = ?, filedata = NULL"
+      + " WHERE etcop_file_variant_id = ?";
+  private static final String RELEASE_SQL = "DELETE FROM etcop_file_blob WHERE etcop_file_blob_id = ?"
+      + " AND NOT EXISTS (SELECT 1 FROM etcop_file_variant WHERE etcop_file_blob_id = ?)";
+  private static final String READ_SQL = "SELECT b.filedata FROM etcop_file_blob b"
+      + " JOIN etcop_file_variant v ON v.etcop_file_blob_id = b.etcop_file_blob_id"
+      + " WHERE v.etcop_file_variant_id = ?";
+  private static final String FILE_BLOBS_SQL = "SELECT DISTINCT etcop_file_blob_id FROM etcop_file_variant"
+      + " WHERE etcop_file_id = ? AND etcop_file_blob_id IS NOT NULL";
+  private static final String UNLINK_FILE_SQL = "UPDATE etcop_file_variant SET etcop_file_blob_id = NULL"
+      + " WHERE etcop_file_id = ?";
+
+  private FileBlobStore() {
+  }
+
+  /**
+   * Computes the SHA-256 hash of the content of a file.
+   *
+   * @param path
+   *     the file
+   * @return the hash in hexadecimal
+   * @throws IOException
+   *     if the file cannot be read
+   */
+  public static String hash(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      return hash(in);
+    }
+  }
+
+  /**
+   * Computes the SHA-256 hash of the content of a stream. The stream is not closed.
+   *
+   * @param in
+   *     the stream
+   * @return the hash in hexadecimal
+   * @throws IOException
+   *     if the stream cannot be read
+   */
+  public static String hash(InputStream in) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new OBException(e);
+    }
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      digest.update(buffer, 0, read);
+    }
+    return String.format("%064x", new BigInteger(1, digest.digest()));
+  }
+
+  /**
+   * Stores the content of a file, unless a blob with the same content already exists. When another
+   * transaction stores the same content at the same time, the blob it inserts is used.
+   *
+   * @param path
+   *     the file
+   * @return the hash that identifies the blob
+   * @throws IOException
+   *     if the file cannot be read
+   */
+  public static String store(Path path) throws IOException {
+    return store(connection(), path);
+  }
+
+  static String store(Connection connection, Path path) throws IOException {
+    String hash = hash(path);
+    try {
+      try (PreparedStatement ps = connection.prepareStatement(EXISTS_SQL)) {
+        ps.setString(1, hash);
+        try (ResultSet rs = ps.executeQuery()) {
+          if (rs.next()) {
+            return hash;
+          }
+        }
+      }
+      long size = Files.size(path);
+      try (PreparedStatement ps = connection.prepareStatement(INSERT_SQL);
+           InputStream in = Files.newInputStream(path)) {
+        ps.setString(1, hash);
+        ps.setBinaryStream(2, in, size);
+        ps.setLong(3, size);
+        ps.executeUpdate();
+      }
+      return hash;
+    } catch (SQLException e) {
+      throw new OBException(e);
+    }
+  }
+
+  /**
+   * Returns the hash of the blob a variant points to.
+   *
+   * @param variant
+   *     the variant
+   * @return the hash of the blob, or null if the variant does not point to a blob
+   */
+  public static String getHash(KnowledgeBaseFileVariant variant) {
+    return getHash(connection(), variant.getId());
+  }
+
+  static String getHash(Connection connection, String variantId) {
+    try (PreparedStatement ps = connection.prepareStatement(CURRENT_SQL)) {
+      ps.setString(1, variantId);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() ? rs.getString(1) : null;
+      }
+    } catch (SQLException e) {
+      throw new OBException(e);
+    }
+  }
+
+  /**
+   * Points a variant to a blob and releases the blob it pointed to before. The pending changes of
+   * the DAL session are flushed first, so the variant exists in the database, and the variant is
+   * refreshed after, so a later flush does not write back the blob it pointed to before.
+   *
+   * @param variant
+   *     the variant
+   * @param hash
+   *     the hash of the blob, or null to leave the variant without blob
+   */
+  public static void link(KnowledgeBaseFileVariant variant, String hash) {
+    link(connection(), variant.getId(), hash);
+    OBDal.getInstance().getSession().refresh(variant);
+  }
+
+  static void link(Connection connection, String variantId, String hash) {
+    try {
+      String previous = getHash(connection, variantId);
+      if (StringUtils.equals(previous, hash)) {
+        return;
+      }
+      try (PreparedStatement ps = connection.prepareStatement(LINK_SQL)) {
+        ps.setString(1, hash);
+        ps.setString(2, variantId);
+        ps.executeUpdate();
+      }
+      if (previous != null) {
+        try (PreparedStatement ps = connection.prepareStatement(RELEASE_SQL)) {
+          ps.setString(1, previous);
+          ps.setString(2, previous);
+          ps.executeUpdate();
+        }
+      }
+    } catch (SQLException e) {
+      throw new OBException(e);
+    }
+  }
+
+  /**
+   * Releases the blob of a variant that is going to be deleted.
+   *
+   * @param variant
+   *     the variant
+   */
+  public static void release(KnowledgeBaseFileVariant variant) {
+    link(connection(), variant.getId(), null);
+  }
+
+  /**
+   * Releases the blobs of all the variants of a file that is going to be deleted. The variants are
+   * deleted by the database when their file is, so their blobs are released before.
+   *
+   * @param file
+   *     the file
+   */
+  public static void releaseFile(CopilotFile file) {
+    releaseFile(connection(), file.getId());
+  }
+
+  static void releaseFile(Connection connection, String fileId) {
+    try {
+      List<String> hashes = new ArrayList<>();
+      try (PreparedStatement ps = connection.prepareStatement(FILE_BLOBS_SQL)) {
+        ps.setString(1, fileId);
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            hashes.add(rs.getString(1));
+          }
+        }
+      }
+      if (hashes.isEmpty()) {
+        return;
+      }
+      try (PreparedStatement ps = connection.prepareStatement(UNLINK_FILE_SQL)) {
+        ps.setString(1, fileId);
+        ps.executeUpdate();
+      }
+      try (PreparedStatement ps = connection.prepareStatement(RELEASE_SQL)) {
+        for (String hash : hashes) {
+          ps.setString(1, hash);
+          ps.setString(2, hash);
+          ps.executeUpdate();
+        }
+      }
+    } catch (SQLException e) {
+      throw new OBException(e);
+    }
+  }
+
+  /**
+   * Writes the content of the blob of a variant to a file.
+   *
+   * @param variant
+   *     the variant
+   * @param target
+   *     the file to write, it is replaced if it exists
+   * @return false if the variant does not point to a blob
+   * @throws IOException
+   *     if the file cannot be written
+   */
+  public static boolean copyTo(KnowledgeBaseFileVariant variant, Path target) throws IOException {
+    return copyTo(connection(), variant.getId(), target);
+  }
+
+  static boolean copyTo(Connection connection, String variantId, Path target) throws IOException {
+    try (PreparedStatement ps = connection.prepareStatement(READ_SQL)) {
+      ps.setString(1, variantId);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (!rs.next()) {
+          return false;
+        }
+        try (InputStream in = rs.getBinaryStream(1)) {
+          if (in == null) {
+            return false;
+          }
+          Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+      }
+    } catch (SQLException e) {
+      throw new OBException(e);
+    }
+  }
+
+  private static Connection connection() {
+    return OBDal.getInstance().getConnection(true);
+  }
+}
@@ -124,11 +124,14 @@ public class FileUtils {
     } //so the file is stored in the DB
     var fileName = fileToSync.getFilename(); //includes extension
     File result = createSecureTempFile(null, "_" + fileName).toFile();
-    if (variant.getFiledata() == null) {
-      throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_ErrorMissingFileData"), fileName));
-    }
     try {
-      Files.write(result.toPath(), variant.getFiledata());
+      if (!FileBlobStore.copyTo(variant, result.toPath())) {
+        //not moved to the blob store yet
+        if (variant.getFiledata() == null) {
+          throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_ErrorMissingFileData"), fileName));
+        }
+        Files.write(result.toPath(), variant.getFiledata());
+      }
     } catch (IOException e) {
       throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_TempFileErr"), fileName), e);
     }
@@ -313,6 +316,7 @@ public class FileUtils {
   /**
    * Refreshes the file for a non-multi-client environment.
    * Depending on the behavior, it either saves the internal path or the file data in the variant.
+   * The content of each file is stored once, even when several clients share it.
    *
    * @param hookObject
    *     The Copilot file object.
@@ -324,6 +328,7 @@ public class FileUtils {
   public static void refreshFileForNonMultiClient(CopilotFile hookObject,
       Map<Client, Path> clientPathMap) throws IOException {
     boolean useTemp = useFileFromTemp(hookObject);
+    Map<Path, String> storedHashes = new HashMap<>();
     for (Map.Entry<Client, Path> entry : clientPathMap.entrySet()) {
       Client client = entry.getKey();
       Path path = entry.getValue();
@@ -333,7 +338,12 @@ public class FileUtils {
       } else { //any type of behavior except the KB
         //Persist the file in the database as attachment
         //save data in variant
-        saveDataInVariant(hookObject, client, path);
+        String hash = storedHashes.get(path);
+        if (hash == null) {
+          hash = FileBlobStore.store(path);
+          storedHashes.put(path, hash);
+        }
+        saveBlobInVariant(hookObject, client, hash);
       }
     }
     OBDal.getInstance().flush();
@@ -354,6 +364,7 @@ public class FileUtils {
     variant.setFiledata(null);
     variant.setInternalPath(path.toString());
     OBDal.getInstance().save(variant);
+    FileBlobStore.link(variant, null);
   }
 
   /**
@@ -400,10 +411,25 @@ public class FileUtils {
    *     If an I/O error occurs while reading the file.
    */
   public static void saveDataInVariant(CopilotFile hookObject, Client client, Path path) throws IOException {
+    saveBlobInVariant(hookObject, client, FileBlobStore.store(path));
+  }
+
+  /**
+   * Points the variant of a specific client to a stored blob.
+   *
+   * @param hookObject
+   *     The Copilot file object.
+   * @param client
+   *     The client associated with the variant.
+   * @param hash
+   *     The hash of the blob, as returned by {@link FileBlobStore#store(Path)}.
+   */
+  public static void saveBlobInVariant(CopilotFile hookObject, Client client, String hash) {
     var variant = getOrCreateVariant(hookObject, client);
     variant.setInternalPath(null);
-    variant.setFiledata(Files.readAllBytes(path));
+    variant.setFiledata(null);
     OBDal.getInstance().save(variant);
+    FileBlobStore.link(variant, hash);
   }
 
   /**
@@ -0,0 +1,335 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.CopilotAppSource;
+import com.etendoerp.copilot.data.CopilotFile;
+
+/**
+ * Synchronizes the knowledge base files of the agents with their vector databases.
+ * <p>
+ * Every file is uploaded tagged with its {@link CopilotFile} identifier and a hash of its content
+ * and splitting parameters. Before uploading, the manifest of the vector database is read, so that:
+ * <ul>
+ *   <li>files whose hash did not change are skipped;</li>
+ *   <li>changed and new files are uploaded in parallel, by a pool of
+ *   {@code copilot.kb.sync.parallelism} threads (default
+ *   {@link CopilotRuntime#BACKGROUND_PARALLELISM});</li>
+ *   <li>only the files that are no longer sources of the agent are removed.</li>
+ * </ul>
+ * The files are prepared in the caller thread, which owns the DAL session, and the worker threads
+ * only send them to the Copilot service. When the database still has documents indexed without
+ * file information, it is reset and fully uploaded once, and when the Copilot service does not
+ * support manifests, the files are synchronized sequentially as before.
+ */
+public class KBSyncEngine implements AutoCloseable {
+
+  private static final Logger log = LogManager.getLogger(KBSyncEngine.class);
+
+  public static final String PROP_PARALLELISM = "copilot.kb.sync.parallelism";
+  private static final String ADD_ENDPOINT = "addToVectorDB";
+  private static final String FILES = "files";
+  private static final String UNTRACKED = "untracked";
+
+  private final ExecutorService executor;
+
+  KBSyncEngine(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Creates an engine configured from {@code Openbravo.properties}. It must be closed to release
+   * its threads.
+   *
+   * @return a new {@link KBSyncEngine}
+   */
+  public static KBSyncEngine create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    int parallelism = (int) Math.max(1L,
+        readLong(properties, PROP_PARALLELISM, CopilotRuntime.BACKGROUND_PARALLELISM));
+    return new KBSyncEngine(Executors.newFixedThreadPool(parallelism, daemonThreads("copilot-kb-sync")));
+  }
+
+  /**
+   * Starts the synchronization of the knowledge base files of an agent. The files are prepared
+   * before returning and their uploads continue in background until {@link AppSync#await()} is
+   * called, so the files of several agents can be uploaded at the same time.
+   *
+   * @param app
+   *     the agent
+   * @param sources
+   *     the knowledge base sources of the agent to synchronize
+   * @return the synchronization in progress
+   * @throws JSONException
+   *     if a request to the Copilot service cannot be built
+   * @throws IOException
+   *     if a file cannot be read
+   */
+  public AppSync submit(CopilotApp app, List<CopilotAppSource> sources) throws JSONException, IOException {
+    long start = System.currentTimeMillis();
+    JSONObject manifest = CopilotUtils.getVectorDBManifest(app);
+    if (manifest == null) {
+      log.warn("The Copilot service does not support incremental sync, synchronizing agent {} fully", app.getName());
+      CopilotUtils.resetVectorDB(app);
+      for (CopilotAppSource appSource : sources) {
+        CopilotUtils.syncAppLangchainSource(appSource);
+      }
+      CopilotUtils.purgeVectorDB(app);
+      AppSync sync = new AppSync(app, false, start);
+      sync.uploaded = sources.size();
+      return sync;
+    }
+
+    boolean fullSync = manifest.optInt(UNTRACKED, 0) > 0;
+    Map<String, String> indexedFiles = readIndexedFiles(manifest);
+    AppSync sync = new AppSync(app, fullSync, start);
+    if (fullSync) {
+      log.info("Vector database of agent {} has documents without file information, uploading all its files",
+          app.getName());
+      CopilotUtils.resetVectorDB(app);
+    }
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    Set<String> fileIds = new HashSet<>();
+    for (CopilotAppSource appSource : sources) {
+      CopilotFile file = appSource.getFile();
+      if (!fileIds.add(file.getId())) {
+        continue;
+      }
+      FileUpload upload = prepare(app, appSource);
+      if (!fullSync && StringUtils.equals(indexedFiles.get(upload.fileId), upload.hash)) {
+        log.debug("Knowledge base file {} of agent {} is unchanged", upload.name, app.getName());
+        CopilotUtils.deleteLangchainSourceFile(upload.file);
+        sync.unchanged++;
+        continue;
+      }
+      sync.uploads.add(upload);
+      upload.future = executor.submit(() -> upload(properties, upload));
+    }
+    indexedFiles.keySet().removeAll(fileIds);
+    sync.removedFileIds.addAll(indexedFiles.keySet());
+    return sync;
+  }
+
+  private static Map<String, String> readIndexedFiles(JSONObject manifest) throws JSONException {
+    Map<String, String> indexedFiles = new LinkedHashMap<>();
+    JSONObject files = manifest.optJSONObject(FILES);
+    if (files != null) {
+      Iterator<?> keys = files.keys();
+      while (keys.hasNext()) {
+        String fileId = (String) keys.next();
+        indexedFiles.put(fileId, files.getString(fileId));
+      }
+    }
+    return indexedFiles;
+  }
+
+  /**
+   * Materializes the file of a source and computes its hash. It runs in the caller thread, since
+   * HQL files are generated from the data.
+   */
+  static FileUpload prepare(CopilotApp app, CopilotAppSource appSource) throws JSONException, IOException {
+    CopilotFile copilotFile = appSource.getFile();
+    File file = CopilotUtils.getLangchainSourceFile(appSource);
+    try {
+      String extension = CopilotUtils.getLangchainSourceExtension(copilotFile, file);
+      String clientId = copilotFile.getClient().getId();
+      JSONObject request = CopilotUtils.buildVectorDBRequest(file, "KB_" + app.getId(), extension,
+          copilotFile.isSkipSplitting(), copilotFile.getMaxChunkSize(), copilotFile.getChunkOverlap(), clientId);
+      String hash = hash(file, extension, copilotFile.isSkipSplitting(), copilotFile.getMaxChunkSize(),
+          copilotFile.getChunkOverlap(), clientId);
+      request.put(CopilotUtils.KB_FILE_ID, copilotFile.getId());
+      request.put(CopilotUtils.KB_HASH, hash);
+      return new FileUpload(copilotFile.getId(), copilotFile.getName(), file, hash, request);
+    } catch (RuntimeException | JSONException | IOException e) {
+      CopilotUtils.deleteLangchainSourceFile(file);
+      throw e;
+    }
+  }
+
+  /**
+   * Computes the SHA-256 hash of the content of a file along with the parameters used to index it.
+   */
+  static String hash(File file, String extension, boolean skipSplitting, Long maxChunkSize, Long chunkOverlap,
+      String clientId) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new OBException(e);
+    }
+    byte[] buffer = new byte[8192];
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    String params = String.join("|", extension, String.valueOf(skipSplitting), String.valueOf(maxChunkSize),
+        String.valueOf(chunkOverlap), clientId);
+    digest.update(params.getBytes(StandardCharsets.UTF_8));
+    return String.format("%064x", new BigInteger(1, digest.digest()));
+  }
+
+  /**
+   * Sends a file to the Copilot service. It runs in a worker thread, so it does not use the DAL.
+   */
+  private static void upload(Properties properties, FileUpload upload) {
+    long start = System.currentTimeMillis();
+    try {
+      HttpResponse<String> response = CopilotUtils.getResponseFromCopilot(properties, ADD_ENDPOINT, upload.request,
+          upload.file);
+      if (response == null || response.statusCode() < 200 || response.statusCode() >= 300) {
+        upload.error = response != null ? response.body() : "No response";
+      }
+    } catch (RuntimeException e) {
+      upload.error = e.getMessage();
+    } finally {
+      upload.millis = System.currentTimeMillis() - start;
+      CopilotUtils.deleteLangchainSourceFile(upload.file);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * A file of an agent prepared to be uploaded.
+   */
+  static class FileUpload {
+    private final String fileId;
+    private final String name;
+    private final File file;
+    private final String hash;
+    private final JSONObject request;
+    private Future<?> future;
+    private volatile String error;
+    private volatile long millis;
+
+    FileUpload(String fileId, String name, File file, String hash, JSONObject request) {
+      this.fileId = fileId;
+      this.name = name;
+      this.file = file;
+      this.hash = hash;
+      this.request = request;
+    }
+  }
+
+  /**
+   * The synchronization of the knowledge base of an agent.
+   */
+  public static class AppSync {
+    private final CopilotApp app;
+    private final boolean fullSync;
+    private final long start;
+    private final List<FileUpload> uploads = new ArrayList<>();
+    private final Set<String> removedFileIds = new HashSet<>();
+    private int uploaded;
+    private int unchanged;
+
+    AppSync(CopilotApp app, boolean fullSync, long start) {
+      this.app = app;
+      this.fullSync = fullSync;
+      this.start = start;
+    }
+
+    /**
+     * Waits for the uploads of the agent and then removes the files that are no longer part of its
+     * knowledge base. It must be called from the thread that submitted the synchronization.
+     *
+     * @throws JSONException
+     *     if a request to the Copilot service cannot be built
+     * @throws OBException
+     *     if a file could not be uploaded
+     */
+    public void await() throws JSONException {
+      int total = uploads.size();
+      List<String> errors = new ArrayList<>();
+      for (FileUpload upload : uploads) {
+        try {
+          upload.future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new OBException(e);
+        } catch (ExecutionException e) {
+          upload.error = e.getCause().getMessage();
+        }
+        if (upload.error != null) {
+          log.error("Knowledge base file {} of agent {} failed after {} ms: {}", upload.name, app.getName(),
+              upload.millis, upload.error);
+          errors.add(upload.name + ": " + upload.error);
+        } else {
+          uploaded++;
+          log.info("Knowledge base file {} of agent {} uploaded in {} ms ({}/{})", upload.name, app.getName(),
+              upload.millis, uploaded, total);
+        }
+      }
+      if (!errors.isEmpty()) {
+        throw new OBException(String.format(OBMessageUtils.messageBD("ETCOP_ErrorKBSync"), app.getName(),
+            String.join(", ", errors)));
+      }
+      if (fullSync) {
+        CopilotUtils.purgeVectorDB(app);
+      } else {
+        CopilotUtils.removeFromVectorDB(app, removedFileIds);
+      }
+      log.info("Knowledge base of agent {} synchronized in {} ms: {} uploaded, {} unchanged, {} removed",
+          app.getName(), System.currentTimeMillis() - start, uploaded, unchanged, getRemoved());
+    }
+
+    /**
+     * @return the number of uploaded files
+     */
+    public int getUploaded() {
+      return uploaded;
+    }
+
+    /**
+     * @return the number of files skipped because they did not change
+     */
+    public int getUnchanged() {
+      return unchanged;
+    }
+
+    /**
+     * @return the number of files removed from the vector database
+     */
+    public int getRemoved() {
+      return fullSync ? 0 : removedFileIds.size();
+    }
+  }
+}
@@ -31,6 +31,7 @@ public class MCPUtils {
     /**
      * This method retrieves all MCP configurations associated with a given CopilotApp instance.
      * It creates a JSONArray containing the MCP server configurations that the agent will connect to.
+     * The configurations are computed once per request, see {@link CopilotRequestContext}.
      *
      * @param copilotApp
      *     The CopilotApp instance for which the MCP configurations are to be retrieved.
@@ -39,6 +40,10 @@ public class MCPUtils {
      *     If an error occurs while creating the JSON object.
      */
     public static JSONArray getMCPConfigurations(CopilotApp copilotApp) throws JSONException {
+        return CopilotRequestContext.memoize("mcp:" + copilotApp.getId(), () -> loadMCPConfigurations(copilotApp));
+    }
+
+    private static JSONArray loadMCPConfigurations(CopilotApp copilotApp) throws JSONException {
         JSONArray mcpConfigurations = new JSONArray();
 
         // ETCOP_MCP is System-level: reading jsonStructure requires admin mode.
@@ -0,0 +1,478 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.openbravo.base.provider.OBProvider;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBCriteria;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.ad.access.User;
+import org.openbravo.model.ad.system.Client;
+import org.openbravo.model.common.enterprise.Organization;
+
+import com.etendoerp.copilot.data.Conversation;
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.Message;
+
+/**
+ * Writes the tracked conversation messages in the background, out of the response path.
+ * <p>
+ * The questions and responses tracked by {@link TrackingUtil} are queued and written by a single
+ * writer thread, which takes all the queued messages at once and stores them in one transaction.
+ * The line numbers are assigned by the writer from a sequence per conversation, loaded from the
+ * database once per batch, so the conversation lookup and the {@code max(lineno)} query are not
+ * repeated for every message of the batch. The sequence is not kept between batches, so messages of
+ * the same conversation written by other cluster nodes are taken into account.
+ * <p>
+ * Delivery is at least once: a batch that cannot be stored is retried and, if it keeps failing,
+ * its messages are retried one by one so a single faulty message does not discard the rest. When
+ * the queue is full the callers wait for the writer to catch up. The conversation history and the
+ * conversation messages endpoints wait for the pending messages of the conversation, so they are
+ * complete; other readers of the messages may not see the latest ones until they are written.
+ * <p>
+ * Each message keeps the identifiers of the user, role, client and organization of the request
+ * that tracked it, and the writer restores that context to store it. The writer is stopped, after
+ * writing the queued messages, when the web application is stopped.
+ * <p>
+ * The following properties of {@code Openbravo.properties} can be used:
+ * <ul>
+ *   <li>{@code copilot.tracking.queue.capacity}: maximum number of queued messages (default
+ *   10000).</li>
+ *   <li>{@code copilot.tracking.batch.size}: maximum number of messages written in one transaction
+ *   (default 200).</li>
+ *   <li>{@code copilot.tracking.max.attempts}: attempts to write a batch before retrying its
+ *   messages one by one (default 3).</li>
+ *   <li>{@code copilot.tracking.history.wait}: maximum time in milliseconds the history waits for
+ *   the pending messages of its conversation (default 2000).</li>
+ * </ul>
+ */
+public class MessageTrackingWriter {
+
+  private static final Logger log = LogManager.getLogger(MessageTrackingWriter.class);
+
+  public static final String PROP_QUEUE_CAPACITY = "copilot.tracking.queue.capacity";
+  public static final String PROP_BATCH_SIZE = "copilot.tracking.batch.size";
+  public static final String PROP_MAX_ATTEMPTS = "copilot.tracking.max.attempts";
+  public static final String PROP_HISTORY_WAIT = "copilot.tracking.history.wait";
+  private static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+  private static final int DEFAULT_BATCH_SIZE = 200;
+  private static final int DEFAULT_MAX_ATTEMPTS = 3;
+  private static final long DEFAULT_HISTORY_WAIT_MS = 2000L;
+  private static final long RETRY_DELAY_MS = 500L;
+  private static final long POLL_INTERVAL_MS = 1000L;
+  private static final long SHUTDOWN_WAIT_MS = 5000L;
+  private static final long LINENO_INCREMENT = 10L;
+
+  private static final CopilotRuntime.Shared<MessageTrackingWriter> INSTANCE = new CopilotRuntime.Shared<>(
+      MessageTrackingWriter::create);
+
+  private final BlockingQueue<TrackingEvent> queue;
+  private final int batchSize;
+  private final int maxAttempts;
+  private final long retryDelayMs;
+  private final long historyWaitMs;
+  private final Map<String, Integer> pending = new ConcurrentHashMap<>();
+  private final Object pendingMonitor = new Object();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean running = true;
+  private final ThreadFactory threads = daemonThreads("copilot-tracking-writer");
+  private Thread writer;
+
+  MessageTrackingWriter(int queueCapacity, int batchSize, int maxAttempts, long retryDelayMs, long historyWaitMs) {
+    this.queue = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+    this.batchSize = Math.max(1, batchSize);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryDelayMs = Math.max(0L, retryDelayMs);
+    this.historyWaitMs = Math.max(0L, historyWaitMs);
+  }
+
+  /**
+   * Returns the shared writer, configured from {@code Openbravo.properties} and started on first
+   * use.
+   *
+   * @return the shared {@link MessageTrackingWriter}
+   */
+  public static MessageTrackingWriter getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static MessageTrackingWriter create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    MessageTrackingWriter result = new MessageTrackingWriter(
+        (int) readLong(properties, PROP_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+        (int) readLong(properties, PROP_BATCH_SIZE, DEFAULT_BATCH_SIZE),
+        (int) readLong(properties, PROP_MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS), RETRY_DELAY_MS,
+        readLong(properties, PROP_HISTORY_WAIT, DEFAULT_HISTORY_WAIT_MS));
+    result.start();
+    return result;
+  }
+
+  /**
+   * Stops the shared writer, if it has been started, once the queued messages are written or after
+   * waiting {@value #SHUTDOWN_WAIT_MS} milliseconds. Called when the web application is stopped.
+   */
+  public static void stop() {
+    MessageTrackingWriter current = INSTANCE.clear();
+    if (current != null) {
+      current.shutdown();
+    }
+  }
+
+  /**
+   * Queues a message to be written by the writer thread, with the current {@link OBContext}. If the
+   * queue is full, waits until the writer makes room for it.
+   *
+   * @param conversationId
+   *     the external identifier of the conversation
+   * @param role
+   *     the role of the message
+   * @param text
+   *     the content of the message
+   * @param app
+   *     the agent of the conversation
+   * @param metadata
+   *     the metadata of the message, may be {@code null}
+   */
+  public void enqueue(String conversationId, String role, String text, CopilotApp app, JSONObject metadata) {
+    TrackingEvent event = new TrackingEvent(conversationId, role, text, app != null ? app.getId() : null,
+        metadata != null ? metadata.toString() : null, CopilotRuntime.ContextIds.capture(), new Date());
+    if (conversationId != null) {
+      pending.merge(conversationId, 1, Integer::sum);
+    }
+    ensureWriter();
+    if (queue.offer(event)) {
+      return;
+    }
+    log.warn("Copilot tracking queue is full, waiting for the writer");
+    try {
+      queue.put(event);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted while queuing message of conversation {}, it has not been tracked", conversationId);
+      dropped.incrementAndGet();
+      markDone(Collections.singletonList(event));
+    }
+  }
+
+  /**
+   * Waits until the pending messages of a conversation are written, at most
+   * {@code copilot.tracking.history.wait} milliseconds. Does nothing if no message has been tracked
+   * yet.
+   *
+   * @param conversationId
+   *     the external identifier of the conversation
+   */
+  public static void awaitWritten(String conversationId) {
+    MessageTrackingWriter current = INSTANCE.peek();
+    if (current != null && conversationId != null) {
+      current.await(conversationId, current.historyWaitMs);
+    }
+  }
+
+  boolean await(String conversationId, long timeoutMs) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    synchronized (pendingMonitor) {
+      while (pending.containsKey(conversationId)) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+          log.warn("Messages of conversation {} are still pending after {} ms", conversationId, timeoutMs);
+          return false;
+        }
+        try {
+          pendingMonitor.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of messages waiting to be written
+   */
+  public int getQueued() {
+    return queue.size();
+  }
+
+  /**
+   * @return the written and dropped messages and the number of batches
+   */
+  public String getStats() {
+    return String.format("MessageTrackingWriter[queued=%d, written=%d, batches=%d, dropped=%d]", queue.size(),
+        written.get(), batches.get(), dropped.get());
+  }
+
+  /**
+   * Writes the queued messages in the calling thread, in batches.
+   */
+  void flushQueued() {
+    List<TrackingEvent> batch = new ArrayList<>(batchSize);
+    while (queue.drainTo(batch, batchSize) > 0) {
+      deliver(batch);
+      batch.clear();
+    }
+  }
+
+  private void start() {
+    writer = threads.newThread(this::run);
+    writer.start();
+  }
+
+  private synchronized void ensureWriter() {
+    if (writer != null && !writer.isAlive() && running) {
+      log.warn("Copilot tracking writer stopped, restarting it");
+      start();
+    }
+  }
+
+  private void shutdown() {
+    running = false;
+    Thread current = writer;
+    if (current != null) {
+      try {
+        current.join(SHUTDOWN_WAIT_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (!queue.isEmpty()) {
+      log.warn("{} Copilot messages were not tracked before shutdown", queue.size());
+    }
+  }
+
+  private void run() {
+    List<TrackingEvent> batch = new ArrayList<>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        TrackingEvent first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        deliver(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        log.error("Unexpected error in Copilot tracking writer", e);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes a batch, retrying it as a whole and then message by message. Every message is marked as
+   * done, either written or dropped, exactly once.
+   */
+  private void deliver(List<TrackingEvent> batch) {
+    if (write(batch)) {
+      markDone(batch);
+      return;
+    }
+    if (batch.size() == 1) {
+      TrackingEvent event = batch.get(0);
+      log.error("Message of conversation {} could not be tracked after {} attempts", event.conversationId,
+          maxAttempts);
+      dropped.incrementAndGet();
+      markDone(batch);
+      return;
+    }
+    log.warn("Batch of {} messages could not be tracked, retrying them one by one", batch.size());
+    for (TrackingEvent event : new ArrayList<>(batch)) {
+      deliver(Collections.singletonList(event));
+    }
+  }
+
+  private boolean write(List<TrackingEvent> batch) {
+    for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+      try {
+        writeBatch(batch);
+        written.addAndGet(batch.size());
+        batches.incrementAndGet();
+        return true;
+      } catch (Exception e) {
+        log.warn("Attempt {} to track {} messages failed: {}", attempt, batch.size(), e.getMessage(), e);
+        rollbackQuietly();
+        if (attempt < maxAttempts && !sleep(retryDelayMs * attempt)) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void writeBatch(List<TrackingEvent> batch) {
+    OBContext previousContext = OBContext.getOBContext();
+    OBContext.setAdminMode(true);
+    try {
+      Map<String, ConversationSequence> sequences = new HashMap<>();
+      Map<CopilotRuntime.ContextIds, OBContext> contexts = new HashMap<>();
+      for (TrackingEvent event : batch) {
+        setContext(event.context, contexts);
+        ConversationSequence sequence = event.conversationId != null
+            ? sequences.computeIfAbsent(event.conversationId, k -> loadConversation(event))
+            : new ConversationSequence(createConversation(event), 0L);
+        Conversation conversation = sequence.conversation;
+        conversation.setLastMsg(event.timestamp);
+
+        Message message = OBProvider.getInstance().get(Message.class);
+        message.setConversation(conversation);
+        message.setMessage(event.text);
+        message.setRole(event.role);
+        message.setMetadata(event.metadata);
+        sequence.lastLineNo += LINENO_INCREMENT;
+        message.setLineno(sequence.lastLineNo);
+        OBDal.getInstance().save(conversation);
+        OBDal.getInstance().save(message);
+      }
+      OBDal.getInstance().commitAndClose();
+    } finally {
+      OBContext.restorePreviousMode();
+      OBContext.setOBContext(previousContext);
+    }
+  }
+
+  /**
+   * Sets the context of the request that tracked a message, created once per batch for each
+   * distinct user, role, client and organization.
+   */
+  private static void setContext(CopilotRuntime.ContextIds ids,
+      Map<CopilotRuntime.ContextIds, OBContext> contexts) {
+    OBContext context = contexts.get(ids);
+    if (context == null) {
+      ids.apply();
+      contexts.put(ids, OBContext.getOBContext());
+    } else {
+      OBContext.setOBContext(context);
+    }
+  }
+
+  private static ConversationSequence loadConversation(TrackingEvent event) {
+    Conversation conversation = OBDal.getInstance()
+        .createQuery(Conversation.class, "as c where c.externalID = :conversationId")
+        .setNamedParameter("conversationId", event.conversationId)
+        .setMaxResult(1)
+        .uniqueResult();
+    if (conversation == null) {
+      return new ConversationSequence(createConversation(event), 0L);
+    }
+    return new ConversationSequence(conversation, maxLineNo(conversation));
+  }
+
+  private static Conversation createConversation(TrackingEvent event) {
+    Conversation conversation = OBProvider.getInstance().get(Conversation.class);
+    OBContext context = OBContext.getOBContext();
+    conversation.setClient(OBDal.getInstance().getProxy(Client.class, context.getCurrentClient().getId()));
+    conversation.setOrganization(
+        OBDal.getInstance().getProxy(Organization.class, context.getCurrentOrganization().getId()));
+    conversation.setNewOBObject(true);
+    conversation.setExternalID(event.conversationId);
+    if (event.appId != null) {
+      conversation.setCopilotApp(OBDal.getInstance().getProxy(CopilotApp.class, event.appId));
+    }
+    conversation.setUserContact(OBDal.getInstance().getProxy(User.class, context.getUser().getId()));
+    OBDal.getInstance().save(conversation);
+    return conversation;
+  }
+
+  private static long maxLineNo(Conversation conversation) {
+    OBCriteria<Message> messCrit = OBDal.getInstance().createCriteria(Message.class);
+    messCrit.add(Restrictions.eq(Message.PROPERTY_CONVERSATION, conversation));
+    messCrit.setProjection(Projections.max(Message.PROPERTY_LINENO));
+    Long maxLineNo = (Long) messCrit.uniqueResult();
+    return maxLineNo != null ? maxLineNo : 0L;
+  }
+
+  private void markDone(List<TrackingEvent> events) {
+    for (TrackingEvent event : events) {
+      if (event.conversationId != null) {
+        pending.computeIfPresent(event.conversationId, (k, count) -> count <= 1 ? null : count - 1);
+      }
+    }
+    synchronized (pendingMonitor) {
+      pendingMonitor.notifyAll();
+    }
+  }
+
+  private static void rollbackQuietly() {
+    try {
+      OBDal.getInstance().rollbackAndClose();
+    } catch (Exception e) {
+      log.warn("Failed to rollback tracking transaction", e);
+    }
+  }
+
+  private static boolean sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Last line number written for a conversation in the current batch.
+   */
+  private static class ConversationSequence {
+    private final Conversation conversation;
+    private long lastLineNo;
+
+    ConversationSequence(Conversation conversation, long lastLineNo) {
+      this.conversation = conversation;
+      this.lastLineNo = lastLineNo;
+    }
+  }
+
+  /**
+   * A message waiting to be written, with the context of the request that tracked it.
+   */
+  private static class TrackingEvent {
+    private final String conversationId;
+    private final String role;
+    private final String text;
+    private final String appId;
+    private final String metadata;
+    private final CopilotRuntime.ContextIds context;
+    private final Date timestamp;
+
+    TrackingEvent(String conversationId, String role, String text, String appId, String metadata,
+        CopilotRuntime.ContextIds context, Date timestamp) {
+      this.conversationId = conversationId;
+      this.role = role;
+      this.text = text;
+      this.appId = appId;
+      this.metadata = metadata;
+      this.context = context;
+      this.timestamp = timestamp;
+    }
+  }
+}
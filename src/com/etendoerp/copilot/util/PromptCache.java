@@ -0,0 +1,316 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotConstants.isHQLQueryFile;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.dal.core.OBContext;
+
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.CopilotAppSource;
+import com.etendoerp.copilot.data.CopilotFile;
+
+/**
+ * Cache of the static part of the system prompts assembled by
+ * {@link CopilotUtils#getAssistantPrompt(CopilotApp)}.
+ * <p>
+ * Building the static part reads the default context preference and every system knowledge base
+ * file, so it is done once per agent and context (client, organization, role, user, warehouse and
+ * language) and reused for the following questions. Only the {@link Template} is cached: the
+ * prompt hooks, the context variables and the API tokens are resolved by every request, so the
+ * cache never holds their values. An entry is discarded when:
+ * <ul>
+ *   <li>the agent, one of its sources or one of its memories is changed, as notified by the event
+ *   handlers;</li>
+ *   <li>an API token or the {@code ETCOP_DefaultContextPrompt} preference is changed, in which case
+ *   every entry is discarded;</li>
+ *   <li>the {@code updated} timestamp of the agent, of a system source or of its file is newer than
+ *   when the entry was built, which also covers changes made by other cluster nodes;</li>
+ *   <li>its time to live expires: {@code copilot.prompt.cache.ttl} seconds (default 300, 0 disables
+ *   the cache), or {@code copilot.prompt.cache.hql.ttl} seconds (default 60) when the prompt
+ *   includes HQL sources, whose content depends on the data.</li>
+ * </ul>
+ * Hits, misses and the time spent building prompts are tracked, so the latency saved by the cache
+ * can be estimated.
+ */
+public class PromptCache {
+
+  private static final Logger log = LogManager.getLogger(PromptCache.class);
+
+  public static final String PROP_TTL = "copilot.prompt.cache.ttl";
+  public static final String PROP_HQL_TTL = "copilot.prompt.cache.hql.ttl";
+  public static final String PROP_MAX_ENTRIES = "copilot.prompt.cache.max.entries";
+  private static final long DEFAULT_TTL_S = 300L;
+  private static final long DEFAULT_HQL_TTL_S = 60L;
+  private static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  private static final CopilotRuntime.Shared<PromptCache> INSTANCE = new CopilotRuntime.Shared<>(
+      PromptCache::create);
+
+  private final CopilotRuntime.TtlCache<Entry> entries;
+  private final long ttlNanos;
+  private final long hqlTtlNanos;
+  private final AtomicLong buildNanos = new AtomicLong();
+
+  /**
+   * Builds the prompt template of an agent when it is not cached.
+   */
+  @FunctionalInterface
+  public interface PromptBuilder {
+    /**
+     * @return the prompt template
+     * @throws IOException
+     *     if a source file cannot be read
+     */
+    Template build() throws IOException;
+  }
+
+  /**
+   * Static part of a system prompt: the text before and after the output of the prompt hooks, with
+   * the context variables and the API tokens still unresolved.
+   */
+  public static final class Template {
+    private final String head;
+    private final String tail;
+
+    /**
+     * @param head
+     *     the text before the output of the prompt hooks
+     * @param tail
+     *     the text after the output of the prompt hooks
+     */
+    public Template(String head, String tail) {
+      this.head = head;
+      this.tail = tail;
+    }
+
+    /**
+     * @return the text before the output of the prompt hooks
+     */
+    public String getHead() {
+      return head;
+    }
+
+    /**
+     * @return the text after the output of the prompt hooks
+     */
+    public String getTail() {
+      return tail;
+    }
+  }
+
+  PromptCache(long ttlSeconds, long hqlTtlSeconds, int maxEntries) {
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0L, ttlSeconds));
+    this.hqlTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(0L, Math.min(hqlTtlSeconds, ttlSeconds)));
+    this.entries = new CopilotRuntime.TtlCache<>("Prompt", maxEntries, System::nanoTime);
+  }
+
+  /**
+   * Returns the shared cache, configured from {@code Openbravo.properties} on first use.
+   *
+   * @return the shared {@link PromptCache}
+   */
+  public static PromptCache getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static PromptCache create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    return new PromptCache(readLong(properties, PROP_TTL, DEFAULT_TTL_S),
+        readLong(properties, PROP_HQL_TTL, DEFAULT_HQL_TTL_S),
+        (int) readLong(properties, PROP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES));
+  }
+
+  /**
+   * Returns the prompt template of the agent for the current context, building it with the given
+   * builder when there is no valid cached entry.
+   *
+   * @param app
+   *     the agent
+   * @param builder
+   *     builds the template on a cache miss
+   * @return the prompt template
+   * @throws IOException
+   *     if the template has to be built and a source file cannot be read
+   */
+  public Template getTemplate(CopilotApp app, PromptBuilder builder) throws IOException {
+    if (ttlNanos == 0L) {
+      return builder.build();
+    }
+    SourcesState state = new SourcesState(app);
+    Entry entry = entries.get(buildKey(app),
+        e -> e.lastUpdated >= state.lastUpdated && e.sourceCount == state.sourceCount,
+        () -> new Entry(app.getId(), timedBuild(app, builder), state),
+        e -> e.hasHQL ? hqlTtlNanos : ttlNanos);
+    return entry.template;
+  }
+
+  private Template timedBuild(CopilotApp app, PromptBuilder builder) throws IOException {
+    long start = System.nanoTime();
+    Template template = builder.build();
+    long elapsed = System.nanoTime() - start;
+    buildNanos.addAndGet(elapsed);
+    if (log.isDebugEnabled()) {
+      log.debug("Prompt of agent {} built in {} ms", app.getId(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+    return template;
+  }
+
+  /**
+   * Discards the cached prompts of an agent, for every context, and the team member payloads built
+   * from them. Does nothing if the cache has not been used yet.
+   *
+   * @param appId
+   *     the agent identifier
+   */
+  public static void invalidateAgent(String appId) {
+    TeamMemberPayloads.invalidateAgent(appId);
+    PromptCache cache = INSTANCE.peek();
+    if (cache != null) {
+      cache.removeAgent(appId);
+    }
+  }
+
+  /**
+   * Discards the cached prompts that include the given knowledge base file, and the team member
+   * payloads that include it. Does nothing if the cache has not been used yet.
+   *
+   * @param fileId
+   *     the {@link CopilotFile} identifier
+   */
+  public static void invalidateFile(String fileId) {
+    TeamMemberPayloads.invalidateFile(fileId);
+    PromptCache cache = INSTANCE.peek();
+    if (cache != null) {
+      cache.removeFile(fileId);
+    }
+  }
+
+  /**
+   * Discards every cached prompt and team member payload. Does nothing if the cache has not been
+   * used yet.
+   */
+  public static void invalidateAll() {
+    TeamMemberPayloads.invalidateAll();
+    PromptCache cache = INSTANCE.peek();
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  void removeAgent(String appId) {
+    if (entries.invalidate((key, entry) -> appId != null && StringUtils.equals(entry.appId, appId))) {
+      log.debug("Prompt cache invalidated for agent {}", appId);
+    }
+  }
+
+  void removeFile(String fileId) {
+    if (entries.invalidate((key, entry) -> fileId != null && entry.fileIds.contains(fileId))) {
+      log.debug("Prompt cache invalidated for file {}", fileId);
+    }
+  }
+
+  void clear() {
+    entries.clear();
+  }
+
+  /**
+   * @return the hit and miss counters and the average time needed to build a prompt
+   */
+  public String getStats() {
+    long missCount = entries.getMisses();
+    long avgBuildMs = missCount > 0 ? TimeUnit.NANOSECONDS.toMillis(buildNanos.get() / missCount) : 0L;
+    return String.format("PromptCache[entries=%d, hits=%d, misses=%d, avgBuildMs=%d, savedMs=%d]", entries.size(),
+        entries.getHits(), missCount, avgBuildMs, avgBuildMs * entries.getHits());
+  }
+
+  /**
+   * @return the number of prompts served from the cache
+   */
+  public long getHits() {
+    return entries.getHits();
+  }
+
+  /**
+   * @return the number of prompts that had to be built
+   */
+  public long getMisses() {
+    return entries.getMisses();
+  }
+
+  /**
+   * @return the key of the agent in the current context
+   */
+  static String buildKey(CopilotApp app) {
+    OBContext context = OBContext.getOBContext();
+    return String.join("|", app.getId(), idOf(context.getCurrentClient()), idOf(context.getCurrentOrganization()),
+        idOf(context.getRole()), idOf(context.getUser()), idOf(context.getWarehouse()), idOf(context.getLanguage()));
+  }
+
+  private static String idOf(BaseOBObject object) {
+    return object != null ? (String) object.getId() : "";
+  }
+
+  /**
+   * Latest change of the agent and its system sources, used to detect stale entries.
+   */
+  private static class SourcesState {
+    private long lastUpdated;
+    private final int sourceCount;
+    private boolean hasHQL;
+    private final Set<String> fileIds = new HashSet<>();
+
+    SourcesState(CopilotApp app) {
+      lastUpdated = time(app.getUpdated());
+      int count = 0;
+      for (CopilotAppSource source : app.getETCOPAppSourceList()) {
+        if (!StringUtils.equalsIgnoreCase(source.getBehaviour(), CopilotConstants.FILE_BEHAVIOUR_SYSTEM)) {
+          continue;
+        }
+        count++;
+        lastUpdated = Math.max(lastUpdated, time(source.getUpdated()));
+        CopilotFile file = source.getFile();
+        if (file != null) {
+          fileIds.add(file.getId());
+          lastUpdated = Math.max(lastUpdated, time(file.getUpdated()));
+          hasHQL |= isHQLQueryFile(file);
+        }
+      }
+      sourceCount = count;
+    }
+
+    private static long time(Date date) {
+      return date != null ? date.getTime() : 0L;
+    }
+  }
+
+  private static class Entry {
+    private final String appId;
+    private final Template template;
+    private final long lastUpdated;
+    private final int sourceCount;
+    private final Set<String> fileIds;
+    private final boolean hasHQL;
+
+    Entry(String appId, Template template, SourcesState state) {
+      this.appId = appId;
+      this.template = template;
+      this.lastUpdated = state.lastUpdated;
+      this.sourceCount = state.sourceCount;
+      this.fileIds = state.fileIds;
+      this.hasHQL = state.hasHQL;
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package com.etendoerp.copilot.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+import org.openbravo.base.exception.OBException;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+/**
+ * Text with placeholders, like a prompt, an MCP configuration or a URL, compiled once into literal
+ * and placeholder segments so it is rendered in a single pass, see {@link CopilotVarReplacerUtil}.
+ * <p>
+ * Two kinds of placeholders are recognized:
+ * <ul>
+ *   <li>{@code @name@}, where the name has letters, digits, '_', '.' or '-': the context variables
+ *   and the API token aliases. A placeholder without value is kept as is, and {@code \@name@} is
+ *   rendered as a literal {@code @name@}.</li>
+ *   <li>{@code ${name}}: the custom variables. A placeholder without value is kept as is, unless it
+ *   has a default value, as in {@code ${name:-default}}, and {@code $${name}} is rendered as a
+ *   literal {@code ${name}}.</li>
+ * </ul>
+ * The values are not scanned for placeholders again. The compiled templates are kept by text, so
+ * the prompt of an agent is only parsed the first time it is sent. The cache is bounded by the
+ * characters of the kept texts, {@value #MAX_CACHED_CHARS} in total: the least recently used
+ * templates are discarded first, and a longer text is compiled every time.
+ */
+final class PromptTemplate {
+
+  static final int MAX_CACHED_CHARS = 1_000_000;
+  private static final Map<String, PromptTemplate> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+  private static long cachedChars;
+
+  private static final int LITERAL = 0;
+  private static final int CONTEXT = 1;
+  private static final int CUSTOM = 2;
+  private static final int CUSTOM_ESCAPE = 3;
+  private static final String DEFAULT_DELIMITER = ":-";
+
+  private final String source;
+  private final List<Segment> segments;
+  private final boolean verbatim;
+  private final boolean hasBrackets;
+
+  private PromptTemplate(String source, List<Segment> segments) {
+    this.source = source;
+    this.segments = segments;
+    this.verbatim = segments.isEmpty() || (segments.size() == 1 && segments.get(0).kind == LITERAL);
+    this.hasBrackets = source.indexOf('{') >= 0 || source.indexOf('}') >= 0;
+  }
+
+  /**
+   * Returns the compiled template of a text, compiling it the first time.
+   *
+   * @param text
+   *     the text with placeholders
+   * @return the compiled template
+   */
+  static PromptTemplate compile(String text) {
+    synchronized (CACHE) {
+      PromptTemplate cached = CACHE.get(text);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    PromptTemplate template = parse(text);
+    if (text.length() <= MAX_CACHED_CHARS) {
+      synchronized (CACHE) {
+        PromptTemplate cached = CACHE.putIfAbsent(text, template);
+        if (cached != null) {
+          return cached;
+        }
+        cachedChars += text.length();
+        evictLeastRecentlyUsed();
+      }
+    }
+    return template;
+  }
+
+  private static void evictLeastRecentlyUsed() {
+    Iterator<String> texts = CACHE.keySet().iterator();
+    while (cachedChars > MAX_CACHED_CHARS && texts.hasNext()) {
+      cachedChars -= texts.next().length();
+      texts.remove();
+    }
+  }
+
+  /**
+   * Renders the template.
+   *
+   * @param contextValues
+   *     resolves the value of an {@code @name@} placeholder, or null if it has none; it is only
+   *     called for the placeholders of the template
+   * @param customValues
+   *     the values of the {@code ${name}} placeholders, or null to keep them, and their escapes and
+   *     default values, as they are
+   * @param balanceBrackets
+   *     if true, curly braces are doubled and the rendered text must have as many opening as closing
+   *     braces
+   * @return the rendered text
+   * @throws OBException
+   *     if the brackets are not balanced
+   */
+  String render(UnaryOperator<String> contextValues, Map<String, String> customValues, boolean balanceBrackets) {
+    if (verbatim && (!balanceBrackets || !hasBrackets)) {
+      return source;
+    }
+    StringBuilder sb = new StringBuilder(source.length() + 64);
+    int[] brackets = new int[2];
+    for (Segment segment : segments) {
+      String text = segment.render(contextValues, customValues);
+      if (balanceBrackets) {
+        appendDoublingBrackets(sb, text, brackets);
+      } else {
+        sb.append(text);
+      }
+    }
+    if (balanceBrackets && brackets[0] != brackets[1]) {
+      throw new OBException(OBMessageUtils.messageBD("ETCOP_BalancedBrackets"));
+    }
+    return sb.toString();
+  }
+
+  private static void appendDoublingBrackets(StringBuilder sb, String text, int[] brackets) {
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '{' || c == '}') {
+        sb.append(text, start, i + 1).append(c);
+        start = i + 1;
+        brackets[c == '{' ? 0 : 1]++;
+      }
+    }
+    sb.append(text, start, text.length());
+  }
+
+  static PromptTemplate parse(String text) {
+    List<Segment> segments = new ArrayList<>();
+    int literalStart = 0;
+    int i = 0;
+    int length = text.length();
+    while (i < length) {
+      char c = text.charAt(i);
+      int end = -1;
+      Segment segment = null;
+      if (c == '@') {
+        end = contextPlaceholderEnd(text, i);
+        if (end > 0 && i > 0 && text.charAt(i - 1) == '\\') {
+          // Escaped placeholder, kept in the next literal without the backslash
+          addLiteral(segments, text, literalStart, i - 1);
+          literalStart = i;
+          i = end;
+          continue;
+        }
+        if (end > 0) {
+          segment = new Segment(CONTEXT, text.substring(i + 1, end - 1), text.substring(i, end));
+        }
+      } else if (c == '$' && text.startsWith("${", i + 1)) {
+        end = i + 3;
+        segment = new Segment(CUSTOM_ESCAPE, "${", "$${");
+      } else if (c == '$' && text.startsWith("{", i + 1)) {
+        int close = text.indexOf('}', i + 2);
+        if (close > i + 2) {
+          end = close + 1;
+          segment = customPlaceholder(text.substring(i + 2, close), text.substring(i, end));
+        }
+      }
+      if (segment == null) {
+        i++;
+        continue;
+      }
+      addLiteral(segments, text, literalStart, i);
+      segments.add(segment);
+      literalStart = end;
+      i = end;
+    }
+    addLiteral(segments, text, literalStart, length);
+    return new PromptTemplate(text, segments);
+  }
+
+  /**
+   * @return the segment of a {@code ${name}} or {@code ${name:-default}} placeholder
+   */
+  private static Segment customPlaceholder(String content, String raw) {
+    int delimiter = content.indexOf(DEFAULT_DELIMITER);
+    if (delimiter < 0) {
+      return new Segment(CUSTOM, content, raw);
+    }
+    return new Segment(CUSTOM, content.substring(0, delimiter), raw,
+        content.substring(delimiter + DEFAULT_DELIMITER.length()));
+  }
+
+  /**
+   * @return the index after the closing '@' of the placeholder that starts at the given index, or -1
+   *     if there is none
+   */
+  private static int contextPlaceholderEnd(String text, int start) {
+    int i = start + 1;
+    while (i < text.length() && isNameChar(text.charAt(i))) {
+      i++;
+    }
+    return i > start + 1 && i < text.length() && text.charAt(i) == '@' ? i + 1 : -1;
+  }
+
+  private static boolean isNameChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-';
+  }
+
+  private static void addLiteral(List<Segment> segments, String text, int start, int end) {
+    if (end > start) {
+      String literal = text.substring(start, end);
+      segments.add(new Segment(LITERAL, literal, literal));
+    }
+  }
+
+  private static class Segment {
+    private final int kind;
+    private final String value;
+    private final String raw;
+    private final String defaultValue;
+
+    Segment(int kind, String value, String raw) {
+      this(kind, value, raw, null);
+    }
+
+    Segment(int kind, String value, String raw, String defaultValue) {
+      this.kind = kind;
+      this.value = value;
+      this.raw = raw;
+      this.defaultValue = defaultValue;
+    }
+
+    String render(UnaryOperator<String> contextValues, Map<String, String> customValues) {
+      String result;
+      switch (kind) {
+        case CONTEXT:
+          result = contextValues != null ? contextValues.apply(value) : null;
+          break;
+        case CUSTOM:
+          result = customValues != null ? customValues.getOrDefault(value, defaultValue) : null;
+          break;
+        case CUSTOM_ESCAPE:
+          result = customValues != null ? value : null;
+          break;
+        default:
+          result = value;
+      }
+      return result != null ? result : raw;
+    }
+  }
+}
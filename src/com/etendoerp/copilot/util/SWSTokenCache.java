@@ -0,0 +1,189 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+/**
+ * Cache of the Etendo secure web service tokens sent to Copilot, so the agents can call the Etendo
+ * web services, see {@link CopilotUtils#getAuthJson}.
+ * <p>
+ * Signing a token is done once per user, role, organization and warehouse, and the token is reused
+ * until it is close to expire: {@code copilot.sws.token.ttl} seconds after it was signed (default
+ * 600, 0 disables the cache), or {@code copilot.sws.token.refresh.margin} seconds (default 60)
+ * before the expiration of the token, whichever comes first. The entries of a user or a role are
+ * discarded when they are changed, as notified by the
+ * {@link com.etendoerp.copilot.eventhandler.SWSTokenCacheHandler}; the changes made in other
+ * cluster nodes are picked up when the entries expire.
+ */
+public class SWSTokenCache {
+
+  private static final Logger log = LogManager.getLogger(SWSTokenCache.class);
+
+  public static final String PROP_TTL = "copilot.sws.token.ttl";
+  public static final String PROP_REFRESH_MARGIN = "copilot.sws.token.refresh.margin";
+  private static final long DEFAULT_TTL_S = 600L;
+  private static final long DEFAULT_REFRESH_MARGIN_S = 60L;
+  private static final int MAX_ENTRIES = 1000;
+
+  private static final CopilotRuntime.Shared<SWSTokenCache> INSTANCE = new CopilotRuntime.Shared<>(
+      SWSTokenCache::create);
+
+  private final CopilotRuntime.TtlCache<Entry> entries;
+  private final long ttlMillis;
+  private final long marginMillis;
+  private final LongSupplier clock;
+
+  SWSTokenCache(long ttlSeconds, long marginSeconds, LongSupplier clock) {
+    this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0L, ttlSeconds));
+    this.marginMillis = TimeUnit.SECONDS.toMillis(Math.max(0L, marginSeconds));
+    this.clock = clock;
+    this.entries = new CopilotRuntime.TtlCache<>("SWS token", MAX_ENTRIES, clock);
+  }
+
+  /**
+   * Returns the shared cache, configured from {@code Openbravo.properties} on first use.
+   *
+   * @return the shared {@link SWSTokenCache}
+   */
+  public static SWSTokenCache getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static SWSTokenCache create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    return new SWSTokenCache(readLong(properties, PROP_TTL, DEFAULT_TTL_S),
+        readLong(properties, PROP_REFRESH_MARGIN, DEFAULT_REFRESH_MARGIN_S), System::currentTimeMillis);
+  }
+
+  /**
+   * Returns the token of a user, role, organization and warehouse, signing it with the given signer
+   * when there is no valid cached token.
+   *
+   * @param userId
+   *     the user identifier
+   * @param roleId
+   *     the role identifier
+   * @param orgId
+   *     the organization identifier
+   * @param warehouseId
+   *     the warehouse identifier, can be null
+   * @param signer
+   *     signs the token on a cache miss
+   * @return the token
+   * @throws Exception
+   *     if the token has to be signed and it fails
+   */
+  public String getToken(String userId, String roleId, String orgId, String warehouseId,
+      CopilotRequestContext.Lookup<String, Exception> signer) throws Exception {
+    if (ttlMillis == 0L) {
+      return signer.get();
+    }
+    String key = String.join("|", userId, roleId, orgId, StringUtils.defaultString(warehouseId));
+    Entry entry = entries.get(key, e -> true, () -> {
+      String token = signer.get();
+      return token != null ? new Entry(userId, roleId, token) : null;
+    }, e -> Math.min(ttlMillis, getExpiration(e.token) - marginMillis - clock.getAsLong()));
+    return entry != null ? entry.token : null;
+  }
+
+  /**
+   * Discards the cached tokens of a user. Does nothing if the cache has not been used yet.
+   *
+   * @param userId
+   *     the user identifier
+   */
+  public static void invalidateUser(String userId) {
+    SWSTokenCache cache = INSTANCE.peek();
+    if (cache != null) {
+      cache.remove(userId, null);
+    }
+  }
+
+  /**
+   * Discards the cached tokens of a role. Does nothing if the cache has not been used yet.
+   *
+   * @param roleId
+   *     the role identifier
+   */
+  public static void invalidateRole(String roleId) {
+    SWSTokenCache cache = INSTANCE.peek();
+    if (cache != null) {
+      cache.remove(null, roleId);
+    }
+  }
+
+  void remove(String userId, String roleId) {
+    if (entries.invalidate((key, entry) -> StringUtils.equals(entry.userId, userId)
+        || StringUtils.equals(entry.roleId, roleId))) {
+      log.debug("SWS token cache invalidated for user {} and role {}", userId, roleId);
+    }
+  }
+
+  /**
+   * @return the hit and miss counters
+   */
+  public String getStats() {
+    return "SWSTokenCache" + entries;
+  }
+
+  /**
+   * @return the number of tokens served from the cache
+   */
+  public long getHits() {
+    return entries.getHits();
+  }
+
+  /**
+   * @return the number of tokens that had to be signed
+   */
+  public long getMisses() {
+    return entries.getMisses();
+  }
+
+  /**
+   * Reads the {@code exp} claim of a JWT token.
+   *
+   * @param token
+   *     the token
+   * @return the expiration time in milliseconds, or {@link Long#MAX_VALUE} if the token has no
+   *     readable expiration
+   */
+  static long getExpiration(String token) {
+    String[] parts = StringUtils.split(token, '.');
+    if (parts == null || parts.length < 2) {
+      return Long.MAX_VALUE;
+    }
+    try {
+      JSONObject payload = new JSONObject(new String(Base64.getUrlDecoder().decode(parts[1]),
+          StandardCharsets.UTF_8));
+      return payload.has("exp") ? TimeUnit.SECONDS.toMillis(payload.getLong("exp")) : Long.MAX_VALUE;
+    } catch (IllegalArgumentException | JSONException e) {
+      log.debug("Expiration of the SWS token could not be read", e);
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static class Entry {
+    private final String userId;
+    private final String roleId;
+    private final String token;
+
+    Entry(String userId, String roleId, String token) {
+      this.userId = userId;
+      this.roleId = roleId;
+      this.token = token;
+    }
+  }
+}
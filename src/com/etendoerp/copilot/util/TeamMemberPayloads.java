@@ -0,0 +1,378 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.CopilotAppSource;
+import com.etendoerp.copilot.data.CopilotAppTool;
+import com.etendoerp.copilot.data.CopilotFile;
+
+/**
+ * Builds the payloads of the team members of a LangGraph supervisor.
+ * <p>
+ * The payloads are built concurrently, each one in a worker thread with its own DAL session and
+ * an {@link OBContext} created from the one of the request, so the time before the first token does not grow with the
+ * size of the team. The configuration is:
+ * <ul>
+ *   <li>{@code copilot.team.parallelism}: payloads built at the same time by this node (default
+ *   {@link CopilotRuntime#REQUEST_PARALLELISM}), 1 builds them in the request thread;</li>
+ *   <li>{@code copilot.team.payload.cache.ttl}: seconds a built payload is reused by later requests
+ *   of the same context (default 60, 0 disables the reuse).</li>
+ * </ul>
+ * A reused payload is discarded when the team member, one of its sources, files or tools is
+ * updated, and when {@link PromptCache} is invalidated for the team member or one of its files. The
+ * MCP configurations are not reused, because they include the API tokens of the user, and neither
+ * are the payloads that include an API token of the request, so no token is kept in memory. Those
+ * payloads are built again on every request, which only substitutes the tokens in the prompt
+ * template kept by the {@link PromptCache}.
+ */
+class TeamMemberPayloads {
+
+  private static final Logger log = LogManager.getLogger(TeamMemberPayloads.class);
+
+  static final String PROP_PARALLELISM = "copilot.team.parallelism";
+  static final String PROP_CACHE_TTL = "copilot.team.payload.cache.ttl";
+  private static final long DEFAULT_CACHE_TTL_S = 60L;
+  private static final int MAX_ENTRIES = 1000;
+
+  private static final CopilotRuntime.Shared<TeamMemberPayloads> INSTANCE = new CopilotRuntime.Shared<>(
+      TeamMemberPayloads::create);
+
+  private final int parallelism;
+  private final long ttlNanos;
+  private final Executor executor;
+  private final PayloadBuilder builder;
+  private final Supplier<Map<String, String>> apiTokens;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicInteger invalidations = new AtomicInteger();
+
+  /**
+   * Builds the payload of a team member.
+   */
+  @FunctionalInterface
+  interface PayloadBuilder {
+    JSONObject build(CopilotApp member) throws JSONException, IOException;
+  }
+
+  TeamMemberPayloads(int parallelism, long ttlSeconds, Executor executor, PayloadBuilder builder) {
+    this(parallelism, ttlSeconds, executor, builder, CopilotVarReplacerUtil::getApiTokens);
+  }
+
+  TeamMemberPayloads(int parallelism, long ttlSeconds, Executor executor, PayloadBuilder builder,
+      Supplier<Map<String, String>> apiTokens) {
+    this.apiTokens = apiTokens;
+    this.parallelism = Math.max(1, parallelism);
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0L, ttlSeconds));
+    this.executor = executor;
+    this.builder = builder;
+  }
+
+  /**
+   * @return the shared instance, configured from {@code Openbravo.properties} on first use
+   */
+  static TeamMemberPayloads getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static TeamMemberPayloads create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    int threads = Math.max(1, (int) readLong(properties, PROP_PARALLELISM, CopilotRuntime.REQUEST_PARALLELISM));
+    Executor pool = Executors.newFixedThreadPool(threads, daemonThreads("copilot-team-member"));
+    return new TeamMemberPayloads(threads, readLong(properties, PROP_CACHE_TTL, DEFAULT_CACHE_TTL_S), pool,
+        CopilotUtils::buildTeamMemberPayload);
+  }
+
+  /**
+   * Builds the payloads of the team members, reusing the ones that have not changed. A team member
+   * whose payload cannot be built because of a JSON or read error is logged and left out.
+   *
+   * @param members
+   *     the team members
+   * @return the payloads, in the order of the team members
+   * @throws OBException
+   *     if a team member cannot be used by the supervisor
+   */
+  List<JSONObject> build(List<CopilotApp> members) {
+    long start = System.nanoTime();
+    List<CompletableFuture<JSONObject>> pending = new ArrayList<>();
+    boolean inWorkers = parallelism > 1 && members.size() > 1;
+    CopilotRuntime.ContextIds context = CopilotRuntime.ContextIds.capture();
+    CopilotRequestContext requestContext = CopilotRequestContext.current();
+    Map<String, String> tokens = ttlNanos > 0L ? apiTokens.get() : Collections.emptyMap();
+    for (CopilotApp member : members) {
+      String key = PromptCache.buildKey(member);
+      MemberState state = new MemberState(member);
+      JSONObject cached = getCached(key, state, member);
+      if (cached != null) {
+        pending.add(CompletableFuture.completedFuture(cached));
+      } else if (inWorkers) {
+        int generation = invalidations.get();
+        String memberId = member.getId();
+        pending.add(CompletableFuture.supplyAsync(
+            () -> store(key, state, generation, tokens, buildInWorker(context, requestContext, memberId)),
+            executor));
+      } else {
+        int generation = invalidations.get();
+        pending.add(CompletableFuture.completedFuture(store(key, state, generation, tokens, timedBuild(member))));
+      }
+    }
+
+    List<JSONObject> payloads = new ArrayList<>();
+    for (int i = 0; i < pending.size(); i++) {
+      try {
+        JSONObject payload = pending.get(i).join();
+        if (payload != null) {
+          payloads.add(payload);
+        }
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new OBException(cause);
+      }
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Payloads of {} team members built in {} ms", members.size(),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+    return payloads;
+  }
+
+  private JSONObject buildInWorker(CopilotRuntime.ContextIds context, CopilotRequestContext requestContext,
+      String memberId) {
+    context.apply();
+    OBContext.setAdminMode(true);
+    CopilotRequestContext previous = CopilotRequestContext.attach(requestContext);
+    try {
+      CopilotApp member = OBDal.getInstance().get(CopilotApp.class, memberId);
+      JSONObject payload = member != null ? timedBuild(member) : null;
+      OBDal.getInstance().commitAndClose();
+      return payload;
+    } catch (RuntimeException e) {
+      OBDal.getInstance().rollbackAndClose();
+      throw e;
+    } finally {
+      CopilotRequestContext.detach(previous);
+      OBContext.restorePreviousMode();
+      OBContext.setOBContext((OBContext) null);
+    }
+  }
+
+  private JSONObject timedBuild(CopilotApp member) {
+    long start = System.nanoTime();
+    try {
+      JSONObject payload = builder.build(member);
+      if (log.isDebugEnabled()) {
+        log.debug("Payload of team member {} built in {} ms", member.getName(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+      return payload;
+    } catch (JSONException | IOException e) {
+      log.error("Error building the payload of team member {}", member.getName(), e);
+      return null;
+    }
+  }
+
+  private JSONObject getCached(String key, MemberState state, CopilotApp member) {
+    if (ttlNanos == 0L) {
+      return null;
+    }
+    Entry entry = entries.get(key);
+    if (entry == null || System.nanoTime() >= entry.expiresAt || !StringUtils.equals(entry.fingerprint,
+        state.fingerprint)) {
+      return null;
+    }
+    try {
+      JSONObject payload = new JSONObject(entry.payload);
+      CopilotUtils.addMCPConfigurations(member, payload);
+      log.debug("Payload of team member {} reused", member.getName());
+      return payload;
+    } catch (JSONException e) {
+      entries.remove(key);
+      return null;
+    }
+  }
+
+  /**
+   * Keeps a copy of the payload without the MCP configurations, unless it includes one of the API
+   * tokens. A payload built while an invalidation happened may be stale, so it is not kept.
+   */
+  private JSONObject store(String key, MemberState state, int generation, Map<String, String> tokens,
+      JSONObject payload) {
+    if (ttlNanos == 0L || payload == null || generation != invalidations.get()) {
+      return payload;
+    }
+    if (entries.size() >= MAX_ENTRIES) {
+      long now = System.nanoTime();
+      entries.values().removeIf(entry -> now >= entry.expiresAt);
+    }
+    if (entries.size() < MAX_ENTRIES) {
+      Object mcpServers = payload.remove(CopilotUtils.MCP_SERVERS);
+      String json = payload.toString();
+      if (!containsToken(json, tokens)) {
+        entries.put(key, new Entry(state, json, System.nanoTime() + ttlNanos));
+      }
+      if (mcpServers != null) {
+        try {
+          payload.put(CopilotUtils.MCP_SERVERS, mcpServers);
+        } catch (JSONException e) {
+          throw new OBException(e);
+        }
+      }
+    }
+    return payload;
+  }
+
+  /**
+   * @param json
+   *     the serialized payload
+   * @param tokens
+   *     the API tokens of the request, by alias
+   * @return whether the payload includes one of the API tokens
+   */
+  static boolean containsToken(String json, Map<String, String> tokens) {
+    return tokens.values().stream().anyMatch(token -> StringUtils.isNotEmpty(token) && json.contains(escape(token)));
+  }
+
+  private static String escape(String value) {
+    String quoted = JSONObject.quote(value);
+    return quoted.substring(1, quoted.length() - 1);
+  }
+
+  /**
+   * Discards the payloads of a team member. Does nothing if no payload has been built yet.
+   *
+   * @param appId
+   *     the team member identifier
+   */
+  static void invalidateAgent(String appId) {
+    TeamMemberPayloads payloads = INSTANCE.peek();
+    if (payloads != null) {
+      payloads.removeAgent(appId);
+    }
+  }
+
+  /**
+   * Discards the payloads that include the given file. Does nothing if no payload has been built
+   * yet.
+   *
+   * @param fileId
+   *     the {@link CopilotFile} identifier
+   */
+  static void invalidateFile(String fileId) {
+    TeamMemberPayloads payloads = INSTANCE.peek();
+    if (payloads != null) {
+      payloads.removeFile(fileId);
+    }
+  }
+
+  /**
+   * Discards every payload. Does nothing if no payload has been built yet.
+   */
+  static void invalidateAll() {
+    TeamMemberPayloads payloads = INSTANCE.peek();
+    if (payloads != null) {
+      payloads.clear();
+    }
+  }
+
+  void removeAgent(String appId) {
+    invalidations.incrementAndGet();
+    entries.values().removeIf(entry -> StringUtils.equals(entry.appId, appId));
+  }
+
+  void removeFile(String fileId) {
+    invalidations.incrementAndGet();
+    entries.values().removeIf(entry -> entry.fileIds.contains(fileId));
+  }
+
+  void clear() {
+    invalidations.incrementAndGet();
+    entries.clear();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Latest change of the team member, its sources, files and tools, used to detect stale payloads.
+   */
+  private static class MemberState {
+    private final String appId;
+    private final String fingerprint;
+    private final Set<String> fileIds = new HashSet<>();
+
+    MemberState(CopilotApp member) {
+      appId = member.getId();
+      long lastUpdated = time(member.getUpdated());
+      List<CopilotAppSource> sources = member.getETCOPAppSourceList();
+      for (CopilotAppSource source : sources) {
+        lastUpdated = Math.max(lastUpdated, time(source.getUpdated()));
+        CopilotFile file = source.getFile();
+        if (file != null) {
+          fileIds.add(file.getId());
+          lastUpdated = Math.max(lastUpdated, time(file.getUpdated()));
+        }
+      }
+      List<CopilotAppTool> tools = member.getETCOPAppToolList();
+      for (CopilotAppTool tool : tools) {
+        lastUpdated = Math.max(lastUpdated, time(tool.getUpdated()));
+        if (tool.getCopilotTool() != null) {
+          lastUpdated = Math.max(lastUpdated, time(tool.getCopilotTool().getUpdated()));
+        }
+      }
+      fingerprint = lastUpdated + "|" + sources.size() + "|" + tools.size();
+    }
+
+    private static long time(Date date) {
+      return date != null ? date.getTime() : 0L;
+    }
+  }
+
+  private static class Entry {
+    private final String appId;
+    private final String fingerprint;
+    private final Set<String> fileIds;
+    private final String payload;
+    private final long expiresAt;
+
+    Entry(MemberState state, String payload, long expiresAt) {
+      this.appId = state.appId;
+      this.fingerprint = state.fingerprint;
+      this.fileIds = state.fileIds;
+      this.payload = payload;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -25,13 +25,17 @@ public class ToolsUtil {
   }
 
   /**
-   * Get the tools for the app
+   * Get the tools for the app. The tools are read once per request, see {@link CopilotRequestContext}.
    *
    * @param app
    * @throws OBException
    * @throws JSONException
    */
   public static JSONArray getToolSet(CopilotApp app) throws OBException, JSONException {
+    return CopilotRequestContext.memoize("tools:" + app.getId(), () -> loadToolSet(app));
+  }
+
+  private static JSONArray loadToolSet(CopilotApp app) throws JSONException {
     // we will read from /copilot the tools if we can
     JSONArray result = new JSONArray();
     OBCriteria<CopilotAppTool> appToolCrit = OBDal.getInstance()
@@ -4,15 +4,12 @@ import static com.etendoerp.copilot.util.CopilotModelUtils.getModelProviderResul
 
 import java.time.Instant;
 import java.util.Date;
-import java.util.List;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.hibernate.criterion.Order;
-import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
-import org.openbravo.base.provider.OBProvider;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
@@ -20,8 +17,6 @@ import org.openbravo.model.ad.access.User;
 
 import com.etendoerp.copilot.data.Conversation;
 import com.etendoerp.copilot.data.CopilotApp;
-import com.etendoerp.copilot.data.Message;
-import com.etendoerp.telemetry.TelemetryUsageInfo;
 
 public class TrackingUtil {
 
@@ -53,6 +48,10 @@ public class TrackingUtil {
    *   <li>Team members structure (2-level hierarchy)</li>
    * </ul>
    *
+   * <p>The usage is captured in the request and saved in the background by {@link UsageTelemetry},
+   * which also keeps the telemetry data of the agent until it changes. Nothing is sent when the
+   * current thread does not serve a tracked request, see {@link UsageTelemetry#startRequest}.
+   *
    * <p>This method fails silently if any error occurs during the telemetry data collection
    * or transmission to avoid disrupting the main application flow.
    *
@@ -61,17 +60,17 @@ public class TrackingUtil {
    */
   public static void sendUsageData(CopilotApp agent) {
     try {
-      JSONObject jsonData = buildTelemetryJson(agent);
+      UsageTelemetry.RequestUsage request = UsageTelemetry.getRequest();
+      if (request == null || request.getSessionId() == null) {
+        return;
+      }
+      UsageTelemetry telemetry = UsageTelemetry.getInstance();
+      String jsonData = telemetry.getAgentJson(agent, TrackingUtil::buildTelemetryJson);
       OBContext context = OBContext.getOBContext();
-      long time = System.currentTimeMillis() - TelemetryUsageInfo.getInstance().getTimeMillis();
-      TelemetryUsageInfo.getInstance().setModuleId(COPILOT_MODULE_ID);
-      TelemetryUsageInfo.getInstance().setUserId(context.getUser().getId());
-      TelemetryUsageInfo.getInstance().setObjectId(agent.getId());
-      TelemetryUsageInfo.getInstance().setClassname(TrackingUtil.class.getName());
-
-      TelemetryUsageInfo.getInstance().setTimeMillis(time);
-      TelemetryUsageInfo.getInstance().setJsonObject(jsonData);
-      TelemetryUsageInfo.getInstance().saveUsageAudit();
+      long time = System.currentTimeMillis() - request.getStartMillis();
+      telemetry.enqueue(new UsageTelemetry.UsageEvent(request.getSessionId(), request.getCommand(),
+          COPILOT_MODULE_ID, context.getUser().getId(), agent.getId(), TrackingUtil.class.getName(), time, jsonData,
+          CopilotRuntime.ContextIds.capture()));
     } catch (Exception e) {
       //Fail silently
       logger.error("Error sending Copilot usage data", e);
@@ -157,54 +156,13 @@ public class TrackingUtil {
   }
 
 
-  private Conversation getConversation(String conversationId) {
-    return getConversation(conversationId, null);
-  }
-
-  private Conversation getConversation(String conversationId, CopilotApp app) {
-    Conversation conversation = OBDal.getInstance()
-        .createQuery(Conversation.class, "as c where c.externalID = :conversationId")
-        .setNamedParameter("conversationId", conversationId)
-        .setMaxResult(1)
-        .uniqueResult();
-    if (conversation == null) {
-      conversation = OBProvider.getInstance().get(Conversation.class);
-      OBContext context = OBContext.getOBContext();
-      conversation.setClient(context.getCurrentClient());
-      conversation.setOrganization(context.getCurrentOrganization());
-      conversation.setNewOBObject(true);
-      conversation.setExternalID(conversationId);
-      conversation.setCopilotApp(app);
-      conversation.setUserContact(context.getUser());
-      OBDal.getInstance().save(conversation);
-    }
-    return conversation;
-  }
-
-
+  /**
+   * Queues a message to be written in the background by the {@link MessageTrackingWriter}, so the
+   * response does not wait for the database.
+   */
   private void createMessage(String conversationId, String messageRole, String question, CopilotApp app,
       JSONObject metadata) {
-    Message message = new Message();
-    Conversation conversation = getConversation(conversationId, app);
-    conversation.setLastMsg(new Date());
-    message.setConversation(conversation);
-    message.setMessage(question);
-    message.setRole(messageRole);
-    message.setMetadata(metadata != null ? metadata.toString() : null);
-
-    OBCriteria<Message> messCrit = OBDal.getInstance().createCriteria(Message.class);
-    messCrit.add(Restrictions.eq(Message.PROPERTY_CONVERSATION, conversation));
-    messCrit.setProjection(Projections.max(Message.PROPERTY_LINENO));
-    Long maxLineNo = (Long) messCrit.uniqueResult();
-    if (maxLineNo == null) {
-      maxLineNo = 0L;
-    }
-
-    message.setLineno(maxLineNo + 10);
-
-    OBDal.getInstance().save(conversation);
-    OBDal.getInstance().save(message);
-    OBDal.getInstance().flush();
+    MessageTrackingWriter.getInstance().enqueue(conversationId, messageRole, question, app, metadata);
   }
 
   /**
@@ -259,8 +217,8 @@ public class TrackingUtil {
   }
 
   /**
-   * Retrieves the conversation history for a given conversation ID.
-   * Returns all messages in the conversation ordered by creation date in ascending order.
+   * Retrieves the conversation history for a given conversation ID, limited to the default token
+   * budget of {@link ConversationHistory}.
    *
    * @param conversationId
    *     the unique identifier of the conversation
@@ -269,19 +227,26 @@ public class TrackingUtil {
    *     if there's an error creating the JSON response
    */
   public static JSONArray getHistory(String conversationId) throws JSONException {
-    List<Message> messages = OBDal.getInstance()
-        .createQuery(Message.class,
-            "as m where m.conversation.externalID = :conversationId order by m.creationDate asc")
-        .setNamedParameter("conversationId", conversationId)
-        .list();
-    JSONArray history = new JSONArray();
-    for (Message message : messages) {
-      JSONObject msg = new JSONObject();
-      msg.put("role", message.getRole());
-      msg.put("content", message.getMessage());
-      history.put(msg);
-    }
-    return history;
+    return getHistory(conversationId, null);
+  }
+
+  /**
+   * Retrieves the conversation history for a given conversation ID, limited to the newest messages
+   * that fit in the token budget of the model of the agent. The messages are ordered by creation
+   * date in ascending order, preceded by the summary of the older messages when there is one. The
+   * messages of the conversation still queued for tracking are awaited first.
+   *
+   * @param conversationId
+   *     the unique identifier of the conversation
+   * @param copilotApp
+   *     the agent that receives the history, or null to use the default budget
+   * @return a JSONArray containing the conversation history with role and content for each message
+   * @throws JSONException
+   *     if there's an error creating the JSON response
+   * @see ConversationHistory
+   */
+  public static JSONArray getHistory(String conversationId, CopilotApp copilotApp) throws JSONException {
+    return ConversationHistory.getInstance().getWindow(conversationId, copilotApp);
   }
 
   /**
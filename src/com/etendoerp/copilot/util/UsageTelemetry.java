@@ -0,0 +1,454 @@
+package com.etendoerp.copilot.util;
+
+import static com.etendoerp.copilot.util.CopilotRuntime.daemonThreads;
+import static com.etendoerp.copilot.util.CopilotRuntime.readLong;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.data.CopilotApp;
+import com.etendoerp.copilot.data.TeamMember;
+import com.etendoerp.telemetry.TelemetryUsageInfo;
+
+/**
+ * Saves the Copilot usage audits in the background, out of the response path.
+ * <p>
+ * The session, the command and the start time of a tracked request are kept for the thread serving
+ * it by {@link #startRequest}, see {@link RequestUsage}. {@link TrackingUtil#sendUsageData} captures
+ * them, with the rest of the usage, in an immutable {@link UsageEvent} and queues it in a bounded
+ * lock-free queue. A single writer thread takes the queued events and saves them through
+ * {@link TelemetryUsageInfo} in batches, one transaction per batch, so the shared usage info is
+ * only changed by the writer. Telemetry is best effort: when the queue is full the event is
+ * discarded, and a batch that cannot be saved is discarded too; both are counted. The writer is
+ * stopped by {@link #stop()} when the web application is stopped.
+ * <p>
+ * The telemetry JSON of every agent is kept until the agent or its team members are updated, at
+ * most {@value #AGENT_JSON_TTL_S} seconds so changes of the default models are also picked up.
+ * <p>
+ * The following properties of {@code Openbravo.properties} can be used:
+ * <ul>
+ *   <li>{@code copilot.telemetry.queue.capacity}: maximum number of queued events (default
+ *   1000).</li>
+ *   <li>{@code copilot.telemetry.batch.size}: maximum number of events saved in one transaction
+ *   (default 100).</li>
+ * </ul>
+ */
+public class UsageTelemetry {
+
+  private static final Logger log = LogManager.getLogger(UsageTelemetry.class);
+
+  public static final String PROP_QUEUE_CAPACITY = "copilot.telemetry.queue.capacity";
+  public static final String PROP_BATCH_SIZE = "copilot.telemetry.batch.size";
+  private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final long AGENT_JSON_TTL_S = 600L;
+  private static final int MAX_AGENTS = 1000;
+  private static final long POLL_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long SHUTDOWN_WAIT_MS = 5000L;
+  private static final int DROP_LOG_INTERVAL = 1000;
+
+  private static final CopilotRuntime.Shared<UsageTelemetry> INSTANCE = new CopilotRuntime.Shared<>(
+      UsageTelemetry::create);
+  private static final ThreadLocal<RequestUsage> REQUEST = new ThreadLocal<>();
+
+  private final Queue<UsageEvent> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final int capacity;
+  private final int batchSize;
+  private final Map<String, AgentJson> agentJsons = new ConcurrentHashMap<>();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean running = true;
+  private final ThreadFactory threads = daemonThreads("copilot-telemetry-writer");
+  private volatile Thread writer;
+
+  UsageTelemetry(int capacity, int batchSize) {
+    this.capacity = Math.max(1, capacity);
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Returns the shared instance, configured from {@code Openbravo.properties} and started on first
+   * use.
+   *
+   * @return the shared {@link UsageTelemetry}
+   */
+  public static UsageTelemetry getInstance() {
+    return INSTANCE.get();
+  }
+
+  private static UsageTelemetry create() {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    UsageTelemetry result = new UsageTelemetry((int) readLong(properties, PROP_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+        (int) readLong(properties, PROP_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+    result.start();
+    return result;
+  }
+
+  /**
+   * Stops the shared writer, if it has been started, once the queued events are saved or after
+   * waiting {@value #SHUTDOWN_WAIT_MS} milliseconds. Called when the web application is stopped.
+   */
+  public static void stop() {
+    UsageTelemetry current = INSTANCE.clear();
+    if (current != null) {
+      current.shutdown();
+    }
+  }
+
+  /**
+   * Replaces the shared instance, for testing purposes. The given instance is not started, its
+   * events are saved by {@link #flushQueued()}.
+   *
+   * @param telemetry
+   *     the instance to use, or null to create it again on next use
+   */
+  static void setInstance(UsageTelemetry telemetry) {
+    INSTANCE.set(telemetry);
+  }
+
+  /**
+   * Keeps the usage of the request served by the current thread, starting now.
+   *
+   * @param sessionId
+   *     the session of the request
+   * @param command
+   *     the method and the path of the request
+   */
+  public static void startRequest(String sessionId, String command) {
+    REQUEST.set(new RequestUsage(sessionId, command, System.currentTimeMillis()));
+  }
+
+  /**
+   * @return the usage of the request served by the current thread, or null if it is not tracked
+   */
+  public static RequestUsage getRequest() {
+    return REQUEST.get();
+  }
+
+  /**
+   * Sets the usage of the request served by the current thread, used to carry it to the thread that
+   * continues serving the request.
+   *
+   * @param request
+   *     the usage of the request, or null when the thread no longer serves a tracked request
+   */
+  public static void setRequest(RequestUsage request) {
+    if (request != null) {
+      REQUEST.set(request);
+    } else {
+      REQUEST.remove();
+    }
+  }
+
+  /**
+   * Returns the telemetry JSON of an agent, built again only when the agent or its team members
+   * have been updated.
+   *
+   * @param agent
+   *     the agent
+   * @param builder
+   *     builds the JSON of the agent
+   * @return the JSON of the agent, as a string
+   */
+  public String getAgentJson(CopilotApp agent, Function<CopilotApp, JSONObject> builder) {
+    String fingerprint = fingerprint(agent);
+    long now = System.nanoTime();
+    AgentJson cached = agentJsons.get(agent.getId());
+    if (cached != null && cached.fingerprint.equals(fingerprint)
+        && now - cached.builtAt < TimeUnit.SECONDS.toNanos(AGENT_JSON_TTL_S)) {
+      return cached.json;
+    }
+    String json = builder.apply(agent).toString();
+    if (agentJsons.size() >= MAX_AGENTS) {
+      agentJsons.clear();
+    }
+    agentJsons.put(agent.getId(), new AgentJson(fingerprint, json, now));
+    return json;
+  }
+
+  private static String fingerprint(CopilotApp agent) {
+    long lastUpdated = time(agent.getUpdated());
+    List<TeamMember> members = agent.getETCOPTeamMemberList();
+    int size = members != null ? members.size() : 0;
+    if (members != null) {
+      for (TeamMember member : members) {
+        lastUpdated = Math.max(lastUpdated, time(member.getUpdated()));
+        if (member.getMember() != null) {
+          lastUpdated = Math.max(lastUpdated, time(member.getMember().getUpdated()));
+        }
+      }
+    }
+    return lastUpdated + "|" + size;
+  }
+
+  private static long time(Date date) {
+    return date != null ? date.getTime() : 0L;
+  }
+
+  /**
+   * Queues an event to be saved by the writer thread. Never waits: if the queue is full the event
+   * is discarded.
+   *
+   * @param event
+   *     the usage event
+   * @return whether the event was queued
+   */
+  public boolean enqueue(UsageEvent event) {
+    if (queued.incrementAndGet() > capacity) {
+      queued.decrementAndGet();
+      long count = dropped.incrementAndGet();
+      if (count % DROP_LOG_INTERVAL == 1) {
+        log.warn("Copilot telemetry queue is full, {} usage events discarded so far", count);
+      }
+      return false;
+    }
+    queue.offer(event);
+    Thread current = writer;
+    if (current != null) {
+      LockSupport.unpark(current);
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of events waiting to be saved
+   */
+  public int getQueued() {
+    return queued.get();
+  }
+
+  /**
+   * @return the number of events discarded because the queue was full or they could not be saved
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the saved and discarded events and the number of batches
+   */
+  public String getStats() {
+    return String.format("UsageTelemetry[queued=%d, written=%d, batches=%d, dropped=%d, agents=%d]", queued.get(),
+        written.get(), batches.get(), dropped.get(), agentJsons.size());
+  }
+
+  /**
+   * Saves the queued events in the calling thread, in batches.
+   */
+  void flushQueued() {
+    List<UsageEvent> batch = new ArrayList<>(batchSize);
+    UsageEvent event;
+    while ((event = queue.poll()) != null) {
+      queued.decrementAndGet();
+      batch.add(event);
+      if (batch.size() >= batchSize) {
+        write(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      write(batch);
+    }
+  }
+
+  private void start() {
+    Thread thread = threads.newThread(this::run);
+    writer = thread;
+    thread.start();
+  }
+
+  private void shutdown() {
+    running = false;
+    Thread current = writer;
+    if (current != null) {
+      LockSupport.unpark(current);
+      try {
+        current.join(SHUTDOWN_WAIT_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (queued.get() > 0) {
+      log.warn("{} Copilot usage events were not saved before shutdown", queued.get());
+    }
+  }
+
+  private void run() {
+    while (running || !queue.isEmpty()) {
+      try {
+        if (queue.isEmpty()) {
+          LockSupport.parkNanos(this, POLL_INTERVAL_NANOS);
+          if (Thread.interrupted()) {
+            return;
+          }
+          continue;
+        }
+        flushQueued();
+      } catch (RuntimeException e) {
+        log.error("Unexpected error in Copilot telemetry writer", e);
+      }
+    }
+  }
+
+  private void write(List<UsageEvent> batch) {
+    OBContext previousContext = OBContext.getOBContext();
+    try {
+      for (UsageEvent event : batch) {
+        event.context.apply();
+        OBContext.setAdminMode(true);
+        try {
+          event.save();
+        } finally {
+          OBContext.restorePreviousMode();
+        }
+      }
+      OBDal.getInstance().commitAndClose();
+      written.addAndGet(batch.size());
+      batches.incrementAndGet();
+    } catch (Exception e) {
+      log.error("{} Copilot usage events could not be saved", batch.size(), e);
+      dropped.addAndGet(batch.size());
+      rollbackQuietly();
+    } finally {
+      OBContext.setOBContext(previousContext);
+    }
+  }
+
+  private static void rollbackQuietly() {
+    try {
+      OBDal.getInstance().rollbackAndClose();
+    } catch (Exception e) {
+      log.debug("Error rolling back Copilot telemetry transaction", e);
+    }
+  }
+
+  /**
+   * Session, command and start time of a tracked request.
+   */
+  public static final class RequestUsage {
+    private final String sessionId;
+    private final String command;
+    private final long startMillis;
+
+    RequestUsage(String sessionId, String command, long startMillis) {
+      this.sessionId = sessionId;
+      this.command = command;
+      this.startMillis = startMillis;
+    }
+
+    /**
+     * @return the session of the request
+     */
+    public String getSessionId() {
+      return sessionId;
+    }
+
+    /**
+     * @return the method and the path of the request
+     */
+    public String getCommand() {
+      return command;
+    }
+
+    /**
+     * @return when the request started, in milliseconds
+     */
+    public long getStartMillis() {
+      return startMillis;
+    }
+  }
+
+  /**
+   * Usage of a Copilot object during a request, captured when the request is served.
+   */
+  public static final class UsageEvent {
+    private final String sessionId;
+    private final String command;
+    private final String moduleId;
+    private final String userId;
+    private final String objectId;
+    private final String classname;
+    private final long timeMillis;
+    private final String json;
+    private final CopilotRuntime.ContextIds context;
+
+    /**
+     * @param sessionId
+     *     the session of the request
+     * @param command
+     *     the method and the path of the request
+     * @param moduleId
+     *     the module the usage belongs to
+     * @param userId
+     *     the user of the request
+     * @param objectId
+     *     the object used
+     * @param classname
+     *     the class that reports the usage
+     * @param timeMillis
+     *     the time spent serving the request, in milliseconds
+     * @param json
+     *     the details of the usage, as JSON
+     * @param context
+     *     the identifiers of the context of the request, used to save the audit
+     */
+    public UsageEvent(String sessionId, String command, String moduleId, String userId, String objectId,
+        String classname, long timeMillis, String json, CopilotRuntime.ContextIds context) {
+      this.sessionId = sessionId;
+      this.command = command;
+      this.moduleId = moduleId;
+      this.userId = userId;
+      this.objectId = objectId;
+      this.classname = classname;
+      this.timeMillis = timeMillis;
+      this.json = json;
+      this.context = context;
+    }
+
+    private void save() throws Exception {
+      TelemetryUsageInfo telemetry = TelemetryUsageInfo.getInstance();
+      telemetry.setSessionId(sessionId);
+      telemetry.setCommand(command);
+      telemetry.setModuleId(moduleId);
+      telemetry.setUserId(userId);
+      telemetry.setObjectId(objectId);
+      telemetry.setClassname(classname);
+      telemetry.setTimeMillis(timeMillis);
+      telemetry.setJsonObject(new JSONObject(json));
+      telemetry.saveUsageAudit();
+    }
+  }
+
+  private static class AgentJson {
+    private final String fingerprint;
+    private final String json;
+    private final long builtAt;
+
+    AgentJson(String fingerprint, String json, long builtAt) {
+      this.fingerprint = fingerprint;
+      this.json = json;
+      this.builtAt = builtAt;
+    }
+  }
+}
@@ -1,11 +1,27 @@
 package com.etendoerp.copilot.util;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import org.hibernate.criterion.Restrictions;
 import org.openbravo.base.provider.OBProvider;
+import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.model.ad.access.Role;
@@ -25,6 +41,13 @@ import com.etendoerp.webhookevents.data.DefinedwebhookRole;
 public class WebhookPermissionUtils {
 
   private static final Logger log = LogManager.getLogger();
+  private static final long RECONCILE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+  private static final long AWAIT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(2);
+  private static final long SHUTDOWN_WAIT_MS = 5000L;
+  private static final Map<String, Long> lastReconciled = new ConcurrentHashMap<>();
+  private static final Map<String, Future<?>> pending = new ConcurrentHashMap<>();
+  private static ExecutorService executor;
+
   private WebhookPermissionUtils() {
     throw new UnsupportedOperationException("Utility class - cannot be instantiated");
   }
@@ -82,5 +105,155 @@ public class WebhookPermissionUtils {
 
     OBDal.getInstance().save(webhookPermission);
   }
-}
 
+  /**
+   * Assigns in the background the missing webhook permissions of all the assistants of the role,
+   * so the requests that list the assistants do not wait for it. Each role is reconciled at most
+   * once every five minutes per node; the assistants are also reconciled when they are synchronized.
+   * The questions of the role wait for the assignment with
+   * {@link #awaitScheduledPermissions(String)}, so the agents do not call the webhooks before they
+   * are allowed to.
+   *
+   * @param role The role to assign permissions to.
+   */
+  public static void scheduleMissingPermissions(Role role) {
+    scheduleMissingPermissions(role.getId(), CopilotRuntime.ContextIds.capture(), getExecutor());
+  }
+
+  /**
+   * Waits until the webhook permissions scheduled for the role are assigned, at most two seconds;
+   * a question that does not find them yet is answered without waiting longer. Does nothing if no
+   * assignment is pending.
+   *
+   * @param roleId The identifier of the role.
+   */
+  public static void awaitScheduledPermissions(String roleId) {
+    awaitScheduledPermissions(roleId, AWAIT_TIMEOUT_MS);
+  }
+
+  /**
+   * @return true if no assignment is pending for the role when this method returns
+   */
+  static boolean awaitScheduledPermissions(String roleId, long timeoutMs) {
+    Future<?> task = roleId != null ? pending.get(roleId) : null;
+    if (task == null) {
+      return true;
+    }
+    try {
+      task.get(timeoutMs, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.warn("Error assigning webhook permissions for role {}", roleId, e.getCause());
+      return true;
+    } catch (TimeoutException e) {
+      log.warn("Webhook permissions of role {} are still being assigned after {} ms", roleId, timeoutMs);
+    }
+    return false;
+  }
+
+  /**
+   * Stops the thread that assigns the permissions in the background, after waiting for the pending
+   * assignments. Called when the web application is stopped.
+   */
+  public static synchronized void shutdown() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+    executor = null;
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor(CopilotRuntime.daemonThreads("copilot-webhook-permissions"));
+    }
+    return executor;
+  }
+
+  /**
+   * @return true if the reconciliation was submitted, false if the role was reconciled recently
+   */
+  static boolean scheduleMissingPermissions(String roleId, CopilotRuntime.ContextIds context,
+      Executor target) {
+    long now = System.currentTimeMillis();
+    AtomicBoolean claimed = new AtomicBoolean();
+    lastReconciled.compute(roleId, (id, last) -> {
+      if (last != null && now - last < RECONCILE_INTERVAL_MS) {
+        return last;
+      }
+      claimed.set(true);
+      return now;
+    });
+    if (!claimed.get()) {
+      return false;
+    }
+    FutureTask<Void> task = new FutureTask<>(() -> reconcileInWorker(roleId, context), null) {
+      @Override
+      protected void done() {
+        pending.remove(roleId, this);
+      }
+    };
+    pending.put(roleId, task);
+    try {
+      target.execute(task);
+    } catch (RejectedExecutionException e) {
+      log.warn("Webhook permissions of role {} cannot be assigned, the application is stopping", roleId);
+      pending.remove(roleId, task);
+      lastReconciled.remove(roleId);
+      return false;
+    }
+    return true;
+  }
+
+  private static void reconcileInWorker(String roleId, CopilotRuntime.ContextIds context) {
+    context.apply();
+    OBContext.setAdminMode();
+    try {
+      Role role = OBDal.getInstance().get(Role.class, roleId);
+      if (role != null) {
+        assignMissingPermissions(role);
+      }
+      OBDal.getInstance().commitAndClose();
+    } catch (Exception e) {
+      log.error("Error assigning webhook permissions for role {}", roleId, e);
+      lastReconciled.remove(roleId);
+      OBDal.getInstance().rollbackAndClose();
+    } finally {
+      OBContext.restorePreviousMode();
+      OBContext.setOBContext((OBContext) null);
+    }
+  }
+
+  /**
+   * Assigns the missing webhook permissions of all the assistants of the role with one query. A
+   * webhook used by several assistants is assigned once.
+   *
+   * @param role The role to assign permissions to.
+   */
+  static void assignMissingPermissions(Role role) {
+    OBCriteria<RoleWebhookaccessV> criteria = OBDal.getInstance().createCriteria(RoleWebhookaccessV.class);
+    criteria.add(Restrictions.eq(RoleWebhookaccessV.PROPERTY_ROLE, role));
+    criteria.add(Restrictions.eq(RoleWebhookaccessV.PROPERTY_HASROLEWEBHOOK, false));
+
+    Set<String> assigned = new HashSet<>();
+    for (RoleWebhookaccessV permissionInfo : criteria.list()) {
+      if (assigned.add(permissionInfo.getWebHook().getId())) {
+        createPermission(permissionInfo.getRole(), permissionInfo.getWebHook());
+      }
+    }
+    if (!assigned.isEmpty()) {
+      log.debug("Assigned {} missing webhook permissions for role {}", assigned.size(), role.getId());
+      OBDal.getInstance().flush();
+    }
+  }
+}
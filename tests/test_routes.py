@@ -376,3 +376,65 @@ def test_purge_vectordb_error_handling(mock_get_path, mock_get_settings, mock_ch
     # Make request and expect error - FastAPI will raise the exception
     with pytest.raises(Exception, match="Database connection error"):
         client.post("/purgeVectorDB", json={"kb_vectordb_id": kb_vectordb_id})
+
+
+@patch("copilot.core.routes.chromadb.Client")
+@patch("copilot.core.routes.get_chroma_settings")
+@patch("copilot.core.routes.get_vector_db_path")
+def test_get_vectordb_manifest(mock_get_path, mock_get_settings, mock_chromadb_client):
+    """Test the manifest lists the indexed files and counts the documents without file information."""
+    mock_get_path.return_value = "/fake/path/to/db"
+    mock_get_settings.return_value = MagicMock()
+
+    mock_collection = MagicMock()
+    mock_collection.get.return_value = {
+        "ids": ["doc1", "doc2", "doc3"],
+        "metadatas": [
+            {"kb_file_id": "F1", "kb_hash": "h1"},
+            {"kb_file_id": "F1", "kb_hash": "h1"},
+            {"md5": "legacy"},
+        ],
+    }
+    mock_images_collection = MagicMock()
+    mock_images_collection.get.return_value = {
+        "ids": ["img1"],
+        "metadatas": [{"kb_file_id": "F2", "kb_hash": "h2"}],
+    }
+    mock_db_client_instance = MagicMock()
+    mock_db_client_instance.get_or_create_collection.side_effect = [mock_collection, mock_images_collection]
+    mock_chromadb_client.return_value = mock_db_client_instance
+
+    response = client.post("/getVectorDBManifest", json={"kb_vectordb_id": "test_kb_id", "ad_client_id": "C1"})
+
+    assert response.status_code == 200
+    assert response.json() == {"files": {"F1": "h1", "F2": "h2"}, "untracked": 1}
+    mock_collection.get.assert_called_once_with(
+        where={"ad_client_id": {"$in": ["0", "C1"]}}, include=["metadatas"]
+    )
+
+
+@patch("copilot.core.routes.chromadb.Client")
+@patch("copilot.core.routes.get_chroma_settings")
+@patch("copilot.core.routes.get_vector_db_path")
+def test_remove_from_vectordb(mock_get_path, mock_get_settings, mock_chromadb_client):
+    """Test only the documents of the given files are deleted."""
+    mock_get_path.return_value = "/fake/path/to/db"
+    mock_get_settings.return_value = MagicMock()
+
+    mock_collection = MagicMock()
+    mock_collection.get.return_value = {"ids": ["doc1", "doc2"]}
+    mock_images_collection = MagicMock()
+    mock_images_collection.get.return_value = {"ids": []}
+    mock_db_client_instance = MagicMock()
+    mock_db_client_instance.get_or_create_collection.side_effect = [mock_collection, mock_images_collection]
+    mock_chromadb_client.return_value = mock_db_client_instance
+
+    response = client.post(
+        "/removeFromVectorDB", json={"kb_vectordb_id": "test_kb_id", "kb_file_ids": ["F1", "F2"]}
+    )
+
+    assert response.status_code == 200
+    assert "Total removed: 2" in response.json()["answer"]
+    expected_filter = {"$and": [{"kb_file_id": {"$in": ["F1", "F2"]}}, {"ad_client_id": "0"}]}
+    mock_collection.delete.assert_called_once_with(where=expected_filter)
+    mock_images_collection.delete.assert_not_called()